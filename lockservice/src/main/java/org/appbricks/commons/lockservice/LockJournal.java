@@ -0,0 +1,202 @@
+package org.appbricks.commons.lockservice;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.store.LockProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persists the lock table of the server as a snapshot of all the locks
+ * and a journal of the state of each lock after every change since the
+ * snapshot. The journal is only appended to, and it is replaced by a new
+ * snapshot once it has grown. Journals are numbered and a snapshot records
+ * the number of the journal that follows it, so a crash while a snapshot
+ * is written leaves either the old or the new snapshot with its journal.
+ * A lock that was deleted is journaled as an empty lock record followed
+ * by its name. Recovery reads the snapshot and then its journal, and a
+ * record cut short by a crash at the end of the journal is ignored.
+ */
+class LockJournal
+    implements Closeable {
+
+    private static final Log log = LogFactory.getLog(LockJournal.class);
+
+    private static final String SNAPSHOT = "locks.snapshot";
+    private static final String JOURNAL = "locks.journal.";
+
+    private final File directory;
+    private final boolean sync;
+
+    private FileOutputStream journalFile;
+    private DataOutputStream journal;
+
+    private long generation;
+    private long records;
+
+    /**
+     * Opens the journal in the given directory. If sync is true every flush
+     * of the journal is forced to the disk, otherwise changes written since
+     * the operating system last wrote the journal may be lost if the host
+     * fails.
+     */
+    LockJournal(File directory, boolean sync)
+        throws IOException {
+
+        this.directory = directory;
+        this.sync = sync;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Unable to create journal directory '%s'.", directory));
+        }
+    }
+
+    /**
+     * Returns the locks recorded by the snapshot and the journal and opens
+     * the journal for appending. This must be called before any changes are
+     * appended.
+     */
+    Map<String, DistributedLock> recover()
+        throws IOException {
+
+        Map<String, DistributedLock> locks = new LinkedHashMap<>();
+
+        long snapshotRecords = 0L;
+        File snapshot = new File(this.directory, SNAPSHOT);
+        if (snapshot.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+                this.generation = in.readLong();
+                snapshotRecords = read(in, locks);
+            }
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.journal(this.generation))))) {
+            this.records = read(in, locks);
+        } catch (FileNotFoundException e) {
+            this.records = 0L;
+        }
+
+        log.info(String.format("Recovered %d locks from %d snapshot and %d journal records in '%s'.",
+            locks.size(), snapshotRecords, this.records, this.directory));
+
+        // Rewrite the journal so that a record cut
+        // short is not followed by new records
+        this.snapshot(locks.values());
+        return locks;
+    }
+
+    void append(DistributedLock lock)
+        throws IOException {
+
+        LockProtocol.writeLock(this.journal, lock);
+        this.records++;
+    }
+
+    void delete(String name)
+        throws IOException {
+
+        LockProtocol.writeLock(this.journal, null);
+        this.journal.writeUTF(name);
+        this.records++;
+    }
+
+    void flush()
+        throws IOException {
+
+        this.journal.flush();
+        if (this.sync) {
+            this.journalFile.getFD().sync();
+        }
+    }
+
+    /**
+     * Returns the number of records appended to the journal since the last snapshot.
+     */
+    long getRecords() {
+        return this.records;
+    }
+
+    /**
+     * Writes a snapshot of the given locks and starts a new journal.
+     */
+    void snapshot(Collection<DistributedLock> locks)
+        throws IOException {
+
+        long generation = this.generation + 1;
+        FileOutputStream journalFile = new FileOutputStream(this.journal(generation));
+
+        File snapshot = new File(this.directory, SNAPSHOT);
+        File next = new File(this.directory, SNAPSHOT + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(next)) {
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            out.writeLong(generation);
+            for (DistributedLock lock : locks) {
+                LockProtocol.writeLock(out, lock);
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(next.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (this.journal != null) {
+            this.journal.close();
+        }
+        Files.deleteIfExists(this.journal(this.generation).toPath());
+
+        this.generation = generation;
+        this.journalFile = journalFile;
+        this.journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+        this.records = 0L;
+    }
+
+    @Override
+    public void close()
+        throws IOException {
+
+        if (this.journal != null) {
+            this.flush();
+            this.journal.close();
+        }
+    }
+
+    private File journal(long generation) {
+        return new File(this.directory, JOURNAL + generation);
+    }
+
+    private static long read(DataInputStream in, Map<String, DistributedLock> locks)
+        throws IOException {
+
+        long records = 0L;
+        try {
+            while (true) {
+                DistributedLock lock = LockProtocol.readLock(in);
+                if (lock != null) {
+                    locks.put(lock.getName(), lock);
+                } else {
+                    locks.remove(in.readUTF());
+                }
+                records++;
+            }
+        } catch (EOFException e) {
+            // end of the records
+        }
+        return records;
+    }
+}
@@ -0,0 +1,657 @@
+package org.appbricks.commons.lockservice;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockNotFoundException;
+import org.appbricks.commons.sharedlock.exception.MaintenanceEnabledException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.store.InMemoryLockStore;
+import org.appbricks.commons.sharedlock.store.LockProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server that holds the authoritative table of locks in memory and serves
+ * it to RemoteLockStore clients over the LockProtocol. All the requests are
+ * applied to the table by a single thread, which takes the requests that
+ * arrived while it was busy as one batch. The state of every lock changed
+ * by a batch is appended to the journal, and the journal is flushed before
+ * the responses to the batch are sent, so a client never sees a change
+ * that would be lost if the server were restarted.
+ *
+ * Each connection has a thread that reads its requests and a thread that
+ * writes its responses, so a client that is slow to read does not hold up
+ * the request thread. A connection may have a bounded number of requests
+ * waiting for their responses and the queue of the request thread is
+ * bounded too. Once either is full the connection stops reading requests,
+ * which holds back its client.
+ *
+ * Clients that are refused a lock are sent the name of the lock once it is
+ * released so their waiting threads can try again right away.
+ */
+public class LockServer
+    implements Closeable {
+
+    private static final Log log = LogFactory.getLog(LockServer.class);
+
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 60000L;
+    public static final long DEFAULT_SNAPSHOT_RECORDS = 100000L;
+
+    public static final int MAX_QUEUED_REQUESTS = 16384;
+    public static final int MAX_PENDING_REQUESTS = 1024;
+
+    private final InMemoryLockStore lockStore = new InMemoryLockStore();
+    private final LockJournal journal;
+
+    private final ServerSocket serverSocket;
+
+    private final BlockingQueue<Runnable> requests = new LinkedBlockingQueue<>(MAX_QUEUED_REQUESTS);
+
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+    // Only accessed by the request thread
+    private final Set<Connection> unflushed = new LinkedHashSet<>();
+    private final Set<String> changed = new LinkedHashSet<>();
+    private final Set<String> deleted = new LinkedHashSet<>();
+    private final Map<String, Set<Connection>> waiting = new HashMap<>();
+
+    private long snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+    private long snapshotRecords = DEFAULT_SNAPSHOT_RECORDS;
+
+    private volatile boolean running = true;
+
+    private final Thread acceptor;
+    private final Thread processor;
+
+    /**
+     * Recovers the lock table from the journal in the given directory and
+     * starts serving it on the given address and port. A port of 0 picks
+     * a free port.
+     */
+    public LockServer(InetAddress address, int port, File directory, boolean sync)
+        throws IOException {
+
+        this.journal = new LockJournal(directory, sync);
+        this.journal.recover().values().forEach(this.lockStore::restoreLock);
+        this.lockStore.setReleaseListener(this::released);
+
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(address, port));
+
+        this.processor = new Thread(this::process, "lockservice-requests");
+        this.processor.start();
+
+        this.acceptor = new Thread(this::accept, "lockservice-acceptor");
+        this.acceptor.start();
+
+        log.info(String.format("Lock server listening on %s.", this.serverSocket.getLocalSocketAddress()));
+    }
+
+    public static void main(String[] args)
+        throws IOException {
+
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : LockProtocol.DEFAULT_PORT;
+        File directory = new File(args.length > 1 ? args[1] : "data");
+        boolean sync = args.length > 2 && Boolean.parseBoolean(args[2]);
+
+        LockServer server = new LockServer(InetAddress.getLoopbackAddress(), port, directory, sync);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    /**
+     * Sets how often in milliseconds the journal is replaced
+     * by a snapshot if locks have changed.
+     */
+    public void setSnapshotInterval(long snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Sets the number of journal records after
+     * which the journal is replaced by a snapshot.
+     */
+    public void setSnapshotRecords(long snapshotRecords) {
+        this.snapshotRecords = snapshotRecords;
+    }
+
+    @Override
+    public void close() {
+
+        if (!this.running) {
+            return;
+        }
+        this.running = false;
+
+        try {
+            this.serverSocket.close();
+            this.acceptor.join();
+            this.processor.join();
+
+            for (Connection connection : this.connections) {
+                connection.socket.close();
+            }
+
+        } catch (IOException e) {
+            log.warn(String.format("Error closing lock server: %s", e.getMessage()), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept() {
+
+        while (this.running) {
+            try {
+                Socket socket = this.serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                new Connection(socket).start();
+
+            } catch (SocketException e) {
+                if (this.running) {
+                    log.error(String.format("Lock server socket failed: %s", e.getMessage()), e);
+                }
+            } catch (IOException e) {
+                log.warn(String.format("Failed to accept connection: %s", e.getMessage()), e);
+            }
+        }
+    }
+
+    /**
+     * Applies the requests in batches. After each batch the changed locks
+     * are journaled, the journal is flushed and then the responses are sent.
+     */
+    private void process() {
+
+        List<Runnable> batch = new ArrayList<>();
+        long snapshotAt = System.currentTimeMillis() + this.snapshotInterval;
+
+        try {
+            while (this.running || !this.requests.isEmpty()) {
+
+                Runnable request = this.requests.poll(
+                    Math.max(1L, Math.min(100L, snapshotAt - System.currentTimeMillis())), TimeUnit.MILLISECONDS);
+
+                if (request != null) {
+                    batch.add(request);
+                    this.requests.drainTo(batch);
+                    batch.forEach(Runnable::run);
+                    batch.clear();
+
+                    // Deletions go first as a lock that is changed
+                    // after it was deleted has been created again
+                    for (String name : this.deleted) {
+                        this.journal.delete(name);
+                    }
+                    this.deleted.clear();
+                    for (DistributedLock lock : this.lockStore.getLocks(this.changed)) {
+                        this.journal.append(lock);
+                    }
+                    this.changed.clear();
+                    this.journal.flush();
+
+                    for (Connection connection : this.unflushed) {
+                        connection.flush();
+                    }
+                    this.unflushed.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (this.journal.getRecords() >= this.snapshotRecords
+                    || (now >= snapshotAt && this.journal.getRecords() > 0)) {
+
+                    this.journal.snapshot(this.lockStore.getAllLocks());
+                    snapshotAt = now + this.snapshotInterval;
+
+                } else if (now >= snapshotAt) {
+                    snapshotAt = now + this.snapshotInterval;
+                }
+            }
+
+            this.journal.close();
+
+        } catch (InterruptedException e) {
+            log.warn("Lock server request thread was interrupted.");
+
+        } catch (IOException e) {
+            // Responses must not be sent for changes that
+            // could not be journaled so stop serving
+            log.error(String.format("Failed to write lock journal, stopping the lock server: %s", e.getMessage()), e);
+            this.running = false;
+            try {
+                this.serverSocket.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Queues a task for the request thread, waiting while the queue is full.
+     * Returns false if the server was closed in the meantime.
+     */
+    private boolean enqueue(Runnable task)
+        throws InterruptedException {
+
+        while (this.running) {
+            if (this.requests.offer(task, 100L, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies a request from the given connection and buffers the response.
+     */
+    private void handle(Connection connection, int requestId, byte operation, byte[] payload) {
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(response);
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            out.writeByte(LockProtocol.OK);
+
+            switch (operation) {
+
+                case LockProtocol.GET_LOCK: {
+                    LockProtocol.writeLock(out, this.lockStore.getLock(in.readUTF()));
+                    break;
+                }
+                case LockProtocol.GET_LOCKS: {
+                    LockProtocol.writeLocks(out, this.lockStore.getLocks(LockProtocol.readNames(in)));
+                    break;
+                }
+                case LockProtocol.CREATE_LOCKS: {
+                    List<String> names = LockProtocol.readNames(in);
+                    this.lockStore.createLocks(names);
+                    this.changed.addAll(names);
+                    break;
+                }
+                case LockProtocol.TRY_ACQUIRE: {
+                    DistributedLock lock = LockProtocol.readLock(in);
+                    DistributedLock holder = this.lockStore.tryAcquireLock(lock, in.readInt());
+                    this.changed.add(lock.getName());
+                    if (holder != null) {
+                        this.waiting(lock.getName(), connection);
+                    }
+                    LockProtocol.writeLock(out, holder);
+                    if (holder == null) {
+                        out.writeLong(lock.getFencingToken());
+                    }
+                    break;
+                }
+                case LockProtocol.TRANSFER: {
+                    DistributedLock from = LockProtocol.readLock(in);
+                    DistributedLock to = LockProtocol.readLock(in);
+                    boolean transferred = this.lockStore.transferLock(from, to, in.readInt());
+                    out.writeBoolean(transferred);
+                    if (transferred) {
+                        out.writeLong(to.getFencingToken());
+                    }
+                    this.changed.add(to.getName());
+                    break;
+                }
+                case LockProtocol.EXTEND: {
+                    DistributedLock lock = LockProtocol.readLock(in);
+                    out.writeBoolean(this.lockStore.extendLock(lock, in.readLong()));
+                    this.changed.add(lock.getName());
+                    break;
+                }
+                case LockProtocol.RAISE_FENCING_TOKEN: {
+                    DistributedLock lock = LockProtocol.readLock(in);
+                    out.writeBoolean(this.lockStore.raiseFencingToken(lock, in.readLong()));
+                    this.changed.add(lock.getName());
+                    break;
+                }
+                case LockProtocol.RENEW: {
+                    List<DistributedLock> locks = LockProtocol.readLocks(in);
+                    LockProtocol.writeNames(out, this.lockStore.renewLocks(locks, in.readLong()));
+                    locks.forEach(lock -> this.changed.add(lock.getName()));
+                    break;
+                }
+                case LockProtocol.VALIDATE: {
+                    LockProtocol.writeLock(out, this.lockStore.validate(LockProtocol.readLock(in)));
+                    break;
+                }
+                case LockProtocol.RELEASE: {
+                    DistributedLock lock = LockProtocol.readLock(in);
+                    out.writeBoolean(this.lockStore.releaseLock(lock));
+                    this.changed.add(lock.getName());
+                    break;
+                }
+                case LockProtocol.ENTER_MAINTENANCE: {
+                    DistributedLock lock = LockProtocol.readLock(in);
+                    this.lockStore.enterMaintenanceMode(lock);
+                    this.changed.add(lock.getName());
+                    break;
+                }
+                case LockProtocol.EXIT_MAINTENANCE: {
+                    String name = in.readUTF();
+                    this.lockStore.exitMaintenanceMode(name);
+                    this.changed.add(name);
+                    break;
+                }
+                case LockProtocol.TRY_ACQUIRE_ALL: {
+                    List<String> names = LockProtocol.readNames(in);
+                    DistributedLock owner = LockProtocol.readLock(in);
+                    List<DistributedLock> held = this.lockStore.tryAcquireLocks(names, owner, in.readInt());
+                    this.changed.addAll(names);
+                    out.writeBoolean(held != null);
+                    if (held != null) {
+                        held.forEach(lock -> this.waiting(lock.getName(), connection));
+                        LockProtocol.writeLocks(out, held);
+                    }
+                    break;
+                }
+                case LockProtocol.RELEASE_ALL: {
+                    List<String> names = LockProtocol.readNames(in);
+                    out.writeInt(this.lockStore.releaseLocks(names, LockProtocol.readLock(in)));
+                    this.changed.addAll(names);
+                    break;
+                }
+                case LockProtocol.TRY_ACQUIRE_READ: {
+                    DistributedLock lock = LockProtocol.readLock(in);
+                    String name = lock.getName();
+                    DistributedLock holder = this.lockStore.tryAcquireReadLock(lock, in.readInt());
+                    this.changed.add(name);
+                    if (holder != null) {
+                        this.waiting(name, connection);
+                    }
+                    LockProtocol.writeLock(out, holder);
+                    break;
+                }
+                case LockProtocol.RELEASE_READ: {
+                    DistributedLock lock = LockProtocol.readLock(in);
+                    this.lockStore.releaseReadLock(lock);
+                    this.changed.add(lock.getName());
+                    break;
+                }
+                case LockProtocol.GET_LOCK_NAMES: {
+                    String after = LockProtocol.readString(in);
+                    LockProtocol.writeNames(out, this.lockStore.getLockNames(after, in.readInt()));
+                    break;
+                }
+                case LockProtocol.DELETE_IDLE: {
+                    List<String> names = LockProtocol.readNames(in);
+                    int count = this.lockStore.deleteIdleLocks(names, in.readLong());
+                    if (count > 0) {
+                        Set<String> remaining = new HashSet<>();
+                        this.lockStore.getLocks(names).forEach(lock -> remaining.add(lock.getName()));
+                        names.stream().filter(name -> !remaining.contains(name)).forEach(this.deleted::add);
+                    }
+                    out.writeInt(count);
+                    break;
+                }
+                default:
+                    throw new UnsupportedOperationException(String.format("Unknown operation %d.", operation));
+            }
+
+        } catch (InvalidLockException e) {
+            error(response, LockProtocol.INVALID_LOCK, e);
+        } catch (MaintenanceEnabledException e) {
+            error(response, LockProtocol.MAINTENANCE_ENABLED, e);
+        } catch (LockNotFoundException e) {
+            error(response, LockProtocol.LOCK_NOT_FOUND, e);
+        } catch (LockException e) {
+            error(response, LockProtocol.LOCK_ERROR, e);
+        } catch (UnsupportedOperationException e) {
+            error(response, LockProtocol.UNSUPPORTED, e);
+        } catch (Exception e) {
+            log.warn(String.format("Failed to handle operation %d: %s", operation, e.getMessage()), e);
+            error(response, LockProtocol.ERROR, e);
+        }
+
+        connection.write(requestId, response.toByteArray());
+        this.unflushed.add(connection);
+    }
+
+    /**
+     * Records that the given connection was refused the named lock.
+     */
+    private void waiting(String name, Connection connection) {
+        this.waiting.computeIfAbsent(name, key -> new LinkedHashSet<>()).add(connection);
+    }
+
+    /**
+     * Tells the connections that were refused the named lock that
+     * it was released. This is called by the request thread.
+     */
+    private void released(String name) {
+
+        Set<Connection> connections = this.waiting.remove(name);
+        if (connections == null) {
+            return;
+        }
+
+        ByteArrayOutputStream push = new ByteArrayOutputStream(64);
+        try {
+            DataOutputStream out = new DataOutputStream(push);
+            out.writeByte(LockProtocol.RELEASED);
+            out.writeUTF(name);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (Connection connection : connections) {
+            connection.write(LockProtocol.PUSH_REQUEST_ID, push.toByteArray());
+            this.unflushed.add(connection);
+        }
+    }
+
+    private void closed(Connection connection) {
+        this.waiting.values().forEach(connections -> connections.remove(connection));
+        this.unflushed.remove(connection);
+    }
+
+    private static void error(ByteArrayOutputStream response, byte status, Throwable t) {
+
+        response.reset();
+        try {
+            DataOutputStream out = new DataOutputStream(response);
+            out.writeByte(status);
+            out.writeUTF(String.valueOf(t.getMessage()));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A client connection. Its reader thread queues the requests for the
+     * request thread, which buffers the responses and hands them over to
+     * its writer thread once the journal is flushed.
+     */
+    private class Connection {
+
+        private final Socket socket;
+        private final DataOutputStream out;
+
+        // Requests read and not yet answered
+        private final Semaphore pending = new Semaphore(MAX_PENDING_REQUESTS);
+
+        // Only accessed by the request thread
+        private final List<Frame> buffered = new ArrayList<>();
+
+        private final BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+
+        private volatile boolean failed;
+
+        private Connection(Socket socket)
+            throws IOException {
+
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        private void start() {
+
+            LockServer.this.connections.add(this);
+
+            Thread reader = new Thread(this::read, "lockservice-" + this.socket.getRemoteSocketAddress());
+            reader.setDaemon(true);
+            reader.start();
+
+            Thread writer = new Thread(this::writeFrames, "lockservice-writer-" + this.socket.getRemoteSocketAddress());
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        private void read() {
+
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+                while (LockServer.this.running) {
+
+                    int length = in.readInt();
+                    if (length < 5 || length > LockProtocol.MAX_FRAME_SIZE) {
+                        throw new IOException(String.format("Invalid frame length %d.", length));
+                    }
+                    int requestId = in.readInt();
+                    byte operation = in.readByte();
+                    byte[] payload = new byte[length - 5];
+                    in.readFully(payload);
+
+                    // Stops reading while too many requests wait for their responses
+                    while (!this.pending.tryAcquire(100L, TimeUnit.MILLISECONDS)) {
+                        if (!LockServer.this.running || this.failed) {
+                            throw new IOException("Connection closed.");
+                        }
+                    }
+                    if (!LockServer.this.enqueue(() -> LockServer.this.handle(this, requestId, operation, payload))) {
+                        break;
+                    }
+                }
+
+            } catch (IOException e) {
+                log.debug(String.format("Connection %s closed: %s", this.socket.getRemoteSocketAddress(), e.getMessage()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            this.frames.add(Frame.CLOSED);
+            LockServer.this.connections.remove(this);
+            try {
+                LockServer.this.enqueue(() -> LockServer.this.closed(this));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Buffers a frame for the client. This is called by the request thread.
+         */
+        private void write(int requestId, byte[] payload) {
+
+            if (!this.failed) {
+                this.buffered.add(new Frame(requestId, payload));
+            }
+        }
+
+        /**
+         * Hands the buffered frames over to the writer thread.
+         * This is called by the request thread.
+         */
+        private void flush() {
+
+            if (!this.failed) {
+                this.frames.addAll(this.buffered);
+            }
+            this.buffered.clear();
+        }
+
+        /**
+         * Writes the frames handed over by the request thread, flushing
+         * the socket whenever there are no more frames to write.
+         */
+        private void writeFrames() {
+
+            try {
+                Frame frame = this.frames.take();
+                while (frame != Frame.CLOSED) {
+
+                    this.out.writeInt(frame.payload.length + 4);
+                    this.out.writeInt(frame.requestId);
+                    this.out.write(frame.payload);
+                    if (frame.requestId != LockProtocol.PUSH_REQUEST_ID) {
+                        this.pending.release();
+                    }
+
+                    frame = this.frames.poll();
+                    if (frame == null) {
+                        this.out.flush();
+                        frame = this.frames.take();
+                    }
+                }
+
+            } catch (IOException e) {
+                this.fail(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void fail(IOException e) {
+
+            this.failed = true;
+            log.debug(String.format("Failed to write to %s: %s", this.socket.getRemoteSocketAddress(), e.getMessage()));
+            try {
+                this.socket.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * A response or a push to a client.
+     */
+    private static class Frame {
+
+        private static final Frame CLOSED = new Frame(0, null);
+
+        private final int requestId;
+        private final byte[] payload;
+
+        private Frame(int requestId, byte[] payload) {
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+    }
+}
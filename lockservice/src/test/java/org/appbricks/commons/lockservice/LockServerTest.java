@@ -0,0 +1,262 @@
+package org.appbricks.commons.lockservice;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.exception.MaintenanceEnabledException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.service.DistributedLockInstance;
+import org.appbricks.commons.sharedlock.service.DistributedLockService;
+import org.appbricks.commons.sharedlock.store.LockProtocol;
+import org.appbricks.commons.sharedlock.store.RemoteLockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LockServerTest {
+
+    private static final Log log = LogFactory.getLog(LockServerTest.class);
+
+    private File directory;
+    private LockServer server;
+
+    @Before
+    public void setUp()
+        throws Throwable {
+
+        this.directory = Files.createTempDirectory("lockservice").toFile();
+        this.server = new LockServer(InetAddress.getLoopbackAddress(), 0, this.directory, false);
+    }
+
+    @After
+    public void tearDown() {
+
+        this.server.close();
+        for (File file : this.directory.listFiles()) {
+            file.delete();
+        }
+        this.directory.delete();
+    }
+
+    @Test
+    public void testLocksSurviveRestart()
+        throws Throwable {
+
+        try (RemoteLockStore store = new RemoteLockStore("localhost", this.server.getPort())) {
+
+            store.getLock("serverLock1");
+            assertNull(store.tryAcquireLock(owner("serverLock1", 1), 60));
+            assertNotNull(store.tryAcquireLock(owner("serverLock1", 2), 60));
+
+            store.createLocks(Arrays.asList("serverLock2", "serverLock3"));
+            assertNull(store.tryAcquireLock(owner("serverLock2", 1), 60));
+            store.enterMaintenanceMode(owner("serverLock2", 1));
+
+            assertNull(store.tryAcquireLocks(Arrays.asList("serverLock3"), owner(null, 3), 60));
+
+            // Idle locks are deleted and held locks are kept
+            store.createLocks(Arrays.asList("serverLock4"));
+            assertEquals(1, store.deleteIdleLocks(
+                Arrays.asList("serverLock1", "serverLock4"), System.currentTimeMillis()));
+            assertEquals(Arrays.asList("serverLock1", "serverLock2", "serverLock3"), store.getLockNames(null, 10));
+        }
+
+        this.server.close();
+        this.server = new LockServer(InetAddress.getLoopbackAddress(), 0, this.directory, false);
+
+        try (RemoteLockStore store = new RemoteLockStore("localhost", this.server.getPort())) {
+
+            assertEquals(Arrays.asList("serverLock2", "serverLock3"), store.getLockNames("serverLock1", 10));
+            store.validate(owner("serverLock1", 1));
+            try {
+                store.validate(owner("serverLock1", 2));
+                fail("Lock should still be held by the first owner");
+            } catch (InvalidLockException e) {
+                // expected
+            }
+
+            try {
+                store.tryAcquireLock(owner("serverLock2", 2), 60);
+                fail("Lock should still be in maintenance mode");
+            } catch (MaintenanceEnabledException e) {
+                // expected
+            }
+            store.exitMaintenanceMode("serverLock2");
+
+            assertEquals(1, store.releaseLocks(Arrays.asList("serverLock3"), owner(null, 3)));
+            assertTrue(store.releaseLock(owner("serverLock1", 1)));
+            assertFalse(store.getLock("serverLock1").isLocked());
+        }
+    }
+
+    @Test
+    public void testReleaseIsPushed()
+        throws Throwable {
+
+        try (
+            RemoteLockStore holderStore = new RemoteLockStore("localhost", this.server.getPort());
+            RemoteLockStore waiterStore = new RemoteLockStore("localhost", this.server.getPort())
+        ) {
+            DistributedLock holder = owner("serverLock5", 1);
+            holderStore.getLock("serverLock5");
+            assertNull(holderStore.tryAcquireLock(holder, 60));
+
+            // The waiter checks the lock only every 30 seconds so it
+            // can only acquire the lock in time if it is told
+            DistributedLockService service = new DistributedLockService(waiterStore);
+            DistributedLockInstance testLock = new DistributedLockInstance("serverLock5", service, 30000, 3);
+
+            CountDownLatch waiting = new CountDownLatch(1);
+            AtomicLong acquiredAt = new AtomicLong();
+
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            executor.execute(() -> {
+                waiting.countDown();
+                try {
+                    testLock.lock(20, 60);
+                    acquiredAt.set(System.currentTimeMillis());
+                    testLock.unlock();
+                } catch (Throwable t) {
+                    log.error("Waiter failed", t);
+                }
+            });
+
+            waiting.await();
+            Thread.sleep(500);
+
+            long releasedAt = System.currentTimeMillis();
+            assertTrue(holderStore.releaseLock(holder));
+
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertTrue(acquiredAt.get() > 0 && acquiredAt.get() - releasedAt < 1000L);
+        }
+    }
+
+    @Test
+    public void testSlowClientDoesNotHoldUpOthers()
+        throws Throwable {
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            names.add("slowClientLock" + i);
+        }
+
+        try (
+            RemoteLockStore store = new RemoteLockStore("localhost", this.server.getPort());
+            Socket slowClient = new Socket("localhost", this.server.getPort())
+        ) {
+            store.createLocks(names);
+
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            DataOutputStream payload = new DataOutputStream(request);
+            LockProtocol.writeString(payload, null);
+            payload.writeInt(names.size());
+
+            // A client that sends requests for large responses and never reads them
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            executor.execute(() -> {
+                try {
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(slowClient.getOutputStream()));
+                    for (int i = 1; i <= 5000; i++) {
+                        out.writeInt(request.size() + 5);
+                        out.writeInt(i);
+                        out.writeByte(LockProtocol.GET_LOCK_NAMES);
+                        out.write(request.toByteArray());
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    // closed at the end of the test
+                }
+            });
+            Thread.sleep(500);
+
+            long start = System.currentTimeMillis();
+            DistributedLock owner = owner("slowClientLock0", 1);
+            assertNull(store.tryAcquireLock(owner, 60));
+            assertTrue(store.releaseLock(owner));
+            assertTrue(System.currentTimeMillis() - start < 2000L);
+
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPipelinedThroughput()
+        throws Throwable {
+
+        int threads = 16;
+        int iterations = 2000;
+
+        try (RemoteLockStore store = new RemoteLockStore("localhost", this.server.getPort())) {
+
+            for (int i = 0; i < threads; i++) {
+                store.getLock("throughputLock" + i);
+            }
+
+            AtomicInteger failures = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < threads; i++) {
+                DistributedLock owner = owner("throughputLock" + i, i);
+                executor.execute(() -> {
+                    for (int j = 0; j < iterations; j++) {
+                        try {
+                            if (store.tryAcquireLock(owner, 60) != null || !store.releaseLock(owner)) {
+                                failures.incrementAndGet();
+                            }
+                        } catch (Throwable t) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(2, TimeUnit.MINUTES));
+
+            long operations = 2L * threads * iterations;
+            log.info(String.format("%,d lock operations per second from %d threads over one connection.",
+                operations * 1000000000L / (System.nanoTime() - start), threads));
+
+            assertEquals(0, failures.get());
+        }
+    }
+
+    private static DistributedLock owner(String name, long threadId) {
+
+        DistributedLock lock = new DistributedLock();
+        lock.setName(name);
+        lock.setHostname("localhost");
+        lock.setAddress("127.0.0.1");
+        lock.setThreadId(threadId);
+        lock.setThreadName("thread-" + threadId);
+        lock.setThreadGroupName("main");
+        return lock;
+    }
+}
@@ -0,0 +1,23 @@
+package org.appbricks.commons.sharedlock.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives each benchmark thread a short name. The names JMH gives its
+ * threads are longer than the thread name column of the lock table.
+ */
+@State(Scope.Thread)
+public class BenchmarkThread {
+
+    private static final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Thread.currentThread().setName("benchmark-" + threads.incrementAndGet());
+    }
+}
@@ -0,0 +1,60 @@
+package org.appbricks.commons.sharedlock.benchmark;
+
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.service.DistributedLockInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how many times per second all the benchmark threads together
+ * can acquire and release a single lock. The number of contending threads
+ * is set with the threads option, which LockBenchmarks varies from 1 to 64.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ContendedLockBenchmark {
+
+    private static final AtomicInteger trials = new AtomicInteger();
+
+    /**
+     * The lock all the benchmark threads contend for.
+     */
+    @State(Scope.Benchmark)
+    public static class SharedLock {
+
+        DistributedLockInstance lock;
+
+        @Setup(Level.Trial)
+        public void setUp(LockServiceState state) {
+
+            // Threads queue locally for the lock so the poll interval
+            // only matters when the lock is handed over between trials
+            this.lock = new DistributedLockInstance(
+                "benchmarkContended" + trials.incrementAndGet(), state.service, 1, 3);
+        }
+    }
+
+    @Benchmark
+    public long lockUnlock(BenchmarkThread thread, SharedLock shared)
+        throws LockException {
+
+        long fencingToken = shared.lock.lock(60, 60);
+        shared.lock.unlock();
+        return fencingToken;
+    }
+}
@@ -0,0 +1,41 @@
+package org.appbricks.commons.sharedlock.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the lock benchmarks with the GC profiler so that the allocation
+ * per operation is reported with the latency. The uncontended benchmarks
+ * are run on one thread and the contended benchmark on 1 to 64 threads.
+ * Any JMH command line options, such as -p store=jdbc to only run the
+ * benchmarks against one store, are applied to all the runs.
+ */
+public class LockBenchmarks {
+
+    private static final int[] CONTENDING_THREADS = { 1, 4, 16, 64 };
+
+    public static void main(String[] args)
+        throws Exception {
+
+        Options options = new CommandLineOptions(args);
+
+        new Runner(new OptionsBuilder()
+            .parent(options)
+            .include(UncontendedLockBenchmark.class.getSimpleName())
+            .threads(1)
+            .addProfiler(GCProfiler.class)
+            .build()).run();
+
+        for (int threads : CONTENDING_THREADS) {
+            new Runner(new OptionsBuilder()
+                .parent(options)
+                .include(ContendedLockBenchmark.class.getSimpleName())
+                .threads(threads)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.appbricks.commons.sharedlock.benchmark;
+
+import org.appbricks.commons.sharedlock.service.DistributedLockService;
+import org.appbricks.commons.sharedlock.store.BatchingLockStore;
+import org.appbricks.commons.sharedlock.store.CompactJdbcLockStore;
+import org.appbricks.commons.sharedlock.store.InMemoryLockStore;
+import org.appbricks.commons.sharedlock.store.JdbcLockStore;
+import org.appbricks.commons.sharedlock.store.MappedFileLockStore;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.File;
+
+/**
+ * A lock service over each of the lock stores that run in the benchmark
+ * process. The database stores use the embedded H2 database.
+ */
+@State(Scope.Benchmark)
+public class LockServiceState {
+
+    @Param({ "memory", "file", "jdbc", "compact", "jpa", "batching" })
+    public String store;
+
+    DistributedLockService service;
+
+    private AnnotationConfigApplicationContext context;
+    private Closeable closeable;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp()
+        throws Exception {
+
+        this.context = new AnnotationConfigApplicationContext(BenchmarkContext.class);
+        DataSource dataSource = this.context.getBean(DataSource.class);
+
+        switch (this.store) {
+            case "memory":
+                this.service = new DistributedLockService(new InMemoryLockStore());
+                break;
+            case "file":
+                this.file = File.createTempFile("locks", ".tbl");
+                MappedFileLockStore mappedFileLockStore = new MappedFileLockStore(this.file, 256);
+                this.closeable = mappedFileLockStore;
+                this.service = new DistributedLockService(mappedFileLockStore);
+                break;
+            case "jdbc":
+                this.service = new DistributedLockService(new JdbcLockStore(dataSource));
+                break;
+            case "compact":
+                this.service = new DistributedLockService(new CompactJdbcLockStore(dataSource));
+                break;
+            case "jpa":
+                this.service = this.context.getBean(DistributedLockService.class);
+                break;
+            case "batching":
+                BatchingLockStore batchingLockStore = new BatchingLockStore(new JdbcLockStore(dataSource));
+                this.closeable = batchingLockStore;
+                this.service = new DistributedLockService(batchingLockStore);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown lock store: " + this.store);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+        throws Exception {
+
+        if (this.closeable != null) {
+            this.closeable.close();
+        }
+        if (this.file != null) {
+            this.file.delete();
+        }
+        this.context.close();
+    }
+}
@@ -0,0 +1,104 @@
+package org.appbricks.commons.sharedlock.benchmark;
+
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.service.DistributedLockInstance;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the latency of lock operations on a lock that
+ * no other thread uses, so every operation succeeds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UncontendedLockBenchmark {
+
+    private static final AtomicInteger locks = new AtomicInteger();
+
+    /**
+     * A lock of the benchmark thread and a lock it holds.
+     */
+    @State(Scope.Thread)
+    public static class ThreadLocks {
+
+        DistributedLockInstance free;
+        DistributedLockInstance held;
+        String heldName;
+
+        @Setup(Level.Trial)
+        public void setUp(LockServiceState state, BenchmarkThread thread)
+            throws LockException {
+
+            int lock = locks.incrementAndGet();
+            this.free = new DistributedLockInstance("benchmarkFree" + lock, state.service, 10, 3);
+            this.heldName = "benchmarkHeld" + lock;
+            this.held = new DistributedLockInstance(this.heldName, state.service, 10, 3);
+            this.held.lock(60, 3600);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+            throws LockException {
+
+            this.held.unlock();
+        }
+    }
+
+    @Benchmark
+    public long lockUnlock(ThreadLocks locks)
+        throws LockException {
+
+        long fencingToken = locks.free.lock(60, 60);
+        locks.free.unlock();
+        return fencingToken;
+    }
+
+    /**
+     * Re-enters the held lock, which is answered from the local lease.
+     */
+    @Benchmark
+    public long reentrantLockUnlock(ThreadLocks locks)
+        throws LockException {
+
+        long fencingToken = locks.held.lock(60, 60);
+        locks.held.unlock();
+        return fencingToken;
+    }
+
+    /**
+     * Validates the held lock, which is answered from the local lease.
+     */
+    @Benchmark
+    public void validateLocal(ThreadLocks locks)
+        throws LockException {
+
+        locks.held.validate();
+    }
+
+    /**
+     * Validates the held lock against the lock store.
+     */
+    @Benchmark
+    public DistributedLock validateStore(LockServiceState state, ThreadLocks locks)
+        throws LockException {
+
+        return state.service.validate(locks.heldName);
+    }
+}
@@ -0,0 +1,48 @@
+package org.appbricks.commons.sharedlock.data;
+
+import org.appbricks.commons.sharedlock.model.DistributedLockReader;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface DistributedLockReaderRepository
+    extends CrudRepository<DistributedLockReader, DistributedLockReader.Key> {
+
+    List<DistributedLockReader> findByName(String name);
+
+    /**
+     * Sets the expiry of the shared lease of the given holder.
+     */
+    @Modifying
+    @Query("update DistributedLockReader r set r.expiresAt = :expiresAt " +
+        "where r.name = :name and r.hostname = :hostname and r.threadId = :threadId")
+    int renew(
+        @Param("name") String name,
+        @Param("hostname") String hostname,
+        @Param("threadId") long threadId,
+        @Param("expiresAt") long expiresAt);
+
+    /**
+     * Removes the shared lease of the given holder.
+     */
+    @Modifying
+    @Query("delete from DistributedLockReader r " +
+        "where r.name = :name and r.hostname = :hostname and r.threadId = :threadId")
+    int release(
+        @Param("name") String name,
+        @Param("hostname") String hostname,
+        @Param("threadId") long threadId);
+
+    /**
+     * Removes the shared leases of the named locks that have expired.
+     */
+    @Modifying
+    @Query("delete from DistributedLockReader r where r.name in :names and r.expiresAt <= :now")
+    int removeExpired(
+        @Param("names") Collection<String> names,
+        @Param("now") long now);
+}
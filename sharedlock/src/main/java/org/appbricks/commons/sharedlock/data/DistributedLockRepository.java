@@ -1,14 +1,237 @@
 package org.appbricks.commons.sharedlock.data;
 
 import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 
 import javax.persistence.LockModeType;
+import java.util.Collection;
+import java.util.List;
 
 public interface DistributedLockRepository
     extends CrudRepository<DistributedLock, String> {
 
     @Lock(LockModeType.PESSIMISTIC_WRITE)
     DistributedLock findByName(String name);
+
+    List<DistributedLock> findByNameIn(Collection<String> names);
+
+    @Query("select l.fencingToken from DistributedLock l where l.name = :name")
+    long findFencingToken(@Param("name") String name);
+
+    @Query("select l.name from DistributedLock l where l.name > :after order by l.name")
+    List<String> findNamesAfter(@Param("after") String after, Pageable pageable);
+
+    /**
+     * Takes the lease on the named lock if it is not held or has expired. The
+     * check and the update are done in a single statement so the number of rows
+     * updated (0 or 1) is the result of the acquisition attempt. A lock in
+     * maintenance mode is always held so it does not need a separate predicate.
+     * The lease is exclusive so it is not taken while the lock has shared
+     * holders whose leases have not expired. The lease is given the next
+     * fencing token, and is only taken while the lock still has the given
+     * token so that the token of the lease need not be read back.
+     */
+    @Modifying
+    @Query("update DistributedLock l set " +
+        "l.hostname = :hostname, l.address = :address, " +
+        "l.threadId = :threadId, l.threadName = :threadName, l.threadGroupName = :threadGroupName, " +
+        "l.updatedTime = :now, l.expiresAt = :expiresAt, l.writerWaitingUntil = 0, " +
+        "l.maintenance = 'N', l.locked = 'Y', l.fencingToken = :nextToken " +
+        "where l.name = :name and l.fencingToken = :fencingToken " +
+        "and (l.locked <> 'Y' or l.expiresAt <= :now) " +
+        "and (l.readers = 0 or l.readExpiresAt <= :now)")
+    int acquire(
+        @Param("name") String name,
+        @Param("fencingToken") long fencingToken,
+        @Param("nextToken") long nextToken,
+        @Param("hostname") String hostname,
+        @Param("address") String address,
+        @Param("threadId") long threadId,
+        @Param("threadName") String threadName,
+        @Param("threadGroupName") String threadGroupName,
+        @Param("now") long now,
+        @Param("expiresAt") long expiresAt);
+
+    /**
+     * Hands the lease on the named lock from one thread to another
+     * within the same process, provided the lease is still held by
+     * the first thread. The second thread is given a new fencing token.
+     */
+    @Modifying
+    @Query("update DistributedLock l set " +
+        "l.threadId = :threadId, l.threadName = :threadName, l.threadGroupName = :threadGroupName, " +
+        "l.updatedTime = :now, l.expiresAt = :expiresAt, l.maintenance = 'N', " +
+        "l.fencingToken = l.fencingToken + 1 " +
+        "where l.name = :name and l.locked = 'Y' and l.expiresAt > :now " +
+        "and l.hostname = :hostname and l.address = :address and l.threadId = :fromThreadId " +
+        "and l.threadName = :fromThreadName and l.threadGroupName = :fromThreadGroupName")
+    int transfer(
+        @Param("name") String name,
+        @Param("hostname") String hostname,
+        @Param("address") String address,
+        @Param("fromThreadId") long fromThreadId,
+        @Param("fromThreadName") String fromThreadName,
+        @Param("fromThreadGroupName") String fromThreadGroupName,
+        @Param("threadId") long threadId,
+        @Param("threadName") String threadName,
+        @Param("threadGroupName") String threadGroupName,
+        @Param("now") long now,
+        @Param("expiresAt") long expiresAt);
+
+    /**
+     * Extends the lease on the named lock provided
+     * it is still held by the given thread.
+     */
+    @Modifying
+    @Query("update DistributedLock l set l.updatedTime = :now, l.expiresAt = :expiresAt " +
+        "where l.name = :name and l.locked = 'Y' and l.expiresAt > :now " +
+        "and l.hostname = :hostname and l.address = :address and l.threadId = :threadId " +
+        "and l.threadName = :threadName and l.threadGroupName = :threadGroupName")
+    int extend(
+        @Param("name") String name,
+        @Param("hostname") String hostname,
+        @Param("address") String address,
+        @Param("threadId") long threadId,
+        @Param("threadName") String threadName,
+        @Param("threadGroupName") String threadGroupName,
+        @Param("now") long now,
+        @Param("expiresAt") long expiresAt);
+
+    /**
+     * Takes the leases on all the named locks that are not held or have
+     * expired. The caller must roll back the update if fewer rows than
+     * names were updated so that either all or none of the locks are taken.
+     */
+    @Modifying
+    @Query("update DistributedLock l set " +
+        "l.hostname = :hostname, l.address = :address, " +
+        "l.threadId = :threadId, l.threadName = :threadName, l.threadGroupName = :threadGroupName, " +
+        "l.updatedTime = :now, l.expiresAt = :expiresAt, l.writerWaitingUntil = 0, " +
+        "l.maintenance = 'N', l.locked = 'Y', l.fencingToken = l.fencingToken + 1 " +
+        "where l.name in :names and (l.locked <> 'Y' or l.expiresAt <= :now) " +
+        "and (l.readers = 0 or l.readExpiresAt <= :now)")
+    int acquireAll(
+        @Param("names") Collection<String> names,
+        @Param("hostname") String hostname,
+        @Param("address") String address,
+        @Param("threadId") long threadId,
+        @Param("threadName") String threadName,
+        @Param("threadGroupName") String threadGroupName,
+        @Param("now") long now,
+        @Param("expiresAt") long expiresAt);
+
+    /**
+     * Clears all the named locks that are held by the given thread.
+     */
+    @Modifying
+    @Query("update DistributedLock l set " +
+        "l.hostname = '', l.address = '', l.threadId = -1, l.threadName = '', l.threadGroupName = '', " +
+        "l.updatedTime = :now, l.expiresAt = 0, l.maintenance = 'N', l.locked = 'F' " +
+        "where l.name in :names and l.hostname = :hostname and l.address = :address " +
+        "and l.threadId = :threadId and l.threadName = :threadName and l.threadGroupName = :threadGroupName")
+    int releaseAll(
+        @Param("names") Collection<String> names,
+        @Param("hostname") String hostname,
+        @Param("address") String address,
+        @Param("threadId") long threadId,
+        @Param("threadName") String threadName,
+        @Param("threadGroupName") String threadGroupName,
+        @Param("now") long now);
+
+    /**
+     * Clears the named lock if it is still held by the
+     * lease that was given the given fencing token.
+     */
+    @Modifying
+    @Query("update DistributedLock l set " +
+        "l.hostname = '', l.address = '', l.threadId = -1, l.threadName = '', l.threadGroupName = '', " +
+        "l.updatedTime = :now, l.expiresAt = 0, l.maintenance = 'N', l.locked = 'F' " +
+        "where l.name = :name and l.locked = 'Y' and l.fencingToken = :fencingToken")
+    int releaseGranted(
+        @Param("name") String name,
+        @Param("fencingToken") long fencingToken,
+        @Param("now") long now);
+
+    /**
+     * Marks the named lock as updated if new shared holders may be added
+     * to it, that is if it is not exclusively held and no exclusive holder
+     * is waiting. The row stays locked until the end of the transaction
+     * so that the shared leases of the lock can be changed.
+     */
+    @Modifying
+    @Query("update DistributedLock l set l.updatedTime = :now " +
+        "where l.name = :name and (l.locked <> 'Y' or l.expiresAt <= :now) " +
+        "and l.writerWaitingUntil <= :now")
+    int admitReader(
+        @Param("name") String name,
+        @Param("now") long now);
+
+    /**
+     * Marks the named lock as updated so that its row stays locked
+     * until the end of the transaction.
+     */
+    @Modifying
+    @Query("update DistributedLock l set l.updatedTime = :now where l.name = :name")
+    int touch(
+        @Param("name") String name,
+        @Param("now") long now);
+
+    /**
+     * Sets the number of live shared leases on the named
+     * lock and the latest of their expiry times.
+     */
+    @Modifying
+    @Query("update DistributedLock l set l.readers = :readers, l.readExpiresAt = :readExpiresAt " +
+        "where l.name = :name")
+    int setReaders(
+        @Param("name") String name,
+        @Param("readers") int readers,
+        @Param("readExpiresAt") long readExpiresAt);
+
+    /**
+     * Raises the fencing token of the lease on the named lock
+     * provided it is still held with the given token.
+     */
+    @Modifying
+    @Query("update DistributedLock l set l.fencingToken = :raisedToken " +
+        "where l.name = :name and l.locked = 'Y' and l.expiresAt > :now " +
+        "and l.fencingToken = :fencingToken and l.fencingToken < :raisedToken")
+    int raiseFencingToken(
+        @Param("name") String name,
+        @Param("fencingToken") long fencingToken,
+        @Param("raisedToken") long raisedToken,
+        @Param("now") long now);
+
+    /**
+     * Refuses new shared holders of the named lock until the given
+     * time so that an exclusive holder waiting for the current
+     * shared holders to release it is not starved.
+     */
+    @Modifying
+    @Query("update DistributedLock l set l.writerWaitingUntil = :until " +
+        "where l.name = :name and l.writerWaitingUntil < :until")
+    int markWriterWaiting(
+        @Param("name") String name,
+        @Param("until") long until);
+
+    /**
+     * Deletes the named locks that are not held, in maintenance mode or
+     * shared, that no exclusive holder is waiting for and that have not
+     * been updated since the given time. A lock that is acquired or
+     * recreated concurrently no longer matches and is kept.
+     */
+    @Modifying
+    @Query("delete from DistributedLock l " +
+        "where l.name in :names and (l.locked <> 'Y' or l.expiresAt <= :now) and l.maintenance <> 'Y' " +
+        "and (l.readers = 0 or l.readExpiresAt <= :now) and l.writerWaitingUntil <= :now " +
+        "and l.updatedTime <= :idleSince")
+    int deleteIdle(
+        @Param("names") Collection<String> names,
+        @Param("idleSince") long idleSince,
+        @Param("now") long now);
 }
@@ -0,0 +1,43 @@
+package org.appbricks.commons.sharedlock.data;
+
+import org.appbricks.commons.sharedlock.model.DistributedLockTicket;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+public interface DistributedLockTicketRepository
+    extends CrudRepository<DistributedLockTicket, Long> {
+
+    /**
+     * Counts the live tickets for the named lock
+     * that were issued before the given ticket.
+     */
+    @Query("select count(t) from DistributedLockTicket t " +
+        "where t.name = :name and t.id < :id and t.expiresAt > :now")
+    long countAhead(
+        @Param("name") String name,
+        @Param("id") long id,
+        @Param("now") long now);
+
+    @Modifying
+    @Query("update DistributedLockTicket t set t.expiresAt = :expiresAt where t.id = :id")
+    int refresh(
+        @Param("id") long id,
+        @Param("expiresAt") long expiresAt);
+
+    @Modifying
+    @Query("delete from DistributedLockTicket t where t.id = :id")
+    int remove(
+        @Param("id") long id);
+
+    /**
+     * Removes tickets for the named lock whose holders
+     * stopped waiting without removing them.
+     */
+    @Modifying
+    @Query("delete from DistributedLockTicket t where t.name = :name and t.expiresAt <= :now")
+    int removeExpired(
+        @Param("name") String name,
+        @Param("now") long now);
+}
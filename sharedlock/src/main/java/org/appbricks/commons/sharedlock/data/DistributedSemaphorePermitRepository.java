@@ -0,0 +1,53 @@
+package org.appbricks.commons.sharedlock.data;
+
+import org.appbricks.commons.sharedlock.model.DistributedSemaphorePermit;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface DistributedSemaphorePermitRepository
+    extends CrudRepository<DistributedSemaphorePermit, DistributedSemaphorePermit.Key> {
+
+    List<DistributedSemaphorePermit> findByNameAndSlotLessThan(String name, int slot);
+
+    /**
+     * Takes the lease on a single permit if it is free. The number
+     * of rows updated (0 or 1) is the result of the attempt.
+     */
+    @Modifying
+    @Query("update DistributedSemaphorePermit p set " +
+        "p.hostname = :hostname, p.address = :address, p.threadId = :threadId, p.threadName = :threadName, " +
+        "p.updatedTime = :now, p.expiresAt = :expiresAt " +
+        "where p.name = :name and p.slot = :slot and p.expiresAt <= :now")
+    int acquire(
+        @Param("name") String name,
+        @Param("slot") int slot,
+        @Param("hostname") String hostname,
+        @Param("address") String address,
+        @Param("threadId") long threadId,
+        @Param("threadName") String threadName,
+        @Param("now") long now,
+        @Param("expiresAt") long expiresAt);
+
+    /**
+     * Frees the given permits that are still held by the given thread.
+     */
+    @Modifying
+    @Query("update DistributedSemaphorePermit p set " +
+        "p.hostname = '', p.address = '', p.threadId = -1, p.threadName = '', " +
+        "p.updatedTime = :now, p.expiresAt = 0 " +
+        "where p.name = :name and p.slot in :slots and p.hostname = :hostname " +
+        "and p.address = :address and p.threadId = :threadId and p.threadName = :threadName")
+    int release(
+        @Param("name") String name,
+        @Param("slots") Collection<Integer> slots,
+        @Param("hostname") String hostname,
+        @Param("address") String address,
+        @Param("threadId") long threadId,
+        @Param("threadName") String threadName,
+        @Param("now") long now);
+}
@@ -0,0 +1,13 @@
+package org.appbricks.commons.sharedlock.exception;
+
+/**
+ * Exception thrown if the row of a sharedlock does not exist in the lock store
+ * (i.e. it was never created or was deleted by the idle lock reaper)
+ */
+public class LockNotFoundException
+    extends LockException {
+
+    public LockNotFoundException(String format, Object... args) {
+        super(String.format(format, args));
+    }
+}
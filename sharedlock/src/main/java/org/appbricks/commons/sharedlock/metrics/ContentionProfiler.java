@@ -0,0 +1,362 @@
+package org.appbricks.commons.sharedlock.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Profiles the contention on the locks used by this process to find the
+ * locks worth splitting or moving to a faster store. Each time a waiting
+ * thread finds a lock held it samples the holder, so the profiler learns
+ * which holders block the waiters of each lock and for how long they were
+ * seen holding it. Together with the wait times of the threads in this
+ * process the locks can be ranked by how much time was lost waiting for
+ * them. The profile can be queried or logged periodically.
+ *
+ * The profiler passes all the measurements on to the LockMetrics it wraps
+ * so that it can be used together with other metrics. At most maxLocks
+ * locks are profiled, and once there are that many the profile of the
+ * lock that has been idle the longest is discarded to make room for a
+ * new lock. Only the first maxHolders holders of each lock are profiled.
+ */
+public class ContentionProfiler
+    implements LockMetrics, Closeable {
+
+    private static final Log log = LogFactory.getLog(ContentionProfiler.class);
+
+    public static final int DEFAULT_MAX_LOCKS = 1000;
+    public static final int DEFAULT_MAX_HOLDERS = 100;
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final LockMetrics metrics;
+
+    private int maxLocks = DEFAULT_MAX_LOCKS;
+    private int maxHolders = DEFAULT_MAX_HOLDERS;
+
+    private final ConcurrentMap<String, Profile> profiles = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    public ContentionProfiler() {
+        this(LockMetrics.NONE);
+    }
+
+    public ContentionProfiler(LockMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public LockMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the largest number of locks that are profiled.
+     */
+    public void setMaxLocks(int maxLocks) {
+        this.maxLocks = maxLocks;
+    }
+
+    /**
+     * Sets the largest number of holders that are profiled for each lock.
+     */
+    public void setMaxHolders(int maxHolders) {
+        this.maxHolders = maxHolders;
+    }
+
+    /**
+     * Logs a report of the given number of most contended locks
+     * and longest holders every interval milliseconds.
+     */
+    public synchronized void startReporting(long interval, int limit) {
+
+        this.stopReporting();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sharedlock-profiler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            if (!this.profiles.isEmpty()) {
+                log.info(this.report(limit));
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopReporting() {
+
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * Returns the contention on the named lock or null if it has not been profiled.
+     */
+    public LockContention getContention(String name) {
+
+        Profile profile = this.profiles.get(name);
+        return profile == null ? null : profile.snapshot(name);
+    }
+
+    /**
+     * Returns the given number of locks on which threads
+     * in this process spent the most time waiting.
+     */
+    public List<LockContention> getMostContended(int limit) {
+
+        List<LockContention> contention = new ArrayList<>();
+        this.profiles.forEach((name, profile) -> contention.add(profile.snapshot(name)));
+
+        contention.sort(Comparator.comparingDouble(LockContention::getTotalWaitTime)
+            .thenComparingLong(LockContention::getFailedPolls).reversed());
+        return contention.subList(0, Math.min(limit, contention.size()));
+    }
+
+    /**
+     * Returns the given number of holders that were seen
+     * holding a lock others were waiting for the longest.
+     */
+    public List<HolderContention> getLongestHolders(int limit) {
+
+        List<HolderContention> holders = new ArrayList<>();
+        this.profiles.forEach((name, profile) ->
+            profile.holders.forEach((holder, sample) -> holders.add(sample.snapshot(name, holder))));
+
+        holders.sort(Comparator.comparingDouble(HolderContention::getLongestHoldTime)
+            .thenComparingLong(HolderContention::getBlockedPolls).reversed());
+        return holders.subList(0, Math.min(limit, holders.size()));
+    }
+
+    /**
+     * Returns a report of the given number of most
+     * contended locks and longest holders.
+     */
+    public String report(int limit) {
+
+        StringBuilder report = new StringBuilder("Most contended sharedlocks:");
+        for (LockContention contention : this.getMostContended(limit)) {
+            report.append("\n  ").append(contention);
+        }
+        report.append("\nLongest sharedlock holders:");
+        for (HolderContention holder : this.getLongestHolders(limit)) {
+            report.append("\n  ").append(holder);
+        }
+        return report.toString();
+    }
+
+    /**
+     * Discards the profile collected so far.
+     */
+    public void reset() {
+        this.profiles.clear();
+    }
+
+    @Override
+    public void acquired(String name, long waitTime, int polls) {
+
+        this.metrics.acquired(name, waitTime, polls);
+
+        Profile profile = this.profile(name);
+        if (profile != null) {
+            profile.acquires.increment();
+            profile.waited(waitTime);
+        }
+    }
+
+    @Override
+    public void contended(String name, DistributedLock holder) {
+
+        this.metrics.contended(name, holder);
+
+        Profile profile = this.profile(name);
+        if (profile != null) {
+            profile.failedPolls.increment();
+            if (holder != null && holder.isLocked()) {
+                profile.sample(holder, this.maxHolders);
+            }
+        }
+    }
+
+    @Override
+    public void timedOut(String name, long waitTime, int polls) {
+
+        this.metrics.timedOut(name, waitTime, polls);
+
+        Profile profile = this.profile(name);
+        if (profile != null) {
+            profile.timeouts.increment();
+            profile.waited(waitTime);
+        }
+    }
+
+    @Override
+    public void updateFailed(String name) {
+        this.metrics.updateFailed(name);
+    }
+
+    @Override
+    public void released(String name, long holdTime) {
+
+        this.metrics.released(name, holdTime);
+
+        Profile profile = this.profile(name);
+        if (profile != null) {
+            profile.maxHoldTime.accumulateAndGet(holdTime, Math::max);
+        }
+    }
+
+    @Override
+    public void storeCall(String name, LockOperation operation, long time) {
+        this.metrics.storeCall(name, operation, time);
+    }
+
+    /**
+     * Stops the periodic report.
+     */
+    @Override
+    public void close() {
+        this.stopReporting();
+    }
+
+    private Profile profile(String name) {
+
+        if (name == null || this.maxLocks <= 0) {
+            return null;
+        }
+        Profile profile = this.profiles.get(name);
+        if (profile == null) {
+
+            synchronized (this.profiles) {
+                profile = this.profiles.get(name);
+                if (profile == null) {
+
+                    if (this.profiles.size() >= this.maxLocks) {
+                        this.discardIdlest();
+                    }
+                    profile = new Profile();
+                    this.profiles.put(name, profile);
+                }
+            }
+        }
+        profile.lastUsed = System.nanoTime();
+        return profile;
+    }
+
+    /**
+     * Discards the profile of the lock that has been idle the longest.
+     */
+    private void discardIdlest() {
+
+        Map.Entry<String, Profile> idlest = null;
+        for (Map.Entry<String, Profile> entry : this.profiles.entrySet()) {
+            if (idlest == null || entry.getValue().lastUsed - idlest.getValue().lastUsed < 0L) {
+                idlest = entry;
+            }
+        }
+        if (idlest != null) {
+            this.profiles.remove(idlest.getKey(), idlest.getValue());
+        }
+    }
+
+    /**
+     * The contention profiled for one lock.
+     */
+    private static class Profile {
+
+        private final LongAdder acquires = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder failedPolls = new LongAdder();
+        private final LongAdder waitTime = new LongAdder();
+        private final AtomicLong maxWaitTime = new AtomicLong();
+        private final AtomicLong maxHoldTime = new AtomicLong();
+
+        private final ConcurrentMap<String, HolderSample> holders = new ConcurrentHashMap<>();
+
+        // When the lock was last profiled
+        private volatile long lastUsed = System.nanoTime();
+
+        // The lease last seen held, to tell how long it has been held
+        private String leaseHolder;
+        private long leaseToken;
+        private long leaseSeenSince;
+
+        private void waited(long time) {
+            this.waitTime.add(time);
+            this.maxWaitTime.accumulateAndGet(time, Math::max);
+        }
+
+        private void sample(DistributedLock holder, int maxHolders) {
+
+            String key = holder.getHostname() + "/" + holder.getThreadGroupName() + "/" + holder.getThreadName();
+
+            HolderSample sample = this.holders.get(key);
+            if (sample == null) {
+                if (this.holders.size() >= maxHolders) {
+                    return;
+                }
+                sample = this.holders.computeIfAbsent(key, k -> new HolderSample());
+            }
+            sample.blockedPolls.increment();
+
+            long now = System.currentTimeMillis();
+            long heldFor;
+            synchronized (this) {
+                if (!key.equals(this.leaseHolder) || holder.getFencingToken() != this.leaseToken) {
+                    // A new lease has been held at least since it was last updated
+                    this.leaseHolder = key;
+                    this.leaseToken = holder.getFencingToken();
+                    long updatedTime = holder.getUpdateTime().getTime();
+                    this.leaseSeenSince = updatedTime > 0L && updatedTime < now ? updatedTime : now;
+                }
+                heldFor = now - this.leaseSeenSince;
+            }
+            sample.longestHoldTime.accumulateAndGet(heldFor, Math::max);
+        }
+
+        private LockContention snapshot(String name) {
+
+            HolderContention topHolder = null;
+            for (Map.Entry<String, HolderSample> entry : this.holders.entrySet()) {
+                HolderContention holder = entry.getValue().snapshot(name, entry.getKey());
+                if (topHolder == null || holder.getBlockedPolls() > topHolder.getBlockedPolls()) {
+                    topHolder = holder;
+                }
+            }
+
+            return new LockContention(name, this.acquires.sum(), this.timeouts.sum(), this.failedPolls.sum(),
+                this.waitTime.sum() / NANOS_PER_MILLI, this.maxWaitTime.get() / NANOS_PER_MILLI,
+                this.maxHoldTime.get() / NANOS_PER_MILLI, topHolder);
+        }
+    }
+
+    /**
+     * The samples of one holder of a lock.
+     */
+    private static class HolderSample {
+
+        private final LongAdder blockedPolls = new LongAdder();
+
+        // In milliseconds as lock times are recorded by the wall clock
+        private final AtomicLong longestHoldTime = new AtomicLong();
+
+        private HolderContention snapshot(String name, String holder) {
+            return new HolderContention(name, holder, this.blockedPolls.sum(), this.longestHoldTime.get());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.appbricks.commons.sharedlock.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values that can be recorded concurrently
+ * without locking or allocating. Values are counted in buckets of powers
+ * of two, so percentiles are accurate to within a factor of two while the
+ * mean and the maximum are exact.
+ */
+class Histogram {
+
+    private static final int BUCKETS = 65;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+
+        if (value < 0L) {
+            value = 0L;
+        }
+        this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        this.count.increment();
+        this.sum.add(value);
+
+        long current;
+        while (value > (current = this.max.get()) && !this.max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    long getCount() {
+        return this.count.sum();
+    }
+
+    double getMean() {
+
+        long count = this.count.sum();
+        return count == 0L ? 0.0 : (double) this.sum.sum() / count;
+    }
+
+    long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given
+     * percentile, but no more than the largest value recorded.
+     */
+    long getPercentile(double percentile) {
+
+        long count = this.count.sum();
+        if (count == 0L) {
+            return 0L;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.buckets.get(i);
+            if (seen >= rank) {
+                long upper = i == 0 ? 0L : i == 64 ? Long.MAX_VALUE : (1L << i) - 1L;
+                return Math.min(upper, this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+}
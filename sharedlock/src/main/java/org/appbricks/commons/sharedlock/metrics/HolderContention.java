@@ -0,0 +1,57 @@
+package org.appbricks.commons.sharedlock.metrics;
+
+/**
+ * How much a holder of a lock held up the threads in this
+ * process waiting for it, as sampled by the ContentionProfiler.
+ */
+public class HolderContention {
+
+    private final String name;
+    private final String holder;
+
+    private final long blockedPolls;
+    private final double longestHoldTime;
+
+    HolderContention(String name, String holder, long blockedPolls, double longestHoldTime) {
+        this.name = name;
+        this.holder = holder;
+        this.blockedPolls = blockedPolls;
+        this.longestHoldTime = longestHoldTime;
+    }
+
+    /**
+     * Returns the name of the lock.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the holder as hostname/threadGroupName/threadName.
+     */
+    public String getHolder() {
+        return holder;
+    }
+
+    /**
+     * Returns the number of polls that found the lock held by the holder.
+     */
+    public long getBlockedPolls() {
+        return blockedPolls;
+    }
+
+    /**
+     * Returns the longest time in milliseconds the holder was seen holding
+     * a single lease on the lock. Holds are only seen while others wait so
+     * this is a lower bound of the time the lease was held.
+     */
+    public double getLongestHoldTime() {
+        return longestHoldTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s held by %s: blocked %d polls, held for at least %.1f ms",
+            this.name, this.holder, this.blockedPolls, this.longestHoldTime);
+    }
+}
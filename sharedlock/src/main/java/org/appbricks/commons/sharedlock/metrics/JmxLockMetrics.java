@@ -0,0 +1,202 @@
+package org.appbricks.commons.sharedlock.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records the measurements of the locks in memory and exports them as
+ * MXBeans: one for all the locks and one for each lock, which is
+ * registered the first time the lock is used. At most maxLocks locks are
+ * exported on their own so that a process using many short lived lock
+ * names does not fill the MBean server. Once there are maxLocks of them,
+ * the lock that has been idle the longest is dropped and its MXBean is
+ * unregistered to make room for a new lock. The measurements of a lock
+ * that was dropped remain in the totals.
+ */
+public class JmxLockMetrics
+    implements LockMetrics, Closeable {
+
+    private static final Log log = LogFactory.getLog(JmxLockMetrics.class);
+
+    public static final String DOMAIN = "org.appbricks.sharedlock";
+
+    public static final int DEFAULT_MAX_LOCKS = 1000;
+
+    private final MBeanServer mBeanServer;
+    private final int maxLocks;
+
+    private final LockStats total = new LockStats();
+    private final ConcurrentMap<String, LockStats> locks = new ConcurrentHashMap<>();
+
+    private final List<ObjectName> registered = new CopyOnWriteArrayList<>();
+
+    public JmxLockMetrics() {
+        this(ManagementFactory.getPlatformMBeanServer(), DEFAULT_MAX_LOCKS);
+    }
+
+    public JmxLockMetrics(MBeanServer mBeanServer, int maxLocks) {
+
+        this.mBeanServer = mBeanServer;
+        this.maxLocks = maxLocks;
+
+        this.register(DOMAIN + ":type=Locks", this.total);
+    }
+
+    /**
+     * Returns the measurements of the named lock, of all the
+     * locks if the name is null, or null if the lock has not
+     * been used or is not measured on its own.
+     */
+    public LockStatsMXBean getStats(String name) {
+        return name == null ? this.total : this.locks.get(name);
+    }
+
+    @Override
+    public void acquired(String name, long waitTime, int polls) {
+
+        this.total.acquired(waitTime, polls);
+        LockStats stats = this.stats(name);
+        if (stats != null) {
+            stats.acquired(waitTime, polls);
+        }
+    }
+
+    @Override
+    public void timedOut(String name, long waitTime, int polls) {
+
+        this.total.timedOut();
+        LockStats stats = this.stats(name);
+        if (stats != null) {
+            stats.timedOut();
+        }
+    }
+
+    @Override
+    public void updateFailed(String name) {
+
+        this.total.updateFailed();
+        LockStats stats = this.stats(name);
+        if (stats != null) {
+            stats.updateFailed();
+        }
+    }
+
+    @Override
+    public void released(String name, long holdTime) {
+
+        this.total.released(holdTime);
+        LockStats stats = this.stats(name);
+        if (stats != null) {
+            stats.released(holdTime);
+        }
+    }
+
+    @Override
+    public void storeCall(String name, LockOperation operation, long time) {
+
+        this.total.storeCall(operation, time);
+        LockStats stats = this.stats(name);
+        if (stats != null) {
+            stats.storeCall(operation, time);
+        }
+    }
+
+    /**
+     * Unregisters the MXBeans.
+     */
+    @Override
+    public void close() {
+
+        for (ObjectName objectName : this.registered) {
+            try {
+                this.mBeanServer.unregisterMBean(objectName);
+            } catch (JMException e) {
+                log.warn(String.format("Unable to unregister %s: %s", objectName, e.getMessage()));
+            }
+        }
+        this.registered.clear();
+    }
+
+    private LockStats stats(String name) {
+
+        if (name == null || this.maxLocks <= 0) {
+            return null;
+        }
+        LockStats stats = this.locks.get(name);
+        if (stats == null) {
+
+            // Locks are only added and dropped under the monitor of the
+            // map so a lock is not dropped before its MXBean is registered
+            synchronized (this.locks) {
+                stats = this.locks.get(name);
+                if (stats == null) {
+
+                    if (this.locks.size() >= this.maxLocks) {
+                        this.dropIdlest();
+                    }
+                    stats = new LockStats();
+                    this.register(objectName(name), stats);
+                    this.locks.put(name, stats);
+                }
+            }
+        }
+        stats.used();
+        return stats;
+    }
+
+    /**
+     * Drops the lock that has been idle the longest
+     * and unregisters its MXBean.
+     */
+    private void dropIdlest() {
+
+        Map.Entry<String, LockStats> idlest = null;
+        for (Map.Entry<String, LockStats> entry : this.locks.entrySet()) {
+            if (idlest == null || entry.getValue().getLastUsed() - idlest.getValue().getLastUsed() < 0L) {
+                idlest = entry;
+            }
+        }
+        if (idlest == null) {
+            return;
+        }
+
+        this.locks.remove(idlest.getKey());
+
+        String name = objectName(idlest.getKey());
+        try {
+            ObjectName objectName = new ObjectName(name);
+            this.registered.remove(objectName);
+            this.mBeanServer.unregisterMBean(objectName);
+
+        } catch (JMException e) {
+            log.warn(String.format("Unable to unregister %s: %s", name, e.getMessage()));
+        }
+    }
+
+    private void register(String name, LockStats stats) {
+
+        try {
+            ObjectName objectName = new ObjectName(name);
+            this.mBeanServer.registerMBean(stats, objectName);
+            this.registered.add(objectName);
+
+        } catch (JMException e) {
+            log.warn(String.format("Unable to register %s: %s", name, e.getMessage()));
+        }
+    }
+
+    private static String objectName(String name) {
+        return DOMAIN + ":type=Lock,name=" + ObjectName.quote(name);
+    }
+}
@@ -0,0 +1,92 @@
+package org.appbricks.commons.sharedlock.metrics;
+
+/**
+ * The contention on a lock as profiled by the ContentionProfiler.
+ * Times are in milliseconds.
+ */
+public class LockContention {
+
+    private final String name;
+
+    private final long acquires;
+    private final long timeouts;
+    private final long failedPolls;
+
+    private final double totalWaitTime;
+    private final double maxWaitTime;
+    private final double maxHoldTime;
+
+    private final HolderContention topHolder;
+
+    LockContention(String name, long acquires, long timeouts, long failedPolls,
+        double totalWaitTime, double maxWaitTime, double maxHoldTime, HolderContention topHolder) {
+
+        this.name = name;
+        this.acquires = acquires;
+        this.timeouts = timeouts;
+        this.failedPolls = failedPolls;
+        this.totalWaitTime = totalWaitTime;
+        this.maxWaitTime = maxWaitTime;
+        this.maxHoldTime = maxHoldTime;
+        this.topHolder = topHolder;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of times threads in this process acquired the lock.
+     */
+    public long getAcquires() {
+        return acquires;
+    }
+
+    /**
+     * Returns the number of times threads in this process gave up waiting.
+     */
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Returns the number of times the lock was found held by another holder.
+     */
+    public long getFailedPolls() {
+        return failedPolls;
+    }
+
+    /**
+     * Returns the time threads in this process spent waiting for the lock.
+     */
+    public double getTotalWaitTime() {
+        return totalWaitTime;
+    }
+
+    public double getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * Returns the longest time a thread in this process held the lock.
+     */
+    public double getMaxHoldTime() {
+        return maxHoldTime;
+    }
+
+    /**
+     * Returns the holder that blocked the most polls of
+     * the lock or null if it was never found held.
+     */
+    public HolderContention getTopHolder() {
+        return topHolder;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: waited %.1f ms (max %.1f ms) for %d acquires and %d timeouts, " +
+                "%d failed polls, held at most %.1f ms locally, top holder %s",
+            this.name, this.totalWaitTime, this.maxWaitTime, this.acquires, this.timeouts,
+            this.failedPolls, this.maxHoldTime, this.topHolder == null ? "none" : this.topHolder.getHolder());
+    }
+}
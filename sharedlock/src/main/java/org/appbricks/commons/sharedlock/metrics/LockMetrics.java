@@ -0,0 +1,59 @@
+package org.appbricks.commons.sharedlock.metrics;
+
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+/**
+ * Receives measurements of the locks used by this process. The methods
+ * are called on the threads acquiring and releasing the locks so an
+ * implementation must record them quickly and without allocating. All
+ * times are in nanoseconds. The name of a lock is null for an operation
+ * on more than one lock.
+ */
+public interface LockMetrics {
+
+    /**
+     * Records nothing.
+     */
+    LockMetrics NONE = new LockMetrics() { };
+
+    /**
+     * Called when a thread acquired a lock after waiting the given
+     * time, during which it checked the lock store the given number
+     * of times.
+     */
+    default void acquired(String name, long waitTime, int polls) {
+    }
+
+    /**
+     * Called when a thread waiting for a lock checked the lock store and
+     * found the lock held by the given holder. This is only called while
+     * a thread waits so it may take longer than the other methods.
+     */
+    default void contended(String name, DistributedLock holder) {
+    }
+
+    /**
+     * Called when a thread gave up waiting for a lock.
+     */
+    default void timedOut(String name, long waitTime, int polls) {
+    }
+
+    /**
+     * Called when a lock could not be acquired or
+     * extended because the lock store failed.
+     */
+    default void updateFailed(String name) {
+    }
+
+    /**
+     * Called when a thread released a lock it held for the given time.
+     */
+    default void released(String name, long holdTime) {
+    }
+
+    /**
+     * Called after each call to the lock store with the time it took.
+     */
+    default void storeCall(String name, LockOperation operation, long time) {
+    }
+}
@@ -0,0 +1,19 @@
+package org.appbricks.commons.sharedlock.metrics;
+
+/**
+ * The operations on the lock store whose round trips are recorded.
+ */
+public enum LockOperation {
+    GET,
+    CREATE,
+    ACQUIRE,
+    ACQUIRE_ALL,
+    ACQUIRE_READ,
+    TRANSFER,
+    EXTEND,
+    RENEW,
+    VALIDATE,
+    RELEASE,
+    RELEASE_ALL,
+    RELEASE_READ
+}
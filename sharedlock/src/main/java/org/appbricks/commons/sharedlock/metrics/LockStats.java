@@ -0,0 +1,160 @@
+package org.appbricks.commons.sharedlock.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * The measurements of a lock, or of all the locks.
+ */
+class LockStats
+    implements LockStatsMXBean {
+
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private static final LockOperation[] OPERATIONS = LockOperation.values();
+
+    private final Histogram waitTimes = new Histogram();
+    private final Histogram polls = new Histogram();
+    private final Histogram holdTimes = new Histogram();
+    private final Histogram[] storeCalls = new Histogram[OPERATIONS.length];
+
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder updateFailures = new LongAdder();
+
+    // When the measurements were last recorded, to find
+    // the lock that has been idle the longest
+    private volatile long lastUsed = System.nanoTime();
+
+    LockStats() {
+
+        for (int i = 0; i < this.storeCalls.length; i++) {
+            this.storeCalls[i] = new Histogram();
+        }
+    }
+
+    void used() {
+        this.lastUsed = System.nanoTime();
+    }
+
+    long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    void acquired(long waitTime, int polls) {
+        this.waitTimes.record(waitTime);
+        this.polls.record(polls);
+    }
+
+    void timedOut() {
+        this.timeouts.increment();
+    }
+
+    void updateFailed() {
+        this.updateFailures.increment();
+    }
+
+    void released(long holdTime) {
+        this.holdTimes.record(holdTime);
+    }
+
+    void storeCall(LockOperation operation, long time) {
+        this.storeCalls[operation.ordinal()].record(time);
+    }
+
+    @Override
+    public long getAcquireCount() {
+        return this.waitTimes.getCount();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return this.timeouts.sum();
+    }
+
+    @Override
+    public long getUpdateFailureCount() {
+        return this.updateFailures.sum();
+    }
+
+    @Override
+    public long getReleaseCount() {
+        return this.holdTimes.getCount();
+    }
+
+    @Override
+    public double getWaitTimeMean() {
+        return this.waitTimes.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getWaitTime99thPercentile() {
+        return this.waitTimes.getPercentile(99.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getWaitTimeMax() {
+        return this.waitTimes.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getPollsMean() {
+        return this.polls.getMean();
+    }
+
+    @Override
+    public long getPollsMax() {
+        return this.polls.getMax();
+    }
+
+    @Override
+    public double getHoldTimeMean() {
+        return this.holdTimes.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getHoldTime99thPercentile() {
+        return this.holdTimes.getPercentile(99.0) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getHoldTimeMax() {
+        return this.holdTimes.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public Map<String, Long> getStoreCallCounts() {
+
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (LockOperation operation : OPERATIONS) {
+            long count = this.storeCalls[operation.ordinal()].getCount();
+            if (count > 0L) {
+                counts.put(operation.name(), count);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getStoreCallTimeMeans() {
+        return this.storeCallTimes(Histogram::getMean);
+    }
+
+    @Override
+    public Map<String, Double> getStoreCallTime99thPercentiles() {
+        return this.storeCallTimes(histogram -> histogram.getPercentile(99.0));
+    }
+
+    private Map<String, Double> storeCallTimes(ToDoubleFunction<Histogram> statistic) {
+
+        Map<String, Double> times = new LinkedHashMap<>();
+        for (LockOperation operation : OPERATIONS) {
+            Histogram histogram = this.storeCalls[operation.ordinal()];
+            if (histogram.getCount() > 0L) {
+                times.put(operation.name(), statistic.applyAsDouble(histogram) / NANOS_PER_MILLI);
+            }
+        }
+        return times;
+    }
+}
@@ -0,0 +1,51 @@
+package org.appbricks.commons.sharedlock.metrics;
+
+import java.util.Map;
+
+/**
+ * The measurements of a lock, or of all the locks, exported through JMX.
+ * Times are in milliseconds and percentiles are accurate to within a
+ * factor of two.
+ */
+public interface LockStatsMXBean {
+
+    long getAcquireCount();
+
+    long getTimeoutCount();
+
+    long getUpdateFailureCount();
+
+    long getReleaseCount();
+
+    double getWaitTimeMean();
+
+    double getWaitTime99thPercentile();
+
+    double getWaitTimeMax();
+
+    double getPollsMean();
+
+    long getPollsMax();
+
+    double getHoldTimeMean();
+
+    double getHoldTime99thPercentile();
+
+    double getHoldTimeMax();
+
+    /**
+     * Returns the number of calls to the lock store by operation.
+     */
+    Map<String, Long> getStoreCallCounts();
+
+    /**
+     * Returns the mean time of the calls to the lock store by operation.
+     */
+    Map<String, Double> getStoreCallTimeMeans();
+
+    /**
+     * Returns the 99th percentile of the time of the
+     * calls to the lock store by operation.
+     */
+    Map<String, Double> getStoreCallTime99thPercentiles();
+}
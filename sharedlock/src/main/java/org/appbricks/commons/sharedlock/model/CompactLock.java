@@ -0,0 +1,62 @@
+package org.appbricks.commons.sharedlock.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * A row of the compact lock table used by the CompactJdbcLockStore. The
+ * row is keyed by a 64-bit hash of the lock name and refers to the host
+ * and thread names of its holder by the id of a CompactLockOwner, so it
+ * only carries fixed width columns besides the name. A lock that is not
+ * held has an owner id of 0.
+ */
+@Entity
+public class CompactLock {
+
+    @Id
+    private long id;
+
+    @Column(length=50, nullable=false)
+    private String name;
+
+    private long ownerId;
+    private long threadId;
+
+    private char maintenance = 'N';
+    private long updatedTime;
+    private long expiresAt;
+    private long fencingToken;
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getOwnerId() {
+        return ownerId;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public boolean isMaintenanceMode() {
+        return this.maintenance=='Y';
+    }
+
+    public long getUpdatedTime() {
+        return updatedTime;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public long getFencingToken() {
+        return fencingToken;
+    }
+}
@@ -0,0 +1,47 @@
+package org.appbricks.commons.sharedlock.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * The host and thread names of a holder of compact locks. Each owner is
+ * written once, keyed by a 64-bit hash of its names, and the lock rows
+ * it holds refer to it by its id.
+ */
+@Entity
+public class CompactLockOwner {
+
+    @Id
+    private long id;
+
+    @Column(length=50)
+    private String hostname;
+    @Column(length=15)
+    private String address;
+
+    @Column(length=50)
+    private String threadName;
+    @Column(length=50)
+    private String threadGroupName;
+
+    public long getId() {
+        return id;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public String getThreadGroupName() {
+        return threadGroupName;
+    }
+}
@@ -36,6 +36,28 @@ public class DistributedLock {
     private long updatedTime;
     private long expiresAt;
 
+    // The number of live shared leases on the lock and the latest of
+    // their expiry times, which are taken from the leases of each shared
+    // holder whenever one is added or removed. The count is only valid
+    // until the latest of the shared leases expires, so the leases of
+    // readers that fail to release the lock expire with it. The columns
+    // default to 0 so that they can be added to an existing lock table.
+    @Column(nullable=false, columnDefinition="integer default 0")
+    private int readers;
+    @Column(nullable=false, columnDefinition="bigint default 0")
+    private long readExpiresAt;
+
+    // Time until which new shared holders are refused
+    // so that a waiting exclusive holder is not starved
+    @Column(nullable=false, columnDefinition="bigint default 0")
+    private long writerWaitingUntil;
+
+    // Incremented each time the lock is granted exclusively, so that
+    // a resource guarded by the lock can refuse the requests of a
+    // holder whose lease has since been granted to another holder
+    @Column(nullable=false, columnDefinition="bigint default 0")
+    private long fencingToken;
+
     private static final long TIME_ORIGIN = (new Date(0L)).getTime();
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MMM-dd HH:mm:ss z");
 
@@ -47,6 +69,31 @@ public class DistributedLock {
 
     }
 
+    /**
+     * Creates a lock with the given name that is not held.
+     */
+    public DistributedLock(String name) {
+        this.name = name;
+        this.clear();
+    }
+
+    public DistributedLock(DistributedLock distributedLock) {
+        this.name = distributedLock.name;
+        this.hostname = distributedLock.hostname;
+        this.address = distributedLock.address;
+        this.threadId = distributedLock.threadId;
+        this.threadName = distributedLock.threadName;
+        this.threadGroupName = distributedLock.threadGroupName;
+        this.maintenance = distributedLock.maintenance;
+        this.locked = distributedLock.locked;
+        this.updatedTime = distributedLock.updatedTime;
+        this.expiresAt = distributedLock.expiresAt;
+        this.readers = distributedLock.readers;
+        this.readExpiresAt = distributedLock.readExpiresAt;
+        this.writerWaitingUntil = distributedLock.writerWaitingUntil;
+        this.fencingToken = distributedLock.fencingToken;
+    }
+
     public String getName() {
         return name;
     }
@@ -111,14 +158,71 @@ public class DistributedLock {
         return locked=='Y' && System.currentTimeMillis() < this.expiresAt;
     }
 
+    public void setLocked(boolean locked) {
+        this.locked = locked ? 'Y' : 'F';
+    }
+
+    public int getReaders() {
+        return readers;
+    }
+
+    public void setReaders(int readers) {
+        this.readers = readers;
+    }
+
+    public boolean isReadLocked() {
+        return this.readers > 0 && System.currentTimeMillis() < this.readExpiresAt;
+    }
+
+    public Date getReadExpirationTime() {
+        return new Date(this.readExpiresAt);
+    }
+
+    public void setReadExpirationTime(long readExpiresAt) {
+        this.readExpiresAt = readExpiresAt;
+    }
+
+    public boolean isWriterWaiting() {
+        return System.currentTimeMillis() < this.writerWaitingUntil;
+    }
+
+    public Date getWriterWaitingUntil() {
+        return new Date(this.writerWaitingUntil);
+    }
+
+    public void setWriterWaitingUntil(long writerWaitingUntil) {
+        this.writerWaitingUntil = writerWaitingUntil;
+    }
+
+    /**
+     * Returns the fencing token of the latest exclusive lease on the lock.
+     * For a lock acquired by the caller this is the token of its lease,
+     * or 0 if the store did not report one.
+     */
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    public void setFencingToken(long fencingToken) {
+        this.fencingToken = fencingToken;
+    }
+
     public Date getUpdateTime() {
         return new Date(this.updatedTime);
     }
 
+    public void setUpdateTime(long updatedTime) {
+        this.updatedTime = updatedTime;
+    }
+
     public Date getExpirationTime() {
         return new Date(this.expiresAt);
     }
 
+    public void setExpirationTime(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
     public void lock(DistributedLock distributedLock, int expireAfter) {
         this.hostname = distributedLock.hostname;
         this.address = distributedLock.address;
@@ -127,8 +231,10 @@ public class DistributedLock {
         this.threadId = distributedLock.threadId;
         this.updatedTime = System.currentTimeMillis();
         this.expiresAt = System.currentTimeMillis() + (expireAfter * 1000);
+        this.writerWaitingUntil = 0L;
         this.maintenance = 'N';
         this.locked = 'Y';
+        this.fencingToken++;
     }
 
     public void clear() {
@@ -143,6 +249,17 @@ public class DistributedLock {
         this.locked = 'F';
     }
 
+    /**
+     * Returns true if this lock was last granted to the owner of the given
+     * lock. An owner that carries the fencing token of its lease is matched
+     * by the token alone, otherwise by its host and thread.
+     */
+    public boolean isGrantedTo(DistributedLock lock) {
+        return lock.fencingToken > 0L
+            ? this.locked == 'Y' && this.fencingToken == lock.fencingToken
+            : this.equals(lock);
+    }
+
     @Override
     public boolean equals(Object o) {
 
@@ -169,7 +286,9 @@ public class DistributedLock {
         sb.append("threadGroupName=").append(this.threadGroupName).append(", ");
         sb.append("threadId=").append(this.threadId).append(", ");
         sb.append("expiresAt=").append(DistributedLock.dateFormat.format(new Date(this.expiresAt))).append(", ");
-        sb.append("locked=").append(this.locked).append(")");
+        sb.append("locked=").append(this.locked).append(", ");
+        sb.append("fencingToken=").append(this.fencingToken).append(", ");
+        sb.append("readers=").append(this.readers).append(")");
         return sb.toString();
     }
 }
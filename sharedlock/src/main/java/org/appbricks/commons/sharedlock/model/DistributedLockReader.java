@@ -0,0 +1,131 @@
+package org.appbricks.commons.sharedlock.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * The shared lease of one holder of a distributed lock. Each shared
+ * holder has its own row, keyed by the lock name and the host and thread
+ * of the holder, so that its lease expires and is released on its own.
+ * The lock row carries the number of live shared leases and the latest
+ * of their expiry times, which are updated from these rows whenever a
+ * shared holder is added or removed.
+ */
+@Entity
+@IdClass(DistributedLockReader.Key.class)
+public class DistributedLockReader {
+
+    @Id
+    @Column(length=50)
+    private String name;
+
+    @Id
+    @Column(length=50)
+    private String hostname;
+
+    @Id
+    @Column(length=10)
+    private long threadId;
+
+    @Column(length=15)
+    private String address;
+    @Column(length=50)
+    private String threadName;
+
+    private long expiresAt;
+
+    public DistributedLockReader() {
+
+    }
+
+    public DistributedLockReader(DistributedLock lock, long expiresAt) {
+        this.name = lock.getName();
+        this.hostname = lock.getHostname();
+        this.threadId = lock.getThreadId();
+        this.address = lock.getAddress();
+        this.threadName = lock.getThreadName();
+        this.expiresAt = expiresAt;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public boolean isHeld() {
+        return System.currentTimeMillis() < this.expiresAt;
+    }
+
+    public Date getExpirationTime() {
+        return new Date(this.expiresAt);
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder("DistributedLockReader(");
+        sb.append("name=").append(this.name).append(", ");
+        sb.append("hostname=").append(this.hostname).append(", ");
+        sb.append("address=").append(this.address).append(", ");
+        sb.append("threadName=").append(this.threadName).append(", ");
+        sb.append("threadId=").append(this.threadId).append(", ");
+        sb.append("expiresAt=").append(this.expiresAt).append(")");
+        return sb.toString();
+    }
+
+    public static class Key
+        implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private String name;
+        private String hostname;
+        private long threadId;
+
+        public Key() {
+
+        }
+
+        public Key(String name, String hostname, long threadId) {
+            this.name = name;
+            this.hostname = hostname;
+            this.threadId = threadId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (o != null && o instanceof Key) {
+                Key key = (Key) o;
+                return this.threadId == key.threadId &&
+                    Objects.equals(this.name, key.name) && Objects.equals(this.hostname, key.hostname);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.name, this.hostname, this.threadId);
+        }
+    }
+}
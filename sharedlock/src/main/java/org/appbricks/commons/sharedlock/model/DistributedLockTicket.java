@@ -0,0 +1,117 @@
+package org.appbricks.commons.sharedlock.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+
+/**
+ * A ticket held by a process waiting for a distributed lock in fair
+ * mode. Tickets are numbered in the order they were issued and only
+ * the holder of the oldest ticket that has not expired may acquire
+ * the lock.
+ */
+@Entity
+@Table(indexes = { @Index(columnList = "name,id") })
+public class DistributedLockTicket {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    @Column(length=50)
+    private String name;
+
+    @Column(length=50)
+    private String hostname;
+    @Column(length=15)
+    private String address;
+    @Column(length=10)
+    private long threadId;
+
+    private long expiresAt;
+
+    @Transient
+    private long ahead;
+
+    public DistributedLockTicket() {
+
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public void setHostname(String hostname) {
+        this.hostname = hostname;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void setAddress(String address) {
+        this.address = address;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public void setThreadId(long threadId) {
+        this.threadId = threadId;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Returns the number of live tickets that were ahead of
+     * this one when the lock was last checked.
+     */
+    public long getAhead() {
+        return ahead;
+    }
+
+    public void setAhead(long ahead) {
+        this.ahead = ahead;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder("DistributedLockTicket(");
+        sb.append("id=").append(this.id).append(", ");
+        sb.append("name=").append(this.name).append(", ");
+        sb.append("hostname=").append(this.hostname).append(", ");
+        sb.append("address=").append(this.address).append(", ");
+        sb.append("threadId=").append(this.threadId).append(", ");
+        sb.append("ahead=").append(this.ahead).append(")");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,139 @@
+package org.appbricks.commons.sharedlock.model;
+
+import org.apache.commons.lang3.StringUtils;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * One of the permits of a distributed semaphore. Each permit is a
+ * separate row with its own lease so that acquirers contend only
+ * for the permits they try to take and not on a single row.
+ */
+@Entity
+@IdClass(DistributedSemaphorePermit.Key.class)
+public class DistributedSemaphorePermit {
+
+    @Id
+    @Column(length=50)
+    private String name;
+
+    @Id
+    private int slot;
+
+    @Column(length=50)
+    private String hostname;
+    @Column(length=15)
+    private String address;
+
+    @Column(length=10)
+    private long threadId;
+    @Column(length=50)
+    private String threadName;
+
+    private long updatedTime;
+    private long expiresAt;
+
+    public DistributedSemaphorePermit() {
+
+    }
+
+    public DistributedSemaphorePermit(String name, int slot) {
+        this.name = name;
+        this.slot = slot;
+        this.hostname = StringUtils.EMPTY;
+        this.address = StringUtils.EMPTY;
+        this.threadId = -1;
+        this.threadName = StringUtils.EMPTY;
+        this.updatedTime = System.currentTimeMillis();
+        this.expiresAt = 0L;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    public boolean isHeld() {
+        return System.currentTimeMillis() < this.expiresAt;
+    }
+
+    public Date getUpdateTime() {
+        return new Date(this.updatedTime);
+    }
+
+    public Date getExpirationTime() {
+        return new Date(this.expiresAt);
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder("DistributedSemaphorePermit(");
+        sb.append("name=").append(this.name).append(", ");
+        sb.append("slot=").append(this.slot).append(", ");
+        sb.append("hostname=").append(this.hostname).append(", ");
+        sb.append("address=").append(this.address).append(", ");
+        sb.append("threadName=").append(this.threadName).append(", ");
+        sb.append("threadId=").append(this.threadId).append(", ");
+        sb.append("expiresAt=").append(this.expiresAt).append(")");
+        return sb.toString();
+    }
+
+    public static class Key
+        implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private String name;
+        private int slot;
+
+        public Key() {
+
+        }
+
+        public Key(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (o != null && o instanceof Key) {
+                Key key = (Key) o;
+                return this.slot == key.slot && Objects.equals(this.name, key.name);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.name, this.slot);
+        }
+    }
+}
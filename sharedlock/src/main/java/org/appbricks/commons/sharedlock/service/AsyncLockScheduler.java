@@ -0,0 +1,310 @@
+package org.appbricks.commons.sharedlock.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockTimedoutException;
+import org.appbricks.commons.sharedlock.exception.LockUpdateException;
+import org.appbricks.commons.sharedlock.exception.MaintenanceEnabledException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Acquires locks without blocking the threads that request them. Pending
+ * requests are kept in a queue that a single background thread checks at
+ * a fixed interval. Each check reads the state of all the locks being
+ * waited on with one query per batch of names and only attempts the locks
+ * that are free, on behalf of the oldest request for each lock. The cost
+ * of waiting therefore does not grow with the number of pending requests.
+ *
+ * Locks acquired this way are owned by the returned LockHandle instead of
+ * a thread, so they are not re-entrant and must be released through the
+ * handle.
+ */
+public class AsyncLockScheduler {
+
+    private static final Log log = LogFactory.getLog(AsyncLockScheduler.class);
+
+    private DistributedLockService service;
+
+    private long checkInterval;
+    private Executor completionExecutor;
+
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean checkRequested = new AtomicBoolean();
+    private final AtomicLong owners = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param service       the lock service
+     * @param checkInterval the interval in milliseconds between checks
+     *                      of the locks being waited on
+     */
+    public AsyncLockScheduler(DistributedLockService service, long checkInterval) {
+        this(service, checkInterval, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param service            the lock service
+     * @param checkInterval      the interval in milliseconds between checks
+     *                           of the locks being waited on
+     * @param completionExecutor the executor on which the returned futures
+     *                           are completed so that their callbacks do
+     *                           not delay the checks
+     */
+    public AsyncLockScheduler(DistributedLockService service, long checkInterval, Executor completionExecutor) {
+        this.service = service;
+        this.checkInterval = checkInterval;
+        this.completionExecutor = completionExecutor;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sharedlock-async");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(
+            this::check, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * Returns the number of requests waiting for a lock.
+     */
+    public int getPendingCount() {
+        return this.waiters.size();
+    }
+
+    /**
+     * Requests the named lock. The returned future completes with a handle
+     * on the lock once it has been acquired or exceptionally if it could not
+     * be acquired within the timeout. Cancelling the future withdraws the
+     * request.
+     */
+    CompletableFuture<LockHandle> lockAsync(String name, int timeout, int expireAfter, int lockRetries) {
+
+        Waiter waiter;
+        try {
+            waiter = new Waiter(this.newOwner(name),
+                System.currentTimeMillis() + (timeout * 1000L), expireAfter, lockRetries);
+
+        } catch (LockException e) {
+            return failed(e);
+        }
+
+        this.waiters.add(waiter);
+        this.requestCheck();
+        return waiter.future;
+    }
+
+    /**
+     * Releases the lock held by the given handle on the background
+     * thread and lets the next request for it be checked right away.
+     */
+    CompletableFuture<Void> unlock(LockHandle handle) {
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            this.scheduler.execute(() -> {
+
+                LockException error = null;
+                try {
+                    if (!this.service.releaseLock(handle.getLock())) {
+                        error = new InvalidLockException(
+                            "Lease on sharedlock '%s' had expired and was taken by another holder", handle.getName());
+                    }
+                } catch (Throwable t) {
+                    error = new LockUpdateException(t, "Failed to release sharedlock: %s", handle.getLock());
+                }
+                this.requestCheck();
+
+                LockException result = error;
+                this.completionExecutor.execute(() -> {
+                    if (result == null) {
+                        future.complete(null);
+                    } else {
+                        future.completeExceptionally(result);
+                    }
+                });
+            });
+
+        } catch (Throwable t) {
+            future.completeExceptionally(
+                new LockUpdateException(t, "Failed to release sharedlock: %s", handle.getLock()));
+        }
+        return future;
+    }
+
+    /**
+     * Checks all the pending requests. Requests that have timed out or been
+     * cancelled are dropped. The locks still being waited on are read in one
+     * batch and each lock that is free is attempted for its oldest request.
+     */
+    void check() {
+
+        this.checkRequested.set(false);
+
+        long now = System.currentTimeMillis();
+        Map<String, Waiter> heads = new LinkedHashMap<>();
+
+        Iterator<Waiter> iterator = this.waiters.iterator();
+        while (iterator.hasNext()) {
+
+            Waiter waiter = iterator.next();
+            if (waiter.future.isDone()) {
+                iterator.remove();
+
+            } else if (now >= waiter.timeoutAt) {
+                iterator.remove();
+                this.fail(waiter, new LockTimedoutException("Timed out waiting for sharedlock %s", waiter.lock.getName()));
+
+            } else {
+                heads.putIfAbsent(waiter.lock.getName(), waiter);
+            }
+        }
+        if (heads.isEmpty()) {
+            return;
+        }
+
+        List<DistributedLock> locks;
+        try {
+            locks = this.service.getLocks(heads.keySet());
+        } catch (Throwable t) {
+            log.warn(String.format("Failed to check %d sharedlocks: %s", heads.size(), t.getMessage()), t);
+            return;
+        }
+
+        for (DistributedLock distributedLock : locks) {
+
+            // Locks in maintenance mode are attempted so
+            // that their requests fail instead of timing out
+            Waiter waiter = heads.remove(distributedLock.getName());
+            if (!distributedLock.isLocked() || distributedLock.isMaintenanceMode()) {
+                this.attempt(waiter);
+            }
+        }
+
+        // Locks that do not exist yet are created when they are attempted
+        heads.values().forEach(this::attempt);
+    }
+
+    private void attempt(Waiter waiter) {
+
+        long now = System.currentTimeMillis();
+        try {
+            if (this.service.tryAcquireLock(waiter.lock, waiter.expireAfter) == null) {
+
+                this.waiters.remove(waiter);
+                LockHandle handle = new LockHandle(this, waiter.lock, now + (waiter.expireAfter * 1000L));
+
+                this.completionExecutor.execute(() -> {
+                    if (!waiter.future.complete(handle)) {
+                        // The request was cancelled while it was being granted
+                        handle.unlockAsync();
+                    }
+                });
+            }
+
+        } catch (MaintenanceEnabledException e) {
+            this.waiters.remove(waiter);
+            this.fail(waiter, e);
+
+        } catch (Throwable t) {
+
+            if (waiter.retryCount > 0) {
+                log.info(String.format("Retrying due to failure to acquire sharedlock: %s", waiter.lock));
+                waiter.retryCount--;
+            } else {
+                this.waiters.remove(waiter);
+                this.fail(waiter, new LockUpdateException(t, "Failed to acquire sharedlock: %s", waiter.lock));
+            }
+        }
+    }
+
+    private void fail(Waiter waiter, LockException e) {
+        this.completionExecutor.execute(() -> waiter.future.completeExceptionally(e));
+    }
+
+    private void requestCheck() {
+
+        if (this.checkRequested.compareAndSet(false, true)) {
+            try {
+                this.scheduler.execute(this::check);
+            } catch (Throwable t) {
+                this.checkRequested.set(false);
+            }
+        }
+    }
+
+    /**
+     * Returns a lock owned by a new handle. The owner is recorded with a
+     * negative thread id so that it never matches a thread of this process.
+     */
+    private DistributedLock newOwner(String name)
+        throws LockException {
+
+        long owner = this.owners.incrementAndGet();
+
+        DistributedLock lock = this.service.newLock(name);
+        lock.setThreadId(-owner);
+        lock.setThreadName(String.format("sharedlock-async-%d", owner));
+        return lock;
+    }
+
+    /**
+     * Stops checking for locks. Pending requests fail and locks that
+     * are held expire unless their handles release them.
+     */
+    public void shutdown() {
+        this.scheduler.shutdownNow();
+
+        Waiter waiter;
+        while ((waiter = this.waiters.poll()) != null) {
+            waiter.future.completeExceptionally(
+                new LockException("Stopped waiting for sharedlock %s", waiter.lock.getName()));
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    private static class Waiter {
+
+        private final DistributedLock lock;
+        private final long timeoutAt;
+        private final int expireAfter;
+
+        private int retryCount;
+
+        private final CompletableFuture<LockHandle> future = new CompletableFuture<>();
+
+        private Waiter(DistributedLock lock, long timeoutAt, int expireAfter, int lockRetries) {
+            this.lock = lock;
+            this.timeoutAt = timeoutAt;
+            this.expireAfter = expireAfter;
+            this.retryCount = lockRetries;
+        }
+    }
+}
@@ -7,8 +7,12 @@ import org.appbricks.commons.sharedlock.exception.LockTimedoutException;
 import org.appbricks.commons.sharedlock.exception.LockUpdateException;
 import org.appbricks.commons.sharedlock.exception.MaintenanceEnabledException;
 import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.model.DistributedLockTicket;
+import org.appbricks.commons.sharedlock.wait.FixedIntervalWaitStrategy;
+import org.appbricks.commons.sharedlock.wait.LockWaitStrategy;
+
+import java.util.concurrent.CompletableFuture;
 
-import java.net.InetAddress;
 
 /**
  * Used to manage distributed locks to achieve mutual
@@ -24,91 +28,287 @@ public class DistributedLockInstance {
     private long lockCheckInterval;
     private int lockRetries;
 
+    private long localLeaseMargin = DEFAULT_LOCAL_LEASE_MARGIN;
+
+    private LockWaitStrategy waitStrategy;
+
+    private boolean fair;
+    private int ticketTimeToLive = DEFAULT_TICKET_TIME_TO_LIVE;
+
+    public static final long DEFAULT_LOCAL_LEASE_MARGIN = 1000L;
+    public static final int DEFAULT_TICKET_TIME_TO_LIVE = 30;
+
     public DistributedLockInstance(String name, DistributedLockService service, long lockCheckInterval, int lockRetries) {
         this.name = name;
         this.service = service;
         this.lockCheckInterval = lockCheckInterval;
         this.lockRetries = lockRetries;
+        this.waitStrategy = new FixedIntervalWaitStrategy(lockCheckInterval);
 
-        // Ensure sharedlock is created in database
-        service.getLock(this.name);
+        // The lock is created in the lock store when it is first acquired
     }
 
     public DistributedLock getLock() {
         return this.service.getLock(this.name);
     }
 
-    public void lock(int timeout, int expireAfter)
+    /**
+     * Sets the strategy that decides how long to wait between attempts
+     * to acquire the lock. By default the lock is checked every
+     * lockCheckInterval milliseconds.
+     */
+    public void setWaitStrategy(LockWaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Enables fair mode in which processes waiting for the lock take a
+     * ticket and acquire the lock in the order the tickets were issued.
+     * Waiters behind the head of the queue wait longer between checks in
+     * proportion to their position. Threads within this process still
+     * share a single poller, but the lock is no longer handed directly to
+     * a waiting thread on release. Fair mode should be enabled by all the
+     * processes sharing the lock.
+     */
+    public void setFair(boolean fair) {
+        this.fair = fair;
+    }
+
+    /**
+     * Sets the time in seconds after which the ticket of a waiter that has
+     * stopped checking the lock expires, so that it no longer holds up the
+     * waiters behind it.
+     */
+    public void setTicketTimeToLive(int ticketTimeToLive) {
+        this.ticketTimeToLive = ticketTimeToLive;
+    }
+
+    /**
+     * Sets how long in milliseconds a lease held by the current thread must
+     * still have to run for a re-entrant lock or a validation to be answered
+     * from the local record of the lease instead of the database. This
+     * allows for clock differences between the processes sharing the lock.
+     */
+    public void setLocalLeaseMargin(long localLeaseMargin) {
+        this.localLeaseMargin = localLeaseMargin;
+    }
+
+    /**
+     * Acquires the lock and returns the fencing token of the lease, which
+     * is greater than the token of any earlier lease on the lock. It can be
+     * passed to the resources guarded by the lock so that they refuse the
+     * requests of a holder whose lease has expired. The token is 0 if the
+     * lock store does not issue tokens.
+     */
+    public long lock(int timeout, int expireAfter)
+        throws LockException {
+
+        return this.acquire(timeout, expireAfter).getFencingToken();
+    }
+
+    /**
+     * Acquires the lock with the renewer's short lease and keeps renewing
+     * it in the background until it is unlocked. The listener is notified
+     * if the lease could not be renewed.
+     */
+    public long lock(int timeout, DistributedLockRenewer renewer, LockLeaseListener listener)
+        throws LockException {
+
+        DistributedLock lock = this.acquire(timeout, renewer.getLeaseTime());
+        renewer.register(this.service.getLocalLockQueue(this.name), lock, listener);
+        return lock.getFencingToken();
+    }
+
+    /**
+     * Requests the lock without blocking the calling thread. The returned
+     * future completes with a handle on the lock once the scheduler has
+     * acquired it, or exceptionally if it could not be acquired within the
+     * timeout. The lock is owned by the handle and must be released with
+     * LockHandle.unlockAsync(). Locks acquired this way are not re-entrant
+     * and do not take part in fair mode.
+     */
+    public CompletableFuture<LockHandle> lockAsync(int timeout, int expireAfter, AsyncLockScheduler scheduler) {
+        return scheduler.lockAsync(this.name, timeout, expireAfter, this.lockRetries);
+    }
+
+    private DistributedLock acquire(int timeout, int expireAfter)
         throws LockException {
 
         long timeoutAt = System.currentTimeMillis() + (timeout * 1000);
+        long start = System.nanoTime();
 
-        DistributedLock lock = new DistributedLock();
-        lock.setName(name);
+        DistributedLock lock = this.service.newLock(this.name);
+        int polls = 0;
+        if (!this.reacquireLock(lock, expireAfter)) {
+            polls = this.acquireLockWithRetry(lock, timeoutAt, expireAfter, start);
+        }
+        this.service.getMetrics().acquired(this.name, System.nanoTime() - start, polls);
+        return lock;
+    }
 
-        try {
-            InetAddress ip = InetAddress.getLocalHost();
+    /**
+     * Acquires the lock again if it is already held by the current thread. This
+     * is answered locally unless the lease is close to expiring or needs to be
+     * extended to cover the requested expiry.
+     */
+    private boolean reacquireLock(DistributedLock lock, int expireAfter)
+        throws LockException {
 
-            lock.setHostname(ip.getHostName());
-            lock.setAddress(ip.getHostAddress());
+        long now = System.currentTimeMillis();
+        long heldUntil = this.service.heldUntil(this.name);
+        if (heldUntil <= now) {
+            return false;
+        }
 
-            Thread thread = Thread.currentThread();
-            lock.setThreadId(thread.getId());
-            lock.setThreadName(thread.getName());
+        LocalLockQueue queue = this.service.getLocalLockQueue(this.name);
 
-            ThreadGroup threadGroup = thread.getThreadGroup();
-            lock.setThreadGroupName(threadGroup.getName());
+        long expiresAt = now + (expireAfter * 1000L);
+        if (expiresAt <= heldUntil && now + this.localLeaseMargin < heldUntil) {
+            return queue.reenter(heldUntil);
+        }
 
-        } catch (Exception e) {
-            throw new LockException(e, "Error retrieving metadata for sharedlock '%s': %s", name, e.getMessage());
+        try {
+            expiresAt = Math.max(expiresAt, heldUntil);
+            if (this.service.extendLock(lock, expiresAt)) {
+                return queue.reenter(LocalLockQueue.leaseEnd(lock, expiresAt));
+            }
+        } catch (Throwable t) {
+            this.service.getMetrics().updateFailed(this.name);
+            throw new LockUpdateException(t, "Failed to extend sharedlock: %s", lock);
         }
 
-        this.acquireLockWithRetry(lock, timeoutAt, expireAfter, this.lockRetries);
+        queue.lost();
+        return false;
     }
 
-    private void acquireLockWithRetry(DistributedLock lock, long timeoutAt, int expireAfter, int retryCount)
+    /**
+     * Waits for the lock in the local queue of threads waiting on this
+     * lock. Only the thread at the head of the queue polls the database
+     * so the number of polls does not grow with the number of waiting
+     * threads in this process. Returns the number of times this thread
+     * polled the database.
+     */
+    private int acquireLockWithRetry(DistributedLock lock, long timeoutAt, int expireAfter, long start)
         throws  LockException {
 
         String name = lock.getName();
-        boolean success = false;
+        int retryCount = this.lockRetries;
+
+        LocalLockQueue queue;
+        LocalLockQueue.Waiter waiter;
+        do {
+            queue = this.service.getLocalLockQueue(name);
+            waiter = queue.enter(lock, expireAfter);
+        } while (waiter == null);
+        DistributedLockTicket ticket = null;
+        int polls = 0;
 
         try {
-            while (!(success = service.acquireLock(lock, expireAfter)) && System.currentTimeMillis() < timeoutAt) {
-                Thread.sleep(this.lockCheckInterval);
+            int attempts = 0;
+
+            LocalLockQueue.State state;
+            while ((state = queue.await(waiter, timeoutAt)) == LocalLockQueue.State.POLL) {
+
+                long now = System.currentTimeMillis();
+                polls++;
+                try {
+                    DistributedLock holder;
+                    if (this.fair) {
+                        if (ticket == null) {
+                            ticket = this.service.enterFairQueue(lock, this.ticketTimeToLive);
+                        }
+                        holder = this.service.tryAcquireLock(lock, expireAfter, ticket, this.ticketTimeToLive);
+                    } else {
+                        holder = this.service.tryAcquireLock(lock, expireAfter);
+                    }
+
+                    if (holder == null) {
+                        ticket = null;
+                        this.waitStrategy.acquired(attempts);
+                        queue.polled(waiter, true, LocalLockQueue.leaseEnd(lock, now + (expireAfter * 1000L)), 0L);
+
+                    } else {
+                        this.service.getMetrics().contended(name, holder);
+                        long wait = this.waitStrategy.nextWait(++attempts, holder);
+                        if (ticket != null && ticket.getAhead() > 0) {
+                            // Back off in proportion to the position in the
+                            // queue but refresh the ticket before it expires
+                            wait = Math.min(wait * (ticket.getAhead() + 1), this.ticketTimeToLive * 500L);
+                        }
+                        queue.polled(waiter, false, 0L, System.currentTimeMillis() + wait);
+                    }
+
+                } catch (MaintenanceEnabledException e) {
+                    throw e;
+
+                } catch (Throwable t) {
+
+                    if (retryCount > 0) {
+                        log.info(String.format("Retrying due to failure to acquire sharedlock: %s", lock));
+                        queue.polled(waiter, false, 0L, now);
+                        retryCount--;
+                    } else {
+                        this.service.getMetrics().updateFailed(name);
+                        throw new LockUpdateException(t, "Failed to acquire sharedlock: %s", lock);
+                    }
+                }
             }
 
-        } catch (MaintenanceEnabledException e) {
-            throw e;
+            // Check if timeout has expired
+            if (state == LocalLockQueue.State.TIMEDOUT) {
+                this.service.getMetrics().timedOut(name, System.nanoTime() - start, polls);
+                throw new LockTimedoutException("Timed out waiting for sharedlock %s", name);
+            }
+            return polls;
 
         } catch (InterruptedException e) {
             throw new LockException(e, "Lock wait was interrupted.");
 
-        } catch (Throwable t) {
+        } finally {
+            queue.leave(waiter);
+            this.service.dropLocalLockQueue(name);
 
-            if (retryCount > 0) {
-                log.info(String.format("Retrying due to failure to acquire sharedlock: %s", lock));
-                this.acquireLockWithRetry(lock, timeoutAt, expireAfter, retryCount - 1);
-            } else {
-                throw new LockUpdateException(t, "Failed to acquire sharedlock: %s", lock);
+            if (ticket != null) {
+                try {
+                    this.service.leaveFairQueue(ticket);
+                } catch (Throwable t) {
+                    log.warn(String.format("Failed to remove ticket %s: %s", ticket, t.getMessage()), t);
+                }
             }
         }
-
-        // Check if timeout has expired
-        if (!success && System.currentTimeMillis() >= timeoutAt) {
-            throw new LockTimedoutException("Timed out waiting for sharedlock %s", name);
-        }
     }
 
     public void validate()
         throws LockException {
 
+        long heldUntil = this.service.heldUntil(this.name);
+        if (System.currentTimeMillis() + this.localLeaseMargin < heldUntil) {
+            return;
+        }
+
         this.service.validate(this.name);
     }
 
     public void unlock()
         throws LockException {
 
-        this.service.unlock(this.name);
+        DistributedLock lock = this.service.newLock(this.name);
+
+        LocalLockQueue queue = this.service.getLocalLockQueue(this.name);
+        long heldSince = queue.heldSince();
+
+        boolean released;
+        try {
+            released = queue.release(
+                (next, expireAfter) -> !this.fair && this.service.transferLock(lock, next, expireAfter),
+                fencingToken -> this.service.unlock(this.name, fencingToken) );
+        } finally {
+            this.service.dropLocalLockQueue(this.name);
+        }
+
+        if (released && heldSince != 0L) {
+            this.service.getMetrics().released(this.name, System.nanoTime() - heldSince);
+        }
     }
 
     public void enterMaintenanceWindow(int timeout, int hours, int minutes)
@@ -123,5 +323,7 @@ public class DistributedLockInstance {
         throws LockException {
 
         this.service.exitMaintenanceMode(this.name);
+        this.service.getLocalLockQueue(this.name).clear();
+        this.service.dropLocalLockQueue(this.name);
     }
 }
@@ -0,0 +1,170 @@
+package org.appbricks.commons.sharedlock.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renews the short leases on locks held by this process from a single
+ * background thread. This allows a lock to be held for as long as the
+ * holder needs it while a crashed holder's lock expires quickly. All the
+ * leases due for renewal are extended with a single batched update per
+ * renewal interval and the holder is notified if its lease is lost.
+ */
+public class DistributedLockRenewer {
+
+    private static final Log log = LogFactory.getLog(DistributedLockRenewer.class);
+
+    private DistributedLockService service;
+
+    private int leaseTime;
+    private long renewInterval;
+
+    private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param service       the lock service
+     * @param leaseTime     the time in seconds each lease is extended by
+     * @param renewInterval the interval in milliseconds between renewals
+     *                      which should be well within the lease time
+     */
+    public DistributedLockRenewer(DistributedLockService service, int leaseTime, long renewInterval) {
+        this.service = service;
+        this.leaseTime = leaseTime;
+        this.renewInterval = renewInterval;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sharedlock-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(
+            this::renew, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public int getLeaseTime() {
+        return leaseTime;
+    }
+
+    public long getRenewInterval() {
+        return renewInterval;
+    }
+
+    /**
+     * Starts renewing the lease on the given lock held by the current
+     * thread until the thread releases it.
+     */
+    void register(LocalLockQueue queue, DistributedLock lock, LockLeaseListener listener) {
+
+        long grant = queue.heldGrant();
+        if (grant >= 0) {
+            this.leases.put(lock.getName(), new Lease(queue, lock, Thread.currentThread(), grant, listener));
+        }
+    }
+
+    /**
+     * Renews all leases that are still held in one batch.
+     */
+    void renew() {
+
+        List<Lease> held = new ArrayList<>();
+        List<DistributedLock> locks = new ArrayList<>();
+
+        long now = System.currentTimeMillis();
+        for (Lease lease : this.leases.values()) {
+
+            if (lease.heldUntil() == 0L) {
+                // The lock has been released
+                this.leases.remove(lease.lock.getName(), lease);
+            } else {
+                held.add(lease);
+                locks.add(lease.lock);
+            }
+        }
+        if (held.isEmpty()) {
+            return;
+        }
+
+        long expiresAt = now + (this.leaseTime * 1000L);
+        try {
+            Set<String> lost = this.service.renewLocks(locks, expiresAt);
+
+            for (Lease lease : held) {
+                if (lost.contains(lease.lock.getName())) {
+                    this.lost(lease);
+                } else {
+                    lease.queue.renewed(lease.thread, lease.grant, expiresAt);
+                }
+            }
+
+        } catch (Throwable t) {
+
+            log.warn(String.format("Failed to renew %d sharedlock leases: %s", held.size(), t.getMessage()), t);
+
+            // Leases that have run out while the
+            // renewal was failing have been lost
+            now = System.currentTimeMillis();
+            for (Lease lease : held) {
+                if (lease.heldUntil() <= now) {
+                    this.lost(lease);
+                }
+            }
+        }
+    }
+
+    private void lost(Lease lease) {
+
+        String name = lease.lock.getName();
+        log.warn(String.format("Lease on sharedlock was lost: %s", lease.lock));
+
+        this.leases.remove(name, lease);
+        lease.queue.lost(lease.thread, lease.grant);
+
+        try {
+            lease.listener.leaseLost(name);
+        } catch (Throwable t) {
+            log.error(String.format("Lease listener for sharedlock '%s' failed: %s", name, t.getMessage()), t);
+        }
+    }
+
+    /**
+     * Stops renewing leases. Leases that are held will
+     * expire unless their holders release them.
+     */
+    public void shutdown() {
+        this.scheduler.shutdownNow();
+        this.leases.clear();
+    }
+
+    private static class Lease {
+
+        private final LocalLockQueue queue;
+        private final DistributedLock lock;
+        private final Thread thread;
+        private final long grant;
+        private final LockLeaseListener listener;
+
+        private Lease(LocalLockQueue queue, DistributedLock lock, Thread thread, long grant, LockLeaseListener listener) {
+            this.queue = queue;
+            this.lock = lock;
+            this.thread = thread;
+            this.grant = grant;
+            this.listener = listener;
+        }
+
+        private long heldUntil() {
+            return this.queue.heldUntil(this.thread, this.grant);
+        }
+    }
+}
@@ -1,147 +1,652 @@
 package org.appbricks.commons.sharedlock.service;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import org.appbricks.commons.sharedlock.data.DistributedLockRepository;
 import org.appbricks.commons.sharedlock.exception.InvalidLockException;
 import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockNotFoundException;
+import org.appbricks.commons.sharedlock.exception.LockTimedoutException;
 import org.appbricks.commons.sharedlock.exception.MaintenanceEnabledException;
+import org.appbricks.commons.sharedlock.metrics.LockMetrics;
+import org.appbricks.commons.sharedlock.metrics.LockOperation;
 import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.model.DistributedLockTicket;
+import org.appbricks.commons.sharedlock.store.LockStore;
+import org.appbricks.commons.sharedlock.wait.FixedIntervalWaitStrategy;
+import org.appbricks.commons.sharedlock.wait.LockWaitStrategy;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Isolation;
-import org.springframework.transaction.annotation.Transactional;
 
-import javax.persistence.EntityManager;
-import javax.persistence.LockModeType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
 
 /**
  * Service that uses a database resource
- * to create a mutually exclusive sharedlock
+ * to create a mutually exclusive sharedlock.
+ *
+ * The state of the locks is kept by a LockStore, which is the JPA store
+ * unless another store is declared as the primary LockStore bean or the
+ * service is constructed with it. Each store operation is atomic so the
+ * service itself is not transactional.
  */
 @Service
-@Transactional(isolation = Isolation.READ_COMMITTED)
 public class DistributedLockService {
 
-    private static final Log log = LogFactory.getLog(DistributedLockService.class);
+    public static final long DEFAULT_LOCK_CHECK_INTERVAL = 500L;
 
-    private DistributedLockRepository distributedLockRepository;
+    public static final int DEFAULT_MAX_KNOWN_LOCKS = 10000;
 
-    @Autowired
-    private EntityManager entityManager;
+    // Length of the hostname column of the lock tables
+    private static final int MAX_HOSTNAME_LENGTH = 50;
+
+    private LockStore lockStore;
+
+    private LockWaitStrategy waitStrategy = new FixedIntervalWaitStrategy(DEFAULT_LOCK_CHECK_INTERVAL);
+
+    private LockMetrics metrics = LockMetrics.NONE;
+
+    private final ConcurrentMap<String, LocalLockQueue> localLockQueues = new ConcurrentHashMap<>();
+
+    // Names of the locks known to exist in the lock store so that
+    // a lock is only created the first time this process acquires it
+    private final Set<String> knownLocks = ConcurrentHashMap.newKeySet();
+    private int maxKnownLocks = DEFAULT_MAX_KNOWN_LOCKS;
+
+    // The host of this process is looked up once as the
+    // lookup may have to wait for the name service
+    private static volatile ProcessIdentity processIdentity;
 
     @Autowired
-    public DistributedLockService(DistributedLockRepository distributedLockRepository) {
-        this.distributedLockRepository = distributedLockRepository;
+    public DistributedLockService(LockStore lockStore) {
+        this.lockStore = lockStore;
+        this.lockStore.setReleaseListener(this::released);
+    }
+
+    public LockStore getLockStore() {
+        return lockStore;
+    }
+
+    public LockMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the receiver of the measurements of the locks used through
+     * this service. Nothing is measured unless a LockMetrics bean is
+     * declared or set here.
+     */
+    @Autowired(required = false)
+    public void setMetrics(LockMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets how many names of locks known to exist are remembered. When
+     * more locks are used an arbitrary name is forgotten, and that lock
+     * is created again, which does nothing, when it is next acquired.
+     */
+    public void setMaxKnownLocks(int maxKnownLocks) {
+        this.maxKnownLocks = maxKnownLocks;
+    }
+
+    /**
+     * Creates the named lock in the lock store unless it is known to exist.
+     * Creating a lock that another process has just created does nothing.
+     */
+    void createLock(String name) {
+
+        if (this.knownLocks.contains(name)) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            this.lockStore.createLocks(Collections.singleton(name));
+        } finally {
+            this.metrics.storeCall(name, LockOperation.CREATE, System.nanoTime() - start);
+        }
+        this.knownLock(name);
+    }
+
+    /**
+     * Creates the named lock again after the lock store did not find it,
+     * which happens when it was deleted by a LockReaper while idle.
+     */
+    private void recreateLock(String name) {
+        this.knownLocks.remove(name);
+        this.createLock(name);
+    }
+
+    private void knownLock(String name) {
+
+        if (this.knownLocks.add(name) && this.knownLocks.size() > this.maxKnownLocks) {
+            Iterator<String> names = this.knownLocks.iterator();
+            if (names.hasNext()) {
+                names.next();
+                names.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the queue of threads in this process waiting on the named lock.
+     */
+    LocalLockQueue getLocalLockQueue(String name) {
+        return this.localLockQueues.computeIfAbsent(name, LocalLockQueue::new);
+    }
+
+    /**
+     * Drops the queue of the named lock if no thread
+     * in this process holds or waits for the lock.
+     */
+    void dropLocalLockQueue(String name) {
+        this.localLockQueues.computeIfPresent(name, (key, queue) -> queue.retire() ? null : queue);
+    }
+
+    /**
+     * Returns when the lease of the current thread on the named lock
+     * expires or 0 if the current thread does not hold the lock.
+     */
+    long heldUntil(String name) {
+
+        LocalLockQueue queue = this.localLockQueues.get(name);
+        return queue != null ? queue.heldUntil() : 0L;
+    }
+
+    /**
+     * Wakes the threads in this process waiting on a lock
+     * that the lock store has seen released.
+     */
+    private void released(String name) {
+
+        LocalLockQueue queue = this.localLockQueues.get(name);
+        if (queue != null) {
+            queue.released();
+        }
     }
 
-    @Transactional(isolation = Isolation.READ_UNCOMMITTED)
     public DistributedLock getLock(String name) {
 
-        DistributedLock lock = distributedLockRepository.findByName(name);
-        if (lock == null) {
-            lock = new DistributedLock();
-            lock.setName(name);
-            lock.clear();
-            this.distributedLockRepository.save(lock);
+        long start = System.nanoTime();
+        try {
+            DistributedLock lock = this.lockStore.getLock(name);
+            this.knownLock(name);
+            return lock;
+        } finally {
+            this.metrics.storeCall(name, LockOperation.GET, System.nanoTime() - start);
         }
+    }
 
-        return lock;
+    /**
+     * Returns the current state of the named locks that exist.
+     */
+    public List<DistributedLock> getLocks(Collection<String> names) {
+
+        long start = System.nanoTime();
+        try {
+            return this.lockStore.getLocks(new TreeSet<>(names));
+        } finally {
+            this.metrics.storeCall(null, LockOperation.GET, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Sets the strategy that decides how long lockAll() waits between
+     * attempts to acquire all of its locks.
+     */
+    public void setWaitStrategy(LockWaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
     }
 
     public boolean acquireLock(DistributedLock lock, int expireAfter)
         throws LockException {
 
-        String name = lock.getName();
+        return this.tryAcquireLock(lock, expireAfter) == null;
+    }
+
+    /**
+     * Attempts to acquire the given lock once. Much like ConcurrentMap.putIfAbsent()
+     * this returns null if the lock was acquired, otherwise it returns the current
+     * state of the lock which is held by another process or thread.
+     */
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        this.createLock(lock.getName());
 
-        DistributedLock distributedLock = this.distributedLockRepository.findByName(name);
-        if (distributedLock == null) {
-            throw new LockException(String.format("Lock '%s' was not found.", name));
+        long start = System.nanoTime();
+        try {
+            return this.lockStore.tryAcquireLock(lock, expireAfter);
+        } catch (LockNotFoundException e) {
+            this.recreateLock(lock.getName());
+            return this.lockStore.tryAcquireLock(lock, expireAfter);
+        } finally {
+            this.metrics.storeCall(lock.getName(), LockOperation.ACQUIRE, System.nanoTime() - start);
         }
-        if (distributedLock.isLocked()) {
+    }
 
-            if (distributedLock.isMaintenanceMode()) {
-                throw new MaintenanceEnabledException("Lock '%s' is in maintenance mode so it cannot be locked.", name);
-            }
+    /**
+     * Attempts to add the owner of the given lock as a shared holder of
+     * the lock. Shared holders are refused while the lock is exclusively
+     * held or an exclusive holder is waiting for the shared holders to
+     * release it. Returns null if the lock was acquired or the current
+     * state of the lock otherwise.
+     */
+    public DistributedLock tryAcquireReadLock(DistributedLock lock, int expireAfter)
+        throws LockException {
 
-            this.entityManager.refresh(distributedLock, LockModeType.PESSIMISTIC_WRITE);
-            if (distributedLock.isLocked()) {
-                log.debug(
-                    String.format("Unable to acquire sharedlock as it is locked by another process or thread: %s",
-                    distributedLock.toString()));
+        this.createLock(lock.getName());
 
-                return false;
-            }
+        long start = System.nanoTime();
+        try {
+            return this.lockStore.tryAcquireReadLock(lock, expireAfter);
+        } catch (LockNotFoundException e) {
+            this.recreateLock(lock.getName());
+            return this.lockStore.tryAcquireReadLock(lock, expireAfter);
+        } finally {
+            this.metrics.storeCall(lock.getName(), LockOperation.ACQUIRE_READ, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Removes the shared lease of the owner of the given lock.
+     */
+    public void releaseReadLock(DistributedLock lock) {
+
+        long start = System.nanoTime();
+        try {
+            this.lockStore.releaseReadLock(lock);
+        } finally {
+            this.metrics.storeCall(lock.getName(), LockOperation.RELEASE_READ, System.nanoTime() - start);
         }
+    }
+
+    /**
+     * Creates the permits of the named semaphore that do not exist yet.
+     */
+    public void createPermits(String name, int permits) {
+        this.lockStore.createPermits(name, permits);
+    }
+
+    /**
+     * Attempts to take the given number of the permits of the named semaphore
+     * for the given thread. Either all or none of the permits are taken.
+     * Returns the slots of the permits taken or an empty list if they could
+     * not all be taken.
+     */
+    public List<Integer> tryAcquirePermits(DistributedLock lock, int permits, int count, int expireAfter) {
+        return this.lockStore.tryAcquirePermits(lock, permits, count, expireAfter);
+    }
+
+    /**
+     * Frees the given permits of the named semaphore that are still held
+     * by the given thread. Returns the number of permits that were freed.
+     */
+    public int releasePermits(DistributedLock lock, Collection<Integer> slots) {
+        return this.lockStore.releasePermits(lock, slots);
+    }
 
-        distributedLock.lock(lock, expireAfter);
-        this.distributedLockRepository.save(distributedLock);
+    /**
+     * Returns the number of permits of the named semaphore that are free.
+     */
+    public int availablePermits(String name, int permits) {
+        return this.lockStore.availablePermits(name, permits);
+    }
+
+    /**
+     * Issues a ticket to wait for the given lock in fair mode. The ticket
+     * expires unless it is used to attempt to acquire the lock within
+     * the given time to live in seconds.
+     */
+    public DistributedLockTicket enterFairQueue(DistributedLock lock, int ticketTimeToLive) {
+        return this.lockStore.enterFairQueue(lock, ticketTimeToLive);
+    }
+
+    /**
+     * Removes a ticket that was not used to acquire its lock.
+     */
+    public void leaveFairQueue(DistributedLockTicket ticket) {
+        this.lockStore.leaveFairQueue(ticket);
+    }
 
-        return true;
+    /**
+     * Attempts to acquire the given lock in fair mode. The lock is only
+     * attempted if no live ticket was issued before the given ticket,
+     * otherwise the number of tickets ahead is recorded on the ticket.
+     * The ticket is removed once the lock has been acquired. As with
+     * tryAcquireLock(DistributedLock, int) this returns null if the
+     * lock was acquired or the current state of the lock otherwise.
+     */
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter,
+        DistributedLockTicket ticket, int ticketTimeToLive)
+        throws LockException {
+
+        this.createLock(lock.getName());
+
+        long start = System.nanoTime();
+        try {
+            return this.lockStore.tryAcquireLock(lock, expireAfter, ticket, ticketTimeToLive);
+        } catch (LockNotFoundException e) {
+            this.recreateLock(lock.getName());
+            return this.lockStore.tryAcquireLock(lock, expireAfter, ticket, ticketTimeToLive);
+        } finally {
+            this.metrics.storeCall(lock.getName(), LockOperation.ACQUIRE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Hands a lock held by one thread directly to another thread in this
+     * process without releasing it in between. Returns false if the lease
+     * is no longer held by the first thread.
+     */
+    public boolean transferLock(DistributedLock from, DistributedLock to, int expireAfter) {
+
+        long start = System.nanoTime();
+        try {
+            return this.lockStore.transferLock(from, to, expireAfter);
+        } finally {
+            this.metrics.storeCall(to.getName(), LockOperation.TRANSFER, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Extends the lease on a lock held by the given thread to the
+     * given expiry time. Returns false if the lease is no longer held.
+     */
+    public boolean extendLock(DistributedLock lock, long expiresAt) {
+
+        long start = System.nanoTime();
+        try {
+            return this.lockStore.extendLock(lock, expiresAt);
+        } finally {
+            this.metrics.storeCall(lock.getName(), LockOperation.EXTEND, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Extends the leases on the given locks, which must all be held by
+     * threads of this process, to the given expiry time. Returns the
+     * names of the locks whose leases could not be renewed.
+     */
+    public Set<String> renewLocks(Collection<DistributedLock> locks, long expiresAt) {
+
+        long start = System.nanoTime();
+        try {
+            return this.lockStore.renewLocks(locks, expiresAt);
+        } finally {
+            this.metrics.storeCall(null, LockOperation.RENEW, System.nanoTime() - start);
+        }
     }
 
     public DistributedLock validate(String name)
         throws LockException {
 
-        DistributedLock distributedLock1 = new DistributedLock();
+        DistributedLock lock = this.newLock(name);
 
+        long start = System.nanoTime();
         try {
-            InetAddress ip = InetAddress.getLocalHost();
+            return this.lockStore.validate(lock);
+        } finally {
+            this.metrics.storeCall(name, LockOperation.VALIDATE, System.nanoTime() - start);
+        }
+    }
+
+    public void unlock(String name)
+        throws LockException {
+
+        this.release(this.newLock(name));
+    }
+
+    /**
+     * Releases the lease with the given fencing token held by the current
+     * thread. It is used once the local record of the lease is cleared, so
+     * that the store can still match the owner by its token.
+     */
+    public void unlock(String name, long fencingToken)
+        throws LockException {
+
+        DistributedLock lock = this.newLock(name);
+        lock.setFencingToken(fencingToken);
+        this.release(lock);
+    }
+
+    private void release(DistributedLock lock)
+        throws LockException {
+
+        if (!this.releaseLock(lock)) {
+            // Reports the holder if the lock
+            // is held by another process or thread
+            this.lockStore.validate(lock);
+        }
+    }
+
+    /**
+     * Releases the given lock if it is still held by the owner recorded on
+     * it, which need not be the current thread. Returns false if the lock
+     * is no longer held by that owner.
+     */
+    public boolean releaseLock(DistributedLock lock) {
+
+        long start = System.nanoTime();
+        try {
+            return this.lockStore.releaseLock(lock);
+        } finally {
+            this.metrics.storeCall(lock.getName(), LockOperation.RELEASE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Acquires all the named locks for the current thread or none of them.
+     * Each attempt takes all the locks that are free at once and gives them
+     * up again if any of the locks is held by another process or thread. The
+     * names are sorted so that the locks are always requested in the same
+     * order. The locks are not re-entrant, and a LockException is thrown if
+     * the current thread already holds any of them.
+     */
+    public void lockAll(Collection<String> names, int timeout, int expireAfter)
+        throws LockException {
+
+        long timeoutAt = System.currentTimeMillis() + (timeout * 1000L);
+        long waitStart = System.nanoTime();
 
-            distributedLock1.setHostname(ip.getHostName());
-            distributedLock1.setAddress(ip.getHostAddress());
+        List<String> sortedNames = new ArrayList<>(new TreeSet<>(names));
+        DistributedLock lock = this.newLock(null);
+
+        if (!this.knownLocks.containsAll(sortedNames)) {
+            this.lockStore.createLocks(sortedNames);
+            sortedNames.forEach(this::knownLock);
+        }
+
+        try {
+            int attempts = 0;
+            while (true) {
+
+                long start = System.nanoTime();
+                List<DistributedLock> held = this.lockStore.tryAcquireLocks(sortedNames, lock, expireAfter);
+                this.metrics.storeCall(null, LockOperation.ACQUIRE_ALL, System.nanoTime() - start);
+
+                if (held == null) {
+                    this.metrics.acquired(null, System.nanoTime() - waitStart, attempts + 1);
+                    return;
+                }
+                for (DistributedLock distributedLock : held) {
+                    this.metrics.contended(distributedLock.getName(), distributedLock);
+                    if (distributedLock.isMaintenanceMode()) {
+                        throw new MaintenanceEnabledException("Lock '%s' is in maintenance mode so it cannot be locked.",
+                            distributedLock.getName());
+                    }
+                }
+                if (held.isEmpty()) {
+                    // Locks held by the current thread are not reported as
+                    // held, and the attempt would be refused until timeout
+                    for (DistributedLock distributedLock : this.lockStore.getLocks(sortedNames)) {
+                        if (distributedLock.isLocked() && distributedLock.equals(lock)) {
+                            throw new LockException("Lock '%s' is already held by the current thread.",
+                                distributedLock.getName());
+                        }
+                    }
+                }
+                if (System.currentTimeMillis() >= timeoutAt) {
+                    this.metrics.timedOut(null, System.nanoTime() - waitStart, attempts + 1);
+                    throw new LockTimedoutException("Timed out waiting for sharedlocks %s", sortedNames);
+                }
+
+                if (held.isEmpty()) {
+                    // Some of the locks were deleted while idle
+                    // since they became known to this process
+                    this.lockStore.createLocks(sortedNames);
+                }
+
+                DistributedLock holder = held.isEmpty() ? null : held.get(0);
+                Thread.sleep(this.waitStrategy.nextWait(++attempts, holder));
+            }
+
+        } catch (InterruptedException e) {
+            throw new LockException(e, "Lock wait was interrupted.");
+        }
+    }
+
+    /**
+     * Releases all the named locks held by the current thread at once. Locks
+     * that are held by other processes or threads are left as they are and
+     * reported by an InvalidLockException once the locks held by the current
+     * thread have been released.
+     */
+    public void unlockAll(Collection<String> names)
+        throws LockException {
+
+        List<String> sortedNames = new ArrayList<>(new TreeSet<>(names));
+        DistributedLock lock = this.newLock(null);
+
+        long start = System.nanoTime();
+        int updated = this.lockStore.releaseLocks(sortedNames, lock);
+        this.metrics.storeCall(null, LockOperation.RELEASE_ALL, System.nanoTime() - start);
+        if (updated < sortedNames.size()) {
+
+            List<DistributedLock> held = this.lockStore.getLocks(sortedNames).stream()
+                .filter(DistributedLock::isLocked)
+                .collect(Collectors.toList());
+
+            if (!held.isEmpty()) {
+                throw new InvalidLockException("Expected locked state: %s, Actual state: %s", lock, held);
+            }
+        }
+    }
+
+    /**
+     * Returns a lock with the given name owned by the current thread. It
+     * carries the fencing token of the lease if the current thread holds
+     * the lock, so that the store can match the owner by its token.
+     */
+    DistributedLock newLock(String name)
+        throws LockException {
+
+        DistributedLock lock = new DistributedLock();
+        lock.setName(name);
+
+        try {
+            ProcessIdentity identity = processIdentity();
+
+            lock.setHostname(identity.hostname);
+            lock.setAddress(identity.address);
 
             Thread thread = Thread.currentThread();
-            distributedLock1.setThreadId(thread.getId());
-            distributedLock1.setThreadName(thread.getName());
+            lock.setThreadId(thread.getId());
+            lock.setThreadName(thread.getName());
 
             ThreadGroup threadGroup = thread.getThreadGroup();
-            distributedLock1.setThreadGroupName(threadGroup.getName());
+            lock.setThreadGroupName(threadGroup.getName());
 
         } catch (Exception e) {
             throw new LockException(e, "Error retrieving metadata for sharedlock '%s': %s", name, e.getMessage());
         }
 
-        DistributedLock distributedLock2 = distributedLockRepository.findByName(name);
-        if (distributedLock2 == null) {
-            throw new LockException("Lock '%s' does not exist.", name);
+        if (name != null) {
+            LocalLockQueue queue = this.localLockQueues.get(name);
+            if (queue != null) {
+                lock.setFencingToken(queue.heldFencingToken());
+            }
         }
+        return lock;
+    }
+
+    private static ProcessIdentity processIdentity()
+        throws UnknownHostException {
 
-        if (!distributedLock2.equals(distributedLock1) && distributedLock2.isLocked()) {
-            throw new InvalidLockException("Expected locked state: %s, Actual state: %s", distributedLock1, distributedLock2);
+        ProcessIdentity identity = processIdentity;
+        if (identity == null) {
+            InetAddress ip = InetAddress.getLocalHost();
+            identity = new ProcessIdentity(ownerHostname(ip.getHostName(), processId()), ip.getHostAddress());
+            processIdentity = identity;
         }
+        return identity;
+    }
+
+    /**
+     * Returns the host name qualified with the process id, cut down
+     * so that it fits the hostname column of the lock tables.
+     */
+    static String ownerHostname(String hostname, String processId) {
 
-        return distributedLock2;
+        String suffix = "#" + processId;
+        int length = Math.min(hostname.length(), MAX_HOSTNAME_LENGTH - suffix.length());
+        return hostname.substring(0, Math.max(length, 0)) + suffix;
     }
 
-    public void unlock(String name)
-        throws LockException {
+    /**
+     * Returns the pid of this JVM with its start time, so that a process
+     * that is restarted with the same pid is still another owner. A random
+     * id is used if the runtime does not report its pid.
+     */
+    private static String processId() {
+
+        RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+        String name = runtime.getName();
+        int at = name.indexOf('@');
+        String pid = at > 0 ? name.substring(0, at) : null;
 
-        DistributedLock distributedLock = this.validate(name);
-        distributedLock.clear();
-        this.distributedLockRepository.save(distributedLock);
+        if (pid == null || !pid.chars().allMatch(Character::isDigit)) {
+            pid = Long.toString(new Random().nextLong() & Long.MAX_VALUE, 36);
+        }
+        return pid + "-" + Long.toString(runtime.getStartTime(), 36);
     }
 
     public void enterMaintenanceMode(String name)
         throws LockException {
 
-        DistributedLock distributedLock = this.validate(name);
-        distributedLock.enableMaintenance();
-        this.distributedLockRepository.save(distributedLock);
+        this.lockStore.enterMaintenanceMode(this.newLock(name));
     }
 
     public void exitMaintenanceMode(String name)
         throws LockException {
 
-        DistributedLock distributedLock = distributedLockRepository.findByName(name);
-        if (distributedLock == null) {
-            throw new LockException("Lock '%s' does not exist.", name);
-        }
-        if (!distributedLock.isLocked() && !distributedLock.isMaintenanceMode()) {
-            throw new LockException("Lock '%s' is not in maintenance mode", name);
+        this.lockStore.exitMaintenanceMode(name);
+    }
+
+    /**
+     * The host name and address that identify this process as a lock owner.
+     * The host name carries the process id, so that the threads of two
+     * processes on the same host are different owners.
+     */
+    private static class ProcessIdentity {
+
+        private final String hostname;
+        private final String address;
+
+        private ProcessIdentity(String hostname, String address) {
+            this.hostname = hostname;
+            this.address = address;
         }
-        distributedLock.clear();
-        this.distributedLockRepository.save(distributedLock);
     }
 }
@@ -0,0 +1,163 @@
+package org.appbricks.commons.sharedlock.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockTimedoutException;
+import org.appbricks.commons.sharedlock.exception.LockUpdateException;
+import org.appbricks.commons.sharedlock.exception.MaintenanceEnabledException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.wait.FixedIntervalWaitStrategy;
+import org.appbricks.commons.sharedlock.wait.LockWaitStrategy;
+
+/**
+ * A distributed lock that can be held by many readers at once or by a
+ * single writer. The write lock is the exclusive DistributedLockInstance
+ * lock of the same name. Each reader holds a shared lease of its own on
+ * the lock, and readers are refused while a writer is waiting for them to
+ * release it, so that writers are not starved by a steady stream of readers.
+ */
+public class DistributedReadWriteLock {
+
+    private static final Log log = LogFactory.getLog(DistributedReadWriteLock.class);
+
+    private String name;
+    private DistributedLockService service;
+
+    private DistributedLockInstance writeLock;
+    private ReadLock readLock;
+
+    public DistributedReadWriteLock(String name, DistributedLockService service, long lockCheckInterval, int lockRetries) {
+        this.name = name;
+        this.service = service;
+
+        this.writeLock = new DistributedLockInstance(name, service, lockCheckInterval, lockRetries);
+        this.readLock = new ReadLock(lockCheckInterval, lockRetries);
+    }
+
+    public DistributedLock getLock() {
+        return this.service.getLock(this.name);
+    }
+
+    public ReadLock readLock() {
+        return this.readLock;
+    }
+
+    public DistributedLockInstance writeLock() {
+        return this.writeLock;
+    }
+
+    /**
+     * The shared side of the lock. Each thread holds its own shared lease
+     * which expires and is released independently of the leases of other
+     * threads, with the same semantics as an exclusive lease. A thread may
+     * acquire the shared lock again while it holds it.
+     */
+    public class ReadLock {
+
+        private int lockRetries;
+        private LockWaitStrategy waitStrategy;
+
+        private final ThreadLocal<ReadLease> leases = new ThreadLocal<>();
+
+        private ReadLock(long lockCheckInterval, int lockRetries) {
+            this.lockRetries = lockRetries;
+            this.waitStrategy = new FixedIntervalWaitStrategy(lockCheckInterval);
+        }
+
+        public void setWaitStrategy(LockWaitStrategy waitStrategy) {
+            this.waitStrategy = waitStrategy;
+        }
+
+        public void lock(int timeout, int expireAfter)
+            throws LockException {
+
+            long timeoutAt = System.currentTimeMillis() + (timeout * 1000);
+
+            ReadLease lease = this.leases.get();
+            if (lease != null && System.currentTimeMillis() < lease.expiresAt) {
+                lease.holdCount++;
+                return;
+            }
+
+            DistributedLock lock = service.newLock(name);
+
+            int retryCount = this.lockRetries;
+            int attempts = 0;
+
+            try {
+                while (true) {
+
+                    long now = System.currentTimeMillis();
+                    try {
+                        DistributedLock holder = service.tryAcquireReadLock(lock, expireAfter);
+                        if (holder == null) {
+                            this.waitStrategy.acquired(attempts);
+                            this.leases.set(new ReadLease(now + (expireAfter * 1000L)));
+                            return;
+                        }
+                        if (now >= timeoutAt) {
+                            throw new LockTimedoutException("Timed out waiting for shared sharedlock %s", name);
+                        }
+                        Thread.sleep(this.waitStrategy.nextWait(++attempts, holder));
+
+                    } catch (MaintenanceEnabledException | LockTimedoutException | InterruptedException e) {
+                        throw e;
+
+                    } catch (Throwable t) {
+
+                        if (retryCount > 0) {
+                            log.info(String.format("Retrying due to failure to acquire shared sharedlock: %s", name));
+                            retryCount--;
+                        } else {
+                            throw new LockUpdateException(t, "Failed to acquire shared sharedlock: %s", name);
+                        }
+                    }
+                }
+
+            } catch (InterruptedException e) {
+                throw new LockException(e, "Lock wait was interrupted.");
+            }
+        }
+
+        /**
+         * Validates that the current thread's shared lease has not expired.
+         */
+        public void validate()
+            throws LockException {
+
+            ReadLease lease = this.leases.get();
+            if (lease == null || System.currentTimeMillis() >= lease.expiresAt) {
+                throw new InvalidLockException("Shared lease on sharedlock '%s' is not held or has expired", name);
+            }
+        }
+
+        public void unlock()
+            throws LockException {
+
+            ReadLease lease = this.leases.get();
+            if (lease == null) {
+                throw new InvalidLockException("Shared lease on sharedlock '%s' is not held", name);
+            }
+            if (--lease.holdCount > 0) {
+                return;
+            }
+
+            // The lease of the thread is removed even if it has expired, as
+            // the store only ever removes the lease of the given holder
+            this.leases.remove();
+            service.releaseReadLock(service.newLock(name));
+        }
+    }
+
+    private static class ReadLease {
+
+        private final long expiresAt;
+        private int holdCount = 1;
+
+        private ReadLease(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.appbricks.commons.sharedlock.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockTimedoutException;
+import org.appbricks.commons.sharedlock.exception.LockUpdateException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.wait.FixedIntervalWaitStrategy;
+import org.appbricks.commons.sharedlock.wait.LockWaitStrategy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A counting semaphore shared across multiple processes which allows
+ * up to a fixed number of holders of a remote resource at a time. Each
+ * permit is held with its own lease which expires with the same
+ * semantics as the lease of a DistributedLockInstance.
+ */
+public class DistributedSemaphore {
+
+    private static final Log log = LogFactory.getLog(DistributedSemaphore.class);
+
+    private String name;
+    private int permits;
+    private DistributedLockService service;
+
+    private int lockRetries;
+    private LockWaitStrategy waitStrategy;
+
+    private final ThreadLocal<Deque<Permit>> held = ThreadLocal.withInitial(ArrayDeque::new);
+
+    public DistributedSemaphore(String name, int permits, DistributedLockService service, long lockCheckInterval, int lockRetries) {
+        this.name = name;
+        this.permits = permits;
+        this.service = service;
+        this.lockRetries = lockRetries;
+        this.waitStrategy = new FixedIntervalWaitStrategy(lockCheckInterval);
+
+        // Ensure the permits are created in database
+        service.createPermits(name, permits);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getPermits() {
+        return permits;
+    }
+
+    public void setWaitStrategy(LockWaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
+    public int availablePermits() {
+        return this.service.availablePermits(this.name, this.permits);
+    }
+
+    /**
+     * Returns the number of permits held by the current thread
+     * whose leases have not expired.
+     */
+    public int heldPermits() {
+
+        long now = System.currentTimeMillis();
+        return (int) this.held.get().stream().filter(permit -> now < permit.expiresAt).count();
+    }
+
+    public void acquire(int timeout, int expireAfter)
+        throws LockException {
+
+        this.acquire(1, timeout, expireAfter);
+    }
+
+    /**
+     * Acquires the given number of permits, waiting until they
+     * are all available together or the timeout expires.
+     */
+    public void acquire(int count, int timeout, int expireAfter)
+        throws LockException {
+
+        if (count > this.permits) {
+            throw new LockException("Semaphore '%s' has only %d permits.", this.name, this.permits);
+        }
+
+        long timeoutAt = System.currentTimeMillis() + (timeout * 1000);
+
+        int retryCount = this.lockRetries;
+        int attempts = 0;
+
+        try {
+            while (true) {
+
+                long now = System.currentTimeMillis();
+                try {
+                    if (this.tryAcquire(count, expireAfter)) {
+                        this.waitStrategy.acquired(attempts);
+                        return;
+                    }
+                    if (now >= timeoutAt) {
+                        throw new LockTimedoutException("Timed out waiting for %d permits of semaphore %s", count, this.name);
+                    }
+                    Thread.sleep(this.waitStrategy.nextWait(++attempts, null));
+
+                } catch (LockTimedoutException | InterruptedException e) {
+                    throw e;
+
+                } catch (LockUpdateException e) {
+
+                    if (retryCount > 0) {
+                        log.info(String.format("Retrying due to failure to acquire semaphore: %s", this.name));
+                        retryCount--;
+                    } else {
+                        throw e;
+                    }
+                }
+            }
+
+        } catch (InterruptedException e) {
+            throw new LockException(e, "Semaphore wait was interrupted.");
+        }
+    }
+
+    /**
+     * Attempts once to acquire the given number of permits. Either
+     * all of the permits are acquired or none of them are.
+     */
+    public boolean tryAcquire(int count, int expireAfter)
+        throws LockException {
+
+        DistributedLock lock = this.service.newLock(this.name);
+
+        long now = System.currentTimeMillis();
+        List<Integer> slots;
+        try {
+            slots = this.service.tryAcquirePermits(lock, this.permits, count, expireAfter);
+        } catch (Throwable t) {
+            throw new LockUpdateException(t, "Failed to acquire %d permits of semaphore: %s", count, this.name);
+        }
+
+        Deque<Permit> held = this.held.get();
+        for (Integer slot : slots) {
+            held.push(new Permit(slot, now + (expireAfter * 1000L)));
+        }
+        return !slots.isEmpty();
+    }
+
+    public void release()
+        throws LockException {
+
+        this.release(1);
+    }
+
+    /**
+     * Releases the given number of the permits held by the current
+     * thread, starting with the ones acquired most recently.
+     */
+    public void release(int count)
+        throws LockException {
+
+        Deque<Permit> held = this.held.get();
+        if (count > held.size()) {
+            throw new InvalidLockException("Only %d permits of semaphore '%s' are held", held.size(), this.name);
+        }
+
+        List<Integer> slots = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            slots.add(held.pop().slot);
+        }
+
+        DistributedLock lock = this.service.newLock(this.name);
+        int released = this.service.releasePermits(lock, slots);
+        if (released < count) {
+            throw new InvalidLockException("%d of the released permits of semaphore '%s' had expired",
+                count - released, this.name);
+        }
+    }
+
+    private static class Permit {
+
+        private final int slot;
+        private final long expiresAt;
+
+        private Permit(int slot, long expiresAt) {
+            this.slot = slot;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
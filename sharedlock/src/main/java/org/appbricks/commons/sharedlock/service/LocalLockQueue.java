@@ -0,0 +1,508 @@
+package org.appbricks.commons.sharedlock.service;
+
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of the threads within this process that are waiting on
+ * a distributed lock. Only one of the waiting threads, the poller,
+ * checks the database while the others park on a local condition.
+ * When a thread in this process releases the lock it is handed
+ * directly to the next waiting thread. The queue also records the
+ * thread in this process holding the lock, how many times it has
+ * acquired it and when its lease expires.
+ *
+ * The service drops a queue once no thread in this process holds or waits
+ * for the lock. A dropped queue is retired so that a thread that looked it
+ * up before it was dropped looks up the queue again instead of waiting in
+ * a queue the holder of the lock does not see.
+ */
+class LocalLockQueue {
+
+    enum State {
+        GRANTED,
+        POLL,
+        TIMEDOUT
+    }
+
+    private String name;
+
+    private final ReentrantLock mutex = new ReentrantLock();
+    private final Condition changed = this.mutex.newCondition();
+
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+
+    private Waiter poller;
+
+    // Set when the lock store reports the lock released while
+    // the poller is checking it so the release is not missed
+    private boolean releasedDuringPoll;
+
+    private Thread holder;
+    private long holderExpiresAt;
+    private long holderFencingToken;
+    private long holderGrantedAt;
+    private int holdCount;
+
+    // Incremented each time the lock is granted to a thread so
+    // a lease can be distinguished from a later lease held by
+    // the same thread
+    private long grants;
+
+    // Set once the queue is dropped by the service
+    private boolean retired;
+
+    LocalLockQueue(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Adds a thread waiting for the lock to the end of the queue.
+     * Returns null if the queue was retired.
+     */
+    Waiter enter(DistributedLock lock, int expireAfter) {
+
+        Waiter waiter = new Waiter(lock, expireAfter);
+
+        this.mutex.lock();
+        try {
+            if (this.retired) {
+                return null;
+            }
+            this.waiters.addLast(waiter);
+        } finally {
+            this.mutex.unlock();
+        }
+        return waiter;
+    }
+
+    /**
+     * Waits until the lock has been handed to the given waiter, the waiter
+     * should poll the database or the wait has timed out. Waiters do not
+     * poll while the lock is held by another thread in this process and its
+     * lease has not expired.
+     */
+    State await(Waiter waiter, long timeoutAt)
+        throws InterruptedException {
+
+        this.mutex.lock();
+        try {
+            while (true) {
+
+                if (waiter.granted) {
+                    return State.GRANTED;
+                }
+                if (waiter.handingOver) {
+                    // The lease may already be transferred to the waiter
+                    // so it waits for the hand over even past its timeout
+                    this.changed.awaitUninterruptibly();
+                    continue;
+                }
+
+                long now = System.currentTimeMillis();
+                long wakeAt = timeoutAt;
+
+                if (this.holder != null && now < this.holderExpiresAt) {
+                    wakeAt = Math.min(wakeAt, this.holderExpiresAt);
+
+                } else {
+                    if (this.poller == null) {
+                        this.poller = waiter;
+                    }
+                    if (this.poller == waiter) {
+                        if (now >= waiter.nextPollAt) {
+                            this.releasedDuringPoll = false;
+                            return State.POLL;
+                        }
+                        wakeAt = Math.min(wakeAt, waiter.nextPollAt);
+                    }
+                }
+
+                if (now >= timeoutAt) {
+                    // Leaves the queue right away so that
+                    // the lease is not handed to the waiter
+                    this.waiters.remove(waiter);
+                    if (this.poller == waiter) {
+                        this.poller = null;
+                    }
+                    return State.TIMEDOUT;
+                }
+                this.changed.await(wakeAt - now, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Returns when the lease held by the current thread expires
+     * or 0 if the current thread does not hold the lock.
+     */
+    long heldUntil() {
+
+        this.mutex.lock();
+        try {
+            return this.holder == Thread.currentThread() ? this.holderExpiresAt : 0L;
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Returns the fencing token of the lease held by the current thread
+     * or 0 if the current thread does not hold the lock.
+     */
+    long heldFencingToken() {
+
+        this.mutex.lock();
+        try {
+            return this.holder == Thread.currentThread() ? this.holderFencingToken : 0L;
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Returns the System.nanoTime() at which the current thread was
+     * granted the lock or 0 if the current thread does not hold it.
+     */
+    long heldSince() {
+
+        this.mutex.lock();
+        try {
+            return this.holder == Thread.currentThread() ? this.holderGrantedAt : 0L;
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Returns the grant by which the current thread holds
+     * the lock or -1 if the current thread does not hold it.
+     */
+    long heldGrant() {
+
+        this.mutex.lock();
+        try {
+            return this.holder == Thread.currentThread() ? this.grants : -1L;
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Returns when the lease held by the given thread by the given
+     * grant expires or 0 if the lease is no longer held.
+     */
+    long heldUntil(Thread thread, long grant) {
+
+        this.mutex.lock();
+        try {
+            return this.holder == thread && this.grants == grant ? this.holderExpiresAt : 0L;
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Records that the lease held by the given thread by the
+     * given grant was renewed until the given expiry time.
+     */
+    void renewed(Thread thread, long grant, long expiresAt) {
+
+        this.mutex.lock();
+        try {
+            if (this.holder == thread && this.grants == grant) {
+                this.holderExpiresAt = Math.max(this.holderExpiresAt, expiresAt);
+            }
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Acquires the lock again for the current thread if it is already
+     * holding it. The lease is extended to the given expiry time if it
+     * is later than the current expiry time.
+     */
+    boolean reenter(long expiresAt) {
+
+        this.mutex.lock();
+        try {
+            if (this.holder == Thread.currentThread() && System.currentTimeMillis() < this.holderExpiresAt) {
+                this.holderExpiresAt = Math.max(this.holderExpiresAt, expiresAt);
+                this.holdCount++;
+                return true;
+            }
+            return false;
+
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Records the result of a database poll by the given waiter.
+     */
+    void polled(Waiter waiter, boolean acquired, long expiresAt, long nextPollAt) {
+
+        this.mutex.lock();
+        try {
+            if (acquired) {
+                this.grant(waiter, expiresAt);
+            } else {
+                waiter.nextPollAt = this.releasedDuringPoll ? 0L : nextPollAt;
+            }
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Removes the given waiter from the queue. If it was polling the
+     * database then another waiter will take over.
+     */
+    void leave(Waiter waiter) {
+
+        this.mutex.lock();
+        try {
+            this.waiters.remove(waiter);
+            if (this.poller == waiter) {
+                this.poller = null;
+            }
+            this.changed.signalAll();
+
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Releases the lock held by the current thread. If the current thread has
+     * acquired the lock more than once only its hold count is decremented. If
+     * the current thread is the local holder and other threads in this process
+     * are waiting, the lease is handed to the first of them. If there are no
+     * waiters or the lease could not be transferred the lock is unlocked.
+     * Returns false if only the hold count was decremented.
+     *
+     * The unlock is given the fencing token of the released lease, as the
+     * local holder is already cleared by the time it is called.
+     *
+     * The transfer and the unlock call the lock store so they are made
+     * without holding the mutex. The thread the lease is handed to stays
+     * in the queue until the transfer has been made, and other threads in
+     * this process keep waiting as the lock is still held locally.
+     */
+    boolean release(Transfer transfer, Unlock unlock)
+        throws LockException {
+
+        Waiter next = null;
+        long fencingToken = 0L;
+
+        this.mutex.lock();
+        try {
+            Thread thread = Thread.currentThread();
+            if (this.holder == thread) {
+                fencingToken = this.holderFencingToken;
+
+                if (this.holdCount > 1) {
+                    this.holdCount--;
+                    return false;
+                }
+                if (System.currentTimeMillis() < this.holderExpiresAt) {
+                    next = this.waiters.peekFirst();
+                }
+                if (next != null) {
+                    next.handingOver = true;
+                } else {
+                    this.holder = null;
+                }
+            }
+        } finally {
+            this.changed.signalAll();
+            this.mutex.unlock();
+        }
+
+        if (next != null) {
+
+            long now = System.currentTimeMillis();
+            boolean transferred = false;
+            try {
+                transferred = transfer.to(next.lock, next.expireAfter);
+
+            } finally {
+                this.mutex.lock();
+                try {
+                    next.handingOver = false;
+                    if (transferred) {
+                        this.grant(next, leaseEnd(next.lock, now + (next.expireAfter * 1000L)));
+                    } else {
+                        this.holder = null;
+                    }
+                } finally {
+                    this.changed.signalAll();
+                    this.mutex.unlock();
+                }
+            }
+            if (transferred) {
+                return true;
+            }
+        }
+
+        unlock.run(fencingToken);
+        return true;
+    }
+
+    /**
+     * Wakes the poller so that it checks the lock right away after
+     * the lock store has seen the lock released.
+     */
+    void released() {
+
+        this.mutex.lock();
+        try {
+            if (this.poller != null) {
+                this.poller.nextPollAt = 0L;
+            }
+            this.releasedDuringPoll = true;
+            this.changed.signalAll();
+
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Clears the local holder after the lock has been released
+     * by means other than a release by the holding thread.
+     */
+    void clear() {
+
+        this.mutex.lock();
+        try {
+            this.holder = null;
+            this.changed.signalAll();
+
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Clears the local holder if it is the current thread
+     * and its lease was found to no longer be valid.
+     */
+    void lost() {
+
+        this.mutex.lock();
+        try {
+            if (this.holder == Thread.currentThread()) {
+                this.holder = null;
+                this.changed.signalAll();
+            }
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Clears the local holder if the lease held by the given thread by
+     * the given grant was found to no longer be valid.
+     */
+    void lost(Thread thread, long grant) {
+
+        this.mutex.lock();
+        try {
+            if (this.holder == thread && this.grants == grant) {
+                this.holder = null;
+                this.changed.signalAll();
+            }
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Retires the queue if no thread holds or waits for the lock.
+     * Returns false if the queue is still in use.
+     */
+    boolean retire() {
+
+        this.mutex.lock();
+        try {
+            this.retired = this.holder == null && this.waiters.isEmpty();
+            return this.retired;
+        } finally {
+            this.mutex.unlock();
+        }
+    }
+
+    /**
+     * Returns the end of a lease requested until the given time. Stores
+     * that can only vouch for a shorter lease, such as the quorum store,
+     * set the expiration time of the lock to its end.
+     */
+    static long leaseEnd(DistributedLock lock, long expiresAt) {
+
+        long storeExpiresAt = lock.getExpirationTime().getTime();
+        return storeExpiresAt > 0L ? Math.min(expiresAt, storeExpiresAt) : expiresAt;
+    }
+
+    private void grant(Waiter waiter, long expiresAt) {
+
+        this.waiters.remove(waiter);
+        if (this.poller == waiter) {
+            this.poller = null;
+        }
+
+        waiter.granted = true;
+        this.holder = waiter.thread;
+        this.holderExpiresAt = expiresAt;
+        this.holderFencingToken = waiter.lock.getFencingToken();
+        this.holderGrantedAt = System.nanoTime();
+        this.holdCount = 1;
+        this.grants++;
+
+        this.changed.signalAll();
+    }
+
+    /**
+     * A thread waiting for the lock.
+     */
+    static class Waiter {
+
+        private final DistributedLock lock;
+        private final int expireAfter;
+        private final Thread thread;
+
+        private boolean granted;
+        private boolean handingOver;
+        private long nextPollAt;
+
+        private Waiter(DistributedLock lock, int expireAfter) {
+            this.lock = lock;
+            this.expireAfter = expireAfter;
+            this.thread = Thread.currentThread();
+        }
+    }
+
+    @FunctionalInterface
+    interface Transfer {
+        boolean to(DistributedLock lock, int expireAfter) throws LockException;
+    }
+
+    @FunctionalInterface
+    interface Unlock {
+        void run(long fencingToken) throws LockException;
+    }
+}
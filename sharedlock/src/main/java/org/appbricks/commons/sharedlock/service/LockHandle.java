@@ -0,0 +1,76 @@
+package org.appbricks.commons.sharedlock.service;
+
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A lock acquired through an AsyncLockScheduler. The lock is owned by
+ * the handle rather than by a thread so it may be released from any
+ * thread, but only once.
+ */
+public class LockHandle {
+
+    private final AsyncLockScheduler scheduler;
+    private final DistributedLock lock;
+    private final long expiresAt;
+
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    LockHandle(AsyncLockScheduler scheduler, DistributedLock lock, long expiresAt) {
+        this.scheduler = scheduler;
+        this.lock = lock;
+        this.expiresAt = expiresAt;
+    }
+
+    public String getName() {
+        return this.lock.getName();
+    }
+
+    /**
+     * Returns the fencing token of the lease held by this handle.
+     */
+    public long getFencingToken() {
+        return this.lock.getFencingToken();
+    }
+
+    public Date getExpirationTime() {
+        return new Date(this.expiresAt);
+    }
+
+    /**
+     * Returns whether the lock has not been released and its lease has
+     * not expired according to the local clock.
+     */
+    public boolean isHeld() {
+        return !this.released.get() && System.currentTimeMillis() < this.expiresAt;
+    }
+
+    /**
+     * Releases the lock without blocking the calling thread. The returned
+     * future completes once the lock has been released or exceptionally if
+     * it was no longer held by this handle.
+     */
+    public CompletableFuture<Void> unlockAsync() {
+
+        if (!this.released.compareAndSet(false, true)) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(
+                new InvalidLockException("Handle on sharedlock '%s' has already been released", this.getName()));
+            return future;
+        }
+        return this.scheduler.unlock(this);
+    }
+
+    DistributedLock getLock() {
+        return this.lock;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LockHandle(lock=%s)", this.lock);
+    }
+}
@@ -0,0 +1,11 @@
+package org.appbricks.commons.sharedlock.service;
+
+/**
+ * Notified when the lease on a lock that is being
+ * renewed in the background could not be renewed.
+ */
+@FunctionalInterface
+public interface LockLeaseListener {
+
+    void leaseLost(String name);
+}
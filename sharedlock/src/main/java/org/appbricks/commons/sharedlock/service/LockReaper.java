@@ -0,0 +1,146 @@
+package org.appbricks.commons.sharedlock.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.store.LockStore;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes the locks that have not been used for a while so that the lock
+ * store does not keep a lock for every name that was ever locked. The
+ * locks are walked in name order a batch at a time, and the locks of each
+ * batch that are neither held nor shared and have not been updated for
+ * the idle time are deleted by a single conditional delete. As the delete
+ * checks the lock again a lock that is acquired in the meantime is kept,
+ * and a lock that is acquired after it was deleted is created again by
+ * the DistributedLockService. A lock that is created again starts its
+ * fencing tokens from its creation time, above the tokens of the deleted
+ * lock. The deletes are rate limited so that a large backlog of idle
+ * locks does not load the database.
+ */
+public class LockReaper
+    implements Closeable {
+
+    private static final Log log = LogFactory.getLog(LockReaper.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_MAX_DELETES_PER_SECOND = 1000;
+
+    private LockStore lockStore;
+
+    private long idleTime;
+
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile int maxDeletesPerSecond = DEFAULT_MAX_DELETES_PER_SECOND;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param service  the lock service
+     * @param idleTime the time in milliseconds after its last update
+     *                 from which a lock that is not held is deleted
+     */
+    public LockReaper(DistributedLockService service, long idleTime) {
+        this.lockStore = service.getLockStore();
+        this.idleTime = idleTime;
+    }
+
+    public long getIdleTime() {
+        return idleTime;
+    }
+
+    /**
+     * Sets how many locks are checked and deleted at a time.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the largest number of locks deleted per second.
+     */
+    public void setMaxDeletesPerSecond(int maxDeletesPerSecond) {
+        this.maxDeletesPerSecond = maxDeletesPerSecond;
+    }
+
+    /**
+     * Deletes the idle locks every interval milliseconds.
+     */
+    public synchronized void start(long interval) {
+
+        this.shutdown();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sharedlock-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                this.reap();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                log.warn(String.format("Failed to delete idle sharedlocks: %s", t.getMessage()), t);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+            this.scheduler = null;
+        }
+    }
+
+    /**
+     * Stops deleting idle locks.
+     */
+    @Override
+    public void close() {
+        this.shutdown();
+    }
+
+    /**
+     * Walks all the locks once and deletes those that are idle.
+     * Returns the number of locks that were deleted.
+     */
+    public int reap()
+        throws InterruptedException {
+
+        long idleSince = System.currentTimeMillis() - this.idleTime;
+        int batchSize = this.batchSize;
+
+        int deleted = 0;
+        String after = null;
+        while (true) {
+
+            List<String> names = this.lockStore.getLockNames(after, batchSize);
+            if (names.isEmpty()) {
+                break;
+            }
+            int batchDeleted = this.lockStore.deleteIdleLocks(names, idleSince);
+            deleted += batchDeleted;
+
+            if (names.size() < batchSize) {
+                break;
+            }
+            after = names.get(names.size() - 1);
+
+            if (batchDeleted > 0) {
+                Thread.sleep(batchDeleted * 1000L / this.maxDeletesPerSecond);
+            }
+        }
+
+        if (deleted > 0) {
+            log.info(String.format("Deleted %d sharedlocks idle for more than %d ms.", deleted, this.idleTime));
+        }
+        return deleted;
+    }
+}
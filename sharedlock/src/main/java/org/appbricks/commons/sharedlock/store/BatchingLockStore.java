@@ -0,0 +1,435 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.model.DistributedLockTicket;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A lock store that combines the single lock operations of concurrent
+ * threads into batches that the store it wraps runs in one transaction.
+ * A batch is started when an operation arrives and takes the operations
+ * that arrive within the batch window or until the batch is full. Each
+ * caller waits for the batch to be committed and then receives the result
+ * of its own operation. If the batch cannot be committed all of its
+ * callers receive the error.
+ *
+ * The operations of a batch are run in the order of their lock names so
+ * that concurrent batches update the rows of the locks in the same order.
+ * Acquiring, extending, validating and releasing a lock are batched. The
+ * other operations are passed directly to the wrapped store.
+ */
+public class BatchingLockStore
+    implements LockStore, Closeable {
+
+    private static final Log log = LogFactory.getLog(BatchingLockStore.class);
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final long DEFAULT_BATCH_WINDOW = 1L;
+    public static final int DEFAULT_CONCURRENCY = 2;
+
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final LockStore lockStore;
+
+    private final BlockingQueue<Operation<?>> pending = new LinkedBlockingQueue<>();
+    private final List<Thread> batchers = new ArrayList<>();
+
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long batchWindow = DEFAULT_BATCH_WINDOW;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    public BatchingLockStore(LockStore lockStore) {
+        this(lockStore, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Wraps the given store with the given number of threads
+     * running batches, each of which holds one connection while
+     * it runs a batch.
+     */
+    public BatchingLockStore(LockStore lockStore, int concurrency) {
+
+        this.lockStore = lockStore;
+
+        int instance = instances.incrementAndGet();
+        for (int i = 0; i < concurrency; i++) {
+            Thread batcher = new Thread(this::run, "sharedlock-batch-" + instance + "-" + i);
+            batcher.setDaemon(true);
+            batcher.start();
+            this.batchers.add(batcher);
+        }
+    }
+
+    public LockStore getLockStore() {
+        return lockStore;
+    }
+
+    /**
+     * Sets the largest number of operations run in one batch.
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Sets how long in milliseconds a batch waits for more operations
+     * after its first operation arrived. Under load batches also fill
+     * with the operations that arrive while the previous batch runs.
+     */
+    public void setBatchWindow(long batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+
+    /**
+     * Returns the number of batches run so far.
+     */
+    public long getBatchCount() {
+        return this.batches.get();
+    }
+
+    /**
+     * Returns the number of operations run in batches so far.
+     */
+    public long getOperationCount() {
+        return this.operations.get();
+    }
+
+    @Override
+    public void setReleaseListener(Consumer<String> listener) {
+        this.lockStore.setReleaseListener(listener);
+    }
+
+    @Override
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        return this.submit(lock.getName(), () -> this.lockStore.tryAcquireLock(lock, expireAfter));
+    }
+
+    @Override
+    public boolean extendLock(DistributedLock lock, long expiresAt) {
+        return this.unchecked(lock.getName(), () -> this.lockStore.extendLock(lock, expiresAt));
+    }
+
+    @Override
+    public boolean raiseFencingToken(DistributedLock lock, long fencingToken) {
+        return this.unchecked(lock.getName(), () -> this.lockStore.raiseFencingToken(lock, fencingToken));
+    }
+
+    @Override
+    public DistributedLock validate(DistributedLock lock)
+        throws LockException {
+
+        return this.submit(lock.getName(), () -> this.lockStore.validate(lock));
+    }
+
+    @Override
+    public boolean releaseLock(DistributedLock lock) {
+        return this.unchecked(lock.getName(), () -> this.lockStore.releaseLock(lock));
+    }
+
+    @Override
+    public void runBatch(List<Runnable> operations) {
+        this.lockStore.runBatch(operations);
+    }
+
+    @Override
+    public DistributedLock getLock(String name) {
+        return this.lockStore.getLock(name);
+    }
+
+    @Override
+    public List<DistributedLock> getLocks(Collection<String> names) {
+        return this.lockStore.getLocks(names);
+    }
+
+    @Override
+    public void createLocks(Collection<String> names) {
+        this.lockStore.createLocks(names);
+    }
+
+    @Override
+    public boolean transferLock(DistributedLock from, DistributedLock to, int expireAfter) {
+        return this.lockStore.transferLock(from, to, expireAfter);
+    }
+
+    @Override
+    public Set<String> renewLocks(Collection<DistributedLock> locks, long expiresAt) {
+        return this.lockStore.renewLocks(locks, expiresAt);
+    }
+
+    @Override
+    public void enterMaintenanceMode(DistributedLock lock)
+        throws LockException {
+
+        this.lockStore.enterMaintenanceMode(lock);
+    }
+
+    @Override
+    public void exitMaintenanceMode(String name)
+        throws LockException {
+
+        this.lockStore.exitMaintenanceMode(name);
+    }
+
+    @Override
+    public List<DistributedLock> tryAcquireLocks(List<String> names, DistributedLock owner, int expireAfter) {
+        return this.lockStore.tryAcquireLocks(names, owner, expireAfter);
+    }
+
+    @Override
+    public int releaseLocks(List<String> names, DistributedLock owner) {
+        return this.lockStore.releaseLocks(names, owner);
+    }
+
+    @Override
+    public DistributedLock tryAcquireReadLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        return this.lockStore.tryAcquireReadLock(lock, expireAfter);
+    }
+
+    @Override
+    public void releaseReadLock(DistributedLock lock) {
+        this.lockStore.releaseReadLock(lock);
+    }
+
+    @Override
+    public List<String> getLockNames(String after, int limit) {
+        return this.lockStore.getLockNames(after, limit);
+    }
+
+    @Override
+    public int deleteIdleLocks(Collection<String> names, long idleSince) {
+        return this.lockStore.deleteIdleLocks(names, idleSince);
+    }
+
+    @Override
+    public void createPermits(String name, int permits) {
+        this.lockStore.createPermits(name, permits);
+    }
+
+    @Override
+    public List<Integer> tryAcquirePermits(DistributedLock lock, int permits, int count, int expireAfter) {
+        return this.lockStore.tryAcquirePermits(lock, permits, count, expireAfter);
+    }
+
+    @Override
+    public int releasePermits(DistributedLock lock, Collection<Integer> slots) {
+        return this.lockStore.releasePermits(lock, slots);
+    }
+
+    @Override
+    public int availablePermits(String name, int permits) {
+        return this.lockStore.availablePermits(name, permits);
+    }
+
+    @Override
+    public DistributedLockTicket enterFairQueue(DistributedLock lock, int ticketTimeToLive) {
+        return this.lockStore.enterFairQueue(lock, ticketTimeToLive);
+    }
+
+    @Override
+    public void leaveFairQueue(DistributedLockTicket ticket) {
+        this.lockStore.leaveFairQueue(ticket);
+    }
+
+    @Override
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter,
+        DistributedLockTicket ticket, int ticketTimeToLive)
+        throws LockException {
+
+        return this.lockStore.tryAcquireLock(lock, expireAfter, ticket, ticketTimeToLive);
+    }
+
+    /**
+     * Stops the batch threads once the pending operations have been run.
+     */
+    @Override
+    public void close() {
+
+        this.running = false;
+        for (Thread batcher : this.batchers) {
+            try {
+                batcher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private <T> T unchecked(String name, Call<T> call) {
+
+        try {
+            return this.submit(name, call);
+        } catch (LockException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Queues an operation for the next batch and waits for its result.
+     */
+    private <T> T submit(String name, Call<T> call)
+        throws LockException {
+
+        if (!this.running) {
+            throw new IllegalStateException("Batching lock store was closed.");
+        }
+
+        Operation<T> operation = new Operation<>(name, call);
+        this.pending.add(operation);
+
+        try {
+            return operation.result.get();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LockException(e, "Interrupted waiting for lock operation on '%s'.", name);
+
+        } catch (ExecutionException e) {
+
+            Throwable cause = e.getCause();
+            if (cause instanceof LockException) {
+                throw (LockException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void run() {
+
+        List<Operation<?>> batch = new ArrayList<>();
+        while (this.running || !this.pending.isEmpty()) {
+
+            try {
+                Operation<?> first = this.pending.poll(100L, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                long windowEndsAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.batchWindow);
+                while (batch.size() < this.maxBatchSize) {
+
+                    this.pending.drainTo(batch, this.maxBatchSize - batch.size());
+
+                    long remaining = windowEndsAt - System.nanoTime();
+                    if (batch.size() >= this.maxBatchSize || remaining <= 0) {
+                        break;
+                    }
+                    Operation<?> next = this.pending.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                this.execute(batch);
+
+            } catch (InterruptedException e) {
+                log.warn("Lock operation batch thread was interrupted.");
+                batch.forEach(operation -> operation.result.completeExceptionally(e));
+                return;
+
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void execute(List<Operation<?>> batch) {
+
+        batch.sort(Comparator.comparing(operation -> operation.name));
+
+        List<Runnable> runnables = new ArrayList<>(batch.size());
+        batch.forEach(operation -> runnables.add(operation::run));
+
+        try {
+            this.lockStore.runBatch(runnables);
+
+        } catch (Throwable t) {
+
+            log.warn(String.format("Batch of %d lock operations failed: %s", batch.size(), t.getMessage()), t);
+            batch.forEach(operation -> operation.result.completeExceptionally(t));
+            return;
+        }
+
+        this.batches.incrementAndGet();
+        this.operations.addAndGet(batch.size());
+
+        // Results are only handed to the callers once the batch
+        // has been committed
+        batch.forEach(Operation::complete);
+    }
+
+    /**
+     * A pending operation on a single lock.
+     */
+    private static class Operation<T> {
+
+        private final String name;
+        private final Call<T> call;
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        private T value;
+        private Throwable error;
+
+        private Operation(String name, Call<T> call) {
+            this.name = name;
+            this.call = call;
+        }
+
+        private void run() {
+
+            try {
+                this.value = this.call.call();
+            } catch (Throwable t) {
+                this.error = t;
+            }
+        }
+
+        private void complete() {
+
+            if (this.error != null) {
+                this.result.completeExceptionally(this.error);
+            } else {
+                this.result.complete(this.value);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Call<T> {
+        T call() throws LockException;
+    }
+}
@@ -0,0 +1,1020 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockNotFoundException;
+import org.appbricks.commons.sharedlock.exception.MaintenanceEnabledException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.jdbc.support.SQLErrorCodeSQLExceptionTranslator;
+import org.springframework.jdbc.support.SQLExceptionTranslator;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A JDBC lock store that keeps the locks in a compact layout instead of the
+ * DistributedLock table. A lock row is keyed by a 64-bit hash of its name,
+ * and the host and thread names of its holder are kept once per owner in
+ * the CompactLockOwner table, so a lock row carries the name and only fixed
+ * width columns: the owner id, thread id, maintenance flag, update and
+ * expiry times and the fencing token. This keeps the rows and the primary
+ * key index small, and acquiring or releasing a lock writes a few numbers.
+ *
+ * Names whose hashes collide are resolved by linear probing: a lock whose
+ * slot is taken by another name is stored in the next free slot. Every
+ * statement also matches the name, so a lock in the wrong slot is never
+ * changed. The few names found away from their slot are remembered so
+ * that the slot is only probed for once. Locks are never deleted, which
+ * keeps the probe sequences intact, so idle locks are not reaped.
+ *
+ * Exclusive locks, maintenance mode and multiple lock acquisition are
+ * supported. Shared locks, semaphores and fair mode require the
+ * JdbcLockStore or the JPA store.
+ *
+ * The locks of the DistributedLock table can be copied to the compact
+ * tables with migrate(). As the two layouts are not kept in sync, all the
+ * processes using the locks must switch over to this store together.
+ */
+public class CompactJdbcLockStore
+    implements LockStore {
+
+    private static final Log log = LogFactory.getLog(CompactJdbcLockStore.class);
+
+    private static final int MAX_BATCH_SIZE = 500;
+
+    public static final int DEFAULT_MAX_OWNERS = 10000;
+
+    private static final String COLUMNS =
+        "l.name, o.hostname, o.address, l.threadId, o.threadName, o.threadGroupName, " +
+        "l.maintenance, l.ownerId, l.updatedTime, l.expiresAt, l.fencingToken";
+
+    private static final String SELECT_LOCK =
+        "select " + COLUMNS + " from CompactLock l left join CompactLockOwner o on o.id = l.ownerId where l.id = ?";
+
+    private static final String SELECT_LOCKS =
+        "select l.id, " + COLUMNS + " from CompactLock l left join CompactLockOwner o on o.id = l.ownerId " +
+        "where l.id in ";
+
+    private static final String SELECT_NAME =
+        "select name from CompactLock where id = ?";
+
+    private static final String INSERT_LOCK =
+        "insert into CompactLock (id, name, ownerId, threadId, maintenance, updatedTime, expiresAt, fencingToken) " +
+        "values (?, ?, 0, -1, 'N', ?, 0, 0)";
+
+    private static final String SELECT_OWNER =
+        "select hostname, address, threadName, threadGroupName from CompactLockOwner where id = ?";
+
+    private static final String INSERT_OWNER =
+        "insert into CompactLockOwner (id, hostname, address, threadName, threadGroupName) values (?, ?, ?, ?, ?)";
+
+    private static final String SELECT_FENCING_TOKEN =
+        "select fencingToken from CompactLock where id = ?";
+
+    private static final String ACQUIRE_SET =
+        "update CompactLock set ownerId = ?, threadId = ?, updatedTime = ?, expiresAt = ?, " +
+        "maintenance = 'N', fencingToken = fencingToken + 1 ";
+
+    private static final String ACQUIRE =
+        ACQUIRE_SET + "where id = ? and name = ? and (ownerId = 0 or expiresAt <= ?)";
+
+    private static final String ACQUIRE_ALL =
+        ACQUIRE_SET + "where (ownerId = 0 or expiresAt <= ?) and id in ";
+
+    // Lists of ids are followed by the names they must hold
+    private static final String AND_NAMES = " and name in ";
+
+    private static final String TRANSFER =
+        "update CompactLock set ownerId = ?, threadId = ?, updatedTime = ?, expiresAt = ?, " +
+        "maintenance = 'N', fencingToken = fencingToken + 1 " +
+        "where id = ? and name = ? and expiresAt > ? and ownerId = ? and threadId = ?";
+
+    private static final String EXTEND =
+        "update CompactLock set updatedTime = ?, expiresAt = ? " +
+        "where id = ? and name = ? and expiresAt > ? and ownerId = ? and threadId = ?";
+
+    private static final String RAISE_FENCING_TOKEN =
+        "update CompactLock set fencingToken = ? " +
+        "where id = ? and name = ? and ownerId <> 0 and expiresAt > ? and fencingToken = ? and fencingToken < ?";
+
+    private static final String RENEW =
+        "update CompactLock set updatedTime = ?, expiresAt = ? where ownerId <> 0 and expiresAt > ? and ";
+
+    private static final String RELEASE_SET =
+        "update CompactLock set ownerId = 0, threadId = -1, updatedTime = ?, expiresAt = 0, maintenance = 'N' ";
+
+    private static final String RELEASE_ALL =
+        RELEASE_SET + "where ownerId = ? and threadId = ? and id in ";
+
+    private static final String RELEASE_GRANTED =
+        RELEASE_SET + "where id = ? and name = ? and ownerId <> 0 and fencingToken = ?";
+
+    private static final String ENTER_MAINTENANCE =
+        "update CompactLock set maintenance = 'Y', updatedTime = ? " +
+        "where id = ? and name = ? and ((ownerId = ? and threadId = ?) or ownerId = 0 or expiresAt <= ?)";
+
+    private static final String EXIT_MAINTENANCE =
+        RELEASE_SET + "where id = ? and name = ? and ((ownerId <> 0 and expiresAt > ?) or maintenance = 'Y')";
+
+    private static final String MIGRATE =
+        "update CompactLock set ownerId = ?, threadId = ?, maintenance = ?, updatedTime = ?, expiresAt = ?, " +
+        "fencingToken = ? where id = ? and ownerId = 0 and fencingToken = 0";
+
+    // Returned by work on a connection when a lock was acquired to
+    // tell it apart from a lock that was not found
+    private static final DistributedLock ACQUIRED = new DistributedLock();
+
+    private DataSource dataSource;
+    private SQLExceptionTranslator exceptionTranslator;
+
+    // The locks stored away from the slot of their hash
+    private final ConcurrentMap<String, Long> displaced = new ConcurrentHashMap<>();
+
+    // The ids of the owners this process has written
+    private final ConcurrentMap<String, Long> owners = new ConcurrentHashMap<>();
+    private int maxOwners = DEFAULT_MAX_OWNERS;
+
+    public CompactJdbcLockStore(DataSource dataSource) {
+        this.dataSource = dataSource;
+        this.exceptionTranslator = new SQLErrorCodeSQLExceptionTranslator(dataSource);
+    }
+
+    /**
+     * Sets how many owner ids are remembered. When more owners are seen
+     * the ids are forgotten and looked up again when they are next used.
+     */
+    public void setMaxOwners(int maxOwners) {
+        this.maxOwners = maxOwners;
+    }
+
+    /**
+     * Copies the locks of the DistributedLock table to the compact tables
+     * a batch at a time. Locks that already exist in the compact tables
+     * are left as they are, so the migration can be run again if it was
+     * interrupted. Held leases keep their owners, expiry times and fencing
+     * tokens. Returns the number of locks that were copied.
+     */
+    public int migrate() {
+
+        JdbcLockStore source = new JdbcLockStore(this.dataSource);
+
+        int migrated = 0;
+        String after = null;
+        while (true) {
+
+            List<String> names = source.getLockNames(after, MAX_BATCH_SIZE);
+            if (names.isEmpty()) {
+                break;
+            }
+            for (DistributedLock lock : source.getLocks(names)) {
+                if (this.execute(MIGRATE, true, connection -> this.migrateLock(connection, lock))) {
+                    migrated++;
+                }
+            }
+            if (names.size() < MAX_BATCH_SIZE) {
+                break;
+            }
+            after = names.get(names.size() - 1);
+        }
+
+        log.info(String.format("Migrated %d sharedlocks to the compact lock table.", migrated));
+        return migrated;
+    }
+
+    private boolean migrateLock(Connection connection, DistributedLock lock)
+        throws SQLException {
+
+        if (this.locate(connection, lock.getName(), false) != 0L) {
+            return false;
+        }
+        long id = this.locate(connection, lock.getName(), true);
+
+        try (PreparedStatement statement = connection.prepareStatement(MIGRATE)) {
+
+            boolean held = lock.isLocked();
+            statement.setLong(1, held ? this.ownerId(connection, lock) : 0L);
+            statement.setLong(2, held ? lock.getThreadId() : -1L);
+            statement.setString(3, lock.isMaintenanceMode() ? "Y" : "N");
+            statement.setLong(4, lock.getUpdateTime().getTime());
+            statement.setLong(5, held ? lock.getExpirationTime().getTime() : 0L);
+            statement.setLong(6, lock.getFencingToken());
+            statement.setLong(7, id);
+
+            return statement.executeUpdate() > 0;
+        }
+    }
+
+    @Override
+    public DistributedLock getLock(String name) {
+
+        return this.execute(SELECT_LOCK, false, connection -> {
+
+            DistributedLock lock = this.selectLock(connection, name);
+            if (lock == null) {
+                this.locate(connection, name, true);
+                lock = this.selectLock(connection, name);
+            }
+            return lock;
+        });
+    }
+
+    @Override
+    public List<DistributedLock> getLocks(Collection<String> names) {
+        return this.execute(SELECT_LOCKS, false, connection -> this.selectLocks(connection, new ArrayList<>(names)));
+    }
+
+    @Override
+    public void createLocks(Collection<String> names) {
+
+        this.execute(INSERT_LOCK, false, connection -> {
+
+            Set<String> missing = new HashSet<>(names);
+            for (DistributedLock lock : this.selectLocks(connection, new ArrayList<>(names))) {
+                missing.remove(lock.getName());
+            }
+            for (String name : missing) {
+                this.locate(connection, name, true);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        String name = lock.getName();
+        long now = System.currentTimeMillis();
+
+        DistributedLock distributedLock = this.execute(ACQUIRE, false, connection -> {
+
+            long ownerId = this.ownerId(connection, lock);
+            long id = this.id(name);
+            if (this.acquire(connection, id, name, ownerId, lock, now, expireAfter)) {
+                return ACQUIRED;
+            }
+
+            // The update was refused so read
+            // the lock to determine the reason
+            DistributedLock holder = this.selectLock(connection, name);
+            if (holder != null && !holder.isLocked() && this.id(name) != id
+                && this.acquire(connection, this.id(name), name, ownerId, lock, now, expireAfter)) {
+
+                // The lock was found away from the slot of its hash
+                return ACQUIRED;
+            }
+            return holder;
+        });
+
+        if (distributedLock == ACQUIRED) {
+            return null;
+        }
+        if (distributedLock == null) {
+            throw new LockNotFoundException("Lock '%s' was not found.", name);
+        }
+        if (distributedLock.isLocked() && distributedLock.isMaintenanceMode()) {
+            throw new MaintenanceEnabledException("Lock '%s' is in maintenance mode so it cannot be locked.", name);
+        }
+
+        log.debug(
+            String.format("Unable to acquire sharedlock as it is locked by another process or thread: %s",
+            distributedLock.toString()));
+
+        return distributedLock;
+    }
+
+    private boolean acquire(Connection connection, long id, String name, long ownerId,
+        DistributedLock lock, long now, int expireAfter)
+        throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(ACQUIRE)) {
+
+            statement.setLong(1, ownerId);
+            statement.setLong(2, lock.getThreadId());
+            statement.setLong(3, now);
+            statement.setLong(4, now + (expireAfter * 1000L));
+            statement.setLong(5, id);
+            statement.setString(6, name);
+            statement.setLong(7, now);
+
+            if (statement.executeUpdate() == 0) {
+                return false;
+            }
+        }
+        lock.setFencingToken(this.selectFencingToken(connection, id));
+        return true;
+    }
+
+    @Override
+    public boolean transferLock(DistributedLock from, DistributedLock to, int expireAfter) {
+
+        long now = System.currentTimeMillis();
+        return this.execute(TRANSFER, false, connection -> {
+
+            long id = this.id(to.getName());
+            try (PreparedStatement statement = connection.prepareStatement(TRANSFER)) {
+
+                statement.setLong(1, this.ownerId(connection, to));
+                statement.setLong(2, to.getThreadId());
+                statement.setLong(3, now);
+                statement.setLong(4, now + (expireAfter * 1000L));
+                statement.setLong(5, id);
+                statement.setString(6, to.getName());
+                statement.setLong(7, now);
+                statement.setLong(8, this.ownerId(connection, from));
+                statement.setLong(9, from.getThreadId());
+
+                if (statement.executeUpdate() == 0) {
+                    return false;
+                }
+            }
+            to.setFencingToken(this.selectFencingToken(connection, id));
+            return true;
+        });
+    }
+
+    @Override
+    public boolean extendLock(DistributedLock lock, long expiresAt) {
+
+        long now = System.currentTimeMillis();
+        return this.execute(EXTEND, false, connection -> {
+
+            try (PreparedStatement statement = connection.prepareStatement(EXTEND)) {
+
+                statement.setLong(1, now);
+                statement.setLong(2, expiresAt);
+                statement.setLong(3, this.id(lock.getName()));
+                statement.setString(4, lock.getName());
+                statement.setLong(5, now);
+                statement.setLong(6, this.ownerId(connection, lock));
+                statement.setLong(7, lock.getThreadId());
+
+                return statement.executeUpdate() > 0;
+            }
+        });
+    }
+
+    @Override
+    public boolean raiseFencingToken(DistributedLock lock, long fencingToken) {
+
+        boolean raised = lock.getFencingToken() > 0L && this.execute(RAISE_FENCING_TOKEN, false, connection -> {
+
+            try (PreparedStatement statement = connection.prepareStatement(RAISE_FENCING_TOKEN)) {
+
+                statement.setLong(1, fencingToken);
+                statement.setLong(2, this.id(lock.getName()));
+                statement.setString(3, lock.getName());
+                statement.setLong(4, System.currentTimeMillis());
+                statement.setLong(5, lock.getFencingToken());
+                statement.setLong(6, fencingToken);
+
+                return statement.executeUpdate() > 0;
+            }
+        });
+        if (raised) {
+            lock.setFencingToken(fencingToken);
+        }
+        return raised;
+    }
+
+    /**
+     * Extends the leases on the given locks with one update statement per
+     * batch of leases, matching each lease by its fencing token. Leases
+     * without a fencing token are reported as lost.
+     */
+    @Override
+    public Set<String> renewLocks(Collection<DistributedLock> locks, long expiresAt) {
+
+        Set<String> lost = new HashSet<>();
+        List<DistributedLock> granted = JdbcLockStore.granted(locks, lost);
+        if (granted.isEmpty()) {
+            return lost;
+        }
+
+        long now = System.currentTimeMillis();
+        return this.execute(RENEW, false, connection -> {
+
+            for (int i = 0; i < granted.size(); i += MAX_BATCH_SIZE) {
+
+                List<DistributedLock> batch = granted.subList(i, Math.min(i + MAX_BATCH_SIZE, granted.size()));
+                int updated;
+
+                try (PreparedStatement statement =
+                    connection.prepareStatement(RENEW + this.leaseList(batch.size()))) {
+
+                    statement.setLong(1, now);
+                    statement.setLong(2, expiresAt);
+                    statement.setLong(3, now);
+                    this.setLeases(statement, 4, batch);
+
+                    updated = statement.executeUpdate();
+                }
+
+                if (updated < batch.size()) {
+
+                    // Determine which leases were not renewed
+                    List<String> names = new ArrayList<>();
+                    batch.forEach(lock -> names.add(lock.getName()));
+                    lost.addAll(names);
+                    lost.removeAll(JdbcLockStore.renewed(batch, this.selectLocks(connection, names), expiresAt));
+                }
+            }
+            return lost;
+        });
+    }
+
+    @Override
+    public DistributedLock validate(DistributedLock lock)
+        throws LockException {
+
+        DistributedLock distributedLock = this.execute(SELECT_LOCK, false,
+            connection -> this.selectLock(connection, lock.getName()));
+
+        if (distributedLock == null) {
+            // A lock without a row has never been acquired
+            return new DistributedLock(lock.getName());
+        }
+        if (!distributedLock.isGrantedTo(lock) && distributedLock.isLocked()) {
+            throw new InvalidLockException("Expected locked state: %s, Actual state: %s", lock, distributedLock);
+        }
+        return distributedLock;
+    }
+
+    @Override
+    public boolean releaseLock(DistributedLock lock) {
+
+        if (lock.getFencingToken() == 0L) {
+            return this.releaseLocks(Collections.singletonList(lock.getName()), lock) > 0;
+        }
+
+        long now = System.currentTimeMillis();
+        return this.execute(RELEASE_GRANTED, false, connection -> {
+
+            try (PreparedStatement statement = connection.prepareStatement(RELEASE_GRANTED)) {
+
+                statement.setLong(1, now);
+                statement.setLong(2, this.id(lock.getName()));
+                statement.setString(3, lock.getName());
+                statement.setLong(4, lock.getFencingToken());
+
+                return statement.executeUpdate() > 0;
+            }
+        });
+    }
+
+    @Override
+    public void enterMaintenanceMode(DistributedLock lock)
+        throws LockException {
+
+        long now = System.currentTimeMillis();
+        int updated = this.execute(ENTER_MAINTENANCE, false, connection -> {
+
+            try (PreparedStatement statement = connection.prepareStatement(ENTER_MAINTENANCE)) {
+
+                statement.setLong(1, now);
+                statement.setLong(2, this.id(lock.getName()));
+                statement.setString(3, lock.getName());
+                statement.setLong(4, this.ownerId(connection, lock));
+                statement.setLong(5, lock.getThreadId());
+                statement.setLong(6, now);
+
+                return statement.executeUpdate();
+            }
+        });
+
+        if (updated == 0) {
+            // Reports why the lock could not be put in maintenance mode
+            this.validate(lock);
+        }
+    }
+
+    @Override
+    public void exitMaintenanceMode(String name)
+        throws LockException {
+
+        long now = System.currentTimeMillis();
+        int updated = this.execute(EXIT_MAINTENANCE, false, connection -> {
+
+            long id = this.locate(connection, name, false);
+            if (id == 0L) {
+                return -1;
+            }
+            try (PreparedStatement statement = connection.prepareStatement(EXIT_MAINTENANCE)) {
+
+                statement.setLong(1, now);
+                statement.setLong(2, id);
+                statement.setString(3, name);
+                statement.setLong(4, now);
+
+                return statement.executeUpdate();
+            }
+        });
+
+        if (updated < 0) {
+            throw new LockException("Lock '%s' does not exist.", name);
+        }
+        if (updated == 0) {
+            throw new LockException("Lock '%s' is not in maintenance mode", name);
+        }
+    }
+
+    /**
+     * Takes all the locks that are free with a single update per batch of
+     * locks in one transaction, which is rolled back if any of the locks is
+     * held by another owner.
+     */
+    @Override
+    public List<DistributedLock> tryAcquireLocks(List<String> names, DistributedLock owner, int expireAfter) {
+
+        int displacedBefore = this.displaced.size();
+        List<DistributedLock> held = this.tryAcquireAll(names, owner, expireAfter);
+        if (held != null && held.isEmpty() && this.displaced.size() > displacedBefore) {
+            // Locks were found away from their slots so try them there
+            held = this.tryAcquireAll(names, owner, expireAfter);
+        }
+        return held;
+    }
+
+    private List<DistributedLock> tryAcquireAll(List<String> names, DistributedLock owner, int expireAfter) {
+
+        long now = System.currentTimeMillis();
+        boolean acquired = this.execute(ACQUIRE_ALL, true, connection -> {
+
+            long ownerId = this.ownerId(connection, owner);
+
+            int updated = 0;
+            for (int i = 0; i < names.size(); i += MAX_BATCH_SIZE) {
+
+                List<String> batch = names.subList(i, Math.min(i + MAX_BATCH_SIZE, names.size()));
+                try (PreparedStatement statement =
+                    connection.prepareStatement(ACQUIRE_ALL + this.idList(batch.size()))) {
+
+                    statement.setLong(1, ownerId);
+                    statement.setLong(2, owner.getThreadId());
+                    statement.setLong(3, now);
+                    statement.setLong(4, now + (expireAfter * 1000L));
+                    statement.setLong(5, now);
+                    this.setIds(statement, 6, batch, true);
+
+                    updated += statement.executeUpdate();
+                }
+            }
+            if (updated == names.size()) {
+                return true;
+            }
+
+            connection.rollback();
+            return false;
+        });
+
+        if (acquired) {
+            return null;
+        }
+        List<DistributedLock> held = new ArrayList<>();
+        for (DistributedLock distributedLock : this.getLocks(names)) {
+            if (distributedLock.isLocked() && !distributedLock.equals(owner)) {
+                held.add(distributedLock);
+            }
+        }
+        return held;
+    }
+
+    @Override
+    public int releaseLocks(List<String> names, DistributedLock owner) {
+
+        long now = System.currentTimeMillis();
+        return this.execute(RELEASE_ALL, false, connection -> {
+
+            long ownerId = this.ownerId(connection, owner);
+
+            int updated = 0;
+            for (int i = 0; i < names.size(); i += MAX_BATCH_SIZE) {
+
+                List<String> batch = names.subList(i, Math.min(i + MAX_BATCH_SIZE, names.size()));
+                try (PreparedStatement statement =
+                    connection.prepareStatement(RELEASE_ALL + this.idList(batch.size()))) {
+
+                    statement.setLong(1, now);
+                    statement.setLong(2, ownerId);
+                    statement.setLong(3, owner.getThreadId());
+                    this.setIds(statement, 4, batch, true);
+
+                    updated += statement.executeUpdate();
+                }
+            }
+            return updated;
+        });
+    }
+
+    /**
+     * Returns the slot of the named lock. This is the hash of
+     * the name unless the lock was found in another slot.
+     */
+    private long id(String name) {
+
+        Long id = this.displaced.get(name);
+        return id != null ? id : this.home(name);
+    }
+
+    /**
+     * Finds the slot that holds the named lock by probing from the slot of
+     * its hash, and creates the lock in the first free slot if it is not
+     * found and create is true. Returns 0 if the lock was not found.
+     */
+    private long locate(Connection connection, String name, boolean create)
+        throws SQLException {
+
+        long home = this.home(name);
+        long id = home;
+        while (true) {
+
+            String slotName = this.selectName(connection, id);
+            if (slotName == null) {
+                if (!create) {
+                    return 0L;
+                }
+                if (!this.insertLock(connection, id, name)) {
+                    // Another process has just taken the slot
+                    continue;
+                }
+                slotName = name;
+            }
+            if (slotName.equals(name)) {
+                if (id != home) {
+                    this.displaced.put(name, id);
+                }
+                return id;
+            }
+            id = next(id);
+        }
+    }
+
+    /**
+     * Returns the id of the owner record of the given lock,
+     * writing the record if it does not exist yet.
+     */
+    private long ownerId(Connection connection, DistributedLock lock)
+        throws SQLException {
+
+        String key = lock.getHostname() + '\0' + lock.getAddress() + '\0' +
+            lock.getThreadGroupName() + '\0' + lock.getThreadName();
+
+        Long ownerId = this.owners.get(key);
+        if (ownerId != null) {
+            return ownerId;
+        }
+
+        // Owners are written once and probed for like locks
+        long id = hash(key);
+        while (true) {
+
+            DistributedLock slotOwner = this.selectOwner(connection, id);
+            if (slotOwner == null) {
+                if (this.insertOwner(connection, id, lock)) {
+                    break;
+                }
+            } else if (slotOwner.getHostname().equals(lock.getHostname()) &&
+                slotOwner.getAddress().equals(lock.getAddress()) &&
+                slotOwner.getThreadName().equals(lock.getThreadName()) &&
+                slotOwner.getThreadGroupName().equals(lock.getThreadGroupName())) {
+                break;
+            } else {
+                id = next(id);
+            }
+        }
+
+        if (this.owners.size() >= this.maxOwners) {
+            this.owners.clear();
+        }
+        this.owners.put(key, id);
+        return id;
+    }
+
+    private DistributedLock selectLock(Connection connection, String name)
+        throws SQLException {
+
+        long id = this.id(name);
+        DistributedLock lock = this.selectLock(connection, id);
+        if (lock != null && !lock.getName().equals(name)) {
+
+            // The slot is taken by another lock
+            id = this.locate(connection, name, false);
+            lock = id == 0L ? null : this.selectLock(connection, id);
+        }
+        return lock;
+    }
+
+    private DistributedLock selectLock(Connection connection, long id)
+        throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_LOCK)) {
+
+            statement.setLong(1, id);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? mapLock(resultSet, 1) : null;
+            }
+        }
+    }
+
+    private List<DistributedLock> selectLocks(Connection connection, List<String> names)
+        throws SQLException {
+
+        List<DistributedLock> locks = new ArrayList<>();
+        for (int i = 0; i < names.size(); i += MAX_BATCH_SIZE) {
+
+            List<String> batch = names.subList(i, Math.min(i + MAX_BATCH_SIZE, names.size()));
+            Map<Long, DistributedLock> slots = new HashMap<>();
+
+            try (PreparedStatement statement =
+                connection.prepareStatement(SELECT_LOCKS + JdbcLockStore.inList(batch.size()))) {
+
+                this.setIds(statement, 1, batch, false);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        slots.put(resultSet.getLong(1), mapLock(resultSet, 2));
+                    }
+                }
+            }
+
+            for (String name : batch) {
+                DistributedLock lock = slots.get(this.id(name));
+                if (lock != null && !lock.getName().equals(name)) {
+                    lock = this.selectLock(connection, name);
+                }
+                if (lock != null) {
+                    locks.add(lock);
+                }
+            }
+        }
+        return locks;
+    }
+
+    private DistributedLock selectOwner(Connection connection, long id)
+        throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_OWNER)) {
+
+            statement.setLong(1, id);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                DistributedLock owner = new DistributedLock();
+                owner.setHostname(resultSet.getString(1));
+                owner.setAddress(resultSet.getString(2));
+                owner.setThreadName(resultSet.getString(3));
+                owner.setThreadGroupName(resultSet.getString(4));
+                return owner;
+            }
+        }
+    }
+
+    private String selectName(Connection connection, long id)
+        throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_NAME)) {
+
+            statement.setLong(1, id);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        }
+    }
+
+    private long selectFencingToken(Connection connection, long id)
+        throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_FENCING_TOKEN)) {
+
+            statement.setLong(1, id);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0L;
+            }
+        }
+    }
+
+    /**
+     * Inserts the named lock in the given slot. Returns false if
+     * another process has taken the slot since it was read.
+     */
+    private boolean insertLock(Connection connection, long id, String name)
+        throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_LOCK)) {
+
+            statement.setLong(1, id);
+            statement.setString(2, name);
+            statement.setLong(3, System.currentTimeMillis());
+            statement.executeUpdate();
+            return true;
+
+        } catch (SQLException e) {
+
+            if (!(this.exceptionTranslator.translate("insertLock", INSERT_LOCK, e) instanceof DuplicateKeyException)) {
+                throw e;
+            }
+            return false;
+        }
+    }
+
+    private boolean insertOwner(Connection connection, long id, DistributedLock lock)
+        throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_OWNER)) {
+
+            statement.setLong(1, id);
+            statement.setString(2, lock.getHostname());
+            statement.setString(3, lock.getAddress());
+            statement.setString(4, lock.getThreadName());
+            statement.setString(5, lock.getThreadGroupName());
+            statement.executeUpdate();
+            return true;
+
+        } catch (SQLException e) {
+
+            if (!(this.exceptionTranslator.translate("insertOwner", INSERT_OWNER, e) instanceof DuplicateKeyException)) {
+                throw e;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns a list of parameters for the ids of the given number of locks
+     * followed by a list of parameters for their names, as the slot of a
+     * lock may hold another lock if this process has not looked for it.
+     */
+    private String idList(int size) {
+        return JdbcLockStore.inList(size) + AND_NAMES + JdbcLockStore.inList(size);
+    }
+
+    /**
+     * Returns a condition that matches the rows of the given number
+     * of leases by their ids, names and fencing tokens.
+     */
+    private String leaseList(int size) {
+
+        StringBuilder sb = new StringBuilder("((id = ? and name = ? and fencingToken = ?)");
+        for (int i = 1; i < JdbcLockStore.padded(size); i++) {
+            sb.append(" or (id = ? and name = ? and fencingToken = ?)");
+        }
+        return sb.append(")").toString();
+    }
+
+    private void setLeases(PreparedStatement statement, int index, List<DistributedLock> leases)
+        throws SQLException {
+
+        for (int i = 0; i < JdbcLockStore.padded(leases.size()); i++) {
+            DistributedLock lease = leases.get(Math.min(i, leases.size() - 1));
+            statement.setLong(index + (3 * i), this.id(lease.getName()));
+            statement.setString(index + (3 * i) + 1, lease.getName());
+            statement.setLong(index + (3 * i) + 2, lease.getFencingToken());
+        }
+    }
+
+    /**
+     * Sets the ids of the named locks padded as JdbcLockStore pads lists
+     * of names, followed by the names if withNames is true.
+     */
+    private void setIds(PreparedStatement statement, int index, List<String> names, boolean withNames)
+        throws SQLException {
+
+        int padded = JdbcLockStore.padded(names.size());
+        for (int i = 0; i < padded; i++) {
+            // The padding repeats the last id which does
+            // not change the rows matched by the statement
+            statement.setLong(index + i, this.id(names.get(Math.min(i, names.size() - 1))));
+        }
+        if (withNames) {
+            JdbcLockStore.setNames(statement, index + padded, names);
+        }
+    }
+
+    /**
+     * Runs the given work on a connection of its own. Single statements are
+     * committed as they are executed. If a transaction is requested all the
+     * statements are committed together unless the work rolls them back.
+     */
+    private <T> T execute(String sql, boolean transaction, Work<T> work) {
+
+        try (Connection connection = this.dataSource.getConnection()) {
+
+            if (connection.getTransactionIsolation() != Connection.TRANSACTION_READ_COMMITTED) {
+                connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            }
+            if (!transaction) {
+                if (!connection.getAutoCommit()) {
+                    connection.setAutoCommit(true);
+                }
+                return work.run(connection);
+            }
+
+            connection.setAutoCommit(false);
+            try {
+                T result = work.run(connection);
+                connection.commit();
+                return result;
+
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+
+            } finally {
+                connection.setAutoCommit(true);
+            }
+
+        } catch (SQLException e) {
+            throw this.translate(sql, e);
+        }
+    }
+
+    private DataAccessException translate(String sql, SQLException e) {
+
+        DataAccessException exception = this.exceptionTranslator.translate("CompactJdbcLockStore", sql, e);
+        return exception != null ? exception : new UncategorizedSQLException("CompactJdbcLockStore", sql, e);
+    }
+
+    /**
+     * Returns the 64-bit hash that keys the given name. The hash is part
+     * of the stored format so it must not change. It is the FNV-1a hash of
+     * the characters of the name mixed by the MurmurHash3 finalizer, and
+     * is never 0 which is the id of no owner.
+     */
+    static long hash(String name) {
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0L ? 1L : hash;
+    }
+
+    /**
+     * Returns the slot of the hash of the given lock name.
+     */
+    long home(String name) {
+        return hash(name);
+    }
+
+    private static long next(long id) {
+        return id == -1L ? 1L : id + 1L;
+    }
+
+    private static DistributedLock mapLock(ResultSet resultSet, int index)
+        throws SQLException {
+
+        DistributedLock lock = new DistributedLock();
+        lock.setName(resultSet.getString(index));
+
+        if (resultSet.getLong(index + 7) != 0L) {
+            lock.setHostname(resultSet.getString(index + 1));
+            lock.setAddress(resultSet.getString(index + 2));
+            lock.setThreadId(resultSet.getLong(index + 3));
+            lock.setThreadName(resultSet.getString(index + 4));
+            lock.setThreadGroupName(resultSet.getString(index + 5));
+            lock.setLocked(true);
+        } else {
+            lock.clear();
+        }
+
+        if ("Y".equals(resultSet.getString(index + 6))) {
+            lock.enableMaintenance();
+        } else {
+            lock.disableMaintenance();
+        }
+        lock.setUpdateTime(resultSet.getLong(index + 8));
+        lock.setExpirationTime(resultSet.getLong(index + 9));
+        lock.setFencingToken(resultSet.getLong(index + 10));
+        return lock;
+    }
+
+    @FunctionalInterface
+    private interface Work<T> {
+        T run(Connection connection) throws SQLException;
+    }
+}
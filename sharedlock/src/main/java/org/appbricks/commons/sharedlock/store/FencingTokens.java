@@ -0,0 +1,35 @@
+package org.appbricks.commons.sharedlock.store;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The fencing tokens last seen on the locks of a store. A lock whose token
+ * is known is acquired by an update that sets the next token and only
+ * matches the row while it still has the known token, so the token of the
+ * lease is known without reading it back. A token that is out of date only
+ * makes the update miss. All the tokens are dropped once MAX_LOCKS locks
+ * are known so that the cache does not grow with the number of lock names.
+ */
+final class FencingTokens {
+
+    static final int MAX_LOCKS = 10000;
+
+    private final ConcurrentMap<String, Long> tokens = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the last token seen on the named lock
+     * or null if the token is not known.
+     */
+    Long get(String name) {
+        return this.tokens.get(name);
+    }
+
+    void seen(String name, long fencingToken) {
+
+        if (this.tokens.size() >= MAX_LOCKS && !this.tokens.containsKey(name)) {
+            this.tokens.clear();
+        }
+        this.tokens.put(name, fencingToken);
+    }
+}
@@ -0,0 +1,778 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockNotFoundException;
+import org.appbricks.commons.sharedlock.exception.MaintenanceEnabledException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.model.DistributedLockTicket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A lock store that keeps the locks in memory for deployments with a
+ * single process and for tests. Locks are held with the same expiry,
+ * maintenance mode and validation rules as the database stores. Each
+ * lock is guarded by its own mutex so operations on different locks
+ * do not contend, and waiters in the process are woken as soon as a
+ * lock they wait on is released instead of at their next check. Locks
+ * that are no longer used are removed with deleteIdleLocks.
+ */
+public class InMemoryLockStore
+    implements LockStore {
+
+    private static final Log log = LogFactory.getLog(InMemoryLockStore.class);
+
+    // Stands for the shared holders of a restored lock, whose
+    // leases are only known by the latest of their expiry times
+    private static final String RESTORED_READERS = "";
+
+    public static final long DEFAULT_WRITER_PREFERENCE_TIME = 5000L;
+
+    private final ConcurrentMap<String, Entry> locks = new ConcurrentHashMap<>();
+    // The names of the locks in name order, which are only
+    // changed while the entry of the name is being changed
+    private final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<>();
+    private final ConcurrentMap<String, Permits> permits = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentSkipListMap<Long, Long>> tickets = new ConcurrentHashMap<>();
+
+    private final AtomicLong ticketIds = new AtomicLong();
+
+    private long writerPreferenceTime = DEFAULT_WRITER_PREFERENCE_TIME;
+
+    private volatile Consumer<String> releaseListener = name -> { };
+
+    /**
+     * Sets how long in milliseconds new shared holders are refused after
+     * an attempt to acquire a lock exclusively was refused because of its
+     * shared holders. Exclusive waiters renew this on each attempt.
+     */
+    public void setWriterPreferenceTime(long writerPreferenceTime) {
+        this.writerPreferenceTime = writerPreferenceTime;
+    }
+
+    @Override
+    public void setReleaseListener(Consumer<String> listener) {
+        this.releaseListener = listener;
+    }
+
+    @Override
+    public DistributedLock getLock(String name) {
+
+        Entry entry = this.lock(name, true);
+        try {
+            return new DistributedLock(entry.lock);
+        } finally {
+            entry.mutex.unlock();
+        }
+    }
+
+    /**
+     * Returns the current state of all the locks in the store.
+     */
+    public List<DistributedLock> getAllLocks() {
+        return this.getLocks(this.locks.keySet());
+    }
+
+    /**
+     * Replaces the state of a lock with the given state, which must have
+     * been read from a store. This is used to recover the locks of a store
+     * that was persisted.
+     */
+    public void restoreLock(DistributedLock lock) {
+
+        Entry entry = this.lock(lock.getName(), true);
+        try {
+            entry.lock = new DistributedLock(lock);
+            entry.readers.clear();
+            if (lock.isReadLocked()) {
+                entry.readers.put(RESTORED_READERS, lock.getReadExpirationTime().getTime());
+            }
+        } finally {
+            entry.mutex.unlock();
+        }
+    }
+
+    @Override
+    public List<DistributedLock> getLocks(Collection<String> names) {
+
+        List<DistributedLock> locks = new ArrayList<>();
+        for (String name : new TreeSet<>(names)) {
+
+            Entry entry = this.lock(name, false);
+            if (entry != null) {
+                try {
+                    locks.add(new DistributedLock(entry.lock));
+                } finally {
+                    entry.mutex.unlock();
+                }
+            }
+        }
+        return locks;
+    }
+
+    @Override
+    public void createLocks(Collection<String> names) {
+        names.forEach(this::entry);
+    }
+
+    @Override
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        String name = lock.getName();
+        Entry entry = this.existing(name);
+
+        DistributedLock distributedLock;
+        try {
+            long now = System.currentTimeMillis();
+            if (isFree(entry.lock)) {
+                entry.lock.lock(lock, expireAfter);
+                lock.setFencingToken(entry.lock.getFencingToken());
+                return null;
+            }
+            if (!entry.lock.isLocked() && entry.lock.isReadLocked()) {
+                entry.lock.setWriterWaitingUntil(now + this.writerPreferenceTime);
+            }
+            distributedLock = new DistributedLock(entry.lock);
+
+        } finally {
+            entry.mutex.unlock();
+        }
+
+        if (distributedLock.isLocked() && distributedLock.isMaintenanceMode()) {
+            throw new MaintenanceEnabledException("Lock '%s' is in maintenance mode so it cannot be locked.", name);
+        }
+
+        log.debug(
+            String.format("Unable to acquire sharedlock as it is locked by another process or thread: %s",
+            distributedLock.toString()));
+
+        return distributedLock;
+    }
+
+    @Override
+    public boolean transferLock(DistributedLock from, DistributedLock to, int expireAfter) {
+
+        Entry entry = this.lock(to.getName(), false);
+        if (entry == null) {
+            return false;
+        }
+
+        try {
+            if (!entry.lock.isLocked() || !entry.lock.isGrantedTo(from)) {
+                return false;
+            }
+            entry.lock.setThreadId(to.getThreadId());
+            entry.lock.setThreadName(to.getThreadName());
+            entry.lock.setThreadGroupName(to.getThreadGroupName());
+            entry.lock.disableMaintenance();
+            entry.lock.setFencingToken(entry.lock.getFencingToken() + 1);
+            to.setFencingToken(entry.lock.getFencingToken());
+
+            long now = System.currentTimeMillis();
+            entry.lock.setUpdateTime(now);
+            entry.lock.setExpirationTime(now + (expireAfter * 1000L));
+            return true;
+
+        } finally {
+            entry.mutex.unlock();
+        }
+    }
+
+    @Override
+    public boolean extendLock(DistributedLock lock, long expiresAt) {
+
+        Entry entry = this.lock(lock.getName(), false);
+        if (entry == null) {
+            return false;
+        }
+
+        try {
+            if (!entry.lock.isLocked() || !entry.lock.isGrantedTo(lock)) {
+                return false;
+            }
+            entry.lock.setUpdateTime(System.currentTimeMillis());
+            entry.lock.setExpirationTime(expiresAt);
+            return true;
+
+        } finally {
+            entry.mutex.unlock();
+        }
+    }
+
+    @Override
+    public boolean raiseFencingToken(DistributedLock lock, long fencingToken) {
+
+        Entry entry = this.lock(lock.getName(), false);
+        if (entry == null) {
+            return false;
+        }
+
+        try {
+            if (!entry.lock.isLocked() || lock.getFencingToken() <= 0L
+                || lock.getFencingToken() != entry.lock.getFencingToken() || fencingToken <= lock.getFencingToken()) {
+
+                return false;
+            }
+            entry.lock.setFencingToken(fencingToken);
+            lock.setFencingToken(fencingToken);
+            return true;
+
+        } finally {
+            entry.mutex.unlock();
+        }
+    }
+
+    @Override
+    public Set<String> renewLocks(Collection<DistributedLock> locks, long expiresAt) {
+
+        Set<String> lost = new HashSet<>();
+        for (DistributedLock lock : locks) {
+
+            Entry entry = this.lock(lock.getName(), false);
+            if (entry == null) {
+                lost.add(lock.getName());
+                continue;
+            }
+
+            try {
+                // Leases are matched by their fencing
+                // tokens as with the database stores
+                if (entry.lock.isLocked() && lock.getFencingToken() > 0L
+                    && lock.getFencingToken() == entry.lock.getFencingToken()) {
+
+                    entry.lock.setUpdateTime(System.currentTimeMillis());
+                    entry.lock.setExpirationTime(expiresAt);
+                } else {
+                    lost.add(lock.getName());
+                }
+            } finally {
+                entry.mutex.unlock();
+            }
+        }
+        return lost;
+    }
+
+    @Override
+    public DistributedLock validate(DistributedLock lock)
+        throws LockException {
+
+        Entry entry = this.lock(lock.getName(), false);
+        if (entry == null) {
+            // A lock is only added when it is first acquired, so
+            // a lock that is not in the store is not held by anyone
+            return new DistributedLock(lock.getName());
+        }
+
+        DistributedLock distributedLock;
+        try {
+            distributedLock = new DistributedLock(entry.lock);
+        } finally {
+            entry.mutex.unlock();
+        }
+
+        if (!distributedLock.isGrantedTo(lock) && distributedLock.isLocked()) {
+            throw new InvalidLockException("Expected locked state: %s, Actual state: %s", lock, distributedLock);
+        }
+        return distributedLock;
+    }
+
+    @Override
+    public boolean releaseLock(DistributedLock lock) {
+        return this.releaseLocks(Collections.singletonList(lock.getName()), lock) > 0;
+    }
+
+    @Override
+    public void enterMaintenanceMode(DistributedLock lock)
+        throws LockException {
+
+        Entry entry = this.existing(lock.getName());
+        try {
+            if (!entry.lock.isGrantedTo(lock) && entry.lock.isLocked()) {
+                throw new InvalidLockException("Expected locked state: %s, Actual state: %s", lock, entry.lock);
+            }
+            entry.lock.enableMaintenance();
+            entry.lock.setUpdateTime(System.currentTimeMillis());
+
+        } finally {
+            entry.mutex.unlock();
+        }
+    }
+
+    @Override
+    public void exitMaintenanceMode(String name)
+        throws LockException {
+
+        Entry entry = this.lock(name, false);
+        if (entry == null) {
+            throw new LockException("Lock '%s' does not exist.", name);
+        }
+
+        try {
+            if (!entry.lock.isLocked() && !entry.lock.isMaintenanceMode()) {
+                throw new LockException("Lock '%s' is not in maintenance mode", name);
+            }
+            entry.lock.clear();
+
+        } finally {
+            entry.mutex.unlock();
+        }
+        this.releaseListener.accept(name);
+    }
+
+    /**
+     * Holds the mutexes of all the named locks, taken in the order
+     * of the names, while checking and taking the locks.
+     */
+    @Override
+    public List<DistributedLock> tryAcquireLocks(List<String> names, DistributedLock owner, int expireAfter) {
+
+        List<Entry> entries = this.lockAll(new TreeSet<>(names));
+        try {
+            List<DistributedLock> held = new ArrayList<>();
+            for (Entry entry : entries) {
+                if (!isFree(entry.lock)) {
+                    held.add(new DistributedLock(entry.lock));
+                }
+            }
+            if (!held.isEmpty()) {
+                held.removeIf(distributedLock -> !distributedLock.isLocked() || distributedLock.equals(owner));
+                return held;
+            }
+
+            for (Entry entry : entries) {
+                DistributedLock lock = new DistributedLock(owner);
+                lock.setName(entry.lock.getName());
+                entry.lock.lock(lock, expireAfter);
+            }
+            return null;
+
+        } finally {
+            unlockAll(entries);
+        }
+    }
+
+    @Override
+    public int releaseLocks(List<String> names, DistributedLock owner) {
+
+        List<String> released = new ArrayList<>();
+        for (String name : names) {
+
+            Entry entry = this.lock(name, false);
+            if (entry == null) {
+                continue;
+            }
+
+            try {
+                if (entry.lock.isGrantedTo(owner)) {
+                    entry.lock.clear();
+                    released.add(name);
+                }
+            } finally {
+                entry.mutex.unlock();
+            }
+        }
+
+        released.forEach(this.releaseListener);
+        return released.size();
+    }
+
+    @Override
+    public DistributedLock tryAcquireReadLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        String name = lock.getName();
+        Entry entry = this.existing(name);
+
+        DistributedLock distributedLock;
+        try {
+            long now = System.currentTimeMillis();
+            long expiresAt = now + (expireAfter * 1000L);
+
+            if (!entry.lock.isLocked() && !entry.lock.isWriterWaiting()) {
+
+                entry.readers.put(readerKey(lock), expiresAt);
+                entry.updateReaders(now);
+                entry.lock.setUpdateTime(now);
+                return null;
+            }
+            distributedLock = new DistributedLock(entry.lock);
+
+        } finally {
+            entry.mutex.unlock();
+        }
+
+        if (distributedLock.isLocked() && distributedLock.isMaintenanceMode()) {
+            throw new MaintenanceEnabledException("Lock '%s' is in maintenance mode so it cannot be locked.", name);
+        }
+        return distributedLock;
+    }
+
+    @Override
+    public void releaseReadLock(DistributedLock lock) {
+
+        String name = lock.getName();
+        Entry entry = this.lock(name, false);
+        if (entry == null) {
+            return;
+        }
+
+        boolean released = false;
+        try {
+            if (entry.readers.remove(readerKey(lock)) != null) {
+                long now = System.currentTimeMillis();
+                entry.updateReaders(now);
+                entry.lock.setUpdateTime(now);
+                released = entry.lock.getReaders() == 0;
+            }
+        } finally {
+            entry.mutex.unlock();
+        }
+
+        if (released) {
+            this.releaseListener.accept(name);
+        }
+    }
+
+    @Override
+    public List<String> getLockNames(String after, int limit) {
+
+        List<String> names = new ArrayList<>();
+        for (String name : after == null ? this.names : this.names.tailSet(after, false)) {
+            if (names.size() >= limit) {
+                break;
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * Removes the named locks that are idle under their mutexes. A thread
+     * that found a lock before it was removed sees that the entry of the
+     * lock was deleted once it holds its mutex and looks the lock up again.
+     */
+    @Override
+    public int deleteIdleLocks(Collection<String> names, long idleSince) {
+
+        int deleted = 0;
+        for (String name : names) {
+
+            Entry entry = this.lock(name, false);
+            if (entry == null) {
+                continue;
+            }
+
+            try {
+                if (isIdle(entry.lock, idleSince)) {
+                    entry.deleted = true;
+                    this.locks.computeIfPresent(name, (key, current) -> {
+                        if (current != entry) {
+                            return current;
+                        }
+                        this.names.remove(key);
+                        return null;
+                    });
+                    this.tickets.computeIfPresent(name, (key, queue) -> queue.isEmpty() ? null : queue);
+                    deleted++;
+                }
+            } finally {
+                entry.mutex.unlock();
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public void createPermits(String name, int permits) {
+        this.permits.compute(name, (key, existing) ->
+            existing == null || existing.slots.length < permits ? new Permits(existing, permits) : existing);
+    }
+
+    @Override
+    public List<Integer> tryAcquirePermits(DistributedLock lock, int permits, int count, int expireAfter) {
+
+        Permits semaphore = this.permits.get(lock.getName());
+        if (semaphore == null) {
+            return Collections.emptyList();
+        }
+
+        synchronized (semaphore) {
+
+            long now = System.currentTimeMillis();
+            List<Integer> slots = new ArrayList<>();
+            for (int slot = 0; slot < Math.min(permits, semaphore.slots.length) && slots.size() < count; slot++) {
+                if (semaphore.expiresAt[slot] <= now) {
+                    slots.add(slot);
+                }
+            }
+            if (slots.size() < count) {
+                return Collections.emptyList();
+            }
+
+            for (int slot : slots) {
+                semaphore.slots[slot] = new DistributedLock(lock);
+                semaphore.expiresAt[slot] = now + (expireAfter * 1000L);
+            }
+            return slots;
+        }
+    }
+
+    @Override
+    public int releasePermits(DistributedLock lock, Collection<Integer> slots) {
+
+        Permits semaphore = this.permits.get(lock.getName());
+        if (semaphore == null) {
+            return 0;
+        }
+
+        synchronized (semaphore) {
+
+            int released = 0;
+            for (int slot : slots) {
+                if (slot < semaphore.slots.length && semaphore.slots[slot] != null
+                    && semaphore.slots[slot].equals(lock)) {
+
+                    semaphore.slots[slot] = null;
+                    semaphore.expiresAt[slot] = 0L;
+                    released++;
+                }
+            }
+            return released;
+        }
+    }
+
+    @Override
+    public int availablePermits(String name, int permits) {
+
+        Permits semaphore = this.permits.get(name);
+        if (semaphore == null) {
+            return 0;
+        }
+
+        synchronized (semaphore) {
+
+            long now = System.currentTimeMillis();
+            int available = 0;
+            for (int slot = 0; slot < Math.min(permits, semaphore.slots.length); slot++) {
+                if (semaphore.expiresAt[slot] <= now) {
+                    available++;
+                }
+            }
+            return available;
+        }
+    }
+
+    @Override
+    public DistributedLockTicket enterFairQueue(DistributedLock lock, int ticketTimeToLive) {
+
+        long now = System.currentTimeMillis();
+        ConcurrentSkipListMap<Long, Long> queue = this.queue(lock.getName());
+        queue.values().removeIf(expiresAt -> expiresAt <= now);
+
+        DistributedLockTicket ticket = new DistributedLockTicket();
+        ticket.setId(this.ticketIds.incrementAndGet());
+        ticket.setName(lock.getName());
+        ticket.setHostname(lock.getHostname());
+        ticket.setAddress(lock.getAddress());
+        ticket.setThreadId(lock.getThreadId());
+        ticket.setExpiresAt(now + (ticketTimeToLive * 1000L));
+
+        queue.put(ticket.getId(), ticket.getExpiresAt());
+        return ticket;
+    }
+
+    @Override
+    public void leaveFairQueue(DistributedLockTicket ticket) {
+        this.queue(ticket.getName()).remove(ticket.getId());
+    }
+
+    @Override
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter,
+        DistributedLockTicket ticket, int ticketTimeToLive)
+        throws LockException {
+
+        long now = System.currentTimeMillis();
+        long expiresAt = now + (ticketTimeToLive * 1000L);
+
+        ConcurrentSkipListMap<Long, Long> queue = this.queue(lock.getName());
+        if (queue.computeIfPresent(ticket.getId(), (id, previous) -> expiresAt) == null) {
+
+            // The ticket expired and was removed so
+            // rejoin the queue with a new ticket
+            ticket.setId(this.enterFairQueue(lock, ticketTimeToLive).getId());
+        }
+        ticket.setExpiresAt(expiresAt);
+
+        long ahead = queue.headMap(ticket.getId()).values().stream()
+            .filter(waitingUntil -> waitingUntil > now)
+            .count();
+        ticket.setAhead(ahead);
+
+        if (ahead > 0) {
+            return this.getLock(lock.getName());
+        }
+
+        DistributedLock holder = this.tryAcquireLock(lock, expireAfter);
+        if (holder == null) {
+            queue.remove(ticket.getId());
+        }
+        return holder;
+    }
+
+    private ConcurrentSkipListMap<Long, Long> queue(String name) {
+        return this.tickets.computeIfAbsent(name, key -> new ConcurrentSkipListMap<>());
+    }
+
+    private Entry entry(String name) {
+
+        return this.locks.computeIfAbsent(name, key -> {
+            this.names.add(key);
+            return new Entry(key);
+        });
+    }
+
+    /**
+     * Returns the entry of the named lock with its mutex held, or null if
+     * the lock does not exist and create is false. An entry that was deleted
+     * before its mutex was taken is skipped for the current entry.
+     */
+    private Entry lock(String name, boolean create) {
+
+        while (true) {
+            Entry entry = create ? this.entry(name) : this.locks.get(name);
+            if (entry == null) {
+                return null;
+            }
+            entry.mutex.lock();
+            if (!entry.deleted) {
+                return entry;
+            }
+            entry.mutex.unlock();
+        }
+    }
+
+    /**
+     * Returns the entries of the given names, creating them if needed, with
+     * their mutexes held. The mutexes are taken in the order of the names.
+     */
+    private List<Entry> lockAll(Collection<String> names) {
+
+        while (true) {
+            List<Entry> entries = new ArrayList<>();
+            names.forEach(name -> entries.add(this.entry(name)));
+            entries.forEach(entry -> entry.mutex.lock());
+
+            if (entries.stream().noneMatch(entry -> entry.deleted)) {
+                return entries;
+            }
+            unlockAll(entries);
+        }
+    }
+
+    private static void unlockAll(List<Entry> entries) {
+
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            entries.get(i).mutex.unlock();
+        }
+    }
+
+    /**
+     * Returns the entry of the named lock with its mutex held.
+     */
+    private Entry existing(String name)
+        throws LockException {
+
+        Entry entry = this.lock(name, false);
+        if (entry == null) {
+            throw new LockNotFoundException("Lock '%s' was not found.", name);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns whether the given lock can be taken exclusively. This is the
+     * same condition as the conditional update of the database stores.
+     */
+    private static boolean isFree(DistributedLock lock) {
+        return !lock.isLocked() && !lock.isReadLocked();
+    }
+
+    /**
+     * Returns whether the given lock may be deleted. This is the
+     * same condition as the idle delete of the database stores.
+     */
+    private static boolean isIdle(DistributedLock lock, long idleSince) {
+
+        return isFree(lock) && !lock.isMaintenanceMode() && !lock.isWriterWaiting()
+            && lock.getUpdateTime().getTime() <= idleSince;
+    }
+
+    private static String readerKey(DistributedLock lock) {
+        return lock.getThreadId() + "@" + lock.getHostname();
+    }
+
+    private static class Entry {
+
+        private final ReentrantLock mutex = new ReentrantLock();
+        private DistributedLock lock;
+
+        // The expiry times of the shared leases by holder
+        private final Map<String, Long> readers = new HashMap<>();
+
+        // Set under the mutex when the entry is removed
+        private boolean deleted;
+
+        private Entry(String name) {
+            this.lock = new DistributedLock();
+            this.lock.setName(name);
+            this.lock.clear();
+            this.lock.setFencingToken(JdbcLockStore.initialFencingToken(System.currentTimeMillis()));
+        }
+
+        /**
+         * Drops the shared leases that have expired and sets the number
+         * of live ones and the latest of their expiry times on the lock.
+         */
+        private void updateReaders(long now) {
+
+            this.readers.values().removeIf(expiresAt -> expiresAt <= now);
+            this.lock.setReaders(this.readers.size());
+            this.lock.setReadExpirationTime(this.readers.values().stream().mapToLong(Long::longValue).max().orElse(0L));
+        }
+    }
+
+    private static class Permits {
+
+        private final DistributedLock[] slots;
+        private final long[] expiresAt;
+
+        private Permits(Permits existing, int permits) {
+            this.slots = new DistributedLock[permits];
+            this.expiresAt = new long[permits];
+
+            if (existing != null) {
+                System.arraycopy(existing.slots, 0, this.slots, 0, existing.slots.length);
+                System.arraycopy(existing.expiresAt, 0, this.expiresAt, 0, existing.expiresAt.length);
+            }
+        }
+    }
+}
@@ -0,0 +1,1084 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockNotFoundException;
+import org.appbricks.commons.sharedlock.exception.MaintenanceEnabledException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.jdbc.support.SQLErrorCodeSQLExceptionTranslator;
+import org.springframework.jdbc.support.SQLExceptionTranslator;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * A lock store that works on the lock table with plain JDBC. It uses the
+ * same table as the JPA store but bypasses the persistence context: rows
+ * are never loaded as managed entities and every change is a single
+ * conditional statement whose row count is the result. Each operation
+ * runs in its own short transaction on a connection borrowed from the
+ * data source only for the duration of the operation. A lock is acquired
+ * with the next fencing token computed from the token last seen on it,
+ * so the acquisition is one statement unless the lock was taken by
+ * another process since, when the lock is read and updated again.
+ *
+ * All the statements are fixed SQL text and lists of names are padded to
+ * a power of two, so only a handful of distinct statements are prepared
+ * and a prepared statement cache in the connection pool (for example
+ * DBCP2 with poolPreparedStatements enabled) reuses them.
+ *
+ * Shared locks, multiple lock acquisition and deleting idle locks are
+ * supported. The shared leases are kept in the DistributedLockReader
+ * table of the JPA store. Semaphores and fair mode require the JPA store.
+ */
+public class JdbcLockStore
+    implements LockStore {
+
+    private static final Log log = LogFactory.getLog(JdbcLockStore.class);
+
+    private static final int MAX_BATCH_SIZE = 500;
+
+    public static final long DEFAULT_WRITER_PREFERENCE_TIME = 5000L;
+
+    private static final String COLUMNS =
+        "name, hostname, address, threadId, threadName, threadGroupName, " +
+        "maintenance, locked, updatedTime, expiresAt, readers, readExpiresAt, writerWaitingUntil, fencingToken";
+
+    private static final String OWNER =
+        "hostname = ? and address = ? and threadId = ? and threadName = ? and threadGroupName = ?";
+
+    private static final String SELECT_LOCK =
+        "select " + COLUMNS + " from DistributedLock where name = ?";
+
+    private static final String SELECT_LOCKS =
+        "select " + COLUMNS + " from DistributedLock where name in ";
+
+    private static final String INSERT_LOCK =
+        "insert into DistributedLock (" + COLUMNS + ") " +
+        "values (?, '', '', -1, '', '', 'N', 'F', ?, 0, 0, 0, 0, ?)";
+
+    private static final String SELECT_FENCING_TOKEN =
+        "select fencingToken from DistributedLock where name = ?";
+
+    private static final String ACQUIRE_OWNER =
+        "update DistributedLock set " +
+        "hostname = ?, address = ?, threadId = ?, threadName = ?, threadGroupName = ?, " +
+        "updatedTime = ?, expiresAt = ?, writerWaitingUntil = 0, maintenance = 'N', locked = 'Y', ";
+
+    private static final String ACQUIRE_FREE =
+        "(locked <> 'Y' or expiresAt <= ?) and (readers = 0 or readExpiresAt <= ?)";
+
+    // Sets the next token itself so that it need not be read back
+    private static final String ACQUIRE =
+        ACQUIRE_OWNER + "fencingToken = ? where name = ? and fencingToken = ? and " + ACQUIRE_FREE;
+
+    private static final String ACQUIRE_ALL =
+        ACQUIRE_OWNER + "fencingToken = fencingToken + 1 where " + ACQUIRE_FREE + " and name in ";
+
+    private static final String MARK_WRITER_WAITING =
+        "update DistributedLock set writerWaitingUntil = ? where name = ? and writerWaitingUntil < ?";
+
+    private static final String TRANSFER =
+        "update DistributedLock set threadId = ?, threadName = ?, threadGroupName = ?, " +
+        "updatedTime = ?, expiresAt = ?, maintenance = 'N', fencingToken = fencingToken + 1 " +
+        "where name = ? and locked = 'Y' and expiresAt > ? and " + OWNER;
+
+    private static final String EXTEND =
+        "update DistributedLock set updatedTime = ?, expiresAt = ? " +
+        "where name = ? and locked = 'Y' and expiresAt > ? and " + OWNER;
+
+    private static final String RAISE_FENCING_TOKEN =
+        "update DistributedLock set fencingToken = ? " +
+        "where name = ? and locked = 'Y' and expiresAt > ? and fencingToken = ? and fencingToken < ?";
+
+    private static final String RENEW =
+        "update DistributedLock set updatedTime = ?, expiresAt = ? " +
+        "where locked = 'Y' and expiresAt > ? and ";
+
+    private static final String RELEASE_ALL =
+        "update DistributedLock set " +
+        "hostname = '', address = '', threadId = -1, threadName = '', threadGroupName = '', " +
+        "updatedTime = ?, expiresAt = 0, maintenance = 'N', locked = 'F' " +
+        "where " + OWNER + " and name in ";
+
+    private static final String RELEASE_GRANTED =
+        "update DistributedLock set " +
+        "hostname = '', address = '', threadId = -1, threadName = '', threadGroupName = '', " +
+        "updatedTime = ?, expiresAt = 0, maintenance = 'N', locked = 'F' " +
+        "where name = ? and locked = 'Y' and fencingToken = ?";
+
+    private static final String ENTER_MAINTENANCE =
+        "update DistributedLock set maintenance = 'Y', updatedTime = ? " +
+        "where name = ? and ((" + OWNER + ") or locked <> 'Y' or expiresAt <= ?)";
+
+    private static final String EXIT_MAINTENANCE =
+        "update DistributedLock set " +
+        "hostname = '', address = '', threadId = -1, threadName = '', threadGroupName = '', " +
+        "updatedTime = ?, expiresAt = 0, maintenance = 'N', locked = 'F' " +
+        "where name = ? and ((locked = 'Y' and expiresAt > ?) or maintenance = 'Y')";
+
+    private static final String ADMIT_READER =
+        "update DistributedLock set updatedTime = ? " +
+        "where name = ? and (locked <> 'Y' or expiresAt <= ?) and writerWaitingUntil <= ?";
+
+    private static final String TOUCH_LOCK =
+        "update DistributedLock set updatedTime = ? where name = ?";
+
+    private static final String SET_READERS =
+        "update DistributedLock set readers = ?, readExpiresAt = ? where name = ?";
+
+    private static final String RENEW_READER =
+        "update DistributedLockReader set expiresAt = ? where name = ? and hostname = ? and threadId = ?";
+
+    private static final String INSERT_READER =
+        "insert into DistributedLockReader (name, hostname, threadId, address, threadName, expiresAt) " +
+        "values (?, ?, ?, ?, ?, ?)";
+
+    private static final String RELEASE_READER =
+        "delete from DistributedLockReader where name = ? and hostname = ? and threadId = ?";
+
+    private static final String SELECT_READERS =
+        "select expiresAt from DistributedLockReader where name = ?";
+
+    private static final String DELETE_EXPIRED_READERS =
+        "delete from DistributedLockReader where expiresAt <= ? and name in ";
+
+    private static final String SELECT_NAMES =
+        "select name from DistributedLock where name > ? order by name";
+
+    private static final String DELETE_IDLE =
+        "delete from DistributedLock " +
+        "where (locked <> 'Y' or expiresAt <= ?) and maintenance <> 'Y' " +
+        "and (readers = 0 or readExpiresAt <= ?) and writerWaitingUntil <= ? " +
+        "and updatedTime <= ? and name in ";
+
+    // Returned by work on a connection when a lock was acquired to
+    // tell it apart from a lock that was not found
+    private static final DistributedLock ACQUIRED = new DistributedLock();
+
+    private DataSource dataSource;
+    private SQLExceptionTranslator exceptionTranslator;
+
+    private final FencingTokens fencingTokens = new FencingTokens();
+
+    // The connection of the batch being run by the current thread
+    private final ThreadLocal<Connection> batchConnection = new ThreadLocal<>();
+
+    private long writerPreferenceTime = DEFAULT_WRITER_PREFERENCE_TIME;
+
+    public JdbcLockStore(DataSource dataSource) {
+        this.dataSource = dataSource;
+        this.exceptionTranslator = new SQLErrorCodeSQLExceptionTranslator(dataSource);
+    }
+
+    /**
+     * Sets how long in milliseconds new shared holders are refused after
+     * an attempt to acquire a lock exclusively was refused because of its
+     * shared holders. Exclusive waiters renew this on each attempt.
+     */
+    public void setWriterPreferenceTime(long writerPreferenceTime) {
+        this.writerPreferenceTime = writerPreferenceTime;
+    }
+
+    /**
+     * Runs the operations in one transaction on one connection. Work that
+     * needs a transaction of its own, such as acquiring multiple locks,
+     * still runs on a connection of its own.
+     */
+    @Override
+    public void runBatch(List<Runnable> operations) {
+
+        try (Connection connection = this.dataSource.getConnection()) {
+
+            if (connection.getTransactionIsolation() != Connection.TRANSACTION_READ_COMMITTED) {
+                connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            }
+            connection.setAutoCommit(false);
+
+            this.batchConnection.set(connection);
+            try {
+                operations.forEach(Runnable::run);
+                connection.commit();
+
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+
+            } finally {
+                this.batchConnection.remove();
+                connection.setAutoCommit(true);
+            }
+
+        } catch (SQLException e) {
+            throw this.translate("commit", e);
+        }
+    }
+
+    @Override
+    public DistributedLock getLock(String name) {
+
+        return this.execute(SELECT_LOCK, false, connection -> {
+
+            DistributedLock lock = this.selectLock(connection, name);
+            if (lock == null) {
+                this.insertLock(connection, name);
+                lock = this.selectLock(connection, name);
+            }
+            return lock;
+        });
+    }
+
+    @Override
+    public List<DistributedLock> getLocks(Collection<String> names) {
+        return this.execute(SELECT_LOCKS, false, connection -> this.selectLocks(connection, new ArrayList<>(names)));
+    }
+
+    @Override
+    public void createLocks(Collection<String> names) {
+
+        this.execute(INSERT_LOCK, false, connection -> {
+
+            Set<String> missing = new HashSet<>(names);
+            for (DistributedLock lock : this.selectLocks(connection, new ArrayList<>(names))) {
+                missing.remove(lock.getName());
+            }
+            for (String name : missing) {
+                this.insertLock(connection, name);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        String name = lock.getName();
+        long now = System.currentTimeMillis();
+
+        DistributedLock distributedLock = this.execute(ACQUIRE, false, connection -> {
+
+            Long fencingToken = this.fencingTokens.get(name);
+            if (fencingToken != null && this.acquire(connection, lock, expireAfter, now, fencingToken)) {
+                return ACQUIRED;
+            }
+
+            // The token was not known or the update was refused
+            // so read the lock to determine the reason
+            DistributedLock holder = this.selectLock(connection, name);
+            if (holder == null) {
+                return null;
+            }
+            long current = holder.getFencingToken();
+            this.fencingTokens.seen(name, current);
+
+            if (!holder.isLocked() && !holder.isReadLocked() && (fencingToken == null || fencingToken != current)
+                && this.acquire(connection, lock, expireAfter, now, current)) {
+                return ACQUIRED;
+            }
+            if (!holder.isLocked() && holder.isReadLocked()) {
+
+                try (PreparedStatement statement = connection.prepareStatement(MARK_WRITER_WAITING)) {
+                    statement.setLong(1, now + this.writerPreferenceTime);
+                    statement.setString(2, name);
+                    statement.setLong(3, now + this.writerPreferenceTime);
+                    statement.executeUpdate();
+                }
+            }
+            return holder;
+        });
+
+        if (distributedLock == ACQUIRED) {
+            return null;
+        }
+        if (distributedLock == null) {
+            throw new LockNotFoundException("Lock '%s' was not found.", name);
+        }
+        if (distributedLock.isLocked() && distributedLock.isMaintenanceMode()) {
+            throw new MaintenanceEnabledException("Lock '%s' is in maintenance mode so it cannot be locked.", name);
+        }
+
+        log.debug(
+            String.format("Unable to acquire sharedlock as it is locked by another process or thread: %s",
+            distributedLock.toString()));
+
+        return distributedLock;
+    }
+
+    /**
+     * Acquires the lock if it is free and still has the given fencing
+     * token, giving the lease the next token.
+     */
+    private boolean acquire(Connection connection, DistributedLock lock, int expireAfter, long now, long fencingToken)
+        throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(ACQUIRE)) {
+
+            int i = this.setOwner(statement, 1, lock);
+            statement.setLong(i++, now);
+            statement.setLong(i++, now + (expireAfter * 1000L));
+            statement.setLong(i++, fencingToken + 1);
+            statement.setString(i++, lock.getName());
+            statement.setLong(i++, fencingToken);
+            statement.setLong(i++, now);
+            statement.setLong(i, now);
+
+            if (statement.executeUpdate() > 0) {
+                lock.setFencingToken(fencingToken + 1);
+                this.fencingTokens.seen(lock.getName(), fencingToken + 1);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public boolean transferLock(DistributedLock from, DistributedLock to, int expireAfter) {
+
+        long now = System.currentTimeMillis();
+        return this.execute(TRANSFER, false, connection -> {
+
+            try (PreparedStatement statement = connection.prepareStatement(TRANSFER)) {
+
+                statement.setLong(1, to.getThreadId());
+                statement.setString(2, to.getThreadName());
+                statement.setString(3, to.getThreadGroupName());
+                statement.setLong(4, now);
+                statement.setLong(5, now + (expireAfter * 1000L));
+                statement.setString(6, to.getName());
+                statement.setLong(7, now);
+                this.setOwner(statement, 8, from);
+
+                if (statement.executeUpdate() == 0) {
+                    return false;
+                }
+            }
+            to.setFencingToken(this.selectFencingToken(connection, to.getName()));
+            return true;
+        });
+    }
+
+    @Override
+    public boolean extendLock(DistributedLock lock, long expiresAt) {
+
+        long now = System.currentTimeMillis();
+        return this.execute(EXTEND, false, connection -> {
+
+            try (PreparedStatement statement = connection.prepareStatement(EXTEND)) {
+
+                statement.setLong(1, now);
+                statement.setLong(2, expiresAt);
+                statement.setString(3, lock.getName());
+                statement.setLong(4, now);
+                this.setOwner(statement, 5, lock);
+
+                return statement.executeUpdate() > 0;
+            }
+        });
+    }
+
+    @Override
+    public boolean raiseFencingToken(DistributedLock lock, long fencingToken) {
+
+        boolean raised = lock.getFencingToken() > 0L && this.execute(RAISE_FENCING_TOKEN, false, connection -> {
+
+            try (PreparedStatement statement = connection.prepareStatement(RAISE_FENCING_TOKEN)) {
+
+                statement.setLong(1, fencingToken);
+                statement.setString(2, lock.getName());
+                statement.setLong(3, System.currentTimeMillis());
+                statement.setLong(4, lock.getFencingToken());
+                statement.setLong(5, fencingToken);
+
+                return statement.executeUpdate() > 0;
+            }
+        });
+        if (raised) {
+            lock.setFencingToken(fencingToken);
+        }
+        return raised;
+    }
+
+    /**
+     * Extends the leases on the given locks with one update statement per
+     * batch of leases. Each lease is matched by its fencing token, so a
+     * lease that was lost and taken by another owner is not renewed even
+     * if that owner is in the same process or on the same host. Leases
+     * without a fencing token are reported as lost.
+     */
+    @Override
+    public Set<String> renewLocks(Collection<DistributedLock> locks, long expiresAt) {
+
+        Set<String> lost = new HashSet<>();
+        List<DistributedLock> granted = granted(locks, lost);
+        if (granted.isEmpty()) {
+            return lost;
+        }
+
+        long now = System.currentTimeMillis();
+        return this.execute(RENEW, false, connection -> {
+
+            for (int i = 0; i < granted.size(); i += MAX_BATCH_SIZE) {
+
+                List<DistributedLock> batch = granted.subList(i, Math.min(i + MAX_BATCH_SIZE, granted.size()));
+                int updated;
+
+                try (PreparedStatement statement = connection.prepareStatement(RENEW + leaseList(batch.size()))) {
+
+                    statement.setLong(1, now);
+                    statement.setLong(2, expiresAt);
+                    statement.setLong(3, now);
+                    setLeases(statement, 4, batch);
+
+                    updated = statement.executeUpdate();
+                }
+
+                if (updated < batch.size()) {
+
+                    // Determine which leases were not renewed
+                    List<String> names = batch.stream().map(DistributedLock::getName).collect(Collectors.toList());
+                    lost.addAll(names);
+                    lost.removeAll(renewed(batch, this.selectLocks(connection, names), expiresAt));
+                }
+            }
+            return lost;
+        });
+    }
+
+    @Override
+    public DistributedLock validate(DistributedLock lock)
+        throws LockException {
+
+        DistributedLock distributedLock = this.execute(SELECT_LOCK, false,
+            connection -> this.selectLock(connection, lock.getName()));
+
+        if (distributedLock == null) {
+            // Rows are created on the first acquire, so a
+            // lock without a row has never been held
+            return new DistributedLock(lock.getName());
+        }
+        if (!distributedLock.isGrantedTo(lock) && distributedLock.isLocked()) {
+            throw new InvalidLockException("Expected locked state: %s, Actual state: %s", lock, distributedLock);
+        }
+        return distributedLock;
+    }
+
+    @Override
+    public boolean releaseLock(DistributedLock lock) {
+
+        if (lock.getFencingToken() == 0L) {
+            return this.releaseLocks(Collections.singletonList(lock.getName()), lock) > 0;
+        }
+
+        long now = System.currentTimeMillis();
+        return this.execute(RELEASE_GRANTED, false, connection -> {
+
+            try (PreparedStatement statement = connection.prepareStatement(RELEASE_GRANTED)) {
+
+                statement.setLong(1, now);
+                statement.setString(2, lock.getName());
+                statement.setLong(3, lock.getFencingToken());
+
+                return statement.executeUpdate() > 0;
+            }
+        });
+    }
+
+    @Override
+    public void enterMaintenanceMode(DistributedLock lock)
+        throws LockException {
+
+        long now = System.currentTimeMillis();
+        int updated = this.execute(ENTER_MAINTENANCE, false, connection -> {
+
+            try (PreparedStatement statement = connection.prepareStatement(ENTER_MAINTENANCE)) {
+
+                statement.setLong(1, now);
+                statement.setString(2, lock.getName());
+                this.setOwner(statement, 3, lock);
+                statement.setLong(8, now);
+
+                return statement.executeUpdate();
+            }
+        });
+
+        if (updated == 0) {
+            // Reports why the lock could not be put in maintenance mode
+            this.validate(lock);
+        }
+    }
+
+    @Override
+    public void exitMaintenanceMode(String name)
+        throws LockException {
+
+        long now = System.currentTimeMillis();
+        int updated = this.execute(EXIT_MAINTENANCE, false, connection -> {
+
+            try (PreparedStatement statement = connection.prepareStatement(EXIT_MAINTENANCE)) {
+
+                statement.setLong(1, now);
+                statement.setString(2, name);
+                statement.setLong(3, now);
+
+                return statement.executeUpdate();
+            }
+        });
+
+        if (updated == 0) {
+
+            DistributedLock distributedLock = this.execute(SELECT_LOCK, false,
+                connection -> this.selectLock(connection, name));
+
+            if (distributedLock == null) {
+                throw new LockException("Lock '%s' does not exist.", name);
+            }
+            throw new LockException("Lock '%s' is not in maintenance mode", name);
+        }
+    }
+
+    /**
+     * Takes all the locks that are free with a single update per batch of
+     * names in one transaction, which is rolled back if any of the locks is
+     * held by another owner.
+     */
+    @Override
+    public List<DistributedLock> tryAcquireLocks(List<String> names, DistributedLock owner, int expireAfter) {
+
+        long now = System.currentTimeMillis();
+        boolean acquired = this.execute(ACQUIRE_ALL, true, connection -> {
+
+            int updated = 0;
+            for (int i = 0; i < names.size(); i += MAX_BATCH_SIZE) {
+
+                List<String> batch = names.subList(i, Math.min(i + MAX_BATCH_SIZE, names.size()));
+                try (PreparedStatement statement = connection.prepareStatement(ACQUIRE_ALL + inList(batch.size()))) {
+
+                    int j = this.setOwner(statement, 1, owner);
+                    statement.setLong(j++, now);
+                    statement.setLong(j++, now + (expireAfter * 1000L));
+                    statement.setLong(j++, now);
+                    statement.setLong(j++, now);
+                    setNames(statement, j, batch);
+
+                    updated += statement.executeUpdate();
+                }
+            }
+            if (updated == names.size()) {
+                return true;
+            }
+
+            connection.rollback();
+            return false;
+        });
+
+        if (acquired) {
+            return null;
+        }
+        return this.getLocks(names).stream()
+            .filter(distributedLock -> distributedLock.isLocked() && !distributedLock.equals(owner))
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public int releaseLocks(List<String> names, DistributedLock owner) {
+
+        long now = System.currentTimeMillis();
+        return this.execute(RELEASE_ALL, false, connection -> {
+
+            int updated = 0;
+            for (int i = 0; i < names.size(); i += MAX_BATCH_SIZE) {
+
+                List<String> batch = names.subList(i, Math.min(i + MAX_BATCH_SIZE, names.size()));
+                try (PreparedStatement statement = connection.prepareStatement(RELEASE_ALL + inList(batch.size()))) {
+
+                    statement.setLong(1, now);
+                    int j = this.setOwner(statement, 2, owner);
+                    setNames(statement, j, batch);
+
+                    updated += statement.executeUpdate();
+                }
+            }
+            return updated;
+        });
+    }
+
+    @Override
+    public List<String> getLockNames(String after, int limit) {
+
+        return this.execute(SELECT_NAMES, false, connection -> {
+
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_NAMES)) {
+
+                statement.setString(1, after == null ? "" : after);
+                statement.setMaxRows(limit);
+
+                List<String> names = new ArrayList<>();
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        names.add(resultSet.getString(1));
+                    }
+                }
+                return names;
+            }
+        });
+    }
+
+    @Override
+    public int deleteIdleLocks(Collection<String> names, long idleSince) {
+
+        List<String> nameList = new ArrayList<>(names);
+        long now = System.currentTimeMillis();
+        return this.execute(DELETE_IDLE, false, connection -> {
+
+            int deleted = 0;
+            for (int i = 0; i < nameList.size(); i += MAX_BATCH_SIZE) {
+
+                List<String> batch = nameList.subList(i, Math.min(i + MAX_BATCH_SIZE, nameList.size()));
+                try (PreparedStatement statement = connection.prepareStatement(DELETE_IDLE + inList(batch.size()))) {
+
+                    statement.setLong(1, now);
+                    statement.setLong(2, now);
+                    statement.setLong(3, now);
+                    statement.setLong(4, idleSince);
+                    setNames(statement, 5, batch);
+
+                    deleted += statement.executeUpdate();
+                }
+                this.deleteExpiredReaders(connection, batch, now);
+            }
+            return deleted;
+        });
+    }
+
+    /**
+     * Adds the shared lease in the transaction that updates the lock row,
+     * so the shared leases of the lock are changed one transaction at a
+     * time and the count on the lock row is taken from them.
+     */
+    @Override
+    public DistributedLock tryAcquireReadLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        String name = lock.getName();
+        long now = System.currentTimeMillis();
+        long expiresAt = now + (expireAfter * 1000L);
+
+        DistributedLock distributedLock = this.execute(ADMIT_READER, true, connection -> {
+
+            try (PreparedStatement statement = connection.prepareStatement(ADMIT_READER)) {
+
+                statement.setLong(1, now);
+                statement.setString(2, name);
+                statement.setLong(3, now);
+                statement.setLong(4, now);
+
+                if (statement.executeUpdate() == 0) {
+                    return this.selectLock(connection, name);
+                }
+            }
+
+            int renewed;
+            try (PreparedStatement statement = connection.prepareStatement(RENEW_READER)) {
+
+                statement.setLong(1, expiresAt);
+                statement.setString(2, name);
+                statement.setString(3, lock.getHostname());
+                statement.setLong(4, lock.getThreadId());
+
+                renewed = statement.executeUpdate();
+            }
+            if (renewed == 0) {
+                try (PreparedStatement statement = connection.prepareStatement(INSERT_READER)) {
+
+                    statement.setString(1, name);
+                    statement.setString(2, lock.getHostname());
+                    statement.setLong(3, lock.getThreadId());
+                    statement.setString(4, lock.getAddress());
+                    statement.setString(5, lock.getThreadName());
+                    statement.setLong(6, expiresAt);
+
+                    statement.executeUpdate();
+                }
+            }
+
+            this.updateReaders(connection, name, now);
+            return ACQUIRED;
+        });
+
+        if (distributedLock == ACQUIRED) {
+            return null;
+        }
+        if (distributedLock == null) {
+            throw new LockNotFoundException("Lock '%s' was not found.", name);
+        }
+        if (distributedLock.isLocked() && distributedLock.isMaintenanceMode()) {
+            throw new MaintenanceEnabledException("Lock '%s' is in maintenance mode so it cannot be locked.", name);
+        }
+        return distributedLock;
+    }
+
+    @Override
+    public void releaseReadLock(DistributedLock lock) {
+
+        String name = lock.getName();
+        long now = System.currentTimeMillis();
+        this.execute(RELEASE_READER, true, connection -> {
+
+            try (PreparedStatement statement = connection.prepareStatement(RELEASE_READER)) {
+
+                statement.setString(1, name);
+                statement.setString(2, lock.getHostname());
+                statement.setLong(3, lock.getThreadId());
+
+                if (statement.executeUpdate() == 0) {
+                    return null;
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement(TOUCH_LOCK)) {
+
+                statement.setLong(1, now);
+                statement.setString(2, name);
+
+                if (statement.executeUpdate() == 0) {
+                    return null;
+                }
+            }
+
+            this.updateReaders(connection, name, now);
+            return null;
+        });
+    }
+
+    /**
+     * Sets the number of live shared leases on the lock row and the latest
+     * of their expiry times, and removes the leases that have expired. The
+     * lock row must have been updated in the transaction of the connection
+     * so that the leases do not change meanwhile.
+     */
+    private void updateReaders(Connection connection, String name, long now)
+        throws SQLException {
+
+        int readers = 0;
+        long readExpiresAt = 0L;
+        boolean expired = false;
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_READERS)) {
+
+            statement.setString(1, name);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+
+                    long expiresAt = resultSet.getLong(1);
+                    if (expiresAt > now) {
+                        readers++;
+                        readExpiresAt = Math.max(readExpiresAt, expiresAt);
+                    } else {
+                        expired = true;
+                    }
+                }
+            }
+        }
+        if (expired) {
+            this.deleteExpiredReaders(connection, Collections.singletonList(name), now);
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement(SET_READERS)) {
+
+            statement.setInt(1, readers);
+            statement.setLong(2, readExpiresAt);
+            statement.setString(3, name);
+
+            statement.executeUpdate();
+        }
+    }
+
+    private void deleteExpiredReaders(Connection connection, List<String> names, long now)
+        throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(DELETE_EXPIRED_READERS + inList(names.size()))) {
+
+            statement.setLong(1, now);
+            setNames(statement, 2, names);
+
+            statement.executeUpdate();
+        }
+    }
+
+    private DistributedLock selectLock(Connection connection, String name)
+        throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_LOCK)) {
+
+            statement.setString(1, name);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? mapLock(resultSet) : null;
+            }
+        }
+    }
+
+    private long selectFencingToken(Connection connection, String name)
+        throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_FENCING_TOKEN)) {
+
+            statement.setString(1, name);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0L;
+            }
+        }
+    }
+
+    private List<DistributedLock> selectLocks(Connection connection, List<String> names)
+        throws SQLException {
+
+        List<DistributedLock> locks = new ArrayList<>();
+        for (int i = 0; i < names.size(); i += MAX_BATCH_SIZE) {
+
+            List<String> batch = names.subList(i, Math.min(i + MAX_BATCH_SIZE, names.size()));
+            try (PreparedStatement statement = connection.prepareStatement(SELECT_LOCKS + inList(batch.size()))) {
+
+                setNames(statement, 1, batch);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        locks.add(mapLock(resultSet));
+                    }
+                }
+            }
+        }
+        return locks;
+    }
+
+    private void insertLock(Connection connection, String name)
+        throws SQLException {
+
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_LOCK)) {
+
+            long now = System.currentTimeMillis();
+            statement.setString(1, name);
+            statement.setLong(2, now);
+            statement.setLong(3, initialFencingToken(now));
+            statement.executeUpdate();
+
+        } catch (SQLException e) {
+
+            // Another process may have created the lock since it was read
+            if (!(this.exceptionTranslator.translate("insertLock", INSERT_LOCK, e) instanceof DuplicateKeyException)) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns the fencing token of a lock row created at the given time. A
+     * lock that is deleted when idle and created again must not hand out
+     * the tokens of its earlier leases, so tokens start from the creation
+     * time in microseconds. That is above the last token of the deleted row
+     * unless the row was acquired more than once per microsecond on average.
+     */
+    static long initialFencingToken(long now) {
+        return TimeUnit.MILLISECONDS.toMicros(now);
+    }
+
+    private int setOwner(PreparedStatement statement, int index, DistributedLock lock)
+        throws SQLException {
+
+        statement.setString(index++, lock.getHostname());
+        statement.setString(index++, lock.getAddress());
+        statement.setLong(index++, lock.getThreadId());
+        statement.setString(index++, lock.getThreadName());
+        statement.setString(index++, lock.getThreadGroupName());
+        return index;
+    }
+
+    /**
+     * Runs the given work on a connection of its own. Single statements are
+     * committed as they are executed. If a transaction is requested all the
+     * statements are committed together unless the work rolls them back.
+     * Work without a transaction of its own that is run by a batch runs on
+     * the connection of the batch.
+     */
+    private <T> T execute(String sql, boolean transaction, Work<T> work) {
+
+        Connection batchConnection = this.batchConnection.get();
+        if (batchConnection != null && !transaction) {
+            try {
+                return work.run(batchConnection);
+            } catch (SQLException e) {
+                throw this.translate(sql, e);
+            }
+        }
+
+        try (Connection connection = this.dataSource.getConnection()) {
+
+            if (connection.getTransactionIsolation() != Connection.TRANSACTION_READ_COMMITTED) {
+                connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            }
+            if (!transaction) {
+                if (!connection.getAutoCommit()) {
+                    connection.setAutoCommit(true);
+                }
+                return work.run(connection);
+            }
+
+            connection.setAutoCommit(false);
+            try {
+                T result = work.run(connection);
+                connection.commit();
+                return result;
+
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+
+            } finally {
+                connection.setAutoCommit(true);
+            }
+
+        } catch (SQLException e) {
+            throw this.translate(sql, e);
+        }
+    }
+
+    private DataAccessException translate(String sql, SQLException e) {
+
+        DataAccessException exception = this.exceptionTranslator.translate("JdbcLockStore", sql, e);
+        return exception != null ? exception : new UncategorizedSQLException("JdbcLockStore", sql, e);
+    }
+
+    /**
+     * Returns a list of parameters for the given number of names padded to
+     * the next power of two, so that the number of distinct statements
+     * with lists of names stays small.
+     */
+    static String inList(int size) {
+
+        StringBuilder sb = new StringBuilder("(?");
+        for (int i = 1; i < padded(size); i++) {
+            sb.append(", ?");
+        }
+        return sb.append(")").toString();
+    }
+
+    /**
+     * Returns a condition that matches the rows of the given
+     * number of leases by their names and fencing tokens.
+     */
+    static String leaseList(int size) {
+
+        StringBuilder sb = new StringBuilder("((name = ? and fencingToken = ?)");
+        for (int i = 1; i < padded(size); i++) {
+            sb.append(" or (name = ? and fencingToken = ?)");
+        }
+        return sb.append(")").toString();
+    }
+
+    static void setLeases(PreparedStatement statement, int index, List<DistributedLock> leases)
+        throws SQLException {
+
+        for (int i = 0; i < padded(leases.size()); i++) {
+            DistributedLock lease = leases.get(Math.min(i, leases.size() - 1));
+            statement.setString(index + (2 * i), lease.getName());
+            statement.setLong(index + (2 * i) + 1, lease.getFencingToken());
+        }
+    }
+
+    /**
+     * Returns the given leases that carry a fencing token
+     * and adds the names of the others to the lost names.
+     */
+    static List<DistributedLock> granted(Collection<DistributedLock> locks, Set<String> lost) {
+
+        List<DistributedLock> granted = new ArrayList<>();
+        for (DistributedLock lock : locks) {
+            if (lock.getFencingToken() > 0L) {
+                granted.add(lock);
+            } else {
+                lost.add(lock.getName());
+            }
+        }
+        return granted;
+    }
+
+    /**
+     * Returns the names of the given leases that the given rows
+     * show as held under their fencing tokens until the given time.
+     */
+    static Set<String> renewed(List<DistributedLock> leases, List<DistributedLock> rows, long expiresAt) {
+
+        Map<String, DistributedLock> byName = new HashMap<>();
+        rows.forEach(row -> byName.put(row.getName(), row));
+
+        Set<String> renewed = new HashSet<>();
+        for (DistributedLock lease : leases) {
+            DistributedLock row = byName.get(lease.getName());
+            if (row != null && row.isGrantedTo(lease) && row.getExpirationTime().getTime() == expiresAt) {
+                renewed.add(lease.getName());
+            }
+        }
+        return renewed;
+    }
+
+    static int padded(int size) {
+        return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+    }
+
+    static void setNames(PreparedStatement statement, int index, List<String> names)
+        throws SQLException {
+
+        for (int i = 0; i < padded(names.size()); i++) {
+            // The padding repeats the last name which does
+            // not change the rows matched by the statement
+            statement.setString(index + i, names.get(Math.min(i, names.size() - 1)));
+        }
+    }
+
+    private static DistributedLock mapLock(ResultSet resultSet)
+        throws SQLException {
+
+        DistributedLock lock = new DistributedLock();
+        lock.setName(resultSet.getString(1));
+        lock.setHostname(resultSet.getString(2));
+        lock.setAddress(resultSet.getString(3));
+        lock.setThreadId(resultSet.getLong(4));
+        lock.setThreadName(resultSet.getString(5));
+        lock.setThreadGroupName(resultSet.getString(6));
+
+        if ("Y".equals(resultSet.getString(7))) {
+            lock.enableMaintenance();
+        } else {
+            lock.disableMaintenance();
+        }
+        lock.setLocked("Y".equals(resultSet.getString(8)));
+
+        lock.setUpdateTime(resultSet.getLong(9));
+        lock.setExpirationTime(resultSet.getLong(10));
+        lock.setReaders(resultSet.getInt(11));
+        lock.setReadExpirationTime(resultSet.getLong(12));
+        lock.setWriterWaitingUntil(resultSet.getLong(13));
+        lock.setFencingToken(resultSet.getLong(14));
+        return lock;
+    }
+
+    @FunctionalInterface
+    private interface Work<T> {
+        T run(Connection connection) throws SQLException;
+    }
+}
@@ -0,0 +1,856 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.data.DistributedLockReaderRepository;
+import org.appbricks.commons.sharedlock.data.DistributedLockRepository;
+import org.appbricks.commons.sharedlock.data.DistributedLockTicketRepository;
+import org.appbricks.commons.sharedlock.data.DistributedSemaphorePermitRepository;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockNotFoundException;
+import org.appbricks.commons.sharedlock.exception.MaintenanceEnabledException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.model.DistributedLockTicket;
+import org.appbricks.commons.sharedlock.model.DistributedLockReader;
+import org.appbricks.commons.sharedlock.model.DistributedSemaphorePermit;
+import org.hibernate.LockOptions;
+import org.hibernate.Session;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.PessimisticLockException;
+import javax.persistence.Query;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * The default lock store which keeps the locks in the database
+ * through the Spring Data JPA repositories.
+ */
+@Component
+@Transactional(isolation = Isolation.READ_COMMITTED)
+public class JpaLockStore
+    implements LockStore {
+
+    private static final Log log = LogFactory.getLog(JpaLockStore.class);
+
+    private static final int MAX_BATCH_SIZE = 500;
+
+    public static final long DEFAULT_WRITER_PREFERENCE_TIME = 5000L;
+
+    private static final String LOCK_TIMEOUT_HINT = "javax.persistence.lock.timeout";
+
+    private static final String INSERT_LOCK =
+        "insert into DistributedLock (name, hostname, address, threadId, threadName, threadGroupName, " +
+        "maintenance, locked, updatedTime, expiresAt, readers, readExpiresAt, writerWaitingUntil, fencingToken) " +
+        "values (?, '', '', -1, '', '', 'N', 'F', ?, 0, 0, 0, 0, ?)";
+
+    // SQL state class of integrity constraint violations
+    private static final String INTEGRITY_VIOLATION = "23";
+
+    private DistributedLockRepository distributedLockRepository;
+
+    @Autowired
+    private DistributedLockReaderRepository distributedLockReaderRepository;
+
+    @Autowired
+    private DistributedLockTicketRepository distributedLockTicketRepository;
+
+    @Autowired
+    private DistributedSemaphorePermitRepository distributedSemaphorePermitRepository;
+
+    @Autowired
+    private EntityManager entityManager;
+
+    private boolean useConditionalUpdate = true;
+
+    private long writerPreferenceTime = DEFAULT_WRITER_PREFERENCE_TIME;
+
+    private boolean nonBlocking = true;
+
+    private volatile RowLockWait rowLockWait;
+
+    private final ThreadLocal<Boolean> inBatch = new ThreadLocal<>();
+
+    private final FencingTokens fencingTokens = new FencingTokens();
+
+    @Autowired
+    public JpaLockStore(DistributedLockRepository distributedLockRepository) {
+        this.distributedLockRepository = distributedLockRepository;
+    }
+
+    /**
+     * Selects how locks are acquired. By default a lock is acquired with a single
+     * conditional update whose row count is the result of the attempt. Setting
+     * this to false falls back to reading the lock row with a pessimistic write
+     * lock and saving it, for databases that cannot handle the conditional update.
+     */
+    public void setUseConditionalUpdate(boolean useConditionalUpdate) {
+        this.useConditionalUpdate = useConditionalUpdate;
+    }
+
+    /**
+     * Selects whether an attempt to acquire a lock with the conditional update
+     * may wait for another transaction that holds the row of the lock. By
+     * default it does not. The row is locked with SKIP LOCKED or NOWAIT where
+     * the database dialect supports them, and a lock that is held is refused
+     * without updating its row. On databases that support neither, such as H2
+     * and MySQL before 8.0, and within batches the lock is updated right away
+     * as a read ahead of the update would not keep it from waiting.
+     */
+    public void setNonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+    }
+
+    /**
+     * Sets how long in milliseconds new shared holders are refused after
+     * an attempt to acquire a lock exclusively was refused because of its
+     * shared holders. Exclusive waiters renew this on each attempt.
+     */
+    public void setWriterPreferenceTime(long writerPreferenceTime) {
+        this.writerPreferenceTime = writerPreferenceTime;
+    }
+
+    /**
+     * Runs the operations in this transaction. The persistence context is
+     * cleared after each operation as the bulk updates of one operation are
+     * not seen by the entities another operation may have loaded.
+     */
+    @Override
+    public void runBatch(List<Runnable> operations) {
+
+        // A row that cannot be locked without waiting would leave the
+        // transaction of the whole batch unusable on some databases
+        this.inBatch.set(Boolean.TRUE);
+        try {
+            for (Runnable operation : operations) {
+                operation.run();
+                this.entityManager.flush();
+                this.entityManager.clear();
+            }
+        } finally {
+            this.inBatch.remove();
+        }
+    }
+
+    @Override
+    @Transactional(isolation = Isolation.READ_UNCOMMITTED)
+    public DistributedLock getLock(String name) {
+
+        DistributedLock lock = distributedLockRepository.findOne(name);
+        if (lock == null) {
+            this.insertLock(name);
+            lock = distributedLockRepository.findOne(name);
+        }
+
+        return lock;
+    }
+
+    @Override
+    public List<DistributedLock> getLocks(Collection<String> names) {
+
+        List<String> nameList = new ArrayList<>(names);
+        List<DistributedLock> locks = new ArrayList<>();
+        for (int i = 0; i < nameList.size(); i += MAX_BATCH_SIZE) {
+            locks.addAll(this.distributedLockRepository.findByNameIn(
+                nameList.subList(i, Math.min(i + MAX_BATCH_SIZE, nameList.size()))));
+        }
+        return locks;
+    }
+
+    @Override
+    public void createLocks(Collection<String> names) {
+
+        Set<String> missing = new HashSet<>(names);
+        for (DistributedLock distributedLock : this.getLocks(names)) {
+            missing.remove(distributedLock.getName());
+        }
+        for (String name : missing) {
+            this.insertLock(name);
+        }
+    }
+
+    /**
+     * Inserts the row of the named lock unless another process has just
+     * inserted it. The insert runs under a savepoint so that a duplicate
+     * key does not leave the transaction unusable on databases that abort
+     * a transaction after a failed statement.
+     */
+    private void insertLock(String name) {
+
+        this.entityManager.unwrap(Session.class).doWork(connection -> {
+
+            Savepoint savepoint = connection.setSavepoint();
+            try (PreparedStatement statement = connection.prepareStatement(INSERT_LOCK)) {
+
+                long now = System.currentTimeMillis();
+                statement.setString(1, name);
+                statement.setLong(2, now);
+                statement.setLong(3, JdbcLockStore.initialFencingToken(now));
+                statement.executeUpdate();
+
+            } catch (SQLException e) {
+
+                connection.rollback(savepoint);
+                if (e.getSQLState() == null || !e.getSQLState().startsWith(INTEGRITY_VIOLATION)) {
+                    throw e;
+                }
+                log.debug(String.format("Lock '%s' was created by another process.", name));
+            }
+        });
+    }
+
+    @Override
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        return this.useConditionalUpdate
+            ? this.tryAcquireWithConditionalUpdate(lock, expireAfter)
+            : this.tryAcquireWithRowLock(lock, expireAfter);
+    }
+
+    private DistributedLock tryAcquireWithConditionalUpdate(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        String name = lock.getName();
+        long now = System.currentTimeMillis();
+
+        // Without SKIP LOCKED or NOWAIT a read before the update would
+        // only add a statement as the update may wait on the row anyway
+        boolean checked = this.nonBlocking && this.inBatch.get() == null && this.getRowLockWait() != RowLockWait.WAIT;
+        if (checked) {
+            DistributedLock holder = this.checkWithoutWaiting(name);
+            if (holder != null) {
+                return holder;
+            }
+        }
+
+        Long fencingToken = this.fencingTokens.get(name);
+        if (fencingToken != null && this.acquire(lock, expireAfter, now, fencingToken)) {
+            return null;
+        }
+
+        // The token was not known or the update was refused so
+        // read the lock without locking its row to determine the reason
+        DistributedLock distributedLock = this.distributedLockRepository.findOne(name);
+        if (distributedLock == null) {
+            throw new LockNotFoundException("Lock '%s' was not found.", name);
+        }
+        if (checked) {
+            // The lock may have been read before the update
+            this.entityManager.refresh(distributedLock);
+        }
+
+        long current = distributedLock.getFencingToken();
+        this.fencingTokens.seen(name, current);
+
+        if (!distributedLock.isLocked() && !distributedLock.isReadLocked()
+            && (fencingToken == null || fencingToken != current)
+            && this.acquire(lock, expireAfter, now, current)) {
+            return null;
+        }
+        return this.refused(distributedLock, now);
+    }
+
+    /**
+     * Acquires the lock if it is free and still has the given fencing
+     * token, giving the lease the next token.
+     */
+    private boolean acquire(DistributedLock lock, int expireAfter, long now, long fencingToken) {
+
+        int updated = this.distributedLockRepository.acquire(lock.getName(), fencingToken, fencingToken + 1,
+            lock.getHostname(), lock.getAddress(),
+            lock.getThreadId(), lock.getThreadName(), lock.getThreadGroupName(),
+            now, now + (expireAfter * 1000L));
+
+        if (updated > 0) {
+            lock.setFencingToken(fencingToken + 1);
+            this.fencingTokens.seen(lock.getName(), fencingToken + 1);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Locks the row of the lock without waiting before it is updated so that
+     * the update never waits for the row of a lock that is held. Returns null
+     * if the lock can be updated, otherwise the lock to report to the caller.
+     */
+    private DistributedLock checkWithoutWaiting(String name)
+        throws LockException {
+
+        DistributedLock distributedLock;
+        try {
+            distributedLock = this.entityManager.find(DistributedLock.class, name, LockModeType.PESSIMISTIC_WRITE,
+                Collections.singletonMap(LOCK_TIMEOUT_HINT,
+                    this.getRowLockWait() == RowLockWait.SKIP_LOCKED ? LockOptions.SKIP_LOCKED : LockOptions.NO_WAIT));
+
+        } catch (PessimisticLockException | LockTimeoutException e) {
+
+            // The transaction cannot be used after the
+            // failed statement on some databases
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+
+            log.debug(String.format("Unable to acquire sharedlock '%s' as its row is locked.", name));
+            DistributedLock busy = new DistributedLock();
+            busy.setName(name);
+            busy.clear();
+            return busy;
+        }
+
+        if (distributedLock == null) {
+
+            // The row was skipped as another transaction has locked it
+            distributedLock = this.distributedLockRepository.findOne(name);
+            if (distributedLock != null) {
+                if (distributedLock.isLocked() && distributedLock.isMaintenanceMode()) {
+                    throw new MaintenanceEnabledException("Lock '%s' is in maintenance mode so it cannot be locked.", name);
+                }
+                log.debug(String.format("Unable to acquire sharedlock '%s' as its row is locked.", name));
+                return distributedLock;
+            }
+        }
+
+        if (distributedLock == null) {
+            throw new LockNotFoundException("Lock '%s' was not found.", name);
+        }
+        if (!distributedLock.isLocked() && !distributedLock.isReadLocked()) {
+            // The row is locked so the update is given the token just read
+            this.fencingTokens.seen(name, distributedLock.getFencingToken());
+            return null;
+        }
+        return this.refused(distributedLock, System.currentTimeMillis());
+    }
+
+    private DistributedLock refused(DistributedLock distributedLock, long now)
+        throws LockException {
+
+        String name = distributedLock.getName();
+        if (distributedLock.isLocked() && distributedLock.isMaintenanceMode()) {
+            throw new MaintenanceEnabledException("Lock '%s' is in maintenance mode so it cannot be locked.", name);
+        }
+        if (!distributedLock.isLocked() && distributedLock.isReadLocked()) {
+            this.distributedLockRepository.markWriterWaiting(name, now + this.writerPreferenceTime);
+        }
+
+        log.debug(
+            String.format("Unable to acquire sharedlock as it is locked by another process or thread: %s",
+            distributedLock.toString()));
+
+        return distributedLock;
+    }
+
+    /**
+     * Determines from the database dialect how a row can be locked without
+     * waiting. SKIP LOCKED is preferred as a skipped row does not fail the
+     * transaction the way a refused NOWAIT does on some databases.
+     */
+    private RowLockWait getRowLockWait() {
+
+        if (this.rowLockWait == null) {
+
+            Dialect dialect = this.entityManager.getEntityManagerFactory()
+                .unwrap(SessionFactoryImplementor.class).getDialect();
+
+            String forUpdate = dialect.getForUpdateString();
+            if (!forUpdate.equals(dialect.getForUpdateSkipLockedString())) {
+                this.rowLockWait = RowLockWait.SKIP_LOCKED;
+            } else if (!forUpdate.equals(dialect.getForUpdateNowaitString())) {
+                this.rowLockWait = RowLockWait.NOWAIT;
+            } else {
+                this.rowLockWait = RowLockWait.WAIT;
+            }
+            log.info(String.format("Lock rows are locked with %s for %s.", this.rowLockWait, dialect));
+        }
+        return this.rowLockWait;
+    }
+
+    private DistributedLock tryAcquireWithRowLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        String name = lock.getName();
+
+        DistributedLock distributedLock = this.distributedLockRepository.findByName(name);
+        if (distributedLock == null) {
+            throw new LockNotFoundException("Lock '%s' was not found.", name);
+        }
+        if (distributedLock.isLocked()) {
+
+            if (distributedLock.isMaintenanceMode()) {
+                throw new MaintenanceEnabledException("Lock '%s' is in maintenance mode so it cannot be locked.", name);
+            }
+
+            this.entityManager.refresh(distributedLock, LockModeType.PESSIMISTIC_WRITE);
+            if (distributedLock.isLocked()) {
+                log.debug(
+                    String.format("Unable to acquire sharedlock as it is locked by another process or thread: %s",
+                    distributedLock.toString()));
+
+                return distributedLock;
+            }
+        }
+        if (distributedLock.isReadLocked()) {
+            log.debug(
+                String.format("Unable to acquire sharedlock as it has shared holders: %s",
+                distributedLock.toString()));
+
+            this.distributedLockRepository.markWriterWaiting(name, System.currentTimeMillis() + this.writerPreferenceTime);
+            return distributedLock;
+        }
+
+        distributedLock.lock(lock, expireAfter);
+        this.distributedLockRepository.save(distributedLock);
+        lock.setFencingToken(distributedLock.getFencingToken());
+
+        return null;
+    }
+
+    @Override
+    public boolean transferLock(DistributedLock from, DistributedLock to, int expireAfter) {
+
+        long now = System.currentTimeMillis();
+        int updated = this.distributedLockRepository.transfer(to.getName(),
+            from.getHostname(), from.getAddress(),
+            from.getThreadId(), from.getThreadName(), from.getThreadGroupName(),
+            to.getThreadId(), to.getThreadName(), to.getThreadGroupName(),
+            now, now + (expireAfter * 1000L));
+
+        if (updated == 0) {
+            return false;
+        }
+        to.setFencingToken(this.distributedLockRepository.findFencingToken(to.getName()));
+        return true;
+    }
+
+    @Override
+    public boolean extendLock(DistributedLock lock, long expiresAt) {
+
+        int updated = this.distributedLockRepository.extend(lock.getName(),
+            lock.getHostname(), lock.getAddress(),
+            lock.getThreadId(), lock.getThreadName(), lock.getThreadGroupName(),
+            System.currentTimeMillis(), expiresAt);
+
+        return updated > 0;
+    }
+
+    @Override
+    public boolean raiseFencingToken(DistributedLock lock, long fencingToken) {
+
+        if (lock.getFencingToken() <= 0L || this.distributedLockRepository.raiseFencingToken(lock.getName(),
+            lock.getFencingToken(), fencingToken, System.currentTimeMillis()) == 0) {
+
+            return false;
+        }
+        lock.setFencingToken(fencingToken);
+        return true;
+    }
+
+    /**
+     * Extends the leases on the given locks with one update statement per
+     * batch of leases. Each lease is matched by its fencing token, so a
+     * lease that was lost and taken by another owner is not renewed even
+     * if that owner is in the same process or on the same host. Leases
+     * without a fencing token are reported as lost.
+     */
+    @Override
+    public Set<String> renewLocks(Collection<DistributedLock> locks, long expiresAt) {
+
+        Set<String> lost = new HashSet<>();
+        List<DistributedLock> granted = JdbcLockStore.granted(locks, lost);
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < granted.size(); i += MAX_BATCH_SIZE) {
+
+            List<DistributedLock> batch = granted.subList(i, Math.min(i + MAX_BATCH_SIZE, granted.size()));
+            int updated = this.renew(batch, now, expiresAt);
+
+            if (updated < batch.size()) {
+
+                // Determine which leases were not renewed
+                List<String> names = batch.stream().map(DistributedLock::getName).collect(Collectors.toList());
+                lost.addAll(names);
+                lost.removeAll(JdbcLockStore.renewed(batch,
+                    this.distributedLockRepository.findByNameIn(names), expiresAt));
+            }
+        }
+
+        return lost;
+    }
+
+    /**
+     * Extends the given leases that are still held under their fencing
+     * tokens. The number of leases is padded to a power of two so that
+     * only a handful of distinct queries are compiled.
+     */
+    private int renew(List<DistributedLock> leases, long now, long expiresAt) {
+
+        int padded = JdbcLockStore.padded(leases.size());
+        StringBuilder jpql = new StringBuilder("update DistributedLock l " +
+            "set l.updatedTime = :now, l.expiresAt = :expiresAt " +
+            "where l.locked = 'Y' and l.expiresAt > :now and (");
+        for (int i = 0; i < padded; i++) {
+            jpql.append(i > 0 ? " or " : "").append("(l.name = :name").append(i)
+                .append(" and l.fencingToken = :fencingToken").append(i).append(")");
+        }
+
+        Query query = this.entityManager.createQuery(jpql.append(")").toString())
+            .setParameter("now", now)
+            .setParameter("expiresAt", expiresAt);
+        for (int i = 0; i < padded; i++) {
+            DistributedLock lease = leases.get(Math.min(i, leases.size() - 1));
+            query.setParameter("name" + i, lease.getName());
+            query.setParameter("fencingToken" + i, lease.getFencingToken());
+        }
+        return query.executeUpdate();
+    }
+
+    @Override
+    public DistributedLock validate(DistributedLock lock)
+        throws LockException {
+
+        DistributedLock distributedLock = this.distributedLockRepository.findOne(lock.getName());
+        if (distributedLock == null) {
+            // The row is only inserted by the first acquire
+            // of the lock so the lock is not held by anyone
+            return new DistributedLock(lock.getName());
+        }
+        return this.checkOwner(lock, distributedLock);
+    }
+
+    private DistributedLock checkOwner(DistributedLock lock, DistributedLock distributedLock)
+        throws LockException {
+
+        if (distributedLock == null) {
+            throw new LockException("Lock '%s' does not exist.", lock.getName());
+        }
+
+        if (!distributedLock.isGrantedTo(lock) && distributedLock.isLocked()) {
+            throw new InvalidLockException("Expected locked state: %s, Actual state: %s", lock, distributedLock);
+        }
+
+        return distributedLock;
+    }
+
+    @Override
+    public boolean releaseLock(DistributedLock lock) {
+
+        if (lock.getFencingToken() > 0L) {
+            return this.distributedLockRepository.releaseGranted(
+                lock.getName(), lock.getFencingToken(), System.currentTimeMillis()) > 0;
+        }
+        return this.releaseLocks(Collections.singletonList(lock.getName()), lock) > 0;
+    }
+
+    @Override
+    public void enterMaintenanceMode(DistributedLock lock)
+        throws LockException {
+
+        DistributedLock distributedLock = this.checkOwner(lock, this.distributedLockRepository.findByName(lock.getName()));
+        distributedLock.enableMaintenance();
+        this.distributedLockRepository.save(distributedLock);
+    }
+
+    @Override
+    public void exitMaintenanceMode(String name)
+        throws LockException {
+
+        DistributedLock distributedLock = distributedLockRepository.findByName(name);
+        if (distributedLock == null) {
+            throw new LockException("Lock '%s' does not exist.", name);
+        }
+        if (!distributedLock.isLocked() && !distributedLock.isMaintenanceMode()) {
+            throw new LockException("Lock '%s' is not in maintenance mode", name);
+        }
+        distributedLock.clear();
+        this.distributedLockRepository.save(distributedLock);
+    }
+
+    /**
+     * Takes all the locks that are free with a single update per batch of
+     * names. The transaction is rolled back if any of the locks is held by
+     * another owner.
+     */
+    @Override
+    public List<DistributedLock> tryAcquireLocks(List<String> names, DistributedLock owner, int expireAfter) {
+
+        long now = System.currentTimeMillis();
+        int updated = 0;
+        for (int i = 0; i < names.size(); i += MAX_BATCH_SIZE) {
+
+            updated += this.distributedLockRepository.acquireAll(
+                names.subList(i, Math.min(i + MAX_BATCH_SIZE, names.size())),
+                owner.getHostname(), owner.getAddress(),
+                owner.getThreadId(), owner.getThreadName(), owner.getThreadGroupName(),
+                now, now + (expireAfter * 1000L));
+        }
+        if (updated == names.size()) {
+            return null;
+        }
+
+        TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+        return this.getLocks(names).stream()
+            .filter(distributedLock -> distributedLock.isLocked() && !distributedLock.equals(owner))
+            .collect(Collectors.toList());
+    }
+
+    @Override
+    public int releaseLocks(List<String> names, DistributedLock owner) {
+
+        long now = System.currentTimeMillis();
+        int updated = 0;
+        for (int i = 0; i < names.size(); i += MAX_BATCH_SIZE) {
+
+            updated += this.distributedLockRepository.releaseAll(
+                names.subList(i, Math.min(i + MAX_BATCH_SIZE, names.size())),
+                owner.getHostname(), owner.getAddress(),
+                owner.getThreadId(), owner.getThreadName(), owner.getThreadGroupName(),
+                now);
+        }
+        return updated;
+    }
+
+    @Override
+    public List<String> getLockNames(String after, int limit) {
+        return this.distributedLockRepository.findNamesAfter(after == null ? "" : after, new PageRequest(0, limit));
+    }
+
+    @Override
+    public int deleteIdleLocks(Collection<String> names, long idleSince) {
+
+        List<String> nameList = new ArrayList<>(names);
+        long now = System.currentTimeMillis();
+        int deleted = 0;
+        for (int i = 0; i < nameList.size(); i += MAX_BATCH_SIZE) {
+            List<String> batch = nameList.subList(i, Math.min(i + MAX_BATCH_SIZE, nameList.size()));
+            deleted += this.distributedLockRepository.deleteIdle(batch, idleSince, now);
+            this.distributedLockReaderRepository.removeExpired(batch, now);
+        }
+        return deleted;
+    }
+
+    @Override
+    public DistributedLock tryAcquireReadLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        String name = lock.getName();
+        long now = System.currentTimeMillis();
+        long expiresAt = now + (expireAfter * 1000L);
+
+        // The lock row stays locked until the transaction ends so
+        // its shared leases are not changed by another transaction
+        if (this.distributedLockRepository.admitReader(name, now) > 0) {
+
+            if (this.distributedLockReaderRepository.renew(name, lock.getHostname(), lock.getThreadId(), expiresAt) == 0) {
+                this.distributedLockReaderRepository.save(new DistributedLockReader(lock, expiresAt));
+            }
+            this.updateReaders(name, now);
+            return null;
+        }
+
+        DistributedLock distributedLock = this.distributedLockRepository.findOne(name);
+        if (distributedLock == null) {
+            throw new LockNotFoundException("Lock '%s' was not found.", name);
+        }
+        if (distributedLock.isLocked() && distributedLock.isMaintenanceMode()) {
+            throw new MaintenanceEnabledException("Lock '%s' is in maintenance mode so it cannot be locked.", name);
+        }
+        return distributedLock;
+    }
+
+    @Override
+    public void releaseReadLock(DistributedLock lock) {
+
+        String name = lock.getName();
+        long now = System.currentTimeMillis();
+        if (this.distributedLockReaderRepository.release(name, lock.getHostname(), lock.getThreadId()) > 0 &&
+            this.distributedLockRepository.touch(name, now) > 0) {
+
+            this.updateReaders(name, now);
+        }
+    }
+
+    /**
+     * Sets the number of live shared leases on the lock and the latest of
+     * their expiry times from the shared leases of the lock, and removes
+     * the leases that have expired. The lock row must have been updated
+     * by the transaction so that the leases do not change meanwhile.
+     */
+    private void updateReaders(String name, long now) {
+
+        int readers = 0;
+        long readExpiresAt = 0L;
+        boolean expired = false;
+        for (DistributedLockReader reader : this.distributedLockReaderRepository.findByName(name)) {
+
+            long expiresAt = reader.getExpirationTime().getTime();
+            if (expiresAt > now) {
+                readers++;
+                readExpiresAt = Math.max(readExpiresAt, expiresAt);
+            } else {
+                expired = true;
+            }
+        }
+        if (expired) {
+            this.distributedLockReaderRepository.removeExpired(Collections.singletonList(name), now);
+        }
+        this.distributedLockRepository.setReaders(name, readers, readExpiresAt);
+    }
+
+    @Override
+    public void createPermits(String name, int permits) {
+
+        Set<Integer> slots = new HashSet<>();
+        for (DistributedSemaphorePermit permit :
+            this.distributedSemaphorePermitRepository.findByNameAndSlotLessThan(name, permits)) {
+
+            slots.add(permit.getSlot());
+        }
+        for (int slot = 0; slot < permits; slot++) {
+            if (!slots.contains(slot)) {
+                this.distributedSemaphorePermitRepository.save(new DistributedSemaphorePermit(name, slot));
+            }
+        }
+    }
+
+    /**
+     * Takes each permit with a single conditional update of its own row. The
+     * free permits are tried in random order so that concurrent acquirers
+     * spread over the rows instead of queueing on the same one.
+     */
+    @Override
+    public List<Integer> tryAcquirePermits(DistributedLock lock, int permits, int count, int expireAfter) {
+
+        String name = lock.getName();
+        long now = System.currentTimeMillis();
+
+        List<DistributedSemaphorePermit> free =
+            this.distributedSemaphorePermitRepository.findByNameAndSlotLessThan(name, permits).stream()
+                .filter(permit -> !permit.isHeld())
+                .collect(Collectors.toList());
+
+        if (free.size() < count) {
+            return Collections.emptyList();
+        }
+        Collections.shuffle(free, ThreadLocalRandom.current());
+
+        List<Integer> slots = new ArrayList<>();
+        for (DistributedSemaphorePermit permit : free) {
+
+            int updated = this.distributedSemaphorePermitRepository.acquire(name, permit.getSlot(),
+                lock.getHostname(), lock.getAddress(), lock.getThreadId(), lock.getThreadName(),
+                now, now + (expireAfter * 1000L));
+
+            if (updated > 0 && slots.add(permit.getSlot()) && slots.size() == count) {
+                return slots;
+            }
+        }
+
+        // Not all the permits could be taken
+        TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+        return Collections.emptyList();
+    }
+
+    @Override
+    public int releasePermits(DistributedLock lock, Collection<Integer> slots) {
+
+        return this.distributedSemaphorePermitRepository.release(lock.getName(), slots,
+            lock.getHostname(), lock.getAddress(), lock.getThreadId(), lock.getThreadName(),
+            System.currentTimeMillis());
+    }
+
+    @Override
+    public int availablePermits(String name, int permits) {
+
+        return (int) this.distributedSemaphorePermitRepository.findByNameAndSlotLessThan(name, permits).stream()
+            .filter(permit -> !permit.isHeld())
+            .count();
+    }
+
+    @Override
+    public DistributedLockTicket enterFairQueue(DistributedLock lock, int ticketTimeToLive) {
+
+        long now = System.currentTimeMillis();
+        this.distributedLockTicketRepository.removeExpired(lock.getName(), now);
+
+        DistributedLockTicket ticket = new DistributedLockTicket();
+        ticket.setName(lock.getName());
+        ticket.setHostname(lock.getHostname());
+        ticket.setAddress(lock.getAddress());
+        ticket.setThreadId(lock.getThreadId());
+        ticket.setExpiresAt(now + (ticketTimeToLive * 1000L));
+
+        return this.distributedLockTicketRepository.save(ticket);
+    }
+
+    @Override
+    public void leaveFairQueue(DistributedLockTicket ticket) {
+        this.distributedLockTicketRepository.remove(ticket.getId());
+    }
+
+    /**
+     * The lock is only attempted if no live ticket was issued before the
+     * given ticket, otherwise the number of tickets ahead is recorded on the
+     * ticket. The ticket is removed once the lock has been acquired.
+     */
+    @Override
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter,
+        DistributedLockTicket ticket, int ticketTimeToLive)
+        throws LockException {
+
+        String name = lock.getName();
+        long now = System.currentTimeMillis();
+        long expiresAt = now + (ticketTimeToLive * 1000L);
+
+        if (this.distributedLockTicketRepository.refresh(ticket.getId(), expiresAt) == 0) {
+
+            // The ticket expired and was removed so
+            // rejoin the queue with a new ticket
+            ticket.setId(this.enterFairQueue(lock, ticketTimeToLive).getId());
+        }
+        ticket.setExpiresAt(expiresAt);
+
+        long ahead = this.distributedLockTicketRepository.countAhead(name, ticket.getId(), now);
+        ticket.setAhead(ahead);
+
+        if (ahead > 0) {
+
+            DistributedLock distributedLock = this.distributedLockRepository.findOne(name);
+            if (distributedLock == null) {
+                throw new LockNotFoundException("Lock '%s' was not found.", name);
+            }
+            return distributedLock;
+        }
+
+        DistributedLock holder = this.tryAcquireLock(lock, expireAfter);
+        if (holder == null) {
+            this.distributedLockTicketRepository.remove(ticket.getId());
+        }
+        return holder;
+    }
+
+    /**
+     * How the row of a lock is locked before it is updated.
+     */
+    private enum RowLockWait {
+        WAIT, NOWAIT, SKIP_LOCKED
+    }
+}
@@ -0,0 +1,167 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The binary protocol spoken between the RemoteLockStore and the lock
+ * server. Each frame starts with the length of the rest of the frame
+ * followed by a request id and a code. Requests carry an operation code
+ * and responses the status of the operation. A client may send requests
+ * without waiting for the responses to earlier requests and responses
+ * carry the id of their request. Frames with request id 0 are pushed by
+ * the server and carry the name of a lock that was released.
+ */
+public final class LockProtocol {
+
+    public static final int DEFAULT_PORT = 7477;
+
+    public static final int PUSH_REQUEST_ID = 0;
+
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+
+    // Operations
+    public static final byte GET_LOCK = 1;
+    public static final byte GET_LOCKS = 2;
+    public static final byte CREATE_LOCKS = 3;
+    public static final byte TRY_ACQUIRE = 4;
+    public static final byte TRANSFER = 5;
+    public static final byte EXTEND = 6;
+    public static final byte RENEW = 7;
+    public static final byte VALIDATE = 8;
+    public static final byte RELEASE = 9;
+    public static final byte ENTER_MAINTENANCE = 10;
+    public static final byte EXIT_MAINTENANCE = 11;
+    public static final byte TRY_ACQUIRE_ALL = 12;
+    public static final byte RELEASE_ALL = 13;
+    public static final byte TRY_ACQUIRE_READ = 14;
+    public static final byte RELEASE_READ = 15;
+    public static final byte RELEASED = 16;
+    public static final byte GET_LOCK_NAMES = 17;
+    public static final byte DELETE_IDLE = 18;
+    public static final byte RAISE_FENCING_TOKEN = 19;
+
+    // Statuses
+    public static final byte OK = 0;
+    public static final byte LOCK_ERROR = 1;
+    public static final byte INVALID_LOCK = 2;
+    public static final byte MAINTENANCE_ENABLED = 3;
+    public static final byte UNSUPPORTED = 4;
+    public static final byte ERROR = 5;
+    public static final byte LOCK_NOT_FOUND = 6;
+
+    private LockProtocol() {
+    }
+
+    public static void writeString(DataOutput out, String value)
+        throws IOException {
+
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    public static String readString(DataInput in)
+        throws IOException {
+
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    public static void writeNames(DataOutput out, Collection<String> names)
+        throws IOException {
+
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    public static List<String> readNames(DataInput in)
+        throws IOException {
+
+        int size = in.readInt();
+        List<String> names = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+
+    public static void writeLock(DataOutput out, DistributedLock lock)
+        throws IOException {
+
+        out.writeBoolean(lock != null);
+        if (lock == null) {
+            return;
+        }
+
+        writeString(out, lock.getName());
+        writeString(out, lock.getHostname());
+        writeString(out, lock.getAddress());
+        out.writeLong(lock.getThreadId());
+        writeString(out, lock.getThreadName());
+        writeString(out, lock.getThreadGroupName());
+        out.writeBoolean(lock.isLocked());
+        out.writeBoolean(lock.isMaintenanceMode());
+        out.writeLong(lock.getUpdateTime().getTime());
+        out.writeLong(lock.getExpirationTime().getTime());
+        out.writeInt(lock.getReaders());
+        out.writeLong(lock.getReadExpirationTime().getTime());
+        out.writeLong(lock.getWriterWaitingUntil().getTime());
+        out.writeLong(lock.getFencingToken());
+    }
+
+    public static DistributedLock readLock(DataInput in)
+        throws IOException {
+
+        if (!in.readBoolean()) {
+            return null;
+        }
+
+        DistributedLock lock = new DistributedLock();
+        lock.setName(readString(in));
+        lock.setHostname(readString(in));
+        lock.setAddress(readString(in));
+        lock.setThreadId(in.readLong());
+        lock.setThreadName(readString(in));
+        lock.setThreadGroupName(readString(in));
+        lock.setLocked(in.readBoolean());
+        if (in.readBoolean()) {
+            lock.enableMaintenance();
+        }
+        lock.setUpdateTime(in.readLong());
+        lock.setExpirationTime(in.readLong());
+        lock.setReaders(in.readInt());
+        lock.setReadExpirationTime(in.readLong());
+        lock.setWriterWaitingUntil(in.readLong());
+        lock.setFencingToken(in.readLong());
+        return lock;
+    }
+
+    public static void writeLocks(DataOutput out, Collection<DistributedLock> locks)
+        throws IOException {
+
+        out.writeInt(locks.size());
+        for (DistributedLock lock : locks) {
+            writeLock(out, lock);
+        }
+    }
+
+    public static List<DistributedLock> readLocks(DataInput in)
+        throws IOException {
+
+        int size = in.readInt();
+        List<DistributedLock> locks = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            locks.add(readLock(in));
+        }
+        return locks;
+    }
+}
@@ -0,0 +1,239 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.model.DistributedLockTicket;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Storage of the state of distributed locks. The DistributedLockService
+ * decides when locks are acquired and released while a store only applies
+ * each change atomically and reports the state of the locks. A lock passed
+ * to a store carries the name of the lock and the metadata of its owner.
+ *
+ * Exclusive locks must be supported by every store. The remaining
+ * operations are optional and throw UnsupportedOperationException
+ * unless the store implements them.
+ */
+public interface LockStore {
+
+    /**
+     * Returns the current state of the named lock, creating
+     * the lock if it does not exist.
+     */
+    DistributedLock getLock(String name);
+
+    /**
+     * Returns the current state of the named locks that exist.
+     */
+    List<DistributedLock> getLocks(Collection<String> names);
+
+    /**
+     * Creates the named locks that do not exist yet.
+     */
+    void createLocks(Collection<String> names);
+
+    /**
+     * Attempts to acquire the given lock once for its owner. Returns null if
+     * the lock was acquired, otherwise it returns the current state of the
+     * lock which is held by another owner.
+     */
+    DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter)
+        throws LockException;
+
+    /**
+     * Hands a lock from one owner to another owner in the same process
+     * without releasing it in between. Returns false if the lease is no
+     * longer held by the first owner.
+     */
+    boolean transferLock(DistributedLock from, DistributedLock to, int expireAfter);
+
+    /**
+     * Extends the lease on a lock held by the given owner to the given
+     * expiry time. Returns false if the lease is no longer held.
+     */
+    boolean extendLock(DistributedLock lock, long expiresAt);
+
+    /**
+     * Extends the leases on the given locks to the given expiry time. Each
+     * lease is matched by the fencing token it was granted, so a lease that
+     * has since been granted to another owner is not renewed. Returns the
+     * names of the locks whose leases could not be renewed.
+     */
+    Set<String> renewLocks(Collection<DistributedLock> locks, long expiresAt);
+
+    /**
+     * Raises the fencing token of a lease to the given larger token, so that
+     * later leases on the lock get larger tokens. The lease is matched by the
+     * fencing token of the given owner, which is set to the new token. Returns
+     * false if the lease is no longer held.
+     */
+    default boolean raiseFencingToken(DistributedLock lock, long fencingToken) {
+        throw new UnsupportedOperationException("Raising fencing tokens is not supported by this store.");
+    }
+
+    /**
+     * Returns the current state of the given lock after validating that
+     * it is either held by the given owner or not held at all. A lock that
+     * does not exist in the store is returned as a lock that is not held.
+     */
+    DistributedLock validate(DistributedLock lock)
+        throws LockException;
+
+    /**
+     * Releases the given lock if it is held by the given owner.
+     * Returns false if the lock is no longer held by that owner.
+     */
+    boolean releaseLock(DistributedLock lock);
+
+    /**
+     * Puts the given lock, which must be held by the given owner,
+     * in maintenance mode.
+     */
+    void enterMaintenanceMode(DistributedLock lock)
+        throws LockException;
+
+    /**
+     * Releases the named lock if it is in maintenance mode or held.
+     */
+    void exitMaintenanceMode(String name)
+        throws LockException;
+
+    /**
+     * Registers a listener to be called with the name of a lock whenever the
+     * store sees it released, so that waiters can be woken instead of waiting
+     * for their next check. Stores that cannot see the releases of other
+     * processes ignore the listener.
+     */
+    default void setReleaseListener(Consumer<String> listener) {
+    }
+
+    /**
+     * Runs the given operations on this store as one unit of work. The
+     * database stores run them in one transaction on one connection, and if
+     * this throws an exception none of their changes were committed. The
+     * operations must handle their own errors. Other stores simply run the
+     * operations in order.
+     */
+    default void runBatch(List<Runnable> operations) {
+        operations.forEach(Runnable::run);
+    }
+
+    /**
+     * Attempts to acquire all the named locks for the given owner at once.
+     * Returns null if all the locks were acquired, otherwise none of them
+     * are acquired and the locks held by other owners are returned.
+     */
+    default List<DistributedLock> tryAcquireLocks(List<String> names, DistributedLock owner, int expireAfter) {
+        throw new UnsupportedOperationException("Acquiring multiple locks at once is not supported by this store.");
+    }
+
+    /**
+     * Releases the named locks that are held by the given owner and
+     * returns the number of locks that were released.
+     */
+    default int releaseLocks(List<String> names, DistributedLock owner) {
+        throw new UnsupportedOperationException("Releasing multiple locks at once is not supported by this store.");
+    }
+
+    /**
+     * Attempts to add the owner of the given lock as a shared holder of the
+     * lock. Each shared holder has its own lease, which is renewed if the
+     * owner already holds one. Returns null if the lock was acquired or the
+     * current state of the lock otherwise.
+     */
+    default DistributedLock tryAcquireReadLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        throw new UnsupportedOperationException("Shared locks are not supported by this store.");
+    }
+
+    /**
+     * Removes the shared lease of the owner of the given lock. The
+     * leases of the other shared holders are left as they are.
+     */
+    default void releaseReadLock(DistributedLock lock) {
+        throw new UnsupportedOperationException("Shared locks are not supported by this store.");
+    }
+
+    /**
+     * Returns up to limit names of locks in name order starting after
+     * the given name, or from the first lock if the name is null.
+     */
+    default List<String> getLockNames(String after, int limit) {
+        throw new UnsupportedOperationException("Deleting idle locks is not supported by this store.");
+    }
+
+    /**
+     * Deletes the named locks that are neither held nor shared, and have
+     * not been updated since the given time. The conditions are checked
+     * by the delete itself so a lock that is acquired or created again
+     * after it was found idle is not deleted. Returns the number of locks
+     * that were deleted.
+     */
+    default int deleteIdleLocks(Collection<String> names, long idleSince) {
+        throw new UnsupportedOperationException("Deleting idle locks is not supported by this store.");
+    }
+
+    /**
+     * Creates the permits of the named semaphore that do not exist yet.
+     */
+    default void createPermits(String name, int permits) {
+        throw new UnsupportedOperationException("Semaphores are not supported by this store.");
+    }
+
+    /**
+     * Attempts to take the given number of the permits of the named
+     * semaphore for the given owner. Either all or none of the permits
+     * are taken. Returns the slots of the permits taken or an empty list
+     * if they could not all be taken.
+     */
+    default List<Integer> tryAcquirePermits(DistributedLock lock, int permits, int count, int expireAfter) {
+        throw new UnsupportedOperationException("Semaphores are not supported by this store.");
+    }
+
+    /**
+     * Frees the given permits of the named semaphore that are still held by
+     * the given owner. Returns the number of permits that were freed.
+     */
+    default int releasePermits(DistributedLock lock, Collection<Integer> slots) {
+        throw new UnsupportedOperationException("Semaphores are not supported by this store.");
+    }
+
+    /**
+     * Returns the number of permits of the named semaphore that are free.
+     */
+    default int availablePermits(String name, int permits) {
+        throw new UnsupportedOperationException("Semaphores are not supported by this store.");
+    }
+
+    /**
+     * Issues a ticket to wait for the given lock in fair mode.
+     */
+    default DistributedLockTicket enterFairQueue(DistributedLock lock, int ticketTimeToLive) {
+        throw new UnsupportedOperationException("Fair mode is not supported by this store.");
+    }
+
+    /**
+     * Removes a ticket that was not used to acquire its lock.
+     */
+    default void leaveFairQueue(DistributedLockTicket ticket) {
+        throw new UnsupportedOperationException("Fair mode is not supported by this store.");
+    }
+
+    /**
+     * Attempts to acquire the given lock in fair mode with the given ticket.
+     * Returns null if the lock was acquired or the current state of the lock
+     * otherwise.
+     */
+    default DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter,
+        DistributedLockTicket ticket, int ticketTimeToLive)
+        throws LockException {
+
+        throw new UnsupportedOperationException("Fair mode is not supported by this store.");
+    }
+}
@@ -0,0 +1,1076 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockNotFoundException;
+import org.appbricks.commons.sharedlock.exception.MaintenanceEnabledException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A lock store that keeps the locks in a file mapped into memory so that
+ * processes on the same host can coordinate without a database. The file
+ * is a table of fixed size slots, each holding the same fields as the lock
+ * table. The slot of a lock is found by hashing its name and probing the
+ * following slots. New locks are given slots while holding a lock on the
+ * header of the file, so a name is never given two slots. The slots of
+ * locks deleted while idle are marked deleted rather than free, so that
+ * probing passes over them to the names placed after them, and are given
+ * to new locks again.
+ *
+ * Every change to a slot is made while holding a lock on the byte range of
+ * the slot in the file, so changes are atomic across processes, together
+ * with a mutex for the slot as file locks are held by the whole process.
+ * The operating system releases the file locks of a process that dies and
+ * the leases it held expire as they would in the database.
+ *
+ * Each slot also has a table of the shared leases on its lock, keyed by
+ * a hash of the host name and the thread of the holder, so that shared
+ * leases expire and are released one by one. A shared holder is refused
+ * while the table is full of live leases.
+ *
+ * Only one store may be opened on a file in each process. Shared locks and
+ * multiple lock acquisition are supported. Semaphores and fair mode require
+ * the JPA store.
+ */
+public class MappedFileLockStore
+    implements LockStore, Closeable {
+
+    private static final Log log = LogFactory.getLog(MappedFileLockStore.class);
+
+    public static final int DEFAULT_SLOTS = 4096;
+
+    public static final long DEFAULT_WRITER_PREFERENCE_TIME = 5000L;
+
+    private static final int MAGIC = 0x534c4b32;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 2048;
+
+    // Header fields
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_SLOTS = 4;
+
+    // Slot fields
+    private static final int USED = 0;
+    private static final int LOCKED = 4;
+    private static final int MAINTENANCE = 5;
+    private static final int THREAD_ID = 8;
+    private static final int UPDATED_TIME = 16;
+    private static final int EXPIRES_AT = 24;
+    private static final int READERS = 32;
+    private static final int READ_EXPIRES_AT = 40;
+    private static final int WRITER_WAITING_UNTIL = 48;
+    private static final int FENCING_TOKEN = 56;
+    private static final int NAME = 64;
+    private static final int HOSTNAME = 272;
+    private static final int ADDRESS = 480;
+    private static final int THREAD_NAME = 552;
+    private static final int THREAD_GROUP_NAME = 760;
+    private static final int READER_TABLE = 1024;
+
+    // Shared lease fields
+    private static final int READER_HOSTNAME_HASH = 0;
+    private static final int READER_THREAD_ID = 8;
+    private static final int READER_EXPIRES_AT = 16;
+
+    private static final int READER_SIZE = 24;
+    private static final int MAX_READERS = (SLOT_SIZE - READER_TABLE) / READER_SIZE;
+
+    // Slot states
+    private static final int SLOT_FREE = 0;
+    private static final int SLOT_USED = 1;
+    private static final int SLOT_DELETED = 2;
+
+    private static final int MAX_STRING_BYTES = 200;
+    private static final int MAX_ADDRESS_BYTES = 64;
+
+    private final File file;
+    private final int slots;
+
+    private volatile FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    private final ReentrantLock[] mutexes;
+    private final FileLock[] fileLocks;
+
+    private final ReentrantLock tableMutex = new ReentrantLock();
+    private FileLock tableLock;
+
+    private final ConcurrentMap<String, Integer> slotsByName = new ConcurrentHashMap<>();
+
+    private volatile boolean closed;
+
+    private long writerPreferenceTime = DEFAULT_WRITER_PREFERENCE_TIME;
+
+    private volatile Consumer<String> releaseListener = name -> { };
+
+    public MappedFileLockStore(File file)
+        throws IOException {
+
+        this(file, DEFAULT_SLOTS);
+    }
+
+    /**
+     * Opens the lock table in the given file, creating it with the given
+     * number of slots if it does not exist. An existing table keeps the
+     * number of slots it was created with.
+     */
+    public MappedFileLockStore(File file, int slots)
+        throws IOException {
+
+        this.file = file;
+        this.channel = this.open();
+
+        FileLock header = this.channel.lock(0L, HEADER_SIZE, false);
+        try {
+            if (this.channel.size() < HEADER_SIZE) {
+
+                MappedByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0L, HEADER_SIZE);
+                buffer.putInt(HEADER_SLOTS, slots);
+                buffer.putInt(HEADER_MAGIC, MAGIC);
+                buffer.force();
+
+                log.info(String.format("Created lock table %s with %d slots.", file, slots));
+            }
+
+            MappedByteBuffer buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0L, HEADER_SIZE);
+            if (buffer.getInt(HEADER_MAGIC) != MAGIC) {
+                throw new IOException(String.format("File '%s' is not a lock table.", file));
+            }
+            this.slots = buffer.getInt(HEADER_SLOTS);
+
+        } finally {
+            header.release();
+        }
+
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0L, HEADER_SIZE + ((long) this.slots * SLOT_SIZE));
+
+        this.fileLocks = new FileLock[this.slots];
+        this.mutexes = new ReentrantLock[this.slots];
+        for (int i = 0; i < this.slots; i++) {
+            this.mutexes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Sets how long in milliseconds new shared holders are refused after
+     * an attempt to acquire a lock exclusively was refused because of its
+     * shared holders. Exclusive waiters renew this on each attempt.
+     */
+    public void setWriterPreferenceTime(long writerPreferenceTime) {
+        this.writerPreferenceTime = writerPreferenceTime;
+    }
+
+    /**
+     * Releases are only seen by the listener when
+     * they are made by this process.
+     */
+    @Override
+    public void setReleaseListener(Consumer<String> listener) {
+        this.releaseListener = listener;
+    }
+
+    @Override
+    public DistributedLock getLock(String name) {
+
+        int slot = this.lock(name, true);
+        try {
+            return this.read(slot);
+        } finally {
+            this.unlockSlot(slot);
+        }
+    }
+
+    @Override
+    public List<DistributedLock> getLocks(Collection<String> names) {
+
+        List<DistributedLock> locks = new ArrayList<>();
+        for (String name : new HashSet<>(names)) {
+
+            int slot = this.lock(name, false);
+            if (slot >= 0) {
+                try {
+                    locks.add(this.read(slot));
+                } finally {
+                    this.unlockSlot(slot);
+                }
+            }
+        }
+        locks.sort((lock1, lock2) -> lock1.getName().compareTo(lock2.getName()));
+        return locks;
+    }
+
+    @Override
+    public void createLocks(Collection<String> names) {
+        names.forEach(name -> this.slot(name, true));
+    }
+
+    @Override
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        String name = lock.getName();
+        int slot = this.existing(name);
+
+        DistributedLock distributedLock;
+        try {
+            distributedLock = this.read(slot);
+            if (!distributedLock.isLocked() && !distributedLock.isReadLocked()) {
+                distributedLock.lock(lock, expireAfter);
+                this.write(slot, distributedLock);
+                lock.setFencingToken(distributedLock.getFencingToken());
+                return null;
+            }
+            if (!distributedLock.isLocked()) {
+                distributedLock.setWriterWaitingUntil(System.currentTimeMillis() + this.writerPreferenceTime);
+                this.write(slot, distributedLock);
+            }
+
+        } finally {
+            this.unlockSlot(slot);
+        }
+
+        if (distributedLock.isLocked() && distributedLock.isMaintenanceMode()) {
+            throw new MaintenanceEnabledException("Lock '%s' is in maintenance mode so it cannot be locked.", name);
+        }
+
+        log.debug(
+            String.format("Unable to acquire sharedlock as it is locked by another process or thread: %s",
+            distributedLock.toString()));
+
+        return distributedLock;
+    }
+
+    @Override
+    public boolean transferLock(DistributedLock from, DistributedLock to, int expireAfter) {
+
+        int slot = this.lock(to.getName(), false);
+        if (slot < 0) {
+            return false;
+        }
+
+        try {
+            DistributedLock distributedLock = this.read(slot);
+            if (!distributedLock.isLocked() || !distributedLock.isGrantedTo(from)) {
+                return false;
+            }
+            distributedLock.setThreadId(to.getThreadId());
+            distributedLock.setThreadName(to.getThreadName());
+            distributedLock.setThreadGroupName(to.getThreadGroupName());
+            distributedLock.disableMaintenance();
+            distributedLock.setFencingToken(distributedLock.getFencingToken() + 1);
+            to.setFencingToken(distributedLock.getFencingToken());
+
+            long now = System.currentTimeMillis();
+            distributedLock.setUpdateTime(now);
+            distributedLock.setExpirationTime(now + (expireAfter * 1000L));
+
+            this.write(slot, distributedLock);
+            return true;
+
+        } finally {
+            this.unlockSlot(slot);
+        }
+    }
+
+    @Override
+    public boolean extendLock(DistributedLock lock, long expiresAt) {
+
+        int slot = this.lock(lock.getName(), false);
+        if (slot < 0) {
+            return false;
+        }
+
+        try {
+            DistributedLock distributedLock = this.read(slot);
+            if (!distributedLock.isLocked() || !distributedLock.isGrantedTo(lock)) {
+                return false;
+            }
+            distributedLock.setUpdateTime(System.currentTimeMillis());
+            distributedLock.setExpirationTime(expiresAt);
+
+            this.write(slot, distributedLock);
+            return true;
+
+        } finally {
+            this.unlockSlot(slot);
+        }
+    }
+
+    @Override
+    public boolean raiseFencingToken(DistributedLock lock, long fencingToken) {
+
+        if (lock.getFencingToken() <= 0L) {
+            return false;
+        }
+        int slot = this.lock(lock.getName(), false);
+        if (slot < 0) {
+            return false;
+        }
+
+        try {
+            DistributedLock distributedLock = this.read(slot);
+            if (!distributedLock.isLocked() || distributedLock.getFencingToken() != lock.getFencingToken()
+                || fencingToken <= lock.getFencingToken()) {
+
+                return false;
+            }
+            distributedLock.setFencingToken(fencingToken);
+
+            this.write(slot, distributedLock);
+            lock.setFencingToken(fencingToken);
+            return true;
+
+        } finally {
+            this.unlockSlot(slot);
+        }
+    }
+
+    @Override
+    public Set<String> renewLocks(Collection<DistributedLock> locks, long expiresAt) {
+
+        Set<String> lost = new HashSet<>();
+        for (DistributedLock lock : locks) {
+
+            int slot = this.lock(lock.getName(), false);
+            if (slot < 0) {
+                lost.add(lock.getName());
+                continue;
+            }
+
+            try {
+                DistributedLock distributedLock = this.read(slot);
+
+                // Leases are matched by their fencing
+                // tokens as with the database stores
+                if (distributedLock.isLocked() && lock.getFencingToken() > 0L
+                    && lock.getFencingToken() == distributedLock.getFencingToken()) {
+
+                    distributedLock.setUpdateTime(System.currentTimeMillis());
+                    distributedLock.setExpirationTime(expiresAt);
+                    this.write(slot, distributedLock);
+
+                } else {
+                    lost.add(lock.getName());
+                }
+            } finally {
+                this.unlockSlot(slot);
+            }
+        }
+        return lost;
+    }
+
+    @Override
+    public DistributedLock validate(DistributedLock lock)
+        throws LockException {
+
+        int slot = this.lock(lock.getName(), false);
+        if (slot < 0) {
+            // A lock is given a slot when it is first acquired
+            return new DistributedLock(lock.getName());
+        }
+
+        DistributedLock distributedLock;
+        try {
+            distributedLock = this.read(slot);
+        } finally {
+            this.unlockSlot(slot);
+        }
+
+        if (!distributedLock.isGrantedTo(lock) && distributedLock.isLocked()) {
+            throw new InvalidLockException("Expected locked state: %s, Actual state: %s", lock, distributedLock);
+        }
+        return distributedLock;
+    }
+
+    @Override
+    public boolean releaseLock(DistributedLock lock) {
+        return this.releaseLocks(Collections.singletonList(lock.getName()), lock) > 0;
+    }
+
+    @Override
+    public void enterMaintenanceMode(DistributedLock lock)
+        throws LockException {
+
+        int slot = this.existing(lock.getName());
+        try {
+            DistributedLock distributedLock = this.read(slot);
+            if (!distributedLock.isGrantedTo(lock) && distributedLock.isLocked()) {
+                throw new InvalidLockException("Expected locked state: %s, Actual state: %s", lock, distributedLock);
+            }
+            distributedLock.enableMaintenance();
+            distributedLock.setUpdateTime(System.currentTimeMillis());
+            this.write(slot, distributedLock);
+
+        } finally {
+            this.unlockSlot(slot);
+        }
+    }
+
+    @Override
+    public void exitMaintenanceMode(String name)
+        throws LockException {
+
+        int slot = this.lock(name, false);
+        if (slot < 0) {
+            throw new LockException("Lock '%s' does not exist.", name);
+        }
+
+        try {
+            DistributedLock distributedLock = this.read(slot);
+            if (!distributedLock.isLocked() && !distributedLock.isMaintenanceMode()) {
+                throw new LockException("Lock '%s' is not in maintenance mode", name);
+            }
+            distributedLock.clear();
+            this.write(slot, distributedLock);
+
+        } finally {
+            this.unlockSlot(slot);
+        }
+        this.releaseListener.accept(name);
+    }
+
+    /**
+     * Holds the slots of all the named locks, taken in the order of
+     * the slots in the file, while checking and taking the locks.
+     */
+    @Override
+    public List<DistributedLock> tryAcquireLocks(List<String> names, DistributedLock owner, int expireAfter) {
+
+        TreeMap<Integer, String> slots = this.lockSlots(names);
+        try {
+            List<DistributedLock> locks = new ArrayList<>();
+            for (int slot : slots.keySet()) {
+                locks.add(this.read(slot));
+            }
+
+            List<DistributedLock> held = new ArrayList<>();
+            for (DistributedLock distributedLock : locks) {
+                if (distributedLock.isLocked() || distributedLock.isReadLocked()) {
+                    held.add(distributedLock);
+                }
+            }
+            if (!held.isEmpty()) {
+                held.removeIf(distributedLock -> !distributedLock.isLocked() || distributedLock.equals(owner));
+                return held;
+            }
+
+            int i = 0;
+            for (int slot : slots.keySet()) {
+                DistributedLock distributedLock = locks.get(i++);
+                distributedLock.lock(owner, expireAfter);
+                this.write(slot, distributedLock);
+            }
+            return null;
+
+        } finally {
+            for (int slot : slots.descendingKeySet()) {
+                this.unlockSlot(slot);
+            }
+        }
+    }
+
+    @Override
+    public int releaseLocks(List<String> names, DistributedLock owner) {
+
+        List<String> released = new ArrayList<>();
+        for (String name : names) {
+
+            int slot = this.lock(name, false);
+            if (slot < 0) {
+                continue;
+            }
+
+            try {
+                DistributedLock distributedLock = this.read(slot);
+                if (distributedLock.isGrantedTo(owner)) {
+                    distributedLock.clear();
+                    this.write(slot, distributedLock);
+                    released.add(name);
+                }
+            } finally {
+                this.unlockSlot(slot);
+            }
+        }
+
+        released.forEach(this.releaseListener);
+        return released.size();
+    }
+
+    @Override
+    public DistributedLock tryAcquireReadLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        String name = lock.getName();
+        int slot = this.existing(name);
+
+        DistributedLock distributedLock;
+        try {
+            distributedLock = this.read(slot);
+
+            if (!distributedLock.isLocked() && !distributedLock.isWriterWaiting()) {
+
+                long now = System.currentTimeMillis();
+                int reader = this.findReader(slot, lock, now);
+                if (reader >= 0) {
+
+                    int offset = readerOffset(slot, reader);
+                    this.buffer.putLong(offset + READER_HOSTNAME_HASH, CompactJdbcLockStore.hash(lock.getHostname()));
+                    this.buffer.putLong(offset + READER_THREAD_ID, lock.getThreadId());
+                    this.buffer.putLong(offset + READER_EXPIRES_AT, now + (expireAfter * 1000L));
+
+                    this.updateReaders(slot, distributedLock, now);
+                    return null;
+                }
+                log.debug(String.format("Unable to acquire shared sharedlock '%s' as it has %d shared holders.",
+                    name, MAX_READERS));
+            }
+
+        } finally {
+            this.unlockSlot(slot);
+        }
+
+        if (distributedLock.isLocked() && distributedLock.isMaintenanceMode()) {
+            throw new MaintenanceEnabledException("Lock '%s' is in maintenance mode so it cannot be locked.", name);
+        }
+        return distributedLock;
+    }
+
+    @Override
+    public void releaseReadLock(DistributedLock lock) {
+
+        String name = lock.getName();
+        int slot = this.lock(name, false);
+        if (slot < 0) {
+            return;
+        }
+
+        boolean released = false;
+        try {
+            long now = System.currentTimeMillis();
+            int reader = this.findReader(slot, lock, now);
+            if (reader >= 0 && this.buffer.getLong(readerOffset(slot, reader) + READER_EXPIRES_AT) > now) {
+
+                this.buffer.putLong(readerOffset(slot, reader) + READER_EXPIRES_AT, 0L);
+
+                DistributedLock distributedLock = this.read(slot);
+                this.updateReaders(slot, distributedLock, now);
+                released = distributedLock.getReaders() == 0;
+            }
+        } finally {
+            this.unlockSlot(slot);
+        }
+
+        if (released) {
+            this.releaseListener.accept(name);
+        }
+    }
+
+    /**
+     * Returns the entry of the shared lease of the owner of the given lock
+     * in the table of the slot, or else the first entry whose lease has
+     * expired, or -1 if every entry holds a live lease of another holder.
+     */
+    private int findReader(int slot, DistributedLock lock, long now) {
+
+        long hostnameHash = CompactJdbcLockStore.hash(lock.getHostname());
+
+        int free = -1;
+        for (int reader = 0; reader < MAX_READERS; reader++) {
+
+            int offset = readerOffset(slot, reader);
+            if (this.buffer.getLong(offset + READER_HOSTNAME_HASH) == hostnameHash &&
+                this.buffer.getLong(offset + READER_THREAD_ID) == lock.getThreadId()) {
+
+                return reader;
+            }
+            if (free < 0 && this.buffer.getLong(offset + READER_EXPIRES_AT) <= now) {
+                free = reader;
+            }
+        }
+        return free;
+    }
+
+    /**
+     * Sets the number of live shared leases in the table of the slot and
+     * the latest of their expiry times on the lock and writes it.
+     */
+    private void updateReaders(int slot, DistributedLock distributedLock, long now) {
+
+        int readers = 0;
+        long readExpiresAt = 0L;
+        for (int reader = 0; reader < MAX_READERS; reader++) {
+
+            long expiresAt = this.buffer.getLong(readerOffset(slot, reader) + READER_EXPIRES_AT);
+            if (expiresAt > now) {
+                readers++;
+                readExpiresAt = Math.max(readExpiresAt, expiresAt);
+            }
+        }
+
+        distributedLock.setReaders(readers);
+        distributedLock.setReadExpirationTime(readExpiresAt);
+        distributedLock.setUpdateTime(now);
+        this.write(slot, distributedLock);
+    }
+
+    /**
+     * Reads the names of all the slots in use, as
+     * the slots are in the order of name hashes.
+     */
+    @Override
+    public List<String> getLockNames(String after, int limit) {
+
+        TreeSet<String> names = new TreeSet<>();
+        for (int slot = 0; slot < this.slots; slot++) {
+
+            this.lockSlot(slot);
+            try {
+                int offset = offset(slot);
+                if (this.buffer.getInt(offset + USED) == SLOT_USED) {
+                    String name = this.getString(offset + NAME);
+                    if (after == null || name.compareTo(after) > 0) {
+                        names.add(name);
+                        if (names.size() > limit) {
+                            names.pollLast();
+                        }
+                    }
+                }
+            } finally {
+                this.unlockSlot(slot);
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Marks the slots of the named locks that are idle as deleted under
+     * the lock of each slot. A process that has cached the slot of a lock
+     * finds that the slot was deleted or given to another lock once it
+     * holds the slot and looks the lock up again.
+     */
+    @Override
+    public int deleteIdleLocks(Collection<String> names, long idleSince) {
+
+        int deleted = 0;
+        for (String name : new HashSet<>(names)) {
+
+            int slot = this.lock(name, false);
+            if (slot < 0) {
+                continue;
+            }
+            try {
+                if (isIdle(this.read(slot), idleSince)) {
+                    this.buffer.putInt(offset(slot) + USED, SLOT_DELETED);
+                    this.slotsByName.remove(name, slot);
+                    deleted++;
+                }
+            } finally {
+                this.unlockSlot(slot);
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public void close()
+        throws IOException {
+
+        this.closed = true;
+        this.buffer.force();
+        this.channel.close();
+    }
+
+    /**
+     * Returns the slot of the named lock, taking a free slot for it if it
+     * does not have one and create is true. Returns -1 if the lock does
+     * not have a slot and create is false.
+     */
+    private int slot(String name, boolean create) {
+
+        Integer cached = this.slotsByName.get(name);
+        if (cached != null) {
+            return cached;
+        }
+
+        int slot = this.find(name);
+        if (slot >= 0 || !create) {
+            return slot;
+        }
+
+        byte[] nameBytes = bytes(name, MAX_STRING_BYTES);
+        this.lockTable();
+        try {
+            slot = this.find(name);
+            if (slot >= 0) {
+                return slot;
+            }
+
+            // The first slot not in use along the probe of the name
+            int start = (name.hashCode() & 0x7fffffff) % this.slots;
+            for (int i = 0; i < this.slots; i++) {
+
+                slot = (start + i) % this.slots;
+                this.lockSlot(slot);
+                try {
+                    int offset = offset(slot);
+                    if (this.buffer.getInt(offset + USED) != SLOT_USED) {
+
+                        DistributedLock distributedLock = new DistributedLock();
+                        distributedLock.clear();
+                        distributedLock.setFencingToken(JdbcLockStore.initialFencingToken(System.currentTimeMillis()));
+                        this.putString(offset + NAME, nameBytes);
+                        this.write(slot, distributedLock);
+                        this.buffer.putInt(offset + USED, SLOT_USED);
+
+                        this.slotsByName.put(name, slot);
+                        return slot;
+                    }
+                } finally {
+                    this.unlockSlot(slot);
+                }
+            }
+        } finally {
+            this.unlockTable();
+        }
+
+        throw new IllegalStateException(String.format("Lock table %s is full.", this.file));
+    }
+
+    /**
+     * Probes for the slot of the named lock up to the first slot that was
+     * never used, passing over deleted slots. Returns -1 if it has none.
+     */
+    private int find(String name) {
+
+        int start = (name.hashCode() & 0x7fffffff) % this.slots;
+        for (int i = 0; i < this.slots; i++) {
+
+            int slot = (start + i) % this.slots;
+            this.lockSlot(slot);
+            try {
+                int used = this.buffer.getInt(offset(slot) + USED);
+                if (used == SLOT_FREE) {
+                    return -1;
+                }
+                if (used == SLOT_USED && this.holds(slot, name)) {
+                    this.slotsByName.put(name, slot);
+                    return slot;
+                }
+            } finally {
+                this.unlockSlot(slot);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot of the named lock as slot() does, with the slot
+     * locked. The lock is looked up again if its slot was deleted since
+     * it was cached.
+     */
+    private int lock(String name, boolean create) {
+
+        while (true) {
+            int slot = this.slot(name, create);
+            if (slot < 0) {
+                return -1;
+            }
+            this.lockSlot(slot);
+            if (this.holds(slot, name)) {
+                return slot;
+            }
+            this.unlockSlot(slot);
+            this.slotsByName.remove(name, slot);
+        }
+    }
+
+    /**
+     * Locks the slots of the named locks in the order of the slots in the
+     * file, giving slots to the locks that do not have one, and returns
+     * the names of the locks by their slots.
+     */
+    private TreeMap<Integer, String> lockSlots(Collection<String> names) {
+
+        while (true) {
+            TreeMap<Integer, String> slots = new TreeMap<>();
+            for (String name : names) {
+                slots.put(this.slot(name, true), name);
+            }
+
+            List<Integer> locked = new ArrayList<>();
+            String deleted = null;
+            try {
+                for (Map.Entry<Integer, String> entry : slots.entrySet()) {
+                    this.lockSlot(entry.getKey());
+                    locked.add(entry.getKey());
+                    if (!this.holds(entry.getKey(), entry.getValue())) {
+                        deleted = entry.getValue();
+                        break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                for (int i = locked.size() - 1; i >= 0; i--) {
+                    this.unlockSlot(locked.get(i));
+                }
+                throw e;
+            }
+            if (deleted == null) {
+                return slots;
+            }
+
+            for (int i = locked.size() - 1; i >= 0; i--) {
+                this.unlockSlot(locked.get(i));
+            }
+            this.slotsByName.remove(deleted);
+        }
+    }
+
+    /**
+     * Returns whether the given slot, which must be locked,
+     * is in use by the named lock.
+     */
+    private boolean holds(int slot, String name) {
+
+        int offset = offset(slot);
+        return this.buffer.getInt(offset + USED) == SLOT_USED && name.equals(this.getString(offset + NAME));
+    }
+
+    /**
+     * Returns the slot of the named lock locked.
+     */
+    private int existing(String name)
+        throws LockException {
+
+        int slot = this.lock(name, false);
+        if (slot < 0) {
+            throw new LockNotFoundException("Lock '%s' was not found.", name);
+        }
+        return slot;
+    }
+
+    /**
+     * Returns whether the given lock may be deleted. This is the
+     * same condition as the idle delete of the database stores.
+     */
+    private static boolean isIdle(DistributedLock lock, long idleSince) {
+
+        return !lock.isLocked() && !lock.isReadLocked() && !lock.isMaintenanceMode() && !lock.isWriterWaiting()
+            && lock.getUpdateTime().getTime() <= idleSince;
+    }
+
+    private DistributedLock read(int slot) {
+
+        int offset = offset(slot);
+
+        DistributedLock lock = new DistributedLock();
+        lock.setName(this.getString(offset + NAME));
+        lock.setHostname(this.getString(offset + HOSTNAME));
+        lock.setAddress(this.getString(offset + ADDRESS));
+        lock.setThreadId(this.buffer.getLong(offset + THREAD_ID));
+        lock.setThreadName(this.getString(offset + THREAD_NAME));
+        lock.setThreadGroupName(this.getString(offset + THREAD_GROUP_NAME));
+        lock.setLocked(this.buffer.get(offset + LOCKED) == 'Y');
+        if (this.buffer.get(offset + MAINTENANCE) == 'Y') {
+            lock.enableMaintenance();
+        }
+        lock.setUpdateTime(this.buffer.getLong(offset + UPDATED_TIME));
+        lock.setExpirationTime(this.buffer.getLong(offset + EXPIRES_AT));
+        lock.setReaders(this.buffer.getInt(offset + READERS));
+        lock.setReadExpirationTime(this.buffer.getLong(offset + READ_EXPIRES_AT));
+        lock.setWriterWaitingUntil(this.buffer.getLong(offset + WRITER_WAITING_UNTIL));
+        lock.setFencingToken(this.buffer.getLong(offset + FENCING_TOKEN));
+        return lock;
+    }
+
+    private void write(int slot, DistributedLock lock) {
+
+        int offset = offset(slot);
+
+        this.putString(offset + HOSTNAME, bytes(lock.getHostname(), MAX_STRING_BYTES));
+        this.putString(offset + ADDRESS, bytes(lock.getAddress(), MAX_ADDRESS_BYTES));
+        this.buffer.putLong(offset + THREAD_ID, lock.getThreadId());
+        this.putString(offset + THREAD_NAME, bytes(lock.getThreadName(), MAX_STRING_BYTES));
+        this.putString(offset + THREAD_GROUP_NAME, bytes(lock.getThreadGroupName(), MAX_STRING_BYTES));
+        this.buffer.put(offset + LOCKED, (byte) (lock.isLocked() ? 'Y' : 'F'));
+        this.buffer.put(offset + MAINTENANCE, (byte) (lock.isMaintenanceMode() ? 'Y' : 'N'));
+        this.buffer.putLong(offset + UPDATED_TIME, lock.getUpdateTime().getTime());
+        this.buffer.putLong(offset + EXPIRES_AT, lock.getExpirationTime().getTime());
+        this.buffer.putInt(offset + READERS, lock.getReaders());
+        this.buffer.putLong(offset + READ_EXPIRES_AT, lock.getReadExpirationTime().getTime());
+        this.buffer.putLong(offset + WRITER_WAITING_UNTIL, lock.getWriterWaitingUntil().getTime());
+        this.buffer.putLong(offset + FENCING_TOKEN, lock.getFencingToken());
+    }
+
+    private String getString(int offset) {
+
+        byte[] bytes = new byte[this.buffer.getShort(offset)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = this.buffer.get(offset + 2 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void putString(int offset, byte[] bytes) {
+
+        this.buffer.putShort(offset, (short) bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            this.buffer.put(offset + 2 + i, bytes[i]);
+        }
+    }
+
+    private static byte[] bytes(String value, int maxBytes) {
+
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > maxBytes) {
+            throw new IllegalArgumentException(String.format(
+                "Value '%s' is longer than the %d bytes a lock table slot can hold.", value, maxBytes));
+        }
+        return bytes;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + (slot * SLOT_SIZE);
+    }
+
+    private static int readerOffset(int slot, int reader) {
+        return offset(slot) + READER_TABLE + (reader * READER_SIZE);
+    }
+
+    /**
+     * Locks the given slot against other threads in this process and
+     * against other processes. The interrupt status of the thread is
+     * cleared while waiting for the file lock as an interrupt would
+     * close the channel.
+     */
+    private void lockSlot(int slot) {
+
+        this.mutexes[slot].lock();
+
+        boolean interrupted = Thread.interrupted();
+        try {
+            this.fileLocks[slot] = this.channel().lock(offset(slot), SLOT_SIZE, false);
+
+        } catch (IOException e) {
+            this.mutexes[slot].unlock();
+            throw new UncheckedIOException(String.format("Failed to lock slot %d of lock table %s.", slot, this.file), e);
+
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void unlockSlot(int slot) {
+
+        try {
+            FileLock fileLock = this.fileLocks[slot];
+            this.fileLocks[slot] = null;
+            if (fileLock.isValid()) {
+                fileLock.release();
+            }
+
+        } catch (IOException e) {
+            log.warn(String.format("Failed to unlock slot %d of lock table %s: %s", slot, this.file, e.getMessage()), e);
+
+        } finally {
+            this.mutexes[slot].unlock();
+        }
+    }
+
+    /**
+     * Locks the header of the file, which is held while new locks are
+     * given slots, against other threads and other processes.
+     */
+    private void lockTable() {
+
+        this.tableMutex.lock();
+
+        boolean interrupted = Thread.interrupted();
+        try {
+            this.tableLock = this.channel().lock(0L, HEADER_SIZE, false);
+
+        } catch (IOException e) {
+            this.tableMutex.unlock();
+            throw new UncheckedIOException(String.format("Failed to lock lock table %s.", this.file), e);
+
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void unlockTable() {
+
+        try {
+            FileLock tableLock = this.tableLock;
+            this.tableLock = null;
+            if (tableLock.isValid()) {
+                tableLock.release();
+            }
+
+        } catch (IOException e) {
+            log.warn(String.format("Failed to unlock lock table %s: %s", this.file, e.getMessage()), e);
+
+        } finally {
+            this.tableMutex.unlock();
+        }
+    }
+
+    /**
+     * Returns the channel to the file, opening it again if it was
+     * closed by an interrupt. The mapped buffer remains valid.
+     */
+    private FileChannel channel()
+        throws IOException {
+
+        if (this.closed) {
+            throw new IllegalStateException(String.format("Lock table %s is closed.", this.file));
+        }
+
+        FileChannel channel = this.channel;
+        if (!channel.isOpen()) {
+            synchronized (this) {
+                if (!this.channel.isOpen()) {
+                    log.warn(String.format("Reopening lock table %s after its channel was closed.", this.file));
+                    this.channel = this.open();
+                }
+                channel = this.channel;
+            }
+        }
+        return channel;
+    }
+
+    private FileChannel open()
+        throws IOException {
+
+        return new RandomAccessFile(this.file, "rw").getChannel();
+    }
+}
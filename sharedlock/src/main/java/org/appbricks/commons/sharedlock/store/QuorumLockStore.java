@@ -0,0 +1,767 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockNotFoundException;
+import org.appbricks.commons.sharedlock.exception.LockUpdateException;
+import org.appbricks.commons.sharedlock.exception.MaintenanceEnabledException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A lock store that keeps every lock in several independent lock stores
+ * and grants a lease when a majority of them, the quorum, has granted it,
+ * so that locking keeps working while any minority of the stores is down.
+ *
+ * Each operation is sent to all the stores in parallel and waits only
+ * until the quorum has answered it, so a lease costs about the latency of
+ * the slowest store of the quorum rather than the sum of the latencies of
+ * all the stores. A store that does not answer within the store timeout
+ * is counted as having refused. A lease is only granted if it is still
+ * valid once the quorum has answered, after deducting the time taken and
+ * an allowance for the drift between the clocks of the stores, and the
+ * lock's expiration time is set to the end of that effective lease. If
+ * the quorum refuses, the leases granted by the other stores, including
+ * those granted after the quorum answered, are released in the background.
+ *
+ * The fencing token of a lease is the largest of the tokens granted by the
+ * stores of the quorum, and the stores that granted a smaller token raise
+ * the token of their lease to it before the lease is granted. Any two
+ * quorums share a store, so a later lease always has a larger token than
+ * an earlier one. The stores must support raiseFencingToken. The tokens of
+ * each store are kept for the leases held by this process so that each
+ * store matches its own token.
+ *
+ * Shared locks, semaphores and fair mode are not supported.
+ */
+public class QuorumLockStore
+    implements LockStore, Closeable {
+
+    private static final Log log = LogFactory.getLog(QuorumLockStore.class);
+
+    public static final long DEFAULT_STORE_TIMEOUT = 2000L;
+    public static final double DEFAULT_CLOCK_DRIFT_FACTOR = 0.01;
+
+    // Allowance for the resolution of the clocks in milliseconds
+    private static final long CLOCK_DRIFT_MARGIN = 2L;
+
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final List<LockStore> lockStores;
+    private final int quorum;
+
+    private long storeTimeout = DEFAULT_STORE_TIMEOUT;
+    private double clockDriftFactor = DEFAULT_CLOCK_DRIFT_FACTOR;
+
+    private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor;
+
+    public QuorumLockStore(List<LockStore> lockStores) {
+
+        if (lockStores.isEmpty()) {
+            throw new IllegalArgumentException("At least one lock store is required.");
+        }
+        if (lockStores.size() % 2 == 0) {
+            log.warn(String.format("An even number of lock stores (%d) tolerates no more failures than one less.",
+                lockStores.size()));
+        }
+        this.lockStores = new ArrayList<>(lockStores);
+        this.quorum = lockStores.size() / 2 + 1;
+
+        int instance = instances.incrementAndGet();
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "sharedlock-quorum-" + instance + "-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns a store that keeps the locks in JdbcLockStores
+     * on each of the given independent data sources.
+     */
+    public static QuorumLockStore forDataSources(List<DataSource> dataSources) {
+
+        List<LockStore> lockStores = new ArrayList<>();
+        dataSources.forEach(dataSource -> lockStores.add(new JdbcLockStore(dataSource)));
+        return new QuorumLockStore(lockStores);
+    }
+
+    /**
+     * Returns the number of stores that must grant a lease.
+     */
+    public int getQuorum() {
+        return this.quorum;
+    }
+
+    /**
+     * Sets how long in milliseconds to wait for the
+     * stores to answer before counting them as refused.
+     */
+    public void setStoreTimeout(long storeTimeout) {
+        this.storeTimeout = storeTimeout;
+    }
+
+    /**
+     * Sets the drift allowed between the clocks of the
+     * stores as a fraction of the duration of a lease.
+     */
+    public void setClockDriftFactor(double clockDriftFactor) {
+        this.clockDriftFactor = clockDriftFactor;
+    }
+
+    @Override
+    public void setReleaseListener(Consumer<String> listener) {
+        this.lockStores.forEach(lockStore -> lockStore.setReleaseListener(listener));
+    }
+
+    /**
+     * Returns the lock as answered by the quorum, reporting it
+     * as held if any store of the quorum reports it as held.
+     */
+    @Override
+    public DistributedLock getLock(String name) {
+
+        Replies<DistributedLock> replies = this.call((i, lockStore) -> lockStore.getLock(name), Objects::nonNull, false);
+        if (!replies.reached()) {
+            throw this.unavailable(replies, "read lock '%s'", name);
+        }
+
+        DistributedLock lock = null;
+        for (DistributedLock distributedLock : replies.accepted.values()) {
+            if (lock == null || (!lock.isLocked() && distributedLock.isLocked())) {
+                lock = distributedLock;
+            }
+        }
+        return lock;
+    }
+
+    @Override
+    public List<DistributedLock> getLocks(Collection<String> names) {
+
+        Replies<List<DistributedLock>> replies = this.call((i, lockStore) -> lockStore.getLocks(names),
+            Objects::nonNull, false);
+        if (!replies.reached()) {
+            throw this.unavailable(replies, "read locks %s", names);
+        }
+
+        Map<String, DistributedLock> locks = new LinkedHashMap<>();
+        for (List<DistributedLock> storeLocks : replies.accepted.values()) {
+            for (DistributedLock distributedLock : storeLocks) {
+                locks.merge(distributedLock.getName(), distributedLock,
+                    (lock, other) -> !lock.isLocked() && other.isLocked() ? other : lock);
+            }
+        }
+        return new ArrayList<>(locks.values());
+    }
+
+    @Override
+    public void createLocks(Collection<String> names) {
+
+        Replies<Boolean> replies = this.call((i, lockStore) -> {
+            lockStore.createLocks(names);
+            return true;
+        }, Boolean.TRUE::equals, true);
+
+        if (!replies.reached()) {
+            throw this.unavailable(replies, "create locks %s", names);
+        }
+    }
+
+    @Override
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        String name = lock.getName();
+        long start = System.currentTimeMillis();
+
+        List<DistributedLock> storeLocks = this.copies(lock);
+        Replies<DistributedLock> replies = this.call(
+            (i, lockStore) -> acquire(lockStore, storeLocks.get(i), expireAfter), Objects::isNull, false);
+
+        long validUntil = this.validUntil(start, start + (expireAfter * 1000L));
+        if (replies.reached() && System.currentTimeMillis() < validUntil) {
+
+            Lease lease = this.grant(name, storeLocks, replies, granted -> granted == null);
+            if (this.raise(lease, storeLocks, replies.accepted.keySet()) && System.currentTimeMillis() < validUntil) {
+                lock.setFencingToken(lease.fencingToken);
+                lock.setExpirationTime(validUntil);
+                return null;
+            }
+
+            this.leases.remove(name, lease);
+            this.releaseAll(replies, storeLocks, holder -> holder == null);
+            throw new LockUpdateException(replies.error,
+                "Lock '%s' was granted by a quorum of %d lock stores but the fencing token of the lease " +
+                "could not be raised on the quorum within its lease.", name, this.quorum);
+        }
+
+        this.releaseAll(replies, storeLocks, holder -> holder == null);
+
+        if (replies.error instanceof MaintenanceEnabledException) {
+            throw (MaintenanceEnabledException) replies.error;
+        }
+        for (DistributedLock holder : replies.refused.values()) {
+            if (holder != null) {
+                return holder;
+            }
+        }
+        throw new LockUpdateException(replies.error,
+            "Lock '%s' was granted by %d of %d lock stores within its lease but needs a quorum of %d.",
+            name, replies.accepted.size(), this.lockStores.size(), this.quorum);
+    }
+
+    @Override
+    public boolean transferLock(DistributedLock from, DistributedLock to, int expireAfter) {
+
+        long start = System.currentTimeMillis();
+
+        List<DistributedLock> storeLocks = this.copies(to);
+        List<DistributedLock> owners = this.forStores(from);
+        Replies<Boolean> replies = this.call(
+            (i, lockStore) -> lockStore.transferLock(owners.get(i), storeLocks.get(i), expireAfter),
+            Boolean.TRUE::equals, false);
+
+        long validUntil = this.validUntil(start, start + (expireAfter * 1000L));
+        if (replies.reached() && System.currentTimeMillis() < validUntil) {
+
+            this.leases.remove(from.getName());
+            Lease lease = this.grant(to.getName(), storeLocks, replies, Boolean.TRUE::equals);
+            if (this.raise(lease, storeLocks, replies.accepted.keySet()) && System.currentTimeMillis() < validUntil) {
+                to.setFencingToken(lease.fencingToken);
+                to.setExpirationTime(validUntil);
+                return true;
+            }
+            this.leases.remove(to.getName(), lease);
+        }
+
+        // The leases transferred are released so that
+        // the next owner acquires the lock as usual
+        this.releaseAll(replies, storeLocks, Boolean.TRUE::equals);
+        return false;
+    }
+
+    @Override
+    public boolean extendLock(DistributedLock lock, long expiresAt) {
+
+        long start = System.currentTimeMillis();
+
+        List<DistributedLock> owners = this.forStores(lock);
+        Replies<Boolean> replies = this.call((i, lockStore) -> lockStore.extendLock(owners.get(i), expiresAt),
+            Boolean.TRUE::equals, false);
+
+        long validUntil = this.validUntil(start, expiresAt);
+        if (replies.reached() && System.currentTimeMillis() < validUntil) {
+            lock.setExpirationTime(validUntil);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Renews the leases on all the stores and reports the leases that
+     * were not renewed by a quorum of the stores within their lease.
+     */
+    @Override
+    public Set<String> renewLocks(Collection<DistributedLock> locks, long expiresAt) {
+
+        long start = System.currentTimeMillis();
+
+        List<List<DistributedLock>> owners = new ArrayList<>();
+        for (int i = 0; i < this.lockStores.size(); i++) {
+            owners.add(new ArrayList<>());
+        }
+        for (DistributedLock lock : locks) {
+            List<DistributedLock> storeOwners = this.forStores(lock);
+            for (int i = 0; i < storeOwners.size(); i++) {
+                owners.get(i).add(storeOwners.get(i));
+            }
+        }
+
+        Replies<Set<String>> replies = this.call((i, lockStore) -> lockStore.renewLocks(owners.get(i), expiresAt),
+            Objects::nonNull, true);
+
+        Set<String> lost = new HashSet<>();
+        boolean expired = System.currentTimeMillis() >= this.validUntil(start, expiresAt);
+        for (DistributedLock lock : locks) {
+
+            int renewed = 0;
+            for (Set<String> storeLost : replies.accepted.values()) {
+                if (!storeLost.contains(lock.getName())) {
+                    renewed++;
+                }
+            }
+            if (expired || renewed < this.quorum) {
+                lost.add(lock.getName());
+            }
+        }
+        return lost;
+    }
+
+    @Override
+    public DistributedLock validate(DistributedLock lock)
+        throws LockException {
+
+        List<DistributedLock> owners = this.forStores(lock);
+        Replies<DistributedLock> replies = this.call((i, lockStore) -> lockStore.validate(owners.get(i)),
+            Objects::nonNull, false);
+
+        if (replies.reached()) {
+            return replies.accepted.values().iterator().next();
+        }
+        if (replies.error instanceof LockException) {
+            throw (LockException) replies.error;
+        }
+        throw new LockUpdateException(replies.error, "Lock '%s' could not be validated by a quorum of %d of %d lock stores.",
+            lock.getName(), this.quorum, this.lockStores.size());
+    }
+
+    @Override
+    public boolean releaseLock(DistributedLock lock) {
+
+        List<DistributedLock> owners = this.forStores(lock);
+        Lease lease = this.leases.get(lock.getName());
+        if (lease != null && lease.fencingToken == lock.getFencingToken()) {
+            this.leases.remove(lock.getName(), lease);
+        }
+
+        Replies<Boolean> replies = this.call((i, lockStore) -> lockStore.releaseLock(owners.get(i)),
+            Boolean.TRUE::equals, true);
+        return replies.reached();
+    }
+
+    @Override
+    public void enterMaintenanceMode(DistributedLock lock)
+        throws LockException {
+
+        List<DistributedLock> owners = this.forStores(lock);
+        Replies<Boolean> replies = this.call((i, lockStore) -> {
+            lockStore.enterMaintenanceMode(owners.get(i));
+            return true;
+        }, Boolean.TRUE::equals, false);
+
+        if (!replies.reached()) {
+            throw this.notUpdated(replies, "put lock '%s' in maintenance mode", lock.getName());
+        }
+    }
+
+    @Override
+    public void exitMaintenanceMode(String name)
+        throws LockException {
+
+        Replies<Boolean> replies = this.call((i, lockStore) -> {
+            lockStore.exitMaintenanceMode(name);
+            return true;
+        }, Boolean.TRUE::equals, false);
+
+        if (!replies.reached()) {
+            throw this.notUpdated(replies, "take lock '%s' out of maintenance mode", name);
+        }
+    }
+
+    /**
+     * Acquires all the named locks at once on all the stores. If the quorum
+     * refuses, the locks held by other owners are returned, or an empty list
+     * if the quorum could not be reached for other reasons, in which case the
+     * locks are created again on the stores that may have missed them.
+     */
+    @Override
+    public List<DistributedLock> tryAcquireLocks(List<String> names, DistributedLock owner, int expireAfter) {
+
+        long start = System.currentTimeMillis();
+
+        Replies<List<DistributedLock>> replies = this.call(
+            (i, lockStore) -> lockStore.tryAcquireLocks(names, owner, expireAfter), Objects::isNull, false);
+
+        if (replies.reached() && System.currentTimeMillis() < this.validUntil(start, start + (expireAfter * 1000L))) {
+            return null;
+        }
+
+        replies.accepted.keySet().forEach(i -> this.executor.execute(() -> this.releaseLocks(i, names, owner)));
+        replies.whenLate(this.executor, (i, held) -> {
+            if (held == null) {
+                this.releaseLocks(i, names, owner);
+            }
+        });
+
+        for (List<DistributedLock> held : replies.refused.values()) {
+            if (held != null && !held.isEmpty()) {
+                return held;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public int releaseLocks(List<String> names, DistributedLock owner) {
+
+        Replies<Integer> replies = this.call((i, lockStore) -> lockStore.releaseLocks(names, owner),
+            Objects::nonNull, true);
+
+        int released = 0;
+        for (Integer count : replies.accepted.values()) {
+            released = Math.max(released, count);
+        }
+        return released;
+    }
+
+    /**
+     * Returns the names of the locks in any of the stores in name order.
+     */
+    @Override
+    public List<String> getLockNames(String after, int limit) {
+
+        Replies<List<String>> replies = this.call((i, lockStore) -> lockStore.getLockNames(after, limit),
+            Objects::nonNull, true);
+        if (!replies.reached()) {
+            throw this.unavailable(replies, "read lock names after '%s'", after);
+        }
+
+        TreeSet<String> names = new TreeSet<>();
+        replies.accepted.values().forEach(names::addAll);
+        List<String> merged = new ArrayList<>(names);
+        return merged.subList(0, Math.min(limit, merged.size()));
+    }
+
+    @Override
+    public int deleteIdleLocks(Collection<String> names, long idleSince) {
+
+        Replies<Integer> replies = this.call((i, lockStore) -> lockStore.deleteIdleLocks(names, idleSince),
+            Objects::nonNull, true);
+
+        int deleted = 0;
+        for (Integer count : replies.accepted.values()) {
+            deleted = Math.max(deleted, count);
+        }
+        return deleted;
+    }
+
+    /**
+     * Stops the threads that run the operations on the stores.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Acquires the lock on a store, creating it first if the store
+     * missed its creation, for example while the store was down.
+     */
+    private static DistributedLock acquire(LockStore lockStore, DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        try {
+            return lockStore.tryAcquireLock(lock, expireAfter);
+        } catch (LockNotFoundException e) {
+            lockStore.createLocks(Collections.singleton(lock.getName()));
+            return lockStore.tryAcquireLock(lock, expireAfter);
+        }
+    }
+
+    /**
+     * Returns the end of a lease that ends at the given time as seen by
+     * this process, less the allowance for the drift between the clocks
+     * of the stores over the lease started at the given time.
+     */
+    private long validUntil(long start, long expiresAt) {
+        return expiresAt - (long) ((expiresAt - start) * this.clockDriftFactor) - CLOCK_DRIFT_MARGIN;
+    }
+
+    /**
+     * Records the tokens of a lease granted by the quorum, including
+     * the tokens of stores that grant it after the quorum answered.
+     */
+    private <T> Lease grant(String name, List<DistributedLock> storeLocks, Replies<T> replies, Predicate<T> granted) {
+
+        AtomicLongArray fencingTokens = new AtomicLongArray(this.lockStores.size());
+        long fencingToken = 0L;
+        for (int i : replies.accepted.keySet()) {
+            fencingTokens.set(i, storeLocks.get(i).getFencingToken());
+            fencingToken = Math.max(fencingToken, storeLocks.get(i).getFencingToken());
+        }
+        replies.whenLate(Runnable::run, (i, reply) -> {
+            if (granted.test(reply)) {
+                fencingTokens.set(i, storeLocks.get(i).getFencingToken());
+            }
+        });
+
+        Lease lease = new Lease(fencingToken, fencingTokens);
+        this.leases.put(name, lease);
+        return lease;
+    }
+
+    /**
+     * Raises the tokens of the stores that granted the lease with a smaller
+     * token than the token of the lease. Returns whether a quorum of the
+     * stores holds the lease with its token, so that any later quorum has a
+     * store that grants a larger token. Waits for all the stores that raise
+     * their token so that a failed lease is released with the right tokens.
+     */
+    private boolean raise(Lease lease, List<DistributedLock> storeLocks, Set<Integer> granted) {
+
+        int raised = 0;
+        for (int i : granted) {
+            if (storeLocks.get(i).getFencingToken() == lease.fencingToken) {
+                raised++;
+            }
+        }
+        if (raised >= this.quorum) {
+            return true;
+        }
+
+        Replies<Boolean> replies = this.call((i, lockStore) -> {
+            DistributedLock storeLock = storeLocks.get(i);
+            if (!granted.contains(i) || storeLock.getFencingToken() == lease.fencingToken) {
+                return granted.contains(i);
+            }
+            if (!lockStore.raiseFencingToken(storeLock, lease.fencingToken)) {
+                return false;
+            }
+            lease.fencingTokens.set(i, lease.fencingToken);
+            return true;
+        }, Boolean.TRUE::equals, true);
+
+        return replies.reached();
+    }
+
+    /**
+     * Releases in the background the leases granted by the stores for an
+     * operation that failed, including those granted after it returned.
+     */
+    private <T> void releaseAll(Replies<T> replies, List<DistributedLock> storeLocks, Predicate<T> granted) {
+
+        replies.accepted.keySet().forEach(i -> this.releaseInBackground(i, storeLocks.get(i)));
+        replies.whenLate(this.executor, (i, reply) -> {
+            if (granted.test(reply)) {
+                this.releaseInBackground(i, storeLocks.get(i));
+            }
+        });
+    }
+
+    /**
+     * Returns a copy of the owner for each store to acquire a new lease.
+     */
+    private List<DistributedLock> copies(DistributedLock lock) {
+
+        List<DistributedLock> copies = new ArrayList<>();
+        for (int i = 0; i < this.lockStores.size(); i++) {
+            DistributedLock copy = new DistributedLock(lock);
+            copy.setFencingToken(0L);
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    /**
+     * Returns a copy of the owner for each store that carries the token
+     * the store granted if the owner holds a lease granted by this store,
+     * or no token so that the stores match the owner by its thread.
+     */
+    private List<DistributedLock> forStores(DistributedLock lock) {
+
+        Lease lease = this.leases.get(lock.getName());
+        boolean granted = lease != null && lock.getFencingToken() != 0L && lease.fencingToken == lock.getFencingToken();
+
+        List<DistributedLock> owners = new ArrayList<>();
+        for (int i = 0; i < this.lockStores.size(); i++) {
+            DistributedLock owner = new DistributedLock(lock);
+            owner.setFencingToken(granted ? lease.fencingTokens.get(i) : 0L);
+            owners.add(owner);
+        }
+        return owners;
+    }
+
+    private void releaseInBackground(int index, DistributedLock lock) {
+
+        this.executor.execute(() -> {
+            try {
+                this.lockStores.get(index).releaseLock(lock);
+            } catch (Throwable t) {
+                log.warn(String.format("Failed to release lock '%s' on lock store %d: %s",
+                    lock.getName(), index, t.getMessage()), t);
+            }
+        });
+    }
+
+    private void releaseLocks(int index, List<String> names, DistributedLock owner) {
+
+        try {
+            this.lockStores.get(index).releaseLocks(names, owner);
+        } catch (Throwable t) {
+            log.warn(String.format("Failed to release locks %s on lock store %d: %s",
+                names, index, t.getMessage()), t);
+        }
+    }
+
+    /**
+     * Runs the given operation on all the stores in parallel and waits for
+     * the quorum to accept or refuse its result, or for all the stores to
+     * answer if all is set.
+     */
+    private <T> Replies<T> call(StoreCall<T> call, Predicate<T> accept, boolean all) {
+
+        Replies<T> replies = new Replies<>(this.quorum);
+        for (int i = 0; i < this.lockStores.size(); i++) {
+
+            int index = i;
+            LockStore lockStore = this.lockStores.get(i);
+            CompletableFuture<T> future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return call.call(index, lockStore);
+                } catch (LockException e) {
+                    throw new CompletionException(e);
+                }
+            }, this.executor);
+
+            replies.futures.add(future);
+            future.whenComplete((reply, error) -> replies.completed.add(index));
+        }
+
+        replies.await(accept, all, System.currentTimeMillis() + this.storeTimeout);
+        return replies;
+    }
+
+    private IllegalStateException unavailable(Replies<?> replies, String format, Object... args) {
+
+        return new IllegalStateException(String.format("Failed to %s as only %d of %d lock stores answered " +
+            "and a quorum of %d is required.", String.format(format, args), replies.accepted.size(),
+            this.lockStores.size(), this.quorum), replies.error);
+    }
+
+    private LockException notUpdated(Replies<?> replies, String format, Object... args) {
+
+        if (replies.error instanceof LockException) {
+            return (LockException) replies.error;
+        }
+        return new LockUpdateException(replies.error, "Failed to %s as only %d of %d lock stores answered " +
+            "and a quorum of %d is required.", String.format(format, args), replies.accepted.size(),
+            this.lockStores.size(), this.quorum);
+    }
+
+    @FunctionalInterface
+    private interface StoreCall<T> {
+        T call(int index, LockStore lockStore) throws LockException;
+    }
+
+    /**
+     * The tokens granted by each store for a lease held by this process.
+     */
+    private static class Lease {
+
+        private final long fencingToken;
+        private final AtomicLongArray fencingTokens;
+
+        private Lease(long fencingToken, AtomicLongArray fencingTokens) {
+            this.fencingToken = fencingToken;
+            this.fencingTokens = fencingTokens;
+        }
+    }
+
+    /**
+     * The answers of the stores to an operation by the index of the store.
+     */
+    private static class Replies<T> {
+
+        private final int quorum;
+
+        private final List<CompletableFuture<T>> futures = new ArrayList<>();
+        private final BlockingQueue<Integer> completed = new LinkedBlockingQueue<>();
+
+        private final Map<Integer, T> accepted = new TreeMap<>();
+        private final Map<Integer, T> refused = new HashMap<>();
+        private final Set<Integer> answered = new HashSet<>();
+        private Throwable error;
+
+        private Replies(int quorum) {
+            this.quorum = quorum;
+        }
+
+        private boolean reached() {
+            return this.accepted.size() >= this.quorum;
+        }
+
+        private void await(Predicate<T> accept, boolean all, long deadline) {
+
+            int stores = this.futures.size();
+            while (this.answered.size() < stores) {
+
+                if (!all && (this.reached() || this.answered.size() - this.accepted.size() > stores - this.quorum)) {
+                    return;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                Integer index;
+                try {
+                    index = remaining > 0L ? this.completed.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    index = null;
+                }
+                if (index == null) {
+                    return;
+                }
+
+                this.answered.add(index);
+                try {
+                    T reply = this.futures.get(index).join();
+                    if (accept.test(reply)) {
+                        this.accepted.put(index, reply);
+                    } else {
+                        this.refused.put(index, reply);
+                    }
+                } catch (CompletionException e) {
+                    if (this.error == null) {
+                        this.error = e.getCause();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Runs the given action with the replies of the stores
+         * that had not answered when the operation returned.
+         */
+        private void whenLate(Executor executor, BiConsumer<Integer, T> action) {
+
+            for (int i = 0; i < this.futures.size(); i++) {
+                if (!this.answered.contains(i)) {
+                    int index = i;
+                    this.futures.get(i).thenAcceptAsync(reply -> action.accept(index, reply), executor);
+                }
+            }
+        }
+    }
+}
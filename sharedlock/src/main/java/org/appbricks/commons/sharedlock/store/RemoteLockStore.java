@@ -0,0 +1,452 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockNotFoundException;
+import org.appbricks.commons.sharedlock.exception.MaintenanceEnabledException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A lock store that is a client of a lock server, which holds the locks
+ * in memory and persists them itself. All the threads of the process share
+ * one connection to the server and send their requests without waiting for
+ * the responses to the requests of other threads. The server pushes the
+ * names of locks that are released to the clients that were refused them,
+ * so waiters are woken instead of waiting for their next check.
+ *
+ * Shared locks, multiple lock acquisition and the deletion of idle locks
+ * are supported. Semaphores and fair mode require the JPA store.
+ */
+public class RemoteLockStore
+    implements LockStore, Closeable {
+
+    private static final Log log = LogFactory.getLog(RemoteLockStore.class);
+
+    public static final long DEFAULT_TIMEOUT = 10000L;
+
+    private final String host;
+    private final int port;
+
+    private long timeout = DEFAULT_TIMEOUT;
+
+    private final AtomicInteger requestIds = new AtomicInteger();
+
+    private Connection connection;
+
+    private volatile Consumer<String> releaseListener = name -> { };
+
+    public RemoteLockStore(String host) {
+        this(host, LockProtocol.DEFAULT_PORT);
+    }
+
+    public RemoteLockStore(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Sets how long in milliseconds to wait for the server to
+     * respond to a request before the request fails.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void setReleaseListener(Consumer<String> listener) {
+        this.releaseListener = listener;
+    }
+
+    @Override
+    public DistributedLock getLock(String name) {
+        return this.unchecked(LockProtocol.GET_LOCK, out -> out.writeUTF(name), LockProtocol::readLock);
+    }
+
+    @Override
+    public List<DistributedLock> getLocks(Collection<String> names) {
+        return this.unchecked(LockProtocol.GET_LOCKS, out -> LockProtocol.writeNames(out, names), LockProtocol::readLocks);
+    }
+
+    @Override
+    public void createLocks(Collection<String> names) {
+        this.unchecked(LockProtocol.CREATE_LOCKS, out -> LockProtocol.writeNames(out, names), in -> null);
+    }
+
+    @Override
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        return this.call(LockProtocol.TRY_ACQUIRE, out -> {
+            LockProtocol.writeLock(out, lock);
+            out.writeInt(expireAfter);
+        }, in -> {
+            DistributedLock holder = LockProtocol.readLock(in);
+            if (holder == null) {
+                lock.setFencingToken(in.readLong());
+            }
+            return holder;
+        });
+    }
+
+    @Override
+    public boolean transferLock(DistributedLock from, DistributedLock to, int expireAfter) {
+
+        return this.unchecked(LockProtocol.TRANSFER, out -> {
+            LockProtocol.writeLock(out, from);
+            LockProtocol.writeLock(out, to);
+            out.writeInt(expireAfter);
+        }, in -> {
+            boolean transferred = in.readBoolean();
+            if (transferred) {
+                to.setFencingToken(in.readLong());
+            }
+            return transferred;
+        });
+    }
+
+    @Override
+    public boolean extendLock(DistributedLock lock, long expiresAt) {
+
+        return this.unchecked(LockProtocol.EXTEND, out -> {
+            LockProtocol.writeLock(out, lock);
+            out.writeLong(expiresAt);
+        }, DataInputStream::readBoolean);
+    }
+
+    @Override
+    public boolean raiseFencingToken(DistributedLock lock, long fencingToken) {
+
+        boolean raised = this.unchecked(LockProtocol.RAISE_FENCING_TOKEN, out -> {
+            LockProtocol.writeLock(out, lock);
+            out.writeLong(fencingToken);
+        }, DataInputStream::readBoolean);
+
+        if (raised) {
+            lock.setFencingToken(fencingToken);
+        }
+        return raised;
+    }
+
+    @Override
+    public Set<String> renewLocks(Collection<DistributedLock> locks, long expiresAt) {
+
+        return this.unchecked(LockProtocol.RENEW, out -> {
+            LockProtocol.writeLocks(out, locks);
+            out.writeLong(expiresAt);
+        }, in -> new HashSet<>(LockProtocol.readNames(in)));
+    }
+
+    @Override
+    public DistributedLock validate(DistributedLock lock)
+        throws LockException {
+
+        return this.call(LockProtocol.VALIDATE, out -> LockProtocol.writeLock(out, lock), LockProtocol::readLock);
+    }
+
+    @Override
+    public boolean releaseLock(DistributedLock lock) {
+        return this.unchecked(LockProtocol.RELEASE, out -> LockProtocol.writeLock(out, lock), DataInputStream::readBoolean);
+    }
+
+    @Override
+    public void enterMaintenanceMode(DistributedLock lock)
+        throws LockException {
+
+        this.call(LockProtocol.ENTER_MAINTENANCE, out -> LockProtocol.writeLock(out, lock), in -> null);
+    }
+
+    @Override
+    public void exitMaintenanceMode(String name)
+        throws LockException {
+
+        this.call(LockProtocol.EXIT_MAINTENANCE, out -> out.writeUTF(name), in -> null);
+    }
+
+    @Override
+    public List<DistributedLock> tryAcquireLocks(List<String> names, DistributedLock owner, int expireAfter) {
+
+        return this.unchecked(LockProtocol.TRY_ACQUIRE_ALL, out -> {
+            LockProtocol.writeNames(out, names);
+            LockProtocol.writeLock(out, owner);
+            out.writeInt(expireAfter);
+        }, in -> in.readBoolean() ? LockProtocol.readLocks(in) : null);
+    }
+
+    @Override
+    public int releaseLocks(List<String> names, DistributedLock owner) {
+
+        return this.unchecked(LockProtocol.RELEASE_ALL, out -> {
+            LockProtocol.writeNames(out, names);
+            LockProtocol.writeLock(out, owner);
+        }, DataInputStream::readInt);
+    }
+
+    @Override
+    public DistributedLock tryAcquireReadLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        return this.call(LockProtocol.TRY_ACQUIRE_READ, out -> {
+            LockProtocol.writeLock(out, lock);
+            out.writeInt(expireAfter);
+        }, LockProtocol::readLock);
+    }
+
+    @Override
+    public void releaseReadLock(DistributedLock lock) {
+        this.unchecked(LockProtocol.RELEASE_READ, out -> LockProtocol.writeLock(out, lock), in -> null);
+    }
+
+    @Override
+    public List<String> getLockNames(String after, int limit) {
+
+        return this.unchecked(LockProtocol.GET_LOCK_NAMES, out -> {
+            LockProtocol.writeString(out, after);
+            out.writeInt(limit);
+        }, LockProtocol::readNames);
+    }
+
+    @Override
+    public int deleteIdleLocks(Collection<String> names, long idleSince) {
+
+        return this.unchecked(LockProtocol.DELETE_IDLE, out -> {
+            LockProtocol.writeNames(out, names);
+            out.writeLong(idleSince);
+        }, DataInputStream::readInt);
+    }
+
+    @Override
+    public synchronized void close() {
+
+        if (this.connection != null) {
+            this.connection.close(new IOException("Lock store was closed."));
+            this.connection = null;
+        }
+    }
+
+    private <T> T unchecked(byte operation, Request request, Response<T> response) {
+
+        try {
+            return this.call(operation, request, response);
+        } catch (LockException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sends a request to the server and waits for its response. Errors
+     * reported by the server are thrown as the exceptions raised by the
+     * store on the server.
+     */
+    private <T> T call(byte operation, Request request, Response<T> response)
+        throws LockException {
+
+        int requestId;
+        do {
+            requestId = this.requestIds.incrementAndGet();
+        } while (requestId == LockProtocol.PUSH_REQUEST_ID);
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(128);
+        try {
+            DataOutputStream out = new DataOutputStream(frame);
+            out.writeInt(0);
+            out.writeInt(requestId);
+            out.writeByte(operation);
+            request.write(out);
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        byte[] bytes = frame.toByteArray();
+        int length = bytes.length - 4;
+        bytes[0] = (byte) (length >>> 24);
+        bytes[1] = (byte) (length >>> 16);
+        bytes[2] = (byte) (length >>> 8);
+        bytes[3] = (byte) length;
+
+        Connection connection = this.connection();
+        CompletableFuture<byte[]> result = connection.send(requestId, bytes);
+
+        byte[] payload;
+        try {
+            payload = result.get(this.timeout, TimeUnit.MILLISECONDS);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            connection.pending.remove(requestId);
+            throw new LockException(e, "Interrupted waiting for the lock server.");
+
+        } catch (TimeoutException e) {
+            connection.pending.remove(requestId);
+            throw new UncheckedIOException(new IOException(String.format(
+                "Timed out waiting for lock server %s:%d.", this.host, this.port), e));
+
+        } catch (ExecutionException e) {
+            throw new UncheckedIOException(new IOException(String.format(
+                "Lost connection to lock server %s:%d.", this.host, this.port), e.getCause()));
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            byte status = in.readByte();
+            switch (status) {
+                case LockProtocol.OK:
+                    return response.read(in);
+                case LockProtocol.INVALID_LOCK:
+                    throw new InvalidLockException("%s", in.readUTF());
+                case LockProtocol.MAINTENANCE_ENABLED:
+                    throw new MaintenanceEnabledException("%s", in.readUTF());
+                case LockProtocol.LOCK_NOT_FOUND:
+                    throw new LockNotFoundException("%s", in.readUTF());
+                case LockProtocol.LOCK_ERROR:
+                    throw new LockException("%s", in.readUTF());
+                case LockProtocol.UNSUPPORTED:
+                    throw new UnsupportedOperationException(in.readUTF());
+                default:
+                    throw new IllegalStateException(in.readUTF());
+            }
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private synchronized Connection connection() {
+
+        if (this.connection == null || this.connection.closed) {
+            try {
+                this.connection = new Connection();
+            } catch (IOException e) {
+                throw new UncheckedIOException(new IOException(String.format(
+                    "Unable to connect to lock server %s:%d.", this.host, this.port), e));
+            }
+        }
+        return this.connection;
+    }
+
+    /**
+     * A connection to the server with a thread
+     * that reads the responses of the server.
+     */
+    private class Connection {
+
+        private final Socket socket;
+        private final OutputStream out;
+
+        private final ConcurrentMap<Integer, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+
+        private volatile boolean closed;
+
+        private Connection()
+            throws IOException {
+
+            this.socket = new Socket();
+            this.socket.setTcpNoDelay(true);
+            this.socket.connect(new InetSocketAddress(RemoteLockStore.this.host, RemoteLockStore.this.port));
+            this.out = this.socket.getOutputStream();
+
+            Thread reader = new Thread(this::read, "sharedlock-client-" + this.socket.getLocalPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private CompletableFuture<byte[]> send(int requestId, byte[] frame) {
+
+            CompletableFuture<byte[]> result = new CompletableFuture<>();
+            this.pending.put(requestId, result);
+            try {
+                synchronized (this.out) {
+                    this.out.write(frame);
+                    this.out.flush();
+                }
+            } catch (IOException e) {
+                this.close(e);
+            }
+            return result;
+        }
+
+        private void read() {
+
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+                while (true) {
+
+                    int length = in.readInt();
+                    int requestId = in.readInt();
+                    byte[] payload = new byte[length - 4];
+                    in.readFully(payload);
+
+                    if (requestId == LockProtocol.PUSH_REQUEST_ID) {
+                        String name = new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1)).readUTF();
+                        RemoteLockStore.this.releaseListener.accept(name);
+                        continue;
+                    }
+
+                    CompletableFuture<byte[]> result = this.pending.remove(requestId);
+                    if (result != null) {
+                        result.complete(payload);
+                    }
+                }
+
+            } catch (IOException e) {
+                if (!this.closed) {
+                    log.warn(String.format("Lost connection to lock server %s:%d: %s",
+                        RemoteLockStore.this.host, RemoteLockStore.this.port, e.getMessage()));
+                }
+                this.close(e);
+            }
+        }
+
+        private void close(IOException cause) {
+
+            this.closed = true;
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+
+            for (CompletableFuture<byte[]> result : new ArrayList<>(this.pending.values())) {
+                result.completeExceptionally(cause);
+            }
+            this.pending.clear();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Request {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Response<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+}
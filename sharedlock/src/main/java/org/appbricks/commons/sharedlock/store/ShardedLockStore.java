@@ -0,0 +1,875 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockNotFoundException;
+import org.appbricks.commons.sharedlock.exception.LockUpdateException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.model.DistributedLockTicket;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A lock store that spreads the locks over several lock stores, the shards,
+ * so that lock throughput is not bound by a single database. Each lock name
+ * is routed to a shard by consistent hashing: every shard is placed on a
+ * hash ring at a number of virtual nodes and a name belongs to the shard of
+ * the first node at or after the hash of the name. Adding or removing a
+ * shard therefore only moves the names next to the nodes of that shard.
+ *
+ * While the shards are rebalanced the previous ring is kept. A moved lock
+ * is then acquired in its previous shard first and in its new shard after,
+ * so that it is fenced both against the leases taken before the rebalance
+ * and against the processes that have not been rebalanced yet, which only
+ * use the previous shard. Both leases are given the larger of the fencing
+ * tokens of the two shards, so tokens keep increasing once the lock is
+ * only in its new shard. Leases held only in the previous shard are still
+ * extended, renewed, validated and released there, but not beyond the end
+ * of the rebalance, and are not handed over to waiters.
+ *
+ * The previous ring is dropped once the rebalance time has passed, which
+ * must be longer than the longest lease, or by finishRebalance(). All the
+ * processes using the locks must be configured with the same shards, and
+ * must be rebalanced within the rebalance time: a process still on the
+ * previous shards after that is no longer fenced against the others.
+ *
+ * The operations on multiple locks are split by shard and run on the
+ * shards in parallel. Acquiring multiple locks is all or none within
+ * each shard, and the locks acquired in other shards are released again
+ * if a shard refuses its locks. Semaphores and fair mode are routed by
+ * name but do not look at the previous ring while rebalancing.
+ */
+public class ShardedLockStore
+    implements LockStore, Closeable {
+
+    private static final Log log = LogFactory.getLog(ShardedLockStore.class);
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    public static final long DEFAULT_REBALANCE_TIME = 600000L;
+
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final int virtualNodes;
+
+    private volatile Ring ring;
+    private volatile Ring previousRing;
+    private volatile long rebalanceEndsAt;
+
+    private long rebalanceTime = DEFAULT_REBALANCE_TIME;
+
+    private Consumer<String> releaseListener;
+
+    private final ExecutorService executor;
+
+    public ShardedLockStore(Map<String, LockStore> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param shards       the lock stores by their names, which place
+     *                     the shards on the ring and must not change
+     * @param virtualNodes the number of nodes of each shard on the ring
+     */
+    public ShardedLockStore(Map<String, LockStore> shards, int virtualNodes) {
+
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one lock store shard is required.");
+        }
+        this.virtualNodes = virtualNodes;
+        this.ring = new Ring(new LinkedHashMap<>(shards), virtualNodes);
+
+        int instance = instances.incrementAndGet();
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "sharedlock-shard-" + instance + "-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns a store that spreads the locks over JdbcLockStores
+     * on each of the given data sources.
+     */
+    public static ShardedLockStore forDataSources(Map<String, DataSource> dataSources) {
+
+        Map<String, LockStore> shards = new LinkedHashMap<>();
+        dataSources.forEach((name, dataSource) -> shards.put(name, new JdbcLockStore(dataSource)));
+        return new ShardedLockStore(shards);
+    }
+
+    /**
+     * Returns the current shards by their names.
+     */
+    public Map<String, LockStore> getShards() {
+        return Collections.unmodifiableMap(this.ring.shards);
+    }
+
+    /**
+     * Returns the name of the shard the named lock is routed to.
+     */
+    public String getShardName(String name) {
+        return this.ring.shardName(name);
+    }
+
+    public boolean isRebalancing() {
+        return this.previousRing() != null;
+    }
+
+    /**
+     * Sets how long the previous ring is kept after shards are added or
+     * removed, in milliseconds. It must be longer than the longest lease
+     * taken on the locks, and all the processes using the locks must be
+     * rebalanced within it.
+     */
+    public void setRebalanceTime(long rebalanceTime) {
+        this.rebalanceTime = rebalanceTime;
+    }
+
+    /**
+     * Adds a shard. The locks that move to it are only acquired
+     * there once they are no longer held in their previous shards.
+     */
+    public synchronized void addShard(String name, LockStore lockStore) {
+
+        Map<String, LockStore> shards = new LinkedHashMap<>(this.ring.shards);
+        if (shards.putIfAbsent(name, lockStore) != null) {
+            throw new IllegalArgumentException(String.format("Lock store shard '%s' already exists.", name));
+        }
+        if (this.releaseListener != null) {
+            lockStore.setReleaseListener(this.releaseListener);
+        }
+        this.rebalance(shards);
+    }
+
+    /**
+     * Removes a shard. The locks that move from it are only acquired
+     * in their new shards once they are no longer held in it.
+     */
+    public synchronized void removeShard(String name) {
+
+        Map<String, LockStore> shards = new LinkedHashMap<>(this.ring.shards);
+        if (shards.remove(name) == null) {
+            throw new IllegalArgumentException(String.format("Lock store shard '%s' does not exist.", name));
+        }
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one lock store shard is required.");
+        }
+        this.rebalance(shards);
+    }
+
+    /**
+     * Drops the ring the shards had before they were last added or removed
+     * ahead of the end of the rebalance time. This must only be called once
+     * the leases on moved locks taken before the rebalance have been released
+     * or have expired, and all the processes using the locks were rebalanced.
+     */
+    public synchronized void finishRebalance() {
+        this.previousRing = null;
+    }
+
+    private void rebalance(Map<String, LockStore> shards) {
+
+        if (this.previousRing() != null) {
+            log.warn("Lock store shards were rebalanced again before the previous rebalance was finished.");
+        }
+        this.previousRing = this.ring;
+        this.rebalanceEndsAt = System.currentTimeMillis() + this.rebalanceTime;
+        this.ring = new Ring(shards, this.virtualNodes);
+
+        log.info(String.format("Lock store shards rebalanced to %s.", shards.keySet()));
+    }
+
+    @Override
+    public synchronized void setReleaseListener(Consumer<String> listener) {
+
+        this.releaseListener = listener;
+        for (LockStore lockStore : this.ring.shards.values()) {
+            lockStore.setReleaseListener(listener);
+        }
+    }
+
+    @Override
+    public DistributedLock getLock(String name) {
+
+        DistributedLock previous = this.heldInPreviousShard(name);
+        return previous != null ? previous : this.ring.shard(name).getLock(name);
+    }
+
+    @Override
+    public List<DistributedLock> getLocks(Collection<String> names) {
+
+        Ring previousRing = this.previousRing();
+        Map<String, DistributedLock> held = new LinkedHashMap<>();
+        if (previousRing != null) {
+            for (DistributedLock lock : this.fanOut(previousRing, this.moved(names), LockStore::getLocks, List::addAll)) {
+                if (lock.isLocked()) {
+                    held.put(lock.getName(), lock);
+                }
+            }
+        }
+
+        List<DistributedLock> locks = this.fanOut(this.ring, names, LockStore::getLocks, List::addAll);
+        if (!held.isEmpty()) {
+            locks.replaceAll(lock -> held.getOrDefault(lock.getName(), lock));
+        }
+        return locks;
+    }
+
+    @Override
+    public void createLocks(Collection<String> names) {
+
+        this.fanOut(this.ring, names, (lockStore, shardNames) -> {
+            lockStore.createLocks(shardNames);
+            return Collections.<Void>emptyList();
+        }, List::addAll);
+    }
+
+    /**
+     * Acquires a moved lock in its previous shard and then in its new shard,
+     * and releases the lease in the previous shard again if the new shard
+     * refuses the lock.
+     */
+    @Override
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        LockStore current = this.ring.shard(lock.getName());
+        LockStore previous = this.previousShard(lock.getName());
+        if (previous == null) {
+            return current.tryAcquireLock(lock, expireAfter);
+        }
+
+        DistributedLock previousLock = new DistributedLock(lock);
+        DistributedLock holder = acquire(previous, previousLock, expireAfter);
+        if (holder != null) {
+            return holder;
+        }
+        try {
+            holder = current.tryAcquireLock(lock, expireAfter);
+        } catch (LockException | RuntimeException e) {
+            previous.releaseLock(previousLock);
+            throw e;
+        }
+        if (holder != null) {
+            previous.releaseLock(previousLock);
+            return holder;
+        }
+
+        if (!matchTokens(previous, previousLock, current, lock)) {
+            previous.releaseLock(previousLock);
+            current.releaseLock(lock);
+            throw new LockUpdateException(null, "Fencing token of moved lock '%s' could not be raised.", lock.getName());
+        }
+        return null;
+    }
+
+    /**
+     * Hands a lease on a moved lock over only if it is held in both its
+     * previous and its new shard. A lease taken before the rebalance is
+     * released instead, so that the next owner acquires it in both.
+     */
+    @Override
+    public boolean transferLock(DistributedLock from, DistributedLock to, int expireAfter) {
+
+        LockStore current = this.ring.shard(to.getName());
+        LockStore previous = this.previousShard(to.getName());
+        if (previous == null) {
+            return current.transferLock(from, to, expireAfter);
+        }
+
+        DistributedLock previousTo = new DistributedLock(to);
+        if (!previous.transferLock(from, previousTo, expireAfter)) {
+            return false;
+        }
+        if (current.transferLock(from, to, expireAfter) && matchTokens(previous, previousTo, current, to)) {
+            return true;
+        }
+        previous.releaseLock(previousTo);
+        current.releaseLock(to);
+        return false;
+    }
+
+    @Override
+    public boolean extendLock(DistributedLock lock, long expiresAt) {
+
+        boolean extended = this.ring.shard(lock.getName()).extendLock(lock, expiresAt);
+        LockStore previous = this.previousShard(lock.getName());
+        if (previous == null) {
+            return extended;
+        }
+        // Leases held only in the previous shard end with the rebalance
+        return (extended || expiresAt <= this.rebalanceEndsAt) && previous.extendLock(lock, expiresAt);
+    }
+
+    @Override
+    public boolean raiseFencingToken(DistributedLock lock, long fencingToken) {
+
+        DistributedLock previousLock = new DistributedLock(lock);
+        boolean raised = this.ring.shard(lock.getName()).raiseFencingToken(lock, fencingToken);
+        LockStore previous = this.previousShard(lock.getName());
+        if (previous != null && previous.raiseFencingToken(previousLock, fencingToken)) {
+            lock.setFencingToken(previousLock.getFencingToken());
+            return true;
+        }
+        return raised;
+    }
+
+    @Override
+    public Set<String> renewLocks(Collection<DistributedLock> locks, long expiresAt) {
+
+        Map<String, DistributedLock> byName = new LinkedHashMap<>();
+        locks.forEach(lock -> byName.put(lock.getName(), lock));
+
+        Set<String> lost = this.renewLocks(this.ring, byName, expiresAt);
+
+        Ring previousRing = this.previousRing();
+        if (previousRing != null) {
+
+            // Leases on moved locks are renewed in their previous shards as
+            // well, and those held only there not beyond the rebalance
+            Map<String, DistributedLock> moved = new LinkedHashMap<>();
+            for (String name : this.moved(byName.keySet())) {
+                if (!lost.contains(name) || expiresAt <= this.rebalanceEndsAt) {
+                    moved.put(name, byName.get(name));
+                }
+            }
+            if (!moved.isEmpty()) {
+                Set<String> previousLost = this.renewLocks(previousRing, moved, expiresAt);
+                for (String name : moved.keySet()) {
+                    if (previousLost.contains(name)) {
+                        lost.add(name);
+                    } else {
+                        lost.remove(name);
+                    }
+                }
+            }
+        }
+        return lost;
+    }
+
+    @Override
+    public DistributedLock validate(DistributedLock lock)
+        throws LockException {
+
+        LockStore previous = this.previousShard(lock.getName());
+        if (previous != null) {
+            for (DistributedLock distributedLock : previous.getLocks(Collections.singleton(lock.getName()))) {
+                if (distributedLock.isLocked()) {
+                    return previous.validate(lock);
+                }
+            }
+        }
+        return this.ring.shard(lock.getName()).validate(lock);
+    }
+
+    @Override
+    public boolean releaseLock(DistributedLock lock) {
+
+        boolean released = this.ring.shard(lock.getName()).releaseLock(lock);
+        LockStore previous = this.previousShard(lock.getName());
+        return previous != null && previous.releaseLock(lock) || released;
+    }
+
+    @Override
+    public void enterMaintenanceMode(DistributedLock lock)
+        throws LockException {
+
+        this.ring.shard(lock.getName()).enterMaintenanceMode(lock);
+    }
+
+    @Override
+    public void exitMaintenanceMode(String name)
+        throws LockException {
+
+        LockStore previous = this.previousShard(name);
+        if (previous != null && this.heldInPreviousShard(name) != null) {
+            previous.exitMaintenanceMode(name);
+        } else {
+            this.ring.shard(name).exitMaintenanceMode(name);
+        }
+    }
+
+    /**
+     * Takes the locks of each shard at once on all the shards in parallel.
+     * If any shard refuses its locks, the locks taken in the other shards
+     * are released again and the locks held by other owners are returned.
+     * Moved locks are taken in their previous shards first.
+     */
+    @Override
+    public List<DistributedLock> tryAcquireLocks(List<String> names, DistributedLock owner, int expireAfter) {
+
+        Ring previousRing = this.previousRing();
+        List<String> moved = previousRing != null ? this.moved(names) : Collections.emptyList();
+
+        if (!moved.isEmpty()) {
+            List<DistributedLock> held = this.tryAcquireLocks(previousRing, moved, owner, expireAfter);
+            if (held != null && held.isEmpty()) {
+                // Locks created after the rebalance are missing in their previous shards
+                this.fanOut(previousRing, moved, (lockStore, shardNames) -> {
+                    lockStore.createLocks(shardNames);
+                    return Collections.<Void>emptyList();
+                }, List::addAll);
+                held = this.tryAcquireLocks(previousRing, moved, owner, expireAfter);
+            }
+            if (held != null) {
+                return held;
+            }
+        }
+
+        List<DistributedLock> held;
+        try {
+            held = this.tryAcquireLocks(this.ring, names, owner, expireAfter);
+        } catch (RuntimeException e) {
+            this.releaseLocks(previousRing, moved, owner);
+            throw e;
+        }
+        if (held != null) {
+            this.releaseLocks(previousRing, moved, owner);
+        } else if (!moved.isEmpty() && !this.matchTokens(previousRing, moved, owner)) {
+            this.releaseLocks(names, owner);
+            held = Collections.emptyList();
+        }
+        return held;
+    }
+
+    @Override
+    public int releaseLocks(List<String> names, DistributedLock owner) {
+
+        int released = this.releaseLocks(this.ring, names, owner);
+        Ring previousRing = this.previousRing();
+        if (previousRing != null) {
+            released += this.releaseLocks(previousRing, this.moved(names), owner);
+        }
+        return released;
+    }
+
+    /**
+     * Acquires a shared lock on a moved lock in its previous
+     * shard and then in its new shard.
+     */
+    @Override
+    public DistributedLock tryAcquireReadLock(DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        String name = lock.getName();
+        LockStore current = this.ring.shard(name);
+        LockStore previous = this.previousShard(name);
+        if (previous == null) {
+            return current.tryAcquireReadLock(lock, expireAfter);
+        }
+
+        DistributedLock holder;
+        try {
+            holder = previous.tryAcquireReadLock(lock, expireAfter);
+        } catch (LockNotFoundException e) {
+            previous.createLocks(Collections.singleton(name));
+            holder = previous.tryAcquireReadLock(lock, expireAfter);
+        }
+        if (holder != null) {
+            return holder;
+        }
+        try {
+            holder = current.tryAcquireReadLock(lock, expireAfter);
+        } catch (LockException | RuntimeException e) {
+            previous.releaseReadLock(lock);
+            throw e;
+        }
+        if (holder != null) {
+            previous.releaseReadLock(lock);
+        }
+        return holder;
+    }
+
+    @Override
+    public void releaseReadLock(DistributedLock lock) {
+
+        String name = lock.getName();
+        this.ring.shard(name).releaseReadLock(lock);
+        LockStore previous = this.previousShard(name);
+        if (previous != null) {
+            previous.releaseReadLock(lock);
+        }
+    }
+
+    /**
+     * Returns the names of the locks in all the shards in name order by
+     * merging the names of each shard, which are read in parallel.
+     */
+    @Override
+    public List<String> getLockNames(String after, int limit) {
+
+        Ring ring = this.ring;
+        List<CompletableFuture<List<String>>> results = new ArrayList<>();
+        for (LockStore lockStore : ring.shards.values()) {
+            results.add(CompletableFuture.supplyAsync(() -> lockStore.getLockNames(after, limit), this.executor));
+        }
+
+        TreeSet<String> names = new TreeSet<>();
+        for (CompletableFuture<List<String>> result : results) {
+            names.addAll(join(result));
+        }
+        List<String> merged = new ArrayList<>(names);
+        return merged.subList(0, Math.min(limit, merged.size()));
+    }
+
+    @Override
+    public int deleteIdleLocks(Collection<String> names, long idleSince) {
+
+        return this.fanOut(this.ring, names,
+            (lockStore, shardNames) -> Collections.singletonList(lockStore.deleteIdleLocks(shardNames, idleSince)),
+            List::addAll).stream().mapToInt(Integer::intValue).sum();
+    }
+
+    @Override
+    public void createPermits(String name, int permits) {
+        this.ring.shard(name).createPermits(name, permits);
+    }
+
+    @Override
+    public List<Integer> tryAcquirePermits(DistributedLock lock, int permits, int count, int expireAfter) {
+        return this.ring.shard(lock.getName()).tryAcquirePermits(lock, permits, count, expireAfter);
+    }
+
+    @Override
+    public int releasePermits(DistributedLock lock, Collection<Integer> slots) {
+        return this.ring.shard(lock.getName()).releasePermits(lock, slots);
+    }
+
+    @Override
+    public int availablePermits(String name, int permits) {
+        return this.ring.shard(name).availablePermits(name, permits);
+    }
+
+    @Override
+    public DistributedLockTicket enterFairQueue(DistributedLock lock, int ticketTimeToLive) {
+        return this.ring.shard(lock.getName()).enterFairQueue(lock, ticketTimeToLive);
+    }
+
+    @Override
+    public void leaveFairQueue(DistributedLockTicket ticket) {
+        this.ring.shard(ticket.getName()).leaveFairQueue(ticket);
+    }
+
+    @Override
+    public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter,
+        DistributedLockTicket ticket, int ticketTimeToLive)
+        throws LockException {
+
+        return this.ring.shard(lock.getName()).tryAcquireLock(lock, expireAfter, ticket, ticketTimeToLive);
+    }
+
+    /**
+     * Stops the threads that run operations on the shards in parallel.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Returns the ring the shards had before they were last added or
+     * removed, or null once the rebalance time has passed since.
+     */
+    private Ring previousRing() {
+
+        Ring previousRing = this.previousRing;
+        if (previousRing != null && System.currentTimeMillis() >= this.rebalanceEndsAt) {
+            synchronized (this) {
+                if (this.previousRing == previousRing) {
+                    this.previousRing = null;
+                    log.info("Lock store shards rebalance finished.");
+                }
+            }
+            return null;
+        }
+        return previousRing;
+    }
+
+    /**
+     * Returns the previous shard of the named lock if the lock
+     * has moved to another shard in the current rebalance.
+     */
+    private LockStore previousShard(String name) {
+
+        Ring previousRing = this.previousRing();
+        if (previousRing == null) {
+            return null;
+        }
+        String previous = previousRing.shardName(name);
+        return previous.equals(this.ring.shardName(name)) ? null : previousRing.shards.get(previous);
+    }
+
+    /**
+     * Returns the state of the named lock in its previous
+     * shard if it has moved and is held there.
+     */
+    private DistributedLock heldInPreviousShard(String name) {
+
+        LockStore previous = this.previousShard(name);
+        if (previous != null) {
+            for (DistributedLock lock : previous.getLocks(Collections.singleton(name))) {
+                if (lock.isLocked()) {
+                    return lock;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Acquires the lock in its previous shard, creating it first if it
+     * was created after the rebalance and is only in its new shard.
+     */
+    private static DistributedLock acquire(LockStore lockStore, DistributedLock lock, int expireAfter)
+        throws LockException {
+
+        try {
+            return lockStore.tryAcquireLock(lock, expireAfter);
+        } catch (LockNotFoundException e) {
+            lockStore.createLocks(Collections.singleton(lock.getName()));
+            return lockStore.tryAcquireLock(lock, expireAfter);
+        }
+    }
+
+    /**
+     * Raises the fencing token of the lease held in one shard to the token
+     * of the lease held in the other, so that both carry the larger token
+     * and later tokens are larger once the lock is only in its new shard.
+     */
+    private static boolean matchTokens(LockStore previous, DistributedLock previousLock,
+        LockStore current, DistributedLock lock) {
+
+        if (previousLock.getFencingToken() > lock.getFencingToken()) {
+            return current.raiseFencingToken(lock, previousLock.getFencingToken());
+        }
+        return previousLock.getFencingToken() == lock.getFencingToken()
+            || previous.raiseFencingToken(previousLock, lock.getFencingToken());
+    }
+
+    /**
+     * Matches the fencing tokens of the leases of the given owner on
+     * moved locks in their previous shards and in their new shards.
+     */
+    private boolean matchTokens(Ring previousRing, List<String> moved, DistributedLock owner) {
+
+        Map<String, DistributedLock> previousLocks = new HashMap<>();
+        for (DistributedLock lock : this.fanOut(previousRing, moved, LockStore::getLocks, List::addAll)) {
+            previousLocks.put(lock.getName(), lock);
+        }
+        Ring ring = this.ring;
+        for (DistributedLock lock : this.fanOut(ring, moved, LockStore::getLocks, List::addAll)) {
+            DistributedLock previousLock = previousLocks.get(lock.getName());
+            if (previousLock == null || !matchTokens(previousRing.shard(lock.getName()), lease(owner, previousLock),
+                ring.shard(lock.getName()), lease(owner, lock))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the lease of the given owner on the given lock.
+     */
+    private static DistributedLock lease(DistributedLock owner, DistributedLock lock) {
+
+        DistributedLock lease = new DistributedLock(owner);
+        lease.setName(lock.getName());
+        lease.setFencingToken(lock.getFencingToken());
+        return lease;
+    }
+
+    /**
+     * Returns the given names of the locks that have moved
+     * to another shard in the current rebalance.
+     */
+    private List<String> moved(Collection<String> names) {
+
+        List<String> moved = new ArrayList<>();
+        for (String name : names) {
+            if (this.previousShard(name) != null) {
+                moved.add(name);
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Runs the given operation on the names of each shard of the
+     * given ring in parallel and collects the results.
+     */
+    private <T> List<T> fanOut(Ring ring, Collection<String> names,
+        ShardOperation<T> operation, Collector<T> collector) {
+
+        List<T> results = new ArrayList<>();
+        if (names.isEmpty()) {
+            return results;
+        }
+
+        Map<String, List<String>> byShard = ring.split(names);
+        if (byShard.size() == 1) {
+            Map.Entry<String, List<String>> entry = byShard.entrySet().iterator().next();
+            collector.add(results, operation.run(ring.shards.get(entry.getKey()), entry.getValue()));
+            return results;
+        }
+
+        List<CompletableFuture<List<T>>> futures = new ArrayList<>();
+        byShard.forEach((shardName, shardNames) -> futures.add(CompletableFuture.supplyAsync(
+            () -> operation.run(ring.shards.get(shardName), shardNames), this.executor)));
+        for (CompletableFuture<List<T>> future : futures) {
+            collector.add(results, join(future));
+        }
+        return results;
+    }
+
+    /**
+     * Takes the given locks on the shards of the given ring.
+     */
+    private List<DistributedLock> tryAcquireLocks(Ring ring, List<String> names,
+        DistributedLock owner, int expireAfter) {
+
+        Map<String, List<String>> byShard = ring.split(names);
+        if (byShard.size() == 1) {
+            Map.Entry<String, List<String>> entry = byShard.entrySet().iterator().next();
+            return ring.shards.get(entry.getKey()).tryAcquireLocks(entry.getValue(), owner, expireAfter);
+        }
+
+        Map<String, CompletableFuture<List<DistributedLock>>> results = new LinkedHashMap<>();
+        byShard.forEach((shardName, shardNames) -> results.put(shardName, CompletableFuture.supplyAsync(
+            () -> ring.shards.get(shardName).tryAcquireLocks(shardNames, owner, expireAfter), this.executor)));
+
+        List<DistributedLock> held = null;
+        List<String> acquired = new ArrayList<>();
+        RuntimeException error = null;
+        for (Map.Entry<String, CompletableFuture<List<DistributedLock>>> entry : results.entrySet()) {
+            try {
+                List<DistributedLock> shardHeld = join(entry.getValue());
+                if (shardHeld == null) {
+                    acquired.addAll(byShard.get(entry.getKey()));
+                } else {
+                    if (held == null) {
+                        held = new ArrayList<>();
+                    }
+                    held.addAll(shardHeld);
+                }
+            } catch (RuntimeException e) {
+                error = e;
+            }
+        }
+
+        if ((held != null || error != null) && !acquired.isEmpty()) {
+            this.releaseLocks(ring, acquired, owner);
+        }
+        if (error != null) {
+            throw error;
+        }
+        return held;
+    }
+
+    /**
+     * Releases the given locks of the owner on the shards of the given ring.
+     */
+    private int releaseLocks(Ring ring, List<String> names, DistributedLock owner) {
+
+        return this.fanOut(ring, names,
+            (lockStore, shardNames) -> Collections.singletonList(lockStore.releaseLocks(shardNames, owner)),
+            List::addAll).stream().mapToInt(Integer::intValue).sum();
+    }
+
+    /**
+     * Renews the given leases on each shard of the given ring
+     * in parallel and returns the names of the leases lost.
+     */
+    private Set<String> renewLocks(Ring ring, Map<String, DistributedLock> locks, long expiresAt) {
+
+        List<String> lost = this.fanOut(ring, locks.keySet(), (lockStore, shardNames) -> {
+            List<DistributedLock> shardLocks = new ArrayList<>();
+            shardNames.forEach(name -> shardLocks.add(locks.get(name)));
+            return new ArrayList<>(lockStore.renewLocks(shardLocks, expiresAt));
+        }, List::addAll);
+        return new HashSet<>(lost);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The shards placed on a hash ring.
+     */
+    private static class Ring {
+
+        private final Map<String, LockStore> shards;
+        private final TreeMap<Long, String> nodes = new TreeMap<>();
+
+        private Ring(Map<String, LockStore> shards, int virtualNodes) {
+
+            this.shards = shards;
+            for (String shardName : shards.keySet()) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    this.nodes.put(CompactJdbcLockStore.hash(shardName + "#" + i), shardName);
+                }
+            }
+        }
+
+        private String shardName(String name) {
+
+            Map.Entry<Long, String> node = this.nodes.ceilingEntry(CompactJdbcLockStore.hash(name));
+            return node != null ? node.getValue() : this.nodes.firstEntry().getValue();
+        }
+
+        private LockStore shard(String name) {
+            return this.shards.get(this.shardName(name));
+        }
+
+        /**
+         * Splits the given names by shard keeping their order.
+         */
+        private Map<String, List<String>> split(Collection<String> names) {
+
+            Map<String, List<String>> byShard = new LinkedHashMap<>();
+            for (String name : names) {
+                byShard.computeIfAbsent(this.shardName(name), shardName -> new ArrayList<>()).add(name);
+            }
+            return byShard;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ShardOperation<T> {
+        List<T> run(LockStore lockStore, List<String> names);
+    }
+
+    @FunctionalInterface
+    private interface Collector<T> {
+        void add(List<T> results, List<T> shardResults);
+    }
+}
@@ -0,0 +1,80 @@
+package org.appbricks.commons.sharedlock.wait;
+
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Adapts the wait to how long the lock is typically held. Hold times are
+ * estimated from how long each lease seen by the failed attempts is held,
+ * from when it was granted until it is no longer seen, and averaged with
+ * an exponentially weighted moving average. Leases are told apart by their
+ * fencing tokens, so that a thread that takes the lock again starts a new
+ * hold.
+ * Each wait is a fraction of the average hold time, randomized and bounded
+ * by the given minimum and maximum waits.
+ */
+public class AdaptiveWaitStrategy
+    implements LockWaitStrategy {
+
+    private static final double WEIGHT = 0.25;
+    private static final int HOLD_TIME_FRACTION = 4;
+
+    private long minWait;
+    private long maxWait;
+
+    private double averageHoldTime;
+
+    // The lease last seen held by the failed attempts, keyed by its fencing
+    // token or by its update time for stores without fencing tokens
+    private boolean held;
+    private long heldLease;
+    private long heldSince;
+
+    public AdaptiveWaitStrategy(long minWait, long maxWait) {
+        this.minWait = minWait;
+        this.maxWait = maxWait;
+        this.averageHoldTime = maxWait;
+    }
+
+    @Override
+    public synchronized long nextWait(int attempt, DistributedLock holder) {
+
+        long now = System.currentTimeMillis();
+        if (holder != null && holder.isLocked()) {
+
+            long lease = holder.getFencingToken() > 0L ? holder.getFencingToken() : holder.getUpdateTime().getTime();
+            if (!this.held || lease != this.heldLease) {
+                this.holderReleased(now);
+                this.held = true;
+                this.heldLease = lease;
+                this.heldSince = Math.min(now, holder.getUpdateTime().getTime());
+            }
+        } else {
+            this.holderReleased(now);
+        }
+
+        long wait = (long) (this.averageHoldTime / HOLD_TIME_FRACTION);
+        wait = Math.max(this.minWait, Math.min(this.maxWait, wait));
+
+        long half = wait / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    @Override
+    public synchronized void acquired(int attempts) {
+        this.holderReleased(System.currentTimeMillis());
+    }
+
+    public synchronized long getAverageHoldTime() {
+        return (long) this.averageHoldTime;
+    }
+
+    private void holderReleased(long now) {
+
+        if (this.held) {
+            this.averageHoldTime += WEIGHT * ((now - this.heldSince) - this.averageHoldTime);
+            this.held = false;
+        }
+    }
+}
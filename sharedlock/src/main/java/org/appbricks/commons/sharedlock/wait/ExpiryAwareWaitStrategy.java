@@ -0,0 +1,45 @@
+package org.appbricks.commons.sharedlock.wait;
+
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Waits until shortly before the lease of the current holder expires,
+ * as it is unlikely the lock can be acquired before then. The wait is
+ * capped so that a lock released before its lease expires is still
+ * picked up, and randomized so that waiters do not all check the lock
+ * at the moment it expires.
+ */
+public class ExpiryAwareWaitStrategy
+    implements LockWaitStrategy {
+
+    private long minWait;
+    private long maxWait;
+    private long lead;
+
+    /**
+     * @param minWait the shortest wait in milliseconds
+     * @param maxWait the longest wait in milliseconds which bounds how
+     *                long it takes to notice an early release
+     * @param lead    how long in milliseconds before the holder's lease
+     *                expires to check the lock again
+     */
+    public ExpiryAwareWaitStrategy(long minWait, long maxWait, long lead) {
+        this.minWait = minWait;
+        this.maxWait = maxWait;
+        this.lead = lead;
+    }
+
+    @Override
+    public long nextWait(int attempt, DistributedLock holder) {
+
+        long wait = this.minWait;
+        if (holder != null && holder.isLocked()) {
+            long untilExpiry = holder.getExpirationTime().getTime() - System.currentTimeMillis() - this.lead;
+            wait = Math.max(this.minWait, Math.min(this.maxWait, untilExpiry));
+        }
+
+        return wait + ThreadLocalRandom.current().nextLong(this.minWait + 1);
+    }
+}
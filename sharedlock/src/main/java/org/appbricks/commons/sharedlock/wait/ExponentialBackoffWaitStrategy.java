@@ -0,0 +1,34 @@
+package org.appbricks.commons.sharedlock.wait;
+
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Doubles the wait after each failed attempt up to a maximum. Half of
+ * each wait is randomized so that waiters that started together do not
+ * keep checking the lock at the same time.
+ */
+public class ExponentialBackoffWaitStrategy
+    implements LockWaitStrategy {
+
+    private static final int MAX_SHIFT = 30;
+
+    private long initialWait;
+    private long maxWait;
+
+    public ExponentialBackoffWaitStrategy(long initialWait, long maxWait) {
+        this.initialWait = initialWait;
+        this.maxWait = maxWait;
+    }
+
+    @Override
+    public long nextWait(int attempt, DistributedLock holder) {
+
+        int shift = Math.min(Math.max(attempt - 1, 0), MAX_SHIFT);
+        long wait = Math.min(this.maxWait, this.initialWait << shift);
+
+        long half = wait / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+}
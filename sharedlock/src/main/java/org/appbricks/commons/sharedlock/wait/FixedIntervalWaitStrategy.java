@@ -0,0 +1,21 @@
+package org.appbricks.commons.sharedlock.wait;
+
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+/**
+ * Checks the lock at a fixed interval.
+ */
+public class FixedIntervalWaitStrategy
+    implements LockWaitStrategy {
+
+    private long interval;
+
+    public FixedIntervalWaitStrategy(long interval) {
+        this.interval = interval;
+    }
+
+    @Override
+    public long nextWait(int attempt, DistributedLock holder) {
+        return this.interval;
+    }
+}
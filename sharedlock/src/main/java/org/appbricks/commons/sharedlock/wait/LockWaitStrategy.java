@@ -0,0 +1,26 @@
+package org.appbricks.commons.sharedlock.wait;
+
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+/**
+ * Decides how long a thread waiting for a lock waits
+ * before checking the database for the lock again.
+ */
+public interface LockWaitStrategy {
+
+    /**
+     * Returns the time in milliseconds to wait before the next attempt
+     * to acquire the lock.
+     *
+     * @param attempt the number of failed attempts so far in this wait
+     * @param holder  the state of the lock as seen by the last failed attempt
+     */
+    long nextWait(int attempt, DistributedLock holder);
+
+    /**
+     * Called when the lock has been acquired after the
+     * given number of failed attempts.
+     */
+    default void acquired(int attempts) {
+    }
+}
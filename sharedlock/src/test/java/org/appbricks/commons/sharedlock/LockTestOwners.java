@@ -0,0 +1,28 @@
+package org.appbricks.commons.sharedlock;
+
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+
+/**
+ * Lock owners for tests that call the lock stores directly
+ */
+public final class LockTestOwners {
+
+    private LockTestOwners() {
+    }
+
+    /**
+     * Returns a lock with the given name owned by a thread
+     * of the given id on the local host.
+     */
+    public static DistributedLock owner(String name, long threadId) {
+
+        DistributedLock lock = new DistributedLock();
+        lock.setName(name);
+        lock.setHostname("localhost");
+        lock.setAddress("127.0.0.1");
+        lock.setThreadId(threadId);
+        lock.setThreadName("thread-" + threadId);
+        lock.setThreadGroupName("main");
+        return lock;
+    }
+}
@@ -0,0 +1,104 @@
+package org.appbricks.commons.sharedlock.metrics;
+
+import org.appbricks.commons.sharedlock.exception.LockTimedoutException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.service.DistributedLockInstance;
+import org.appbricks.commons.sharedlock.service.DistributedLockService;
+import org.appbricks.commons.sharedlock.store.InMemoryLockStore;
+import org.junit.Test;
+
+import javax.management.MBeanServerFactory;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ContentionProfilerTest {
+
+    @Test
+    public void testMostContendedLocks()
+        throws Throwable {
+
+        InMemoryLockStore store = new InMemoryLockStore();
+
+        try (JmxLockMetrics metrics = new JmxLockMetrics(MBeanServerFactory.newMBeanServer(), 10);
+            ContentionProfiler profiler = new ContentionProfiler(metrics)) {
+
+            DistributedLockService service = new DistributedLockService(store);
+            service.setMetrics(profiler);
+
+            DistributedLockInstance coldLock = new DistributedLockInstance("coldLock", service, 10, 3);
+            coldLock.lock(10, 60);
+            coldLock.unlock();
+
+            // Held by another process so waiting for it times out
+            DistributedLock other = new DistributedLock();
+            other.setName("hotLock");
+            other.setHostname("otherhost");
+            other.setAddress("10.0.0.1");
+            other.setThreadId(1);
+            other.setThreadName("other");
+            other.setThreadGroupName("main");
+
+            DistributedLockInstance hotLock = new DistributedLockInstance("hotLock", service, 10, 3);
+            store.getLock("hotLock");
+            assertNull(store.tryAcquireLock(other, 60));
+            try {
+                hotLock.lock(1, 60);
+                fail("Lock should be held by the other process");
+            } catch (LockTimedoutException e) {
+                // expected
+            }
+
+            List<LockContention> contended = profiler.getMostContended(10);
+            assertEquals(2, contended.size());
+            assertEquals("hotLock", contended.get(0).getName());
+            assertEquals(1L, contended.get(0).getTimeouts());
+            assertTrue(contended.get(0).getFailedPolls() > 1L);
+            assertTrue(contended.get(0).getTotalWaitTime() >= 900.0);
+            assertEquals("otherhost/main/other", contended.get(0).getTopHolder().getHolder());
+
+            LockContention cold = profiler.getContention("coldLock");
+            assertEquals(1L, cold.getAcquires());
+            assertEquals(0L, cold.getFailedPolls());
+            assertNull(cold.getTopHolder());
+
+            List<HolderContention> holders = profiler.getLongestHolders(1);
+            assertEquals(1, holders.size());
+            assertEquals("hotLock", holders.get(0).getName());
+            assertTrue(holders.get(0).getLongestHoldTime() >= 900.0);
+
+            assertTrue(profiler.report(5).contains("otherhost/main/other"));
+
+            // The measurements are passed on to the wrapped metrics
+            assertEquals(1L, metrics.getStats("hotLock").getTimeoutCount());
+            assertEquals(1L, metrics.getStats("coldLock").getAcquireCount());
+
+            profiler.reset();
+            assertTrue(profiler.getMostContended(10).isEmpty());
+        }
+    }
+
+    @Test
+    public void testIdleLocksAreDiscarded()
+        throws Throwable {
+
+        ContentionProfiler profiler = new ContentionProfiler();
+        profiler.setMaxLocks(2);
+
+        profiler.acquired("profiledLock1", 1000000L, 1);
+        Thread.sleep(1L);
+        profiler.acquired("profiledLock2", 1000000L, 1);
+        Thread.sleep(1L);
+        profiler.acquired("profiledLock1", 1000000L, 1);
+        Thread.sleep(1L);
+
+        // The lock that has been idle the longest makes room for a new one
+        profiler.acquired("profiledLock3", 1000000L, 1);
+        assertNull(profiler.getContention("profiledLock2"));
+        assertEquals(2L, profiler.getContention("profiledLock1").getAcquires());
+        assertEquals(1L, profiler.getContention("profiledLock3").getAcquires());
+    }
+}
@@ -0,0 +1,85 @@
+package org.appbricks.commons.sharedlock.metrics;
+
+import org.appbricks.commons.sharedlock.exception.LockTimedoutException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.service.DistributedLockInstance;
+import org.appbricks.commons.sharedlock.service.DistributedLockService;
+import org.appbricks.commons.sharedlock.store.InMemoryLockStore;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JmxLockMetricsTest {
+
+    @Test
+    public void testLockMeasurements()
+        throws Throwable {
+
+        MBeanServer mBeanServer = MBeanServerFactory.newMBeanServer();
+        InMemoryLockStore store = new InMemoryLockStore();
+
+        try (JmxLockMetrics metrics = new JmxLockMetrics(mBeanServer, 1)) {
+
+            DistributedLockService service = new DistributedLockService(store);
+            service.setMetrics(metrics);
+
+            DistributedLockInstance testLock = new DistributedLockInstance("metricsLock1", service, 10, 3);
+            testLock.lock(10, 60);
+            testLock.lock(10, 60);
+            Thread.sleep(20L);
+            testLock.unlock();
+            testLock.unlock();
+
+            // Held by another process so the lock times out
+            DistributedLock other = new DistributedLock();
+            other.setName("metricsLock1");
+            other.setHostname("otherhost");
+            other.setAddress("10.0.0.1");
+            other.setThreadId(1);
+            other.setThreadName("other");
+            other.setThreadGroupName("main");
+            assertNull(store.tryAcquireLock(other, 60));
+
+            try {
+                testLock.lock(1, 60);
+                fail("Lock should be held by the other process");
+            } catch (LockTimedoutException e) {
+                // expected
+            }
+
+            LockStatsMXBean stats = metrics.getStats("metricsLock1");
+            assertEquals(2L, stats.getAcquireCount());
+            assertEquals(1L, stats.getTimeoutCount());
+            assertEquals(1L, stats.getReleaseCount());
+            assertTrue(stats.getHoldTimeMax() >= 20.0);
+            assertTrue(stats.getPollsMax() > 0L);
+            assertTrue(stats.getStoreCallCounts().get(LockOperation.ACQUIRE.name()) > 2L);
+            assertEquals(Long.valueOf(1L), stats.getStoreCallCounts().get(LockOperation.RELEASE.name()));
+
+            ObjectName lock1 = new ObjectName(JmxLockMetrics.DOMAIN + ":type=Lock,name=" + ObjectName.quote("metricsLock1"));
+            ObjectName lock2 = new ObjectName(JmxLockMetrics.DOMAIN + ":type=Lock,name=" + ObjectName.quote("metricsLock2"));
+            assertEquals(1L, mBeanServer.getAttribute(lock1, "TimeoutCount"));
+
+            // The lock that has been idle the longest makes room for a new one
+            new DistributedLockInstance("metricsLock2", service, 10, 3).lock(10, 60);
+            assertNull(metrics.getStats("metricsLock1"));
+            assertFalse(mBeanServer.isRegistered(lock1));
+            assertEquals(1L, metrics.getStats("metricsLock2").getAcquireCount());
+            assertEquals(1L, mBeanServer.getAttribute(lock2, "AcquireCount"));
+
+            ObjectName total = new ObjectName(JmxLockMetrics.DOMAIN + ":type=Locks");
+            assertEquals(3L, metrics.getStats(null).getAcquireCount());
+            assertEquals(3L, mBeanServer.getAttribute(total, "AcquireCount"));
+        }
+
+        assertEquals(0, mBeanServer.queryNames(new ObjectName(JmxLockMetrics.DOMAIN + ":*"), null).size());
+    }
+}
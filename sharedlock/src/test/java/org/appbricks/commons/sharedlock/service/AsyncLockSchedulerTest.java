@@ -0,0 +1,100 @@
+package org.appbricks.commons.sharedlock.service;
+
+import org.appbricks.commons.sharedlock.LockTestContext;
+import org.appbricks.commons.sharedlock.exception.LockTimedoutException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = { LockTestContext.class })
+public class AsyncLockSchedulerTest {
+
+    @Autowired
+    DistributedLockService distributedLockService;
+
+    @Test
+    public void testPendingRequestsShareScheduler()
+        throws Throwable {
+
+        AsyncLockScheduler scheduler = new AsyncLockScheduler(this.distributedLockService, 50);
+        try {
+            DistributedLockInstance testLock = new DistributedLockInstance(
+                "asyncLock1", this.distributedLockService, 100, 3);
+
+            AtomicBoolean held = new AtomicBoolean();
+            AtomicInteger overlaps = new AtomicInteger();
+
+            List<CompletableFuture<Void>> done = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+
+                done.add(testLock.lockAsync(30, 60, scheduler).thenCompose(handle -> {
+
+                    if (!held.compareAndSet(false, true)) {
+                        overlaps.incrementAndGet();
+                    }
+                    assertTrue(handle.isHeld());
+
+                    held.set(false);
+                    return handle.unlockAsync();
+                }));
+            }
+
+            CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+            assertEquals(0, overlaps.get());
+            assertEquals(0, scheduler.getPendingCount());
+            assertFalse(testLock.getLock().isLocked());
+
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testRequestTimesOutWhileLockHeld()
+        throws Throwable {
+
+        AsyncLockScheduler scheduler = new AsyncLockScheduler(this.distributedLockService, 50);
+        try {
+            DistributedLockInstance testLock = new DistributedLockInstance(
+                "asyncLock2", this.distributedLockService, 100, 3);
+
+            testLock.lock(10, 60);
+            try {
+                testLock.lockAsync(1, 60, scheduler).get(10, TimeUnit.SECONDS);
+                fail("Lock should not have been acquired while it was held by a thread");
+
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof LockTimedoutException);
+
+            } finally {
+                testLock.unlock();
+            }
+
+            LockHandle handle = testLock.lockAsync(10, 60, scheduler).get(10, TimeUnit.SECONDS);
+            assertTrue(testLock.getLock().isLocked());
+
+            handle.unlockAsync().get(10, TimeUnit.SECONDS);
+            assertFalse(handle.isHeld());
+            assertFalse(testLock.getLock().isLocked());
+
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.appbricks.commons.sharedlock.service;
+
+import org.appbricks.commons.sharedlock.LockTestContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = { LockTestContext.class })
+public class DistributedLockRenewerTest {
+
+    @Autowired
+    DistributedLockService distributedLockService;
+
+    private DistributedLockRenewer renewer;
+
+    @Before
+    public void setUp() {
+        this.renewer = new DistributedLockRenewer(this.distributedLockService, 2, 500);
+    }
+
+    @After
+    public void tearDown() {
+        this.renewer.shutdown();
+    }
+
+    @Test
+    public void testLeaseIsRenewed()
+        throws Throwable {
+
+        DistributedLockInstance testLock = new DistributedLockInstance(
+            "renewLock1", this.distributedLockService, 500, 3);
+
+        testLock.lock(10, this.renewer, name -> {});
+        Thread.sleep(4000);
+
+        assertTrue(testLock.getLock().isLocked());
+        testLock.validate();
+
+        testLock.unlock();
+        assertFalse(testLock.getLock().isLocked());
+    }
+
+    @Test
+    public void testLeaseLost()
+        throws Throwable {
+
+        DistributedLockInstance testLock = new DistributedLockInstance(
+            "renewLock2", this.distributedLockService, 500, 3);
+        CountDownLatch lost = new CountDownLatch(1);
+
+        testLock.lock(10, this.renewer, name -> lost.countDown());
+
+        // Clear the lock from outside of the holding thread
+        this.distributedLockService.exitMaintenanceMode("renewLock2");
+
+        assertTrue(lost.await(5, TimeUnit.SECONDS));
+    }
+}
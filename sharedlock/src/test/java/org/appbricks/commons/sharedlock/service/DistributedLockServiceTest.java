@@ -1,9 +1,12 @@
 package org.appbricks.commons.sharedlock.service;
 
+import org.apache.commons.lang3.StringUtils;
 import org.appbricks.commons.sharedlock.LockTestContext;
 import org.appbricks.commons.sharedlock.data.DistributedLockRepository;
 import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.exception.LockException;
 import org.appbricks.commons.sharedlock.exception.LockTimedoutException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -17,6 +20,12 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -56,6 +65,47 @@ public class DistributedLockServiceTest {
         }
     }
 
+    @Test
+    public void testLocksAreCreatedWhenFirstAcquired()
+        throws Throwable {
+
+        DistributedLockInstance testLock = new DistributedLockInstance(
+            "testLazyLock1", this.distributedLockService, 500, 3);
+        assertNull(this.distributedLockRepository.findOne("testLazyLock1"));
+
+        // A lock without a row is not held by anyone
+        testLock.validate();
+        assertNull(this.distributedLockRepository.findOne("testLazyLock1"));
+
+        testLock.lock(10, 60);
+        try {
+            assertTrue(this.distributedLockRepository.findOne("testLazyLock1").isLocked());
+        } finally {
+            testLock.unlock();
+        }
+
+        assertFalse(this.distributedLockRepository.findOne("testLazyLock1").isLocked());
+    }
+
+    @Test
+    public void testOwnerIdentifiesProcess()
+        throws Throwable {
+
+        DistributedLock lock = this.distributedLockService.newLock("testOwnerLock1");
+        assertTrue(lock.getHostname().contains("#"));
+        assertTrue(lock.getHostname().length() <= 50);
+
+        // Threads of another process on the same host are other owners
+        DistributedLock other = new DistributedLock(lock);
+        other.setHostname(DistributedLockService.ownerHostname(
+            lock.getHostname().substring(0, lock.getHostname().indexOf('#')), "1-0"));
+        assertNotEquals(lock, other);
+
+        String hostname = DistributedLockService.ownerHostname(StringUtils.repeat("h", 60), "12345-abc");
+        assertEquals(50, hostname.length());
+        assertTrue(hostname.endsWith("#12345-abc"));
+    }
+
     @Test
     public void testLockTimeout()
         throws Throwable {
@@ -93,7 +143,9 @@ public class DistributedLockServiceTest {
         ThreadPoolExecutor threadPool =
                 new ThreadPoolExecutor(10, 10, 5, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
 
-        LockTester c1 = new LockTester("process-C1", testLock, 60, 10, 0, 15, null);
+        // C1 validates its expired lock while C2, which takes
+        // over the lock as soon as it expires, is still holding it
+        LockTester c1 = new LockTester("process-C1", testLock, 60, 10, 0, 12, null);
         LockTester c2 = new LockTester("process-C2", testLock, 10, 60, 2, 5, null);
         threadPool.execute(c1);
         threadPool.execute(c2);
@@ -110,6 +162,99 @@ public class DistributedLockServiceTest {
         c2.validate();
     }
 
+    @Test
+    public void testReentrantLocking()
+        throws Throwable {
+
+        DistributedLockInstance testLock = new DistributedLockInstance("testLock4", this.distributedLockService, 500, 3);
+
+        // Re-entering the lock keeps the fencing token of the lease
+        long fencingToken = testLock.lock(10, 60);
+        assertTrue(fencingToken > 0L);
+        assertEquals(fencingToken, testLock.lock(10, 30));
+        testLock.validate();
+
+        testLock.unlock();
+        assertTrue(testLock.getLock().isLocked());
+        testLock.validate();
+
+        testLock.unlock();
+        assertFalse(testLock.getLock().isLocked());
+
+        assertTrue(testLock.lock(10, 60) > fencingToken);
+
+        // The local queue of the lock is dropped once it is released
+        LocalLockQueue queue = this.distributedLockService.getLocalLockQueue("testLock4");
+        testLock.unlock();
+        assertNotSame(queue, this.distributedLockService.getLocalLockQueue("testLock4"));
+        this.distributedLockService.dropLocalLockQueue("testLock4");
+    }
+
+    @Test
+    public void testFairLocking()
+        throws Throwable {
+
+        DistributedLockInstance testLock = new DistributedLockInstance("testLock5", this.distributedLockService, 500, 3);
+        testLock.setFair(true);
+        ReentrantLock exclusivityCheck = new ReentrantLock();
+
+        ThreadPoolExecutor threadPool =
+            new ThreadPoolExecutor(10, 10, 5, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
+
+        List<LockTester> lockTesters = Arrays.asList(
+            new LockTester("process-E1", testLock, 10, 60, 0, 2, exclusivityCheck),
+            new LockTester("process-E2", testLock, 10, 60, 1, 2, exclusivityCheck),
+            new LockTester("process-E3", testLock, 10, 60, 1, 2, exclusivityCheck)
+        );
+        lockTesters.forEach(lt -> threadPool.execute(lt));
+
+        threadPool.shutdown();
+        threadPool.awaitTermination(5, TimeUnit.MINUTES);
+
+        for (LockTester lt : lockTesters) {
+            lt.validate();
+        }
+    }
+
+    @Test
+    public void testLockAll()
+        throws Throwable {
+
+        this.distributedLockService.lockAll(Arrays.asList("testLock6c", "testLock6a", "testLock6b"), 10, 60);
+
+        Throwable[] result = new Throwable[1];
+        Thread thread = new Thread(() -> {
+            try {
+                this.distributedLockService.lockAll(Arrays.asList("testLock6d", "testLock6c"), 1, 60);
+            } catch (Throwable t) {
+                result[0] = t;
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertTrue(result[0] instanceof LockTimedoutException);
+        assertFalse(this.distributedLockService.getLock("testLock6d").isLocked());
+
+        // Locks already held by the current thread are refused right away
+        long start = System.currentTimeMillis();
+        try {
+            this.distributedLockService.lockAll(Arrays.asList("testLock6e", "testLock6c"), 10, 60);
+            fail("Lock 'testLock6c' is already held by the current thread");
+        } catch (LockException e) {
+            assertFalse(e instanceof LockTimedoutException);
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000L);
+        assertFalse(this.distributedLockService.getLock("testLock6e").isLocked());
+
+        this.distributedLockService.unlockAll(Arrays.asList("testLock6a", "testLock6b", "testLock6c"));
+        assertFalse(this.distributedLockService.getLock("testLock6c").isLocked());
+
+        this.distributedLockService.lockAll(Arrays.asList("testLock6d", "testLock6c"), 1, 60);
+        assertTrue(this.distributedLockService.getLock("testLock6d").isLocked());
+        this.distributedLockService.unlockAll(Arrays.asList("testLock6d", "testLock6c"));
+    }
+
     private class LockTester
         implements Runnable {
 
@@ -173,12 +318,14 @@ public class DistributedLockServiceTest {
                 Thread.sleep(this.execDelay * 1000);
                 this.lock.validate();
 
-                this.lock.unlock();
-
+                // Exit the critical section before unlocking as the
+                // lock may be handed directly to a waiting thread
                 if (this.exclusivityCheck != null) {
                     this.exclusivityCheck.unlock();
                 }
 
+                this.lock.unlock();
+
             } catch (Throwable t) {
 
                 System.out.println(String.format(
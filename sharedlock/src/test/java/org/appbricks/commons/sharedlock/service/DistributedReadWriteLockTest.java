@@ -0,0 +1,87 @@
+package org.appbricks.commons.sharedlock.service;
+
+import org.appbricks.commons.sharedlock.LockTestContext;
+import org.appbricks.commons.sharedlock.exception.LockTimedoutException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = { LockTestContext.class })
+public class DistributedReadWriteLockTest {
+
+    @Autowired
+    DistributedLockService distributedLockService;
+
+    @Test
+    public void testReadersShareAndWriterIsPreferred()
+        throws Throwable {
+
+        DistributedReadWriteLock testLock = new DistributedReadWriteLock(
+            "rwLock1", this.distributedLockService, 100, 3);
+
+        CountDownLatch readerHolding = new CountDownLatch(1);
+        CountDownLatch releaseReader = new CountDownLatch(1);
+
+        Thread reader = new Thread(() -> {
+            try {
+                testLock.readLock().lock(10, 60);
+                readerHolding.countDown();
+                releaseReader.await();
+                testLock.readLock().unlock();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        });
+        reader.start();
+        assertTrue(readerHolding.await(10, TimeUnit.SECONDS));
+
+        testLock.readLock().lock(10, 60);
+        testLock.readLock().validate();
+        assertEquals(2, testLock.getLock().getReaders());
+
+        CountDownLatch writerHolding = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            try {
+                testLock.writeLock().lock(10, 60);
+                writerHolding.countDown();
+                testLock.writeLock().unlock();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        });
+        writer.start();
+
+        Thread.sleep(500);
+        assertFalse(writerHolding.await(0, TimeUnit.SECONDS));
+        assertTrue(testLock.getLock().isWriterWaiting());
+
+        Throwable[] result = new Throwable[1];
+        Thread lateReader = new Thread(() -> {
+            try {
+                testLock.readLock().lock(1, 60);
+            } catch (Throwable t) {
+                result[0] = t;
+            }
+        });
+        lateReader.start();
+        lateReader.join();
+        assertTrue(result[0] instanceof LockTimedoutException);
+
+        testLock.readLock().unlock();
+        releaseReader.countDown();
+
+        assertTrue(writerHolding.await(10, TimeUnit.SECONDS));
+        writer.join();
+        assertFalse(testLock.getLock().isLocked());
+    }
+}
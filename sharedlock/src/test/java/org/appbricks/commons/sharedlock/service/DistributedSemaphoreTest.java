@@ -0,0 +1,70 @@
+package org.appbricks.commons.sharedlock.service;
+
+import org.appbricks.commons.sharedlock.LockTestContext;
+import org.appbricks.commons.sharedlock.exception.LockTimedoutException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = { LockTestContext.class })
+public class DistributedSemaphoreTest {
+
+    @Autowired
+    DistributedLockService distributedLockService;
+
+    @Test
+    public void testPermitsAreLimited()
+        throws Throwable {
+
+        DistributedSemaphore semaphore = new DistributedSemaphore(
+            "semaphore1", 3, this.distributedLockService, 100, 3);
+
+        assertEquals(3, semaphore.availablePermits());
+
+        semaphore.acquire(2, 10, 60);
+        assertEquals(2, semaphore.heldPermits());
+        assertEquals(1, semaphore.availablePermits());
+
+        // More permits than are free are not partially taken
+        assertFalse(semaphore.tryAcquire(2, 60));
+        assertEquals(1, semaphore.availablePermits());
+
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Throwable[] result = new Throwable[1];
+
+        Thread other = new Thread(() -> {
+            try {
+                semaphore.acquire(10, 60);
+                holding.countDown();
+                release.await();
+                semaphore.release();
+
+                semaphore.acquire(2, 1, 60);
+            } catch (Throwable t) {
+                result[0] = t;
+            }
+        });
+        other.start();
+        assertTrue(holding.await(10, TimeUnit.SECONDS));
+        assertEquals(0, semaphore.availablePermits());
+
+        release.countDown();
+        other.join();
+        assertTrue(result[0] instanceof LockTimedoutException);
+
+        semaphore.release(2);
+        assertEquals(0, semaphore.heldPermits());
+        assertEquals(3, semaphore.availablePermits());
+    }
+}
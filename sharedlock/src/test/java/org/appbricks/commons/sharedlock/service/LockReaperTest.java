@@ -0,0 +1,99 @@
+package org.appbricks.commons.sharedlock.service;
+
+import org.appbricks.commons.sharedlock.LockTestContext;
+import org.appbricks.commons.sharedlock.data.DistributedLockRepository;
+import org.appbricks.commons.sharedlock.store.JdbcLockStore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.sql.DataSource;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = { LockTestContext.class })
+public class LockReaperTest {
+
+    @Autowired
+    DistributedLockRepository distributedLockRepository;
+
+    @Autowired
+    DistributedLockService distributedLockService;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Test
+    public void testIdleLocksAreDeleted()
+        throws Throwable {
+
+        LockReaper reaper = new LockReaper(this.distributedLockService, 1000);
+
+        DistributedLockInstance idleLock = new DistributedLockInstance(
+            "reapLock1", this.distributedLockService, 500, 3);
+        DistributedLockInstance heldLock = new DistributedLockInstance(
+            "reapLock2", this.distributedLockService, 500, 3);
+
+        idleLock.lock(10, 60);
+        long fencingToken = this.distributedLockRepository.findOne("reapLock1").getFencingToken();
+        idleLock.unlock();
+        heldLock.lock(10, 60);
+        try {
+            Thread.sleep(1500);
+            this.distributedLockService.getLock("reapLock3");
+
+            assertTrue(reaper.reap() > 0);
+
+            assertNull(this.distributedLockRepository.findOne("reapLock1"));
+            assertNotNull(this.distributedLockRepository.findOne("reapLock3"));
+            assertTrue(this.distributedLockRepository.findOne("reapLock2").isLocked());
+            heldLock.validate();
+
+        } finally {
+            heldLock.unlock();
+        }
+
+        // The service still knows the deleted lock and creates it again
+        // when it is next acquired, with a greater fencing token
+        idleLock.lock(10, 60);
+        try {
+            assertTrue(this.distributedLockRepository.findOne("reapLock1").isLocked());
+            assertTrue(this.distributedLockRepository.findOne("reapLock1").getFencingToken() > fencingToken);
+        } finally {
+            idleLock.unlock();
+        }
+        assertFalse(this.distributedLockRepository.findOne("reapLock1").isLocked());
+    }
+
+    @Test
+    public void testDeletesAreBatchedAndRateLimited()
+        throws Throwable {
+
+        DistributedLockService service = new DistributedLockService(new JdbcLockStore(this.dataSource));
+        for (int i = 0; i < 10; i++) {
+            service.getLock("reapBatch" + i);
+        }
+        Thread.sleep(200);
+
+        LockReaper reaper = new LockReaper(service, 100);
+        reaper.setBatchSize(3);
+        reaper.setMaxDeletesPerSecond(10);
+
+        long start = System.currentTimeMillis();
+        assertTrue(reaper.reap() >= 10);
+
+        // Each full batch waits for its deletes before the next one
+        assertTrue(System.currentTimeMillis() - start >= 700);
+        for (int i = 0; i < 10; i++) {
+            assertNull(this.distributedLockRepository.findOne("reapBatch" + i));
+        }
+        assertTrue(service.acquireLock(service.newLock("reapBatch0"), 60));
+        service.unlock("reapBatch0");
+    }
+}
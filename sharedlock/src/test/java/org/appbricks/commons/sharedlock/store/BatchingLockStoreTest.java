@@ -0,0 +1,158 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.LockTestContext;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.sql.DataSource;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.appbricks.commons.sharedlock.LockTestOwners.owner;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = { LockTestContext.class })
+public class BatchingLockStoreTest {
+
+    private static final Log log = LogFactory.getLog(BatchingLockStoreTest.class);
+
+    private static final int THREADS = 16;
+    private static final int ITERATIONS = 100;
+
+    @Autowired
+    LockStore jpaLockStore;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Test
+    public void testJpaBatches()
+        throws Throwable {
+
+        this.verifyBatches(new BatchingLockStore(this.jpaLockStore), "jpaBatch");
+    }
+
+    @Test
+    public void testJdbcBatches()
+        throws Throwable {
+
+        this.verifyBatches(new BatchingLockStore(new JdbcLockStore(this.dataSource)), "jdbcBatch");
+    }
+
+    @Test
+    public void testFailuresAreReportedToTheirCallers()
+        throws Throwable {
+
+        try (BatchingLockStore store = new BatchingLockStore(new JdbcLockStore(this.dataSource), 1)) {
+
+            // A long window puts all the operations in one batch
+            store.setBatchWindow(200L);
+            store.getLock("batchLock1");
+            store.getLock("batchLock2");
+
+            assertNull(store.tryAcquireLock(owner("batchLock1", 1), 60));
+
+            CountDownLatch done = new CountDownLatch(2);
+            AtomicInteger invalid = new AtomicInteger();
+            AtomicInteger acquired = new AtomicInteger();
+
+            ExecutorService executor = Executors.newFixedThreadPool(2);
+            executor.execute(() -> {
+                try {
+                    store.validate(owner("batchLock1", 2));
+                } catch (InvalidLockException e) {
+                    invalid.incrementAndGet();
+                } catch (Throwable t) {
+                    log.error("Unexpected failure", t);
+                }
+                done.countDown();
+            });
+            executor.execute(() -> {
+                try {
+                    if (store.tryAcquireLock(owner("batchLock2", 2), 60) == null) {
+                        acquired.incrementAndGet();
+                    }
+                } catch (Throwable t) {
+                    log.error("Unexpected failure", t);
+                }
+                done.countDown();
+            });
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            executor.shutdown();
+
+            assertEquals(1, invalid.get());
+            assertEquals(1, acquired.get());
+            assertTrue(store.getLockStore().getLock("batchLock2").isLocked());
+
+            try {
+                store.validate(owner("batchLock1", 2));
+                fail("Lock should be held by the first owner");
+            } catch (InvalidLockException e) {
+                // expected
+            }
+        }
+    }
+
+    private void verifyBatches(BatchingLockStore store, String prefix)
+        throws Throwable {
+
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                store.getLock(prefix + i);
+            }
+
+            AtomicInteger failures = new AtomicInteger();
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < THREADS; i++) {
+                DistributedLock owner = owner(prefix + i, i);
+                executor.execute(() -> {
+                    for (int j = 0; j < ITERATIONS; j++) {
+                        try {
+                            if (store.tryAcquireLock(owner, 60) != null) {
+                                failures.incrementAndGet();
+                            }
+                            store.validate(owner);
+                            if (!store.releaseLock(owner)) {
+                                failures.incrementAndGet();
+                            }
+                        } catch (Throwable t) {
+                            log.error("Batched operation failed", t);
+                            failures.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(2, TimeUnit.MINUTES));
+
+            long elapsed = System.nanoTime() - start;
+            log.info(String.format("%s: %,d operations in %,d transactions, %,d operations per second",
+                prefix, store.getOperationCount(), store.getBatchCount(),
+                store.getOperationCount() * 1000000000L / elapsed));
+
+            assertEquals(0, failures.get());
+            assertEquals(3L * THREADS * ITERATIONS, store.getOperationCount());
+            assertTrue(store.getBatchCount() * 4 < store.getOperationCount());
+
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.appbricks.commons.sharedlock.LockTestContext;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.sql.DataSource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.appbricks.commons.sharedlock.LockTestOwners.owner;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = { LockTestContext.class })
+public class CompactJdbcLockStoreTest {
+
+    private static final long COLLIDING_HASH = 42L;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Test
+    public void testExclusiveLocks()
+        throws Throwable {
+
+        CompactJdbcLockStore store = new CompactJdbcLockStore(this.dataSource);
+
+        String name = "compactLock1";
+        DistributedLock owner1 = owner(name, 1);
+        DistributedLock owner2 = owner(name, 2);
+
+        assertFalse(store.getLock(name).isLocked());
+
+        assertNull(store.tryAcquireLock(owner1, 60));
+        assertTrue(owner1.getFencingToken() > 0L);
+        DistributedLock holder = store.tryAcquireLock(owner2, 60);
+        assertNotNull(holder);
+        assertEquals(owner1, holder);
+
+        long expiresAt = System.currentTimeMillis() + 120000L;
+        assertTrue(store.extendLock(owner1, expiresAt));
+        assertFalse(store.extendLock(owner2, expiresAt));
+        assertEquals(expiresAt, store.getLock(name).getExpirationTime().getTime());
+
+        assertTrue(store.transferLock(owner1, owner2, 60));
+        store.validate(owner2);
+        try {
+            store.validate(owner1);
+            fail("Lock should be held by the second owner");
+        } catch (InvalidLockException e) {
+            // expected
+        }
+        assertTrue(store.renewLocks(Collections.singletonList(owner2), expiresAt).isEmpty());
+
+        assertFalse(store.releaseLock(owner1));
+        assertTrue(store.releaseLock(owner2));
+        assertFalse(store.getLock(name).isLocked());
+
+        // Multiple locks are acquired all or none
+        List<String> names = Arrays.asList("compactLock2a", "compactLock2b");
+        store.createLocks(names);
+        assertEquals(2, store.getLocks(names).size());
+
+        assertNull(store.tryAcquireLock(owner(names.get(1), 1), 60));
+        List<DistributedLock> held = store.tryAcquireLocks(names, owner(null, 2), 60);
+        assertEquals(1, held.size());
+        assertEquals(names.get(1), held.get(0).getName());
+        assertFalse(store.getLock(names.get(0)).isLocked());
+
+        assertTrue(store.releaseLock(owner(names.get(1), 1)));
+        assertNull(store.tryAcquireLocks(names, owner(null, 2), 60));
+        assertEquals(2, store.releaseLocks(names, owner(null, 2)));
+
+        // Maintenance mode
+        assertNull(store.tryAcquireLock(owner1, 60));
+        store.enterMaintenanceMode(owner1);
+        assertTrue(store.getLock(name).isMaintenanceMode());
+        store.exitMaintenanceMode(name);
+        assertFalse(store.getLock(name).isLocked());
+
+        // Each owner is written once
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(this.dataSource);
+        assertEquals(Integer.valueOf(1), jdbcTemplate.queryForObject(
+            "select count(*) from CompactLockOwner where threadName = 'thread-1'", Integer.class));
+    }
+
+    @Test
+    public void testCollidingNames()
+        throws Throwable {
+
+        // The locks are stored one after another from the same slot
+        String name = "compactCollision1";
+        String other = "compactCollision2";
+        CompactJdbcLockStore store = collidingStore();
+        store.getLock(other);
+        assertNull(store.tryAcquireLock(owner(other, 1), 60));
+
+        assertEquals(name, store.getLock(name).getName());
+        assertFalse(store.getLock(name).isLocked());
+        assertNull(store.tryAcquireLock(owner(name, 2), 60));
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(this.dataSource);
+        assertEquals(Long.valueOf(COLLIDING_HASH), jdbcTemplate.queryForObject(
+            "select id from CompactLock where name = ?", Long.class, other));
+        assertEquals(Long.valueOf(COLLIDING_HASH + 1), jdbcTemplate.queryForObject(
+            "select id from CompactLock where name = ?", Long.class, name));
+
+        // A store that has not seen the lock finds it by probing
+        CompactJdbcLockStore probing = collidingStore();
+        DistributedLock holder = probing.tryAcquireLock(owner(name, 3), 60);
+        assertNotNull(holder);
+        assertEquals(owner(name, 2), holder);
+
+        List<String> names = Arrays.asList(name, other);
+        assertEquals(2, collidingStore().getLocks(names).size());
+        assertEquals(2, probing.tryAcquireLocks(names, owner(null, 4), 60).size());
+
+        assertTrue(store.releaseLock(owner(name, 2)));
+        assertTrue(store.releaseLock(owner(other, 1)));
+        assertNull(collidingStore().tryAcquireLocks(names, owner(null, 4), 60));
+        assertEquals(2, probing.releaseLocks(names, owner(null, 4)));
+    }
+
+    @Test
+    public void testMigration()
+        throws Throwable {
+
+        JdbcLockStore source = new JdbcLockStore(this.dataSource);
+        source.createLocks(Arrays.asList("migrateLock1", "migrateLock2"));
+
+        DistributedLock owner = owner("migrateLock1", 1);
+        assertNull(source.tryAcquireLock(owner, 60));
+        long expiresAt = source.getLock("migrateLock1").getExpirationTime().getTime();
+
+        CompactJdbcLockStore store = new CompactJdbcLockStore(this.dataSource);
+        assertTrue(store.migrate() >= 2);
+
+        DistributedLock migrated = store.getLock("migrateLock1");
+        assertTrue(migrated.isLocked());
+        assertEquals(owner, migrated);
+        assertEquals(expiresAt, migrated.getExpirationTime().getTime());
+        assertEquals(owner.getFencingToken(), migrated.getFencingToken());
+        assertFalse(store.getLock("migrateLock2").isLocked());
+
+        // The lease carries over and later leases get later tokens
+        store.validate(owner);
+        assertTrue(store.releaseLock(owner));
+
+        DistributedLock next = owner("migrateLock1", 2);
+        assertNull(store.tryAcquireLock(next, 60));
+        assertEquals(owner.getFencingToken() + 1, next.getFencingToken());
+        assertTrue(store.releaseLock(next));
+
+        // Migrated locks are not copied again
+        assertEquals(0, store.migrate());
+    }
+
+    /**
+     * Returns a store in which all the names have the same hash.
+     */
+    private CompactJdbcLockStore collidingStore() {
+
+        return new CompactJdbcLockStore(this.dataSource) {
+            @Override
+            long home(String name) {
+                return COLLIDING_HASH;
+            }
+        };
+    }
+}
@@ -0,0 +1,128 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.service.DistributedLockInstance;
+import org.appbricks.commons.sharedlock.service.DistributedLockService;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryLockStoreTest {
+
+    @Test
+    public void testConcurrentLocking()
+        throws Throwable {
+
+        DistributedLockService service = new DistributedLockService(new InMemoryLockStore());
+        DistributedLockInstance testLock = new DistributedLockInstance("memoryLock1", service, 10, 3);
+
+        AtomicInteger holders = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+
+        ExecutorService threadPool = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            threadPool.execute(() -> {
+                for (int j = 0; j < 50; j++) {
+                    try {
+                        testLock.lock(30, 30);
+                        try {
+                            if (holders.incrementAndGet() > 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            holders.decrementAndGet();
+                        } finally {
+                            testLock.unlock();
+                        }
+                    } catch (Throwable t) {
+                        overlaps.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        threadPool.shutdown();
+        assertTrue(threadPool.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(0, overlaps.get());
+    }
+
+    @Test
+    public void testReleaseWakesWaiter()
+        throws Throwable {
+
+        InMemoryLockStore store = new InMemoryLockStore();
+        DistributedLockService service = new DistributedLockService(store);
+
+        // The waiter checks the lock only every 30 seconds so it
+        // can only acquire the lock in time if it is woken
+        DistributedLockInstance testLock = new DistributedLockInstance("memoryLock2", service, 30000, 3);
+
+        DistributedLock other = new DistributedLock();
+        other.setName("memoryLock2");
+        other.setHostname("otherhost");
+        other.setAddress("10.0.0.1");
+        other.setThreadId(1);
+        other.setThreadName("other");
+        other.setThreadGroupName("main");
+
+        store.getLock("memoryLock2");
+        assertNull(store.tryAcquireLock(other, 60));
+
+        CountDownLatch waiting = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AtomicLong acquiredAt = new AtomicLong();
+        executor.execute(() -> {
+            waiting.countDown();
+            try {
+                testLock.lock(20, 60);
+                acquiredAt.set(System.currentTimeMillis());
+                testLock.unlock();
+            } catch (Throwable t) {
+                // acquiredAt remains unset
+            }
+        });
+
+        waiting.await();
+        Thread.sleep(200);
+
+        long releasedAt = System.currentTimeMillis();
+        assertTrue(store.releaseLock(other));
+
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(acquiredAt.get() > 0 && acquiredAt.get() - releasedAt < 1000L);
+    }
+
+    @Test
+    public void testUnlockReleasesByFencingToken()
+        throws Throwable {
+
+        AtomicLong releasedToken = new AtomicLong(-1L);
+        InMemoryLockStore store = new InMemoryLockStore() {
+            @Override
+            public boolean releaseLock(DistributedLock lock) {
+                releasedToken.set(lock.getFencingToken());
+                return super.releaseLock(lock);
+            }
+        };
+        DistributedLockService service = new DistributedLockService(store);
+        DistributedLockInstance testLock = new DistributedLockInstance("memoryLock3", service, 10, 3);
+
+        long fencingToken = testLock.lock(10, 60);
+        testLock.unlock();
+
+        assertNotEquals(0L, fencingToken);
+        assertEquals(fencingToken, releasedToken.get());
+        assertFalse(store.getLock("memoryLock3").isLocked());
+    }
+}
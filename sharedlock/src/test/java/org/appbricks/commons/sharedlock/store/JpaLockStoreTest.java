@@ -0,0 +1,118 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.appbricks.commons.sharedlock.LockTestContext;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.appbricks.commons.sharedlock.LockTestOwners.owner;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = { LockTestContext.class })
+public class JpaLockStoreTest {
+
+    @Autowired
+    LockStore jpaLockStore;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Test
+    public void testPollsDoNotWaitForRowLocks()
+        throws Throwable {
+
+        DistributedLock holder = owner("rowLock1", 1);
+        DistributedLock poller = owner("rowLock1", 2);
+
+        this.jpaLockStore.getLock("rowLock1");
+        assertNull(this.jpaLockStore.tryAcquireLock(holder, 60));
+
+        try (Connection connection = this.dataSource.getConnection()) {
+
+            // Holds the row of the lock in a transaction
+            // that is left open while the lock is polled
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(
+                "update DistributedLock set updatedTime = updatedTime where name = ?")) {
+
+                statement.setString(1, "rowLock1");
+                assertEquals(1, statement.executeUpdate());
+            }
+
+            long start = System.currentTimeMillis();
+
+            assertTrue(this.jpaLockStore.getLock("rowLock1").isLocked());
+            assertNotNull(this.jpaLockStore.tryAcquireLock(poller, 60));
+            this.jpaLockStore.validate(holder);
+            try {
+                this.jpaLockStore.validate(poller);
+                fail("Lock should be held by the first owner");
+            } catch (InvalidLockException e) {
+                // expected
+            }
+
+            // The database would have refused a statement waiting for the row
+            // after its lock timeout, so none of the calls may have waited
+            assertTrue(System.currentTimeMillis() - start < 500L);
+
+            connection.rollback();
+        }
+
+        assertTrue(this.jpaLockStore.releaseLock(holder));
+        assertFalse(this.jpaLockStore.getLock("rowLock1").isLocked());
+    }
+
+    @Test
+    public void testConcurrentCreation()
+        throws Throwable {
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            names.add("createdLock" + i);
+        }
+
+        // All the threads create the same locks at the same time
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    this.jpaLockStore.createLocks(names);
+                    this.jpaLockStore.getLock(names.get(0));
+                } catch (Throwable t) {
+                    failures.incrementAndGet();
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertEquals(0, failures.get());
+        assertEquals(names.size(), this.jpaLockStore.getLocks(names).size());
+    }
+}
@@ -0,0 +1,290 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.appbricks.commons.sharedlock.LockTestContext;
+import org.appbricks.commons.sharedlock.exception.InvalidLockException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.appbricks.commons.sharedlock.LockTestOwners.owner;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the same operations against the JPA and the JDBC lock stores on
+ * the same database, the mapped file store and the in-memory store and
+ * compares their cost.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = { LockTestContext.class })
+public class LockStoreComparisonTest {
+
+    private static final Log log = LogFactory.getLog(LockStoreComparisonTest.class);
+
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 1000;
+
+    @Autowired
+    LockStore jpaLockStore;
+
+    @Autowired
+    DataSource dataSource;
+
+    @Test
+    public void testJpaStore()
+        throws Throwable {
+
+        this.verifyStore(this.jpaLockStore, "jpa");
+    }
+
+    @Test
+    public void testJdbcStore()
+        throws Throwable {
+
+        this.verifyStore(new JdbcLockStore(this.dataSource), "jdbc");
+    }
+
+    @Test
+    public void testInMemoryStore()
+        throws Throwable {
+
+        this.verifyStore(new InMemoryLockStore(), "memory");
+    }
+
+    @Test
+    public void testMappedFileStore()
+        throws Throwable {
+
+        File file = File.createTempFile("locks", ".tbl");
+        try (MappedFileLockStore store = new MappedFileLockStore(file, 64)) {
+            this.verifyStore(store, "file");
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testStoresSharingLocksKeepTokensInOrder()
+        throws Throwable {
+
+        // Each store acquires the lock after another store has,
+        // so the token it last saw on the lock is out of date
+        List<LockStore> stores = Arrays.asList(
+            this.jpaLockStore, new JdbcLockStore(this.dataSource), new JdbcLockStore(this.dataSource));
+        String name = "sharedTokenLock1";
+        stores.get(0).createLocks(Collections.singletonList(name));
+
+        long fencingToken = 0L;
+        for (int i = 0; i < 9; i++) {
+
+            DistributedLock owner = owner(name, i);
+            LockStore store = stores.get(i % stores.size());
+            assertNull(store.tryAcquireLock(owner, 60));
+            if (i > 0) {
+                assertEquals(fencingToken + 1, owner.getFencingToken());
+            }
+            fencingToken = owner.getFencingToken();
+            assertEquals(fencingToken, store.getLock(name).getFencingToken());
+            assertTrue(store.releaseLock(owner));
+        }
+    }
+
+    @Test
+    public void testStoreCost()
+        throws Throwable {
+
+        Cost jpa = this.measure(this.jpaLockStore, "jpaCost");
+        Cost jdbc = this.measure(new JdbcLockStore(this.dataSource), "jdbcCost");
+        Cost compact = this.measure(new CompactJdbcLockStore(this.dataSource), "compactCost");
+        Cost memory = this.measure(new InMemoryLockStore(), "memoryCost");
+
+        Cost mapped;
+        File file = File.createTempFile("locks", ".tbl");
+        try (MappedFileLockStore store = new MappedFileLockStore(file, 64)) {
+            mapped = this.measure(store, "fileCost");
+        } finally {
+            file.delete();
+        }
+
+        log.info(String.format("Acquire and release per iteration: JPA %,d ns and %,d bytes, "
+                + "JDBC %,d ns and %,d bytes, compact JDBC %,d ns and %,d bytes, "
+                + "mapped file %,d ns and %,d bytes, in-memory %,d ns and %,d bytes",
+            jpa.nanos, jpa.bytes, jdbc.nanos, jdbc.bytes, compact.nanos, compact.bytes,
+            mapped.nanos, mapped.bytes, memory.nanos, memory.bytes));
+
+        assertTrue(jpa.nanos > 0 && jdbc.nanos > 0 && compact.nanos > 0);
+        assertTrue(memory.nanos < jdbc.nanos);
+        assertTrue(mapped.nanos < jdbc.nanos);
+    }
+
+    private void verifyStore(LockStore store, String prefix)
+        throws Throwable {
+
+        String name = prefix + "Lock1";
+        DistributedLock owner1 = owner(name, 1);
+        DistributedLock owner2 = owner(name, 2);
+
+        // A lock that was never acquired is not held
+        assertFalse(store.validate(owner(prefix + "Lock0", 1)).isLocked());
+
+        assertFalse(store.getLock(name).isLocked());
+
+        // Exclusive locks
+        assertNull(store.tryAcquireLock(owner1, 60));
+        DistributedLock holder = store.tryAcquireLock(owner2, 60);
+        assertNotNull(holder);
+        assertEquals(owner1, holder);
+
+        long expiresAt = System.currentTimeMillis() + 120000L;
+        assertTrue(store.extendLock(owner1, expiresAt));
+        assertFalse(store.extendLock(owner2, expiresAt));
+        assertEquals(expiresAt, store.getLock(name).getExpirationTime().getTime());
+
+        assertTrue(store.transferLock(owner1, owner2, 60));
+        store.validate(owner2);
+        try {
+            store.validate(owner1);
+            fail("Lock should be held by the second owner");
+        } catch (InvalidLockException e) {
+            // expected
+        }
+
+        assertTrue(store.renewLocks(Collections.singletonList(owner2), expiresAt).isEmpty());
+
+        assertFalse(store.releaseLock(owner1));
+        assertTrue(store.releaseLock(owner2));
+        assertFalse(store.getLock(name).isLocked());
+
+        // Each lease has a higher fencing token so an earlier lease of
+        // the same thread no longer matches the holder of the lock
+        DistributedLock first = owner(name, 3);
+        assertNull(store.tryAcquireLock(first, 60));
+        assertTrue(first.getFencingToken() > owner2.getFencingToken());
+        assertEquals(first.getFencingToken(), store.getLock(name).getFencingToken());
+        assertTrue(store.releaseLock(first));
+
+        DistributedLock second = owner(name, 3);
+        assertNull(store.tryAcquireLock(second, 60));
+        assertEquals(first.getFencingToken() + 1, second.getFencingToken());
+        try {
+            store.validate(first);
+            fail("Lock should be held by the later lease");
+        } catch (InvalidLockException e) {
+            // expected
+        }
+        assertFalse(store.releaseLock(first));
+        store.validate(second);
+
+        // A lease that was lost is not renewed even though the
+        // later lease was granted to an owner in the same process
+        assertEquals(Collections.singleton(name), store.renewLocks(Collections.singletonList(first), expiresAt));
+        assertTrue(store.getLock(name).getExpirationTime().getTime() < expiresAt);
+        assertTrue(store.renewLocks(Collections.singletonList(second), expiresAt).isEmpty());
+        assertTrue(store.releaseLock(second));
+
+        // Shared leases are held by each reader and a lease that
+        // has expired is not counted with the leases of other readers
+        DistributedLock reader1 = owner(name, 4);
+        DistributedLock reader2 = owner(name, 5);
+        assertNull(store.tryAcquireReadLock(owner(name, 6), 0));
+        assertNull(store.tryAcquireReadLock(reader1, 60));
+        assertNull(store.tryAcquireReadLock(reader2, 60));
+        assertNull(store.tryAcquireReadLock(reader2, 60));
+        assertEquals(2, store.getLock(name).getReaders());
+
+        // Shared locks refuse new readers once a writer is waiting
+        holder = store.tryAcquireLock(owner1, 60);
+        assertNotNull(holder);
+        assertTrue(holder.isReadLocked());
+        assertTrue(store.getLock(name).isWriterWaiting());
+        assertNotNull(store.tryAcquireReadLock(owner(name, 6), 60));
+
+        // A reader only releases its own shared lease
+        store.releaseReadLock(reader1);
+        store.releaseReadLock(reader1);
+        assertEquals(1, store.getLock(name).getReaders());
+        assertNotNull(store.tryAcquireLock(owner1, 60));
+
+        store.releaseReadLock(reader2);
+        assertNull(store.tryAcquireLock(owner1, 60));
+        assertTrue(store.releaseLock(owner1));
+
+        // Multiple locks are acquired all or none
+        List<String> names = Arrays.asList(prefix + "Lock2a", prefix + "Lock2b");
+        store.createLocks(names);
+        assertEquals(2, store.getLocks(names).size());
+
+        assertNull(store.tryAcquireLock(owner(names.get(1), 1), 60));
+        List<DistributedLock> held = store.tryAcquireLocks(names, owner(null, 2), 60);
+        assertEquals(1, held.size());
+        assertEquals(names.get(1), held.get(0).getName());
+        assertFalse(store.getLock(names.get(0)).isLocked());
+
+        assertTrue(store.releaseLock(owner(names.get(1), 1)));
+        assertNull(store.tryAcquireLocks(names, owner(null, 2), 60));
+        assertEquals(2, store.releaseLocks(names, owner(null, 2)));
+
+        // Maintenance mode
+        assertNull(store.tryAcquireLock(owner1, 60));
+        store.enterMaintenanceMode(owner1);
+        assertTrue(store.getLock(name).isMaintenanceMode());
+        store.exitMaintenanceMode(name);
+        assertFalse(store.getLock(name).isLocked());
+    }
+
+    private Cost measure(LockStore store, String name)
+        throws Throwable {
+
+        DistributedLock owner = owner(name, 1);
+        store.getLock(name);
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            store.tryAcquireLock(owner, 60);
+            store.releaseLock(owner);
+        }
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long startBytes = allocatedBytes(threadMXBean);
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            assertNull(store.tryAcquireLock(owner, 60));
+            assertTrue(store.releaseLock(owner));
+        }
+
+        Cost cost = new Cost();
+        cost.nanos = (System.nanoTime() - startTime) / ITERATIONS;
+        cost.bytes = (allocatedBytes(threadMXBean) - startBytes) / ITERATIONS;
+        return cost;
+    }
+
+    private static long allocatedBytes(ThreadMXBean threadMXBean) {
+
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0L;
+    }
+
+    private static class Cost {
+        private long nanos;
+        private long bytes;
+    }
+}
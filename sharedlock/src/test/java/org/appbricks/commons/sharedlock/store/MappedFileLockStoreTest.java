@@ -0,0 +1,171 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.appbricks.commons.sharedlock.LockTestOwners.owner;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Contends for locks in a lock table file with another process.
+ */
+public class MappedFileLockStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp()
+        throws Throwable {
+
+        this.file = File.createTempFile("locks", ".tbl");
+    }
+
+    @After
+    public void tearDown() {
+        this.file.delete();
+    }
+
+    @Test
+    public void testLockHeldByOtherProcess()
+        throws Throwable {
+
+        try (MappedFileLockStore store = new MappedFileLockStore(this.file, 64)) {
+
+            Process process = this.startHolder("processLock1", 60, 1000, true);
+
+            DistributedLock holder = store.tryAcquireLock(owner("processLock1", 1), 60);
+            assertNotNull(holder);
+            assertEquals("otherprocess", holder.getHostname());
+
+            assertEquals(0, process.waitFor());
+            assertNull(store.tryAcquireLock(owner("processLock1", 1), 60));
+            assertTrue(store.releaseLock(owner("processLock1", 1)));
+        }
+    }
+
+    @Test
+    public void testLeaseOfDeadProcessExpires()
+        throws Throwable {
+
+        try (MappedFileLockStore store = new MappedFileLockStore(this.file, 64)) {
+
+            // The other process exits without releasing the lock
+            Process process = this.startHolder("processLock2", 1, 0, false);
+            assertEquals(0, process.waitFor());
+
+            assertTrue(store.getLock("processLock2").isLocked());
+            Thread.sleep(1100);
+            assertFalse(store.getLock("processLock2").isLocked());
+            assertNull(store.tryAcquireLock(owner("processLock2", 1), 60));
+        }
+    }
+
+    @Test
+    public void testIdleSlotsAreReused()
+        throws Throwable {
+
+        try (MappedFileLockStore store = new MappedFileLockStore(this.file, 8)) {
+
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                names.add("slotLock" + i);
+            }
+            store.createLocks(names);
+            try {
+                store.getLock("slotLockFull");
+                fail("Lock table should be full");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            // The slots of the idle locks are freed
+            String held = names.get(7);
+            DistributedLock owner = owner(held, 1);
+            assertNull(store.tryAcquireLock(owner, 60));
+            assertEquals(7, store.deleteIdleLocks(names, System.currentTimeMillis()));
+            assertEquals(Collections.singletonList(held), store.getLockNames(null, 10));
+            assertTrue(store.getLocks(names.subList(0, 7)).isEmpty());
+
+            // and given to new locks, while the held lock is still found
+            List<String> newNames = new ArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                newNames.add("newSlotLock" + i);
+            }
+            store.createLocks(newNames);
+            for (DistributedLock lock : store.getLocks(newNames)) {
+                assertFalse(lock.isLocked());
+                assertTrue(lock.getFencingToken() > 0L);
+            }
+            assertTrue(store.getLock(held).isLocked());
+            store.validate(owner);
+            assertTrue(store.releaseLock(owner));
+        }
+    }
+
+    /**
+     * Starts a process that acquires the named lock and
+     * returns once the process has reported the lock held.
+     */
+    private Process startHolder(String name, int expireAfter, long holdFor, boolean release)
+        throws Throwable {
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java,
+            "-cp", System.getProperty("java.class.path"), Holder.class.getName(),
+            this.file.getAbsolutePath(), name, Integer.toString(expireAfter),
+            Long.toString(holdFor), Boolean.toString(release))
+            .redirectErrorStream(true)
+            .start();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null && !line.equals("locked")) {
+            // skip logging
+        }
+        assertEquals("locked", line);
+        return process;
+    }
+
+    /**
+     * Holds a lock in the lock table from another process.
+     */
+    public static class Holder {
+
+        public static void main(String[] args)
+            throws Throwable {
+
+            DistributedLock lock = owner(args[1], 1);
+            lock.setHostname("otherprocess");
+
+            try (MappedFileLockStore store = new MappedFileLockStore(new File(args[0]))) {
+
+                store.getLock(args[1]);
+                if (store.tryAcquireLock(lock, Integer.parseInt(args[2])) != null) {
+                    System.exit(1);
+                }
+                System.out.println("locked");
+                System.out.flush();
+
+                Thread.sleep(Long.parseLong(args[3]));
+                if (Boolean.parseBoolean(args[4]) && !store.releaseLock(lock)) {
+                    System.exit(2);
+                }
+            }
+        }
+    }
+}
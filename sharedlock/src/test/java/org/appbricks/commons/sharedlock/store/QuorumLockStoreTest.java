@@ -0,0 +1,225 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.appbricks.commons.sharedlock.exception.LockException;
+import org.appbricks.commons.sharedlock.exception.LockUpdateException;
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.service.DistributedLockInstance;
+import org.appbricks.commons.sharedlock.service.DistributedLockService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.appbricks.commons.sharedlock.LockTestOwners.owner;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QuorumLockStoreTest {
+
+    private final List<EmbeddedDatabase> databases = new ArrayList<>();
+
+    private QuorumLockStore store;
+
+    @Before
+    public void setUp() {
+
+        for (int i = 1; i <= 3; i++) {
+            EmbeddedDatabase database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .setName("quorum-store" + i)
+                .build();
+            new JdbcTemplate(database).execute(ShardedLockStoreTest.CREATE_TABLE);
+            this.databases.add(database);
+        }
+        this.store = QuorumLockStore.forDataSources(new ArrayList<>(this.databases));
+    }
+
+    @After
+    public void tearDown() {
+
+        this.store.close();
+        this.databases.forEach(EmbeddedDatabase::shutdown);
+    }
+
+    @Test
+    public void testLeaseIsGrantedByQuorum()
+        throws Throwable {
+
+        String name = "quorumLock1";
+        this.store.createLocks(Arrays.asList(name));
+        assertEquals(2, this.store.getQuorum());
+
+        DistributedLock owner1 = owner(name, 1);
+        DistributedLock owner2 = owner(name, 2);
+
+        long start = System.currentTimeMillis();
+        assertNull(this.store.tryAcquireLock(owner1, 60));
+        assertTrue(owner1.getFencingToken() > 0L);
+
+        // The lease is shortened by the allowance for clock drift
+        long expiresAt = owner1.getExpirationTime().getTime();
+        assertTrue(expiresAt <= start + 60000L - 600L);
+        assertTrue(expiresAt > start + 59000L);
+
+        DistributedLock holder = this.store.tryAcquireLock(owner2, 60);
+        assertNotNull(holder);
+        assertEquals(owner1, holder);
+        assertTrue(this.store.getLock(name).isLocked());
+
+        this.store.validate(owner1);
+        assertTrue(this.store.extendLock(owner1, System.currentTimeMillis() + 120000L));
+        assertTrue(this.store.renewLocks(Arrays.asList(owner1), System.currentTimeMillis() + 120000L).isEmpty());
+
+        // The lease is released on all the stores
+        assertTrue(this.store.releaseLock(owner1));
+        for (EmbeddedDatabase database : this.databases) {
+            assertEquals("F", locked(database, name));
+        }
+        assertFalse(this.store.getLock(name).isLocked());
+        assertNull(this.store.tryAcquireLock(owner2, 60));
+        assertTrue(owner2.getFencingToken() > owner1.getFencingToken());
+        assertTrue(this.store.releaseLock(owner2));
+    }
+
+    @Test
+    public void testLockingSurvivesLossOfOneStore()
+        throws Throwable {
+
+        DistributedLockService service = new DistributedLockService(this.store);
+        DistributedLockInstance lock = new DistributedLockInstance("quorumLock2", service, 10, 0);
+
+        lock.lock(10, 60);
+        lock.unlock();
+
+        this.databases.get(1).shutdown();
+
+        lock.lock(10, 60);
+        try {
+            lock.validate();
+            assertEquals("Y", locked(this.databases.get(0), "quorumLock2"));
+            assertEquals("Y", locked(this.databases.get(2), "quorumLock2"));
+        } finally {
+            lock.unlock();
+        }
+
+        service.lockAll(Arrays.asList("quorumLock3", "quorumLock4"), 10, 60);
+        service.unlockAll(Arrays.asList("quorumLock3", "quorumLock4"));
+
+        // Without a quorum the lock cannot be acquired
+        this.databases.get(2).shutdown();
+        try {
+            lock.lock(1, 60);
+            fail("Lock should not be granted by one of three stores");
+        } catch (LockUpdateException e) {
+            // expected
+        }
+
+        // The lease granted by the remaining store is released in the background
+        long timeoutAt = System.currentTimeMillis() + 1000L;
+        while (!"F".equals(locked(this.databases.get(0), "quorumLock2")) && System.currentTimeMillis() < timeoutAt) {
+            Thread.sleep(10L);
+        }
+        assertEquals("F", locked(this.databases.get(0), "quorumLock2"));
+    }
+
+    @Test
+    public void testFencingTokensIncreaseAcrossQuorums()
+        throws Throwable {
+
+        String name = "quorumLock6";
+        this.store.createLocks(Arrays.asList(name));
+        for (int i = 0; i < 3; i++) {
+            new JdbcTemplate(this.databases.get(i)).update(
+                "update DistributedLock set fencingToken = ? where name = ?", i == 0 ? 10L : 1L, name);
+        }
+
+        // The stores that granted smaller tokens are raised to the token of the lease
+        DistributedLock owner1 = owner(name, 1);
+        assertNull(this.store.tryAcquireLock(owner1, 60));
+        assertEquals(11L, owner1.getFencingToken());
+        this.store.validate(owner1);
+        assertTrue(this.store.renewLocks(Arrays.asList(owner1), System.currentTimeMillis() + 60000L).isEmpty());
+        assertTrue(this.store.releaseLock(owner1));
+
+        // A quorum without the store that granted the largest token
+        this.databases.get(0).shutdown();
+        DistributedLock owner2 = owner(name, 2);
+        assertNull(this.store.tryAcquireLock(owner2, 60));
+        assertTrue(owner2.getFencingToken() > owner1.getFencingToken());
+        assertTrue(this.store.releaseLock(owner2));
+    }
+
+    @Test
+    public void testStoresAreCalledInParallel()
+        throws Throwable {
+
+        List<LockStore> lockStores = new ArrayList<>();
+        lockStores.add(new SlowLockStore(this.databases.get(0), 300L));
+        lockStores.add(new SlowLockStore(this.databases.get(1), 300L));
+        lockStores.add(new SlowLockStore(this.databases.get(2), 5000L));
+
+        try (QuorumLockStore slowStore = new QuorumLockStore(lockStores)) {
+            slowStore.setStoreTimeout(1000L);
+
+            String name = "quorumLock5";
+            slowStore.createLocks(Arrays.asList(name));
+
+            // The acquire waits for the quorum only and
+            // the time it takes is deducted from the lease
+            DistributedLock owner = owner(name, 1);
+            long start = System.currentTimeMillis();
+            assertNull(slowStore.tryAcquireLock(owner, 60));
+            long end = System.currentTimeMillis();
+            long elapsed = end - start;
+
+            assertTrue(elapsed >= 300L);
+            assertTrue("Acquire took " + elapsed + "ms", elapsed < 900L);
+            assertTrue(owner.getExpirationTime().getTime() - end < 60000L - 600L - 250L);
+
+            assertTrue(slowStore.releaseLock(owner));
+        }
+    }
+
+    private static String locked(DataSource dataSource, String name) {
+        return new JdbcTemplate(dataSource).queryForObject(
+            "select locked from DistributedLock where name = ?", String.class, name);
+    }
+
+    /**
+     * A store that takes a while to acquire locks.
+     */
+    private static class SlowLockStore
+        extends JdbcLockStore {
+
+        private final long latency;
+
+        private SlowLockStore(DataSource dataSource, long latency) {
+            super(dataSource);
+            this.latency = latency;
+        }
+
+        @Override
+        public DistributedLock tryAcquireLock(DistributedLock lock, int expireAfter)
+            throws LockException {
+
+            try {
+                Thread.sleep(this.latency);
+            } catch (InterruptedException e) {
+                throw new LockException(e, "Interrupted");
+            }
+            return super.tryAcquireLock(lock, expireAfter);
+        }
+    }
+}
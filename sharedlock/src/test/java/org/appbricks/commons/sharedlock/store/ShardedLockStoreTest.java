@@ -0,0 +1,277 @@
+package org.appbricks.commons.sharedlock.store;
+
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.appbricks.commons.sharedlock.service.DistributedLockService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.appbricks.commons.sharedlock.LockTestOwners.owner;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedLockStoreTest {
+
+    static final String CREATE_TABLE =
+        "create table DistributedLock (name varchar(50) not null primary key, hostname varchar(50), " +
+            "address varchar(15), threadId bigint not null, threadName varchar(50), threadGroupName varchar(50), " +
+            "maintenance char(1) not null, locked char(1) not null, updatedTime bigint not null, " +
+            "expiresAt bigint not null, readers integer not null, readExpiresAt bigint not null, " +
+            "writerWaitingUntil bigint not null, fencingToken bigint not null); " +
+        "create table DistributedLockReader (name varchar(50) not null, hostname varchar(50) not null, " +
+            "threadId bigint not null, address varchar(15), threadName varchar(50), expiresAt bigint not null, " +
+            "primary key (name, hostname, threadId))";
+
+    private final Map<String, EmbeddedDatabase> databases = new LinkedHashMap<>();
+
+    private ShardedLockStore store;
+
+    @Before
+    public void setUp() {
+
+        for (String shardName : new String[] { "shard1", "shard2", "shard3" }) {
+            EmbeddedDatabase database = new EmbeddedDatabaseBuilder()
+                .setType(EmbeddedDatabaseType.H2)
+                .setName("sharded-" + shardName)
+                .build();
+            new JdbcTemplate(database).execute(CREATE_TABLE);
+            this.databases.put(shardName, database);
+        }
+        this.store = ShardedLockStore.forDataSources(new LinkedHashMap<>(this.databases));
+    }
+
+    @After
+    public void tearDown() {
+
+        this.store.close();
+        this.databases.values().forEach(EmbeddedDatabase::shutdown);
+    }
+
+    @Test
+    public void testLocksAreSpreadOverShards()
+        throws Throwable {
+
+        List<String> names = names("shardLock", 60);
+        this.store.createLocks(names);
+        assertEquals(60, this.store.getLocks(names).size());
+
+        // Each lock is in the database of its shard only
+        for (Map.Entry<String, EmbeddedDatabase> entry : this.databases.entrySet()) {
+            int count = count(entry.getValue(), null);
+            assertTrue(entry.getKey() + " has no locks", count > 0);
+
+            for (String name : names) {
+                assertEquals(this.store.getShardName(name).equals(entry.getKey()) ? 1 : 0,
+                    count(entry.getValue(), name));
+            }
+        }
+
+        // Names are read in order across the shards
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        assertEquals(sorted.subList(0, 10), this.store.getLockNames("", 10));
+        assertEquals(sorted.subList(10, 20), this.store.getLockNames(sorted.get(9), 10));
+    }
+
+    @Test
+    public void testLockAllAcrossShards()
+        throws Throwable {
+
+        DistributedLockService service = new DistributedLockService(this.store);
+        List<String> names = names("shardLockAll", 20);
+
+        Set<String> shards = new HashSet<>();
+        names.forEach(name -> shards.add(this.store.getShardName(name)));
+        assertEquals(3, shards.size());
+
+        service.lockAll(names, 10, 60);
+        try {
+            for (DistributedLock lock : this.store.getLocks(names)) {
+                assertTrue(lock.isLocked());
+            }
+
+            // The locks taken in other shards are released
+            // when any of the locks is held by another owner
+            List<String> overlapping = new ArrayList<>(names("shardLockAllOther", 20));
+            overlapping.add(names.get(0));
+            assertNotNull(this.store.tryAcquireLocks(overlapping, owner(null, 99), 60));
+            for (DistributedLock lock : this.store.getLocks(overlapping.subList(0, 20))) {
+                assertFalse(lock.isLocked());
+            }
+
+        } finally {
+            service.unlockAll(names);
+        }
+        for (DistributedLock lock : this.store.getLocks(names)) {
+            assertFalse(lock.isLocked());
+        }
+    }
+
+    @Test
+    public void testRebalanceRespectsLeases()
+        throws Throwable {
+
+        EmbeddedDatabase added = new EmbeddedDatabaseBuilder()
+            .setType(EmbeddedDatabaseType.H2)
+            .setName("sharded-shard4")
+            .build();
+        new JdbcTemplate(added).execute(CREATE_TABLE);
+        this.databases.put("shard4", added);
+
+        List<String> names = names("shardMove", 40);
+        this.store.createLocks(names);
+        Map<String, String> before = new LinkedHashMap<>();
+        names.forEach(name -> before.put(name, this.store.getShardName(name)));
+
+        Map<String, DistributedLock> owners = new LinkedHashMap<>();
+        for (String name : names) {
+            DistributedLock owner = owner(name, 1);
+            assertNull(this.store.tryAcquireLock(owner, 60));
+            owners.put(name, owner);
+        }
+
+        this.store.addShard("shard4", new JdbcLockStore(added));
+        assertTrue(this.store.isRebalancing());
+
+        // Only the names on the nodes of the new shard move
+        List<String> movedNames = new ArrayList<>();
+        for (String name : names) {
+            String shardName = this.store.getShardName(name);
+            if (!shardName.equals(before.get(name))) {
+                assertEquals("shard4", shardName);
+                movedNames.add(name);
+            }
+        }
+        assertFalse(movedNames.isEmpty());
+        assertTrue(movedNames.size() < names.size());
+        String moved = movedNames.get(0);
+        DistributedLock holder = owners.get(moved);
+        for (String name : names) {
+            if (!name.equals(moved)) {
+                assertTrue(this.store.releaseLock(owners.get(name)));
+            }
+        }
+        assertNotEquals("shard4", before.get(moved));
+
+        // The lease taken before the rebalance is still held
+        DistributedLock other = owner(moved, 2);
+        DistributedLock held = this.store.tryAcquireLock(other, 60);
+        assertNotNull(held);
+        assertEquals(holder, held);
+        assertTrue(this.store.getLock(moved).isLocked());
+        assertNotNull(this.store.tryAcquireLocks(Collections.singletonList(moved), owner(null, 3), 60));
+
+        this.store.validate(holder);
+        long expiresAt = System.currentTimeMillis() + 120000L;
+        assertTrue(this.store.extendLock(holder, expiresAt));
+        assertTrue(this.store.renewLocks(Collections.singletonList(holder), expiresAt).isEmpty());
+
+        // Once released in its previous shard the lock is created and taken
+        // in the new one, and in the previous one for the processes that are
+        // not rebalanced yet, with the larger of the tokens of the two shards
+        assertTrue(this.store.releaseLock(holder));
+        assertFalse(this.store.getLock(moved).isLocked());
+        EmbeddedDatabase previous = this.databases.get(before.get(moved));
+        long previousToken = holder.getFencingToken() + 1000000000000L;
+        new JdbcTemplate(previous).update(
+            "update DistributedLock set fencingToken = ? where name = ?", previousToken, moved);
+
+        assertNull(this.store.tryAcquireLock(other, 60));
+        assertEquals(previousToken + 1, other.getFencingToken());
+        assertEquals(1, count(added, moved));
+        assertEquals(previousToken + 1, fencingToken(added, moved));
+        assertNotNull(new JdbcLockStore(previous).tryAcquireLock(owner(moved, 4), 60));
+        this.store.validate(other);
+
+        assertTrue(this.store.releaseLock(other));
+        assertFalse(this.store.getLock(moved).isLocked());
+        assertNull(new JdbcLockStore(previous).tryAcquireLock(owner(moved, 4), 60));
+
+        this.store.finishRebalance();
+        assertFalse(this.store.isRebalancing());
+    }
+
+    @Test
+    public void testRebalanceEndsAfterRebalanceTime()
+        throws Throwable {
+
+        EmbeddedDatabase added = new EmbeddedDatabaseBuilder()
+            .setType(EmbeddedDatabaseType.H2)
+            .setName("sharded-shard5")
+            .build();
+        new JdbcTemplate(added).execute(CREATE_TABLE);
+        this.databases.put("shard5", added);
+
+        List<String> names = names("shardEnd", 40);
+        this.store.createLocks(names);
+        Map<String, DistributedLock> owners = new LinkedHashMap<>();
+        for (String name : names) {
+            DistributedLock owner = owner(name, 1);
+            assertNull(this.store.tryAcquireLock(owner, 60));
+            owners.put(name, owner);
+        }
+
+        this.store.setRebalanceTime(500L);
+        this.store.addShard("shard5", new JdbcLockStore(added));
+        assertTrue(this.store.isRebalancing());
+
+        String moved = null;
+        for (String name : names) {
+            if (this.store.getShardName(name).equals("shard5")) {
+                moved = name;
+            }
+        }
+        assertNotNull(moved);
+
+        // Leases taken before the rebalance are not extended beyond it
+        DistributedLock holder = owners.get(moved);
+        assertTrue(this.store.extendLock(holder, System.currentTimeMillis() + 100L));
+        assertFalse(this.store.extendLock(holder, System.currentTimeMillis() + 60000L));
+        assertEquals(Collections.singleton(moved),
+            this.store.renewLocks(Collections.singletonList(holder), System.currentTimeMillis() + 60000L));
+
+        Thread.sleep(600L);
+        assertFalse(this.store.isRebalancing());
+        this.store.createLocks(Collections.singletonList(moved));
+        assertNull(this.store.tryAcquireLock(owner(moved, 2), 60));
+    }
+
+    private static List<String> names(String prefix, int count) {
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            names.add(prefix + i);
+        }
+        return names;
+    }
+
+    private static int count(DataSource dataSource, String name) {
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        return name == null
+            ? jdbcTemplate.queryForObject("select count(*) from DistributedLock", Integer.class)
+            : jdbcTemplate.queryForObject("select count(*) from DistributedLock where name = ?", Integer.class, name);
+    }
+
+    private static long fencingToken(DataSource dataSource, String name) {
+        return new JdbcTemplate(dataSource).queryForObject(
+            "select fencingToken from DistributedLock where name = ?", Long.class, name);
+    }
+}
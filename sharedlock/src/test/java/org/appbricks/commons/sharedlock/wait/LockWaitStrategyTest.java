@@ -0,0 +1,88 @@
+package org.appbricks.commons.sharedlock.wait;
+
+import org.appbricks.commons.sharedlock.model.DistributedLock;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class LockWaitStrategyTest {
+
+    @Test
+    public void testExponentialBackoff() {
+
+        LockWaitStrategy strategy = new ExponentialBackoffWaitStrategy(100, 5000);
+
+        long wait = strategy.nextWait(1, null);
+        assertTrue(wait >= 50 && wait <= 100);
+
+        wait = strategy.nextWait(4, null);
+        assertTrue(wait >= 400 && wait <= 800);
+
+        wait = strategy.nextWait(1000, null);
+        assertTrue(wait >= 2500 && wait <= 5000);
+    }
+
+    @Test
+    public void testExpiryAware() {
+
+        LockWaitStrategy strategy = new ExpiryAwareWaitStrategy(100, 10000, 200);
+
+        long wait = strategy.nextWait(1, this.newHolder(2));
+        assertTrue(wait >= 1700 && wait <= 1900);
+
+        wait = strategy.nextWait(1, this.newHolder(60));
+        assertTrue(wait >= 10000 && wait <= 10100);
+
+        wait = strategy.nextWait(1, null);
+        assertTrue(wait >= 100 && wait <= 200);
+    }
+
+    @Test
+    public void testAdaptive()
+        throws Exception {
+
+        AdaptiveWaitStrategy strategy = new AdaptiveWaitStrategy(10, 10000);
+
+        for (int i = 0; i < 20; i++) {
+            strategy.nextWait(1, this.newHolder(60));
+            Thread.sleep(20);
+            strategy.acquired(1);
+        }
+
+        assertTrue(strategy.getAverageHoldTime() < 1000);
+        assertTrue(strategy.nextWait(1, this.newHolder(60)) <= 500);
+    }
+
+    @Test
+    public void testAdaptiveTimesEachLease() {
+
+        AdaptiveWaitStrategy strategy = new AdaptiveWaitStrategy(10, 10000);
+
+        // The leases of one thread are told apart by their fencing
+        // tokens and timed from when they were granted
+        for (int i = 1; i <= 20; i++) {
+            DistributedLock holder = this.newHolder(60);
+            holder.setFencingToken(i);
+            holder.setUpdateTime(System.currentTimeMillis() - 2000L);
+            strategy.nextWait(1, holder);
+        }
+        strategy.acquired(1);
+
+        long averageHoldTime = strategy.getAverageHoldTime();
+        assertTrue(averageHoldTime >= 2000 && averageHoldTime < 2500);
+    }
+
+    private DistributedLock newHolder(int expireAfter) {
+
+        DistributedLock owner = new DistributedLock();
+        owner.setHostname("host");
+        owner.setAddress("127.0.0.1");
+        owner.setThreadName("thread");
+        owner.setThreadGroupName("main");
+
+        DistributedLock holder = new DistributedLock();
+        holder.setName("testLock");
+        holder.lock(owner, expireAfter);
+        return holder;
+    }
+}